@@ -0,0 +1,111 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.jmh;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.Gson;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobObjectCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.testobjects.Game;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Decoding a 1,000 object query result, sent by an {@link InMemoryTransport}. the typed callback, which decodes straight
+ * from the response stream, is compared with re-parsing the response String, with a Gson per request or with the
+ * session's shared codec. the bytes allocated per operation are what the GC profiler is for here
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DecodeBenchmark {
+
+    private static final int OBJECTS = 1000;
+
+    private final StackMobQuery query = new StackMobQuery("game");
+    private StackMob stackmob;
+
+    @Setup
+    public void setUp() {
+        Game[] games = new Game[OBJECTS];
+        for(int i = 0; i < OBJECTS; i++) {
+            games[i] = new Game(Arrays.asList("joe", "bob", "alice"), String.valueOf(i), 1320000000000L + i, 1320000000000L + i, "game " + i);
+        }
+        stackmob = new StackMob("key", "secret", "user", 0, "api.mob1.stackmob.com", RequestBenchmark.noopRedirectedCallback);
+        stackmob.setTransport(new InMemoryTransport(new Gson().toJson(games)));
+    }
+
+    @TearDown
+    public void tearDown() {
+        stackmob.shutdown();
+    }
+
+    @Benchmark
+    public Object stringWithNewGson(final Blackhole blackhole) throws Exception {
+        return stackmob.get(query, new StackMobCallback() {
+            @Override
+            public void success(String responseBody) {
+                blackhole.consume(new Gson().fromJson(responseBody, Game[].class));
+            }
+            @Override
+            public void failure(StackMobException e) {}
+        }).get();
+    }
+
+    @Benchmark
+    public Object stringWithSharedCodec(final Blackhole blackhole) throws Exception {
+        return stackmob.get(query, new StackMobCallback() {
+            @Override
+            public void success(String responseBody) {
+                blackhole.consume(stackmob.getCodec().fromJson(responseBody, Game[].class));
+            }
+            @Override
+            public void failure(StackMobException e) {}
+        }).get();
+    }
+
+    @Benchmark
+    public Object typedCallback(final Blackhole blackhole) throws Exception {
+        return stackmob.get(query, Game.class, new StackMobObjectCallback<List<Game>>() {
+            @Override
+            public void success(List<Game> games) {
+                blackhole.consume(games);
+            }
+            @Override
+            public void failure(StackMobException e) {}
+        }).get();
+    }
+}
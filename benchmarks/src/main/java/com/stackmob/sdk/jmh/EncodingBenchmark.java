@@ -0,0 +1,129 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.jmh;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.stackmob.sdk.net.PercentEncoder;
+import com.stackmob.sdk.net.StackMobSigner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.scribe.model.OAuthRequest;
+import org.scribe.model.Verb;
+
+/**
+ * Building the url of a get with many query parameters and signing it, the way StackMobRequest used to (URLEncoder for
+ * every name and value, a URI to check the url, and a signature base string built by parsing, decoding and encoding the
+ * query again) and the way it does now (each name and value encoded once with {@link PercentEncoder}, and the encoded
+ * parameters signed as they are). the encode benchmarks build only the url, and the sign benchmarks build it and sign it
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EncodingBenchmark {
+
+    private static final String PREFIX = "http://api.mob1.stackmob.com/game";
+
+    @Param({"20", "50"})
+    public int params;
+
+    private final StackMobSigner signer = new StackMobSigner("key", "secret");
+    private Map<String, String> arguments;
+
+    @Setup
+    public void setUp() {
+        arguments = new LinkedHashMap<String, String>();
+        for(int i = 0; i < params; i++) {
+            //a mix of names and values that need encoding and ones that don't
+            if(i % 2 == 0) {
+                arguments.put("field_" + i + "[gte]", "a value, with spaces & " + i);
+            }
+            else {
+                arguments.put("field_" + i, "value_" + i);
+            }
+        }
+    }
+
+    @Benchmark
+    public String encodeWithUrlEncoder() throws Exception {
+        StringBuilder query = new StringBuilder();
+        for(Map.Entry<String, String> argument : arguments.entrySet()) {
+            if(query.length() > 0) {
+                query.append('&');
+            }
+            query.append(URLEncoder.encode(argument.getKey(), "UTF-8").replace("+", "%20")).append('=').append(URLEncoder.encode(argument.getValue(), "UTF-8").replace("+", "%20"));
+        }
+        return new URI(PREFIX + "?" + query).toString();
+    }
+
+    @Benchmark
+    public String encodeWithPercentEncoder() {
+        return buildUrl(encodeArguments());
+    }
+
+    @Benchmark
+    public OAuthRequest signWithUrlEncoder() throws Exception {
+        OAuthRequest request = new OAuthRequest(Verb.GET, encodeWithUrlEncoder());
+        signer.sign(request);
+        return request;
+    }
+
+    @Benchmark
+    public OAuthRequest signWithPercentEncoder() {
+        String[] encoded = encodeArguments();
+        OAuthRequest request = new OAuthRequest(Verb.GET, buildUrl(encoded));
+        signer.sign(request, encoded);
+        return request;
+    }
+
+    private String[] encodeArguments() {
+        String[] encoded = new String[arguments.size() * 2];
+        int i = 0;
+        for(Map.Entry<String, String> argument : arguments.entrySet()) {
+            encoded[i++] = PercentEncoder.encode(argument.getKey());
+            encoded[i++] = PercentEncoder.encode(argument.getValue());
+        }
+        return encoded;
+    }
+
+    private static String buildUrl(String[] encoded) {
+        StringBuilder url = new StringBuilder(PREFIX.length() + 16 * encoded.length).append(PREFIX).append('?');
+        for(int i = 0; i < encoded.length; i += 2) {
+            if(i > 0) {
+                url.append('&');
+            }
+            url.append(encoded[i]).append('=').append(encoded[i + 1]);
+        }
+        return url.toString();
+    }
+}
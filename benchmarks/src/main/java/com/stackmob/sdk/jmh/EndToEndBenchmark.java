@@ -0,0 +1,86 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.net.NioHttpTransport;
+import com.stackmob.sdk.net.PooledHttpTransport;
+import com.stackmob.sdk.stub.StubServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whole requests, sent through StackMobRequest.sendRequest() over loopback to the stub server from the SDK's tests, with
+ * each of the built in transports. the server answers at once, so this measures the SDK and the JDK's networking rather
+ * than a real server
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EndToEndBenchmark {
+
+    @Param({"pooled", "nio"})
+    public String transport;
+
+    private StubServer server;
+    private StackMob stackmob;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = new StubServer().respond("/game", 200, RequestBenchmark.GAME);
+        stackmob = new StackMob("key", "secret", "user", 0, server.getHost(), RequestBenchmark.noopRedirectedCallback);
+        if("nio".equals(transport)) {
+            stackmob.setTransport(new NioHttpTransport());
+        }
+        else {
+            stackmob.setTransport(new PooledHttpTransport());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        stackmob.shutdown();
+        server.stop();
+    }
+
+    @Benchmark
+    public Object get() throws Exception {
+        return stackmob.get("game", RequestBenchmark.noopCallback).get();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Object getFromEightThreads() throws Exception {
+        return get();
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.jmh;
+
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.stackmob.sdk.net.StackMobHttpCallback;
+import com.stackmob.sdk.net.StackMobHttpResponse;
+import com.stackmob.sdk.net.StackMobHttpTransport;
+import org.scribe.model.OAuthRequest;
+
+/**
+ * A transport that answers every request at once with the same response, without touching the network, so that
+ * benchmarks measure only the SDK's own work: building, encoding and signing the request, and handling the response
+ */
+public class InMemoryTransport implements StackMobHttpTransport {
+
+    private final byte[] body;
+    private final Map<String, List<String>> headers;
+
+    public InMemoryTransport(String body) {
+        try {
+            this.body = body.getBytes("UTF-8");
+        }
+        catch(UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        this.headers = Collections.singletonMap("Content-Type", Collections.singletonList("application/json; charset=utf-8"));
+    }
+
+    @Override
+    public void send(OAuthRequest request, StackMobHttpCallback callback) {
+        StackMobHttpResponse response = new StackMobHttpResponse(200, headers, new ByteArrayInputStream(body));
+        try {
+            callback.response(response);
+        }
+        finally {
+            response.close();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        //nothing to release
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.jmh;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobPreparedQuery;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.net.PercentEncoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static com.stackmob.sdk.jmh.RequestBenchmark.GAME;
+import static com.stackmob.sdk.jmh.RequestBenchmark.noopCallback;
+import static com.stackmob.sdk.jmh.RequestBenchmark.noopRedirectedCallback;
+
+/**
+ * Running the same query with new values, by building it with {@link StackMobQuery} each time and by binding the values
+ * to a {@link StackMobPreparedQuery}. the query benchmarks build only the path and query string, and the get benchmarks
+ * send the whole request to an {@link InMemoryTransport}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PreparedQueryBenchmark {
+
+    private static final StackMobPreparedQuery PREPARED = new StackMobPreparedQuery("game")
+            .fieldIsIn("name")
+            .fieldIsGreaterThan("score")
+            .fieldIsLessThanOrEqualTo("score")
+            .fieldIsGreaterThanOrEqualTo("players")
+            .expandDepthIs(2);
+
+    private final List<String> names = Arrays.asList("chess", "checkers", "go", "backgammon");
+    private int score = 0;
+    private StackMob stackmob;
+
+    @Setup
+    public void setUp() {
+        stackmob = new StackMob("key", "secret", "user", 0, "api.mob1.stackmob.com", noopRedirectedCallback);
+        stackmob.setTransport(new InMemoryTransport(GAME));
+    }
+
+    @TearDown
+    public void tearDown() {
+        stackmob.shutdown();
+    }
+
+    //a new score each time, as a caller running the same query again would have
+    private StackMobQuery build() {
+        score = (score + 1) & 1023;
+        return new StackMobQuery("game")
+                .fieldIsIn("name", names)
+                .fieldIsGreaterThan("score", Integer.toString(score))
+                .fieldIslessThanOrEqualTo("score", Integer.toString(score + 1000))
+                .fieldIsGreaterThanOrEqualTo("players", "2")
+                .expandDepthIs(2);
+    }
+
+    private StackMobPreparedQuery.Bound bind() {
+        score = (score + 1) & 1023;
+        return PREPARED.bind(names, score, score + 1000, 2);
+    }
+
+    @Benchmark
+    public String query() {
+        StackMobQuery query = build();
+        //encoded the way StackMobRequest encodes it
+        StringBuilder url = new StringBuilder("/").append(query.getObjectName()).append('?');
+        for(Map.Entry<String, String> argument : query.getArguments().entrySet()) {
+            PercentEncoder.encode(argument.getKey(), url.append('&'));
+            PercentEncoder.encode(argument.getValue(), url.append('='));
+        }
+        return url.toString();
+    }
+
+    @Benchmark
+    public String preparedQuery() {
+        return bind().toString();
+    }
+
+    @Benchmark
+    public Object get() throws Exception {
+        return stackmob.get(build(), noopCallback).get();
+    }
+
+    @Benchmark
+    public Object preparedGet() throws Exception {
+        return stackmob.get(bind(), noopCallback).get();
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.jmh;
+
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.GsonBuilder;
+import com.stackmob.sdk.push.StackMobPushToken;
+import com.stackmob.sdk.push.StackMobPushTokenDeserializer;
+import com.stackmob.sdk.push.StackMobPushTokenSerializer;
+import com.stackmob.sdk.util.StackMobCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serializing the body of a pushToTokens call with the SDK's Gson, which writes each token with its own serializer. the
+ * session's shared codec is compared with building a Gson for every request, as StackMobRequest used to
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PushPayloadBenchmark {
+
+    /**
+     * the number of tokens the notification is sent to
+     */
+    @Param({"1", "100", "1000"})
+    public int tokens;
+
+    private final StackMobCodec codec = new StackMobCodec();
+    private Map<String, Object> payload;
+
+    @Setup
+    public void setUp() {
+        Map<String, String> kvPairs = new HashMap<String, String>();
+        kvPairs.put("alert", "It's your turn");
+        kvPairs.put("badge", "1");
+        kvPairs.put("sound", "chime");
+        List<StackMobPushToken> tokenList = new ArrayList<StackMobPushToken>();
+        for(int i = 0; i < tokens; i++) {
+            StackMobPushToken.TokenType type = i % 2 == 0 ? StackMobPushToken.TokenType.iOS : StackMobPushToken.TokenType.Android;
+            tokenList.add(new StackMobPushToken(String.format("%064x", i), type));
+        }
+        //the same shape that StackMob.pushToTokens sends
+        Map<String, Object> payloadMap = new HashMap<String, Object>();
+        payloadMap.put("kvPairs", kvPairs);
+        payload = new HashMap<String, Object>();
+        payload.put("payload", payloadMap);
+        payload.put("tokens", tokenList);
+    }
+
+    @Benchmark
+    public String serialize() {
+        return codec.toJson(payload);
+    }
+
+    @Benchmark
+    public String serializeWithNewGson() {
+        return new GsonBuilder()
+            .registerTypeAdapter(StackMobPushToken.class, new StackMobPushTokenDeserializer())
+            .registerTypeAdapter(StackMobPushToken.class, new StackMobPushTokenSerializer())
+            .excludeFieldsWithModifiers(Modifier.PRIVATE, Modifier.PROTECTED, Modifier.TRANSIENT, Modifier.STATIC)
+            .create()
+            .toJson(payload);
+    }
+}
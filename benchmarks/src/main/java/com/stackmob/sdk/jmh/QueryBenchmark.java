@@ -0,0 +1,70 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.jmh;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.api.StackMobQueryWithField;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building a query and turning it into the arguments of a request, with {@link StackMobQuery} directly and with the
+ * {@link StackMobQueryWithField} builder
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueryBenchmark {
+
+    private final List<String> names = Arrays.asList("chess", "checkers", "go", "backgammon");
+
+    @Benchmark
+    public Map<String, String> query() {
+        return new StackMobQuery("game")
+                .fieldIsIn("name", names)
+                .fieldIsGreaterThan("score", "10")
+                .fieldIslessThanOrEqualTo("score", "1000")
+                .fieldIsGreaterThanOrEqualTo("players", "2")
+                .expandDepthIs(2)
+                .getArguments();
+    }
+
+    @Benchmark
+    public Map<String, String> queryWithField() {
+        return new StackMobQueryWithField("name", new StackMobQuery("game"))
+                .isIn(names)
+                .field("score").isGreaterThan("10").isLessThanOrEqualTo("1000")
+                .field("players").isGreaterThanOrEqualTo("2")
+                .getQuery()
+                .getArguments();
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.jmh;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Everything a request costs apart from the network: formatting and percent-encoding the query string, building the
+ * url and headers, OAuth signing, and handing the response to the callback. requests go to an
+ * {@link InMemoryTransport}. compare with {@link SignerBenchmark} to see how much of it is signing
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RequestBenchmark {
+
+    static final String GAME = "{\"game_id\":\"1\",\"name\":\"chess\"}";
+
+    static final StackMobRedirectedCallback noopRedirectedCallback = new StackMobRedirectedCallback() {
+        @Override
+        public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {}
+    };
+
+    static final StackMobCallback noopCallback = new StackMobCallback() {
+        @Override
+        public void success(String responseBody) {}
+        @Override
+        public void failure(StackMobException e) {}
+    };
+
+    /**
+     * the number of query parameters. many fields or a long "in" list make for long query strings
+     */
+    @Param({"2", "20"})
+    public int params;
+
+    private StackMob stackmob;
+    private Map<String, String> arguments;
+    private Map<String, String> game;
+
+    @Setup
+    public void setUp() {
+        stackmob = new StackMob("key", "secret", "user", 0, "api.mob1.stackmob.com", noopRedirectedCallback);
+        stackmob.setTransport(new InMemoryTransport(GAME));
+        arguments = new HashMap<String, String>();
+        for(int i = 0; i < params; i++) {
+            //values that need encoding, as most query values do
+            arguments.put("field_" + i + "[gte]", "a value, with spaces & " + i);
+        }
+        game = new HashMap<String, String>();
+        game.put("name", "chess");
+        game.put("players", "2");
+    }
+
+    @TearDown
+    public void tearDown() {
+        stackmob.shutdown();
+    }
+
+    @Benchmark
+    public Object get() throws Exception {
+        return stackmob.get("game", arguments, noopCallback).get();
+    }
+
+    @Benchmark
+    public Object post() throws Exception {
+        return stackmob.post("game", game, noopCallback).get();
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import com.stackmob.sdk.net.StackMobSigner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.scribe.model.OAuthRequest;
+import org.scribe.model.Verb;
+
+/**
+ * OAuth signing of a get with a query string, with one {@link StackMobSigner} shared by every thread as StackMob does
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SignerBenchmark {
+
+    private static final String URL = "http://api.mob1.stackmob.com/game?name%5Bin%5D=one%2Ctwo&score%5Bgt%5D=10";
+
+    private final StackMobSigner signer = new StackMobSigner("key", "secret");
+
+    private static OAuthRequest newRequest() {
+        OAuthRequest req = new OAuthRequest(Verb.GET, URL);
+        req.addHeader("Accept", "application/vnd.stackmob+json; version=0");
+        return req;
+    }
+
+    @Benchmark
+    public OAuthRequest sign() {
+        OAuthRequest req = newRequest();
+        signer.sign(req);
+        return req;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public OAuthRequest signFromFourThreads() {
+        return sign();
+    }
+}
@@ -18,23 +18,58 @@ package com.stackmob.sdk.api;
 
 import java.net.CookieHandler;
 import java.net.CookieManager;
-import java.net.URI;
-import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.stackmob.sdk.callback.StackMobRedirectedCallback;
 import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobObjectCallback;
+import com.stackmob.sdk.callback.StackMobRequestListener;
+import com.stackmob.sdk.callback.StackMobStreamingCallback;
+import com.stackmob.sdk.exception.StackMobException;
 import com.stackmob.sdk.net.HttpVerb;
+import com.stackmob.sdk.net.NioHttpTransport;
+import com.stackmob.sdk.net.PooledHttpTransport;
+import com.stackmob.sdk.net.StackMobCircuitBreaker;
+import com.stackmob.sdk.net.StackMobCompression;
+import com.stackmob.sdk.net.StackMobMetrics;
+import com.stackmob.sdk.net.StackMobRateLimiter;
+import com.stackmob.sdk.net.StackMobRetryPolicy;
+import com.stackmob.sdk.net.StackMobRouter;
+import com.stackmob.sdk.net.StackMobHttpTransport;
 import com.stackmob.sdk.push.StackMobPushToken;
+import com.stackmob.sdk.util.StackMobCodec;
 
 public class StackMob {
 
     private StackMobSession session;
-    private String urlFormat = StackMobRequest.DEFAULT_URL_FORMAT;
-    private final Object urlFormatLock = new Object();
+    private volatile StackMobRouter router = new StackMobRouter(StackMobRequest.DEFAULT_URL_FORMAT);
     private final CookieManager cookieMgr = new CookieManager();
+    private volatile Executor executor = null;
+    private volatile StackMobHttpTransport transport = new PooledHttpTransport();
+    private final StackMobCompression compression = new StackMobCompression();
+    private final StackMobRetryPolicy retryPolicy = new StackMobRetryPolicy();
+    private final StackMobCircuitBreaker circuitBreaker = new StackMobCircuitBreaker();
+    private final StackMobRateLimiter rateLimiter = new StackMobRateLimiter();
+    private final StackMobMetrics metrics = new StackMobMetrics();
+    private volatile StackMobRequestListener requestListener = null;
+    private volatile Semaphore inFlightPermits = null;
+    private final AtomicInteger inFlightCount = new AtomicInteger(0);
+    private volatile boolean coalesceGets = false;
+    private final ConcurrentMap<String, InFlightGet> inFlightGets = new ConcurrentHashMap<String, InFlightGet>();
+    private final AtomicLong coalescedGets = new AtomicLong(0);
+    private final AtomicLong sharedGets = new AtomicLong(0);
 
     protected static class RegistrationIDAndUser {
         public String userId;
@@ -52,17 +87,9 @@ public class StackMob {
     protected StackMobRedirectedCallback redirectedCallback = new StackMobRedirectedCallback() {
         @Override
         public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {
-            try {
-                URI uri = new URI(newURL);
-                synchronized(urlFormatLock) {
-                    if (!urlFormat.equalsIgnoreCase(uri.getHost())) {
-                        urlFormat = uri.getHost();
-                        userRedirectedCallback.redirected(originalUrl, redirectHeaders, redirectBody, newURL);
-                    }
-                }
-            }
-            catch (URISyntaxException e) {
-                //do nothing - we were unable to parse the new URL
+            //only the request that moves the default host tells the user, however many were redirected at once
+            if(router.redirected(originalUrl, newURL) && userRedirectedCallback != null) {
+                userRedirectedCallback.redirected(originalUrl, redirectHeaders, redirectBody, newURL);
             }
         }
     };
@@ -124,7 +151,502 @@ public class StackMob {
                   StackMobRedirectedCallback redirectedCallback) {
         this(apiKey, apiSecret, userObjectName, apiVersionNumber);
         this.userRedirectedCallback = redirectedCallback;
-        this.urlFormat = urlFormat;
+        this.router = new StackMobRouter(urlFormat);
+    }
+
+    ////////////////////
+    //request execution
+    ////////////////////
+
+    /**
+     * run requests on the given executor instead of the calling thread. by default (or if you pass null), every method on this object
+     * sends its request and runs its callback on the calling thread before returning. with an executor, methods return immediately
+     * and the returned StackMobFuture can be used to wait for the result. for example:
+     * <code>
+     *     stackmob.setExecutor(Executors.newFixedThreadPool(16)).setMaxInFlightRequests(64);
+     *     StackMobFuture game = stackmob.get("game", gameCallback);
+     *     StackMobFuture user = stackmob.get("user", userCallback);
+     *     game.get();
+     *     user.get();
+     * </code>
+     * this object does not shut the executor down. callbacks run on the executor's threads, unless the transport calls back
+     * from threads of its own, as {@link com.stackmob.sdk.net.NioHttpTransport} does. with that transport no executor is needed to send requests in the background
+     * @param executor the executor on which to run requests, or null to run them on the calling thread
+     * @return this object, so calls can be chained
+     */
+    public StackMob setExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * limit the number of requests that may be in flight at once. when the limit is reached, methods on this object block the
+     * calling thread until an earlier request completes. a request stops counting against the limit just before its callback
+     * is called, so callbacks may send new requests
+     * @param maxInFlightRequests the maximum number of concurrent requests, or 0 for no limit (the default)
+     * @return this object, so calls can be chained
+     */
+    public StackMob setMaxInFlightRequests(int maxInFlightRequests) {
+        if(maxInFlightRequests < 0) {
+            throw new IllegalArgumentException("maxInFlightRequests must not be negative");
+        }
+        this.inFlightPermits = maxInFlightRequests == 0 ? null : new Semaphore(maxInFlightRequests, true);
+        return this;
+    }
+
+    /**
+     * send requests through the given transport instead of the default, which keeps a pool of up to
+     * {@link PooledHttpTransport#DEFAULT_MAX_CONNECTIONS_PER_HOST} keep-alive connections to each host. to tune the default pool:
+     * <code>
+     *     stackmob.setTransport(new PooledHttpTransport().setMaxConnectionsPerHost(32).setReadTimeout(10, TimeUnit.SECONDS));
+     * </code>
+     * @param transport the transport to send requests with
+     * @return this object, so calls can be chained
+     */
+    public StackMob setTransport(StackMobHttpTransport transport) {
+        if(transport == null) {
+            throw new IllegalArgumentException("transport must not be null");
+        }
+        this.transport = transport;
+        return this;
+    }
+
+    public StackMobHttpTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * get the compression settings for requests made through this object, and the counts of the bytes they sent and
+     * received. responses are asked for gzipped by default. to also gzip large request bodies, such as push payloads and
+     * batched posts:
+     * <code>
+     *     stackmob.getCompression().setRequestThreshold(4096);
+     * </code>
+     * @return the compression settings
+     */
+    public StackMobCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * get the policy for retrying requests made through this object. requests are sent once by default. to retry gets,
+     * puts and deletes that fail with an I/O error or a 502, 503 or 504:
+     * <code>
+     *     stackmob.getRetryPolicy().setMaxAttempts(3).setBackoff(100, 2000, TimeUnit.MILLISECONDS);
+     * </code>
+     * @return the retry policy
+     */
+    public StackMobRetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * get the metrics of requests made through this object: latency percentiles, failures, error statuses, requests in
+     * flight, bytes and redirects, for each verb and path. to read them through JMX as well as with getSnapshot():
+     * <code>
+     *     stackmob.getMetrics().registerMBeans("myapp");
+     * </code>
+     * @return the metrics
+     */
+    public StackMobMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * tell a listener about each phase of every request made through this object, with its start and end times, to trace
+     * requests or break down where a slow one spent its time. with no listener (the default) nothing extra is recorded
+     * <code>
+     *     stackmob.setRequestListener(new StackMobRequestListener() {
+     *         public void phase(StackMobRequest request, Phase phase, long startNanos, long endNanos) {
+     *             tracer.record(request.toString(), phase.name(), endNanos - startNanos);
+     *         }
+     *     });
+     * </code>
+     * @param requestListener the listener to call, or null for none
+     * @return this object, so calls can be chained
+     */
+    public StackMob setRequestListener(StackMobRequestListener requestListener) {
+        this.requestListener = requestListener;
+        return this;
+    }
+
+    public StackMobRequestListener getRequestListener() {
+        return requestListener;
+    }
+
+    /**
+     * get the rate limiter for requests made through this object. nothing is limited by default. to keep under a quota
+     * of 50 requests a second, and send push notifications more slowly still:
+     * <code>
+     *     stackmob.getRateLimiter().setRate(50, 20).setRate(StackMobRateLimiter.Category.PUSH, 5, 5);
+     * </code>
+     * @return the rate limiter
+     */
+    public StackMobRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * get the router that picks the StackMob host for each request. when the platform redirects a request to another
+     * cluster, the router learns the new host for the request's path, so later requests go straight there
+     * @return the router
+     */
+    public StackMobRouter getRouter() {
+        return router;
+    }
+
+    /**
+     * get the circuit breaker for requests made through this object. it keeps a circuit for each StackMob host, and while
+     * a host's circuit is open, requests to it fail with a StackMobException at once instead of tying up a thread until
+     * they time out. it's off by default. to turn it on:
+     * <code>
+     *     stackmob.getCircuitBreaker().setFailureRateThreshold(0.5).setOpenDuration(30, TimeUnit.SECONDS).setEnabled(true);
+     * </code>
+     * @return the circuit breaker
+     */
+    public StackMobCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * close the connections held by this object's transport, and unregister its metrics from JMX. requests made after
+     * this call fail
+     */
+    public void shutdown() {
+        transport.shutdown();
+        metrics.unregisterMBeans();
+    }
+
+    /**
+     * @return the number of requests made through this object that haven't completed yet
+     */
+    public int getInFlightRequestCount() {
+        return inFlightCount.get();
+    }
+
+    /**
+     * share one response between identical gets that are in flight at the same time. a get is identical to an earlier one
+     * if it has the same path and the same arguments, in any order. when the first of them completes, every caller's callback
+     * is called with its response or failure, so a burst of requests for the same data costs one round trip. for example:
+     * <code>
+     *     stackmob.setExecutor(Executors.newFixedThreadPool(16)).setCoalesceGets(true);
+     *     //while the first request is on the wire, these join it instead of sending their own
+     *     for(int i = 0; i < 10; i++) {
+     *         stackmob.get(new StackMobQuery("game").fieldIsGreaterThan("score", "100"), gameCallback);
+     *     }
+     * </code>
+     * A few notes about coalescing:
+     * <ul>
+     *     <li>only gets are coalesced. posts, puts, deletes and login calls are always sent on their own</li>
+     *     <li>a get that joins one already in flight returns immediately, even without an executor. its callback runs on
+     *     whichever thread completes the shared request, and its future can't be cancelled</li>
+     *     <li>a get made after the shared request completed is sent again, so coalescing never returns stale responses</li>
+     * </ul>
+     * @param coalesceGets true to coalesce identical gets, false to send every get on its own (the default)
+     * @return this object, so calls can be chained
+     */
+    public StackMob setCoalesceGets(boolean coalesceGets) {
+        this.coalesceGets = coalesceGets;
+        return this;
+    }
+
+    /**
+     * @return the number of gets that were answered with another get's response instead of being sent
+     */
+    public long getCoalescedGetCount() {
+        return coalescedGets.get();
+    }
+
+    /**
+     * @return the number of gets that were sent while coalescing was on, each of which may have answered several callers
+     */
+    public long getSharedGetCount() {
+        return sharedGets.get();
+    }
+
+    /**
+     * send a request, either on the calling thread or on the executor, and hook its callback up to a future
+     * @param request the request to send
+     * @return the future for the request
+     */
+    protected StackMobFuture execute(final StackMobRequest request) {
+        final StackMobFuture future = new StackMobFuture();
+        final StackMobCallback userCallback = request.callback;
+        //capture the semaphore so that a later call to setMaxInFlightRequests can't unbalance it
+        final Semaphore permits = inFlightPermits;
+        request.setUrlFormat(router.getHost(request.getPath())).setTransport(transport).setCompression(compression).setRetryPolicy(retryPolicy).setCircuitBreaker(circuitBreaker).setMetrics(metrics).setRequestListener(requestListener).setExecutor(executor);
+        //the permit is given back before the user's callback runs, so a callback that sends another request, or waits for
+        //one, doesn't hold a permit that request may need
+        request.callback = new StackMobCallback() {
+            @Override
+            public void success(String responseBody) {
+                completed(permits);
+                try {
+                    userCallback.success(responseBody);
+                }
+                finally {
+                    future.complete(responseBody);
+                }
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                completed(permits);
+                try {
+                    userCallback.failure(e);
+                }
+                finally {
+                    future.fail(e);
+                }
+            }
+        };
+
+        final StackMobRateLimiter.Category category = getCategory(request);
+        //the request takes its own tokens for retries and redirects
+        request.setRateLimiter(rateLimiter, category);
+        long wait = rateLimiter.reserve(category);
+        if(wait < 0) {
+            StackMobException ex = new StackMobException("not sent, because the rate limit for " + category + " requests was reached");
+            userCallback.failure(ex);
+            future.fail(ex);
+            return future;
+        }
+        if(wait > 0 && rateLimiter.getMode() == StackMobRateLimiter.Mode.QUEUE) {
+            StackMobRateLimiter.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    admit(request, future, permits, userCallback);
+                }
+            }, wait);
+            return future;
+        }
+        if(wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                StackMobException ex = new StackMobException("interrupted while waiting to send request");
+                userCallback.failure(ex);
+                future.fail(ex);
+                return future;
+            }
+        }
+        admit(request, future, permits, userCallback);
+        return future;
+    }
+
+    /**
+     * send a request that the rate limiter let through, once the in flight limit allows
+     */
+    private void admit(final StackMobRequest request, final StackMobFuture future, final Semaphore permits, StackMobCallback userCallback) {
+        if(permits != null) {
+            try {
+                permits.acquire();
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                StackMobException ex = new StackMobException("interrupted while waiting to send request");
+                userCallback.failure(ex);
+                future.fail(ex);
+                return;
+            }
+        }
+        inFlightCount.incrementAndGet();
+
+        Runnable send = new Runnable() {
+            @Override
+            public void run() {
+                if(future.start()) {
+                    try {
+                        request.sendRequest();
+                    }
+                    catch(RuntimeException e) {
+                        if(future.isDone()) {
+                            //thrown by the callback itself
+                            throw e;
+                        }
+                        request.callback.failure(new StackMobException(e.getMessage()));
+                    }
+                }
+                else {
+                    //cancelled before it started
+                    completed(permits);
+                }
+            }
+        };
+
+        Executor currentExecutor = executor;
+        if(currentExecutor == null) {
+            send.run();
+        }
+        else {
+            try {
+                currentExecutor.execute(send);
+            }
+            catch(RejectedExecutionException e) {
+                request.callback.failure(new StackMobException("request rejected by executor: " + e.getMessage()));
+            }
+        }
+    }
+
+    private static StackMobRateLimiter.Category getCategory(StackMobRequest request) {
+        String path = request.getPath();
+        if(request instanceof StackMobUserBasedRequest || path.equals("/startsession")) {
+            return StackMobRateLimiter.Category.USER;
+        }
+        if(path.startsWith("/push/")) {
+            return StackMobRateLimiter.Category.PUSH;
+        }
+        return StackMobRateLimiter.Category.DATA;
+    }
+
+    private void completed(Semaphore permits) {
+        inFlightCount.decrementAndGet();
+        if(permits != null) {
+            permits.release();
+        }
+    }
+
+    /**
+     * A get that's on the wire, along with every caller waiting for its response
+     */
+    private class InFlightGet implements StackMobCallback {
+        private final String key;
+        private final List<StackMobCallback> callbacks = new ArrayList<StackMobCallback>();
+        private final List<StackMobFuture> futures = new ArrayList<StackMobFuture>();
+        private boolean done = false;
+
+        InFlightGet(String key) {
+            this.key = key;
+        }
+
+        /**
+         * @return false if the response has already been handed out, in which case the caller must send its own request
+         */
+        synchronized boolean join(StackMobCallback callback, StackMobFuture future) {
+            if(done) {
+                return false;
+            }
+            future.start();
+            callbacks.add(callback);
+            futures.add(future);
+            return true;
+        }
+
+        //stop new callers from joining, and hand back everyone who already has
+        private synchronized int finish() {
+            inFlightGets.remove(key, this);
+            done = true;
+            return callbacks.size();
+        }
+
+        @Override
+        public void success(String responseBody) {
+            int waiting = finish();
+            RuntimeException thrown = null;
+            for(int i = 0; i < waiting; i++) {
+                try {
+                    callbacks.get(i).success(responseBody);
+                }
+                catch(RuntimeException e) {
+                    //don't let one caller's callback keep the others from completing
+                    thrown = thrown == null ? e : thrown;
+                }
+                finally {
+                    futures.get(i).complete(responseBody);
+                }
+            }
+            if(thrown != null) {
+                throw thrown;
+            }
+        }
+
+        @Override
+        public void failure(StackMobException e) {
+            int waiting = finish();
+            RuntimeException thrown = null;
+            for(int i = 0; i < waiting; i++) {
+                try {
+                    callbacks.get(i).failure(e);
+                }
+                catch(RuntimeException callbackException) {
+                    thrown = thrown == null ? callbackException : thrown;
+                }
+                finally {
+                    futures.get(i).fail(e);
+                }
+            }
+            if(thrown != null) {
+                throw thrown;
+            }
+        }
+    }
+
+    private StackMobFuture coalesce(String path, Map<String, String> arguments, String range, StackMobCallback callback) {
+        return coalesce(path, getCoalescingKey(path, arguments), arguments, null, range, callback);
+    }
+
+    private StackMobFuture coalesce(String path, String key, Map<String, String> arguments, String[] encodedParams, String range, StackMobCallback callback) {
+        if(range != null) {
+            key += "\nRange:" + range;
+        }
+        StackMobFuture future = new StackMobFuture();
+        while(true) {
+            InFlightGet existing = inFlightGets.get(key);
+            if(existing != null) {
+                if(existing.join(callback, future)) {
+                    coalescedGets.incrementAndGet();
+                    return future;
+                }
+                //it completed while we looked at it. it has already been removed, so try again
+                continue;
+            }
+            InFlightGet created = new InFlightGet(key);
+            created.join(callback, future);
+            if(inFlightGets.putIfAbsent(key, created) == null) {
+                sharedGets.incrementAndGet();
+                if(encodedParams != null) {
+                    execute(withRange(new StackMobRequest(this.session, path, created, redirectedCallback).setEncodedParams(encodedParams), range));
+                }
+                else if(arguments == null) {
+                    execute(withRange(new StackMobRequest(this.session, path, created, redirectedCallback), range));
+                }
+                else {
+                    execute(withRange(new StackMobRequest(this.session, path, arguments, created, redirectedCallback), range));
+                }
+                return future;
+            }
+            future = new StackMobFuture();
+        }
+    }
+
+    /**
+     * @return a key that's equal for two gets exactly when they'd send the same request. arguments are sorted, and every
+     * name and value is length-prefixed so that no combination of them can collide with another
+     */
+    static String getCoalescingKey(String path, Map<String, String> arguments) {
+        StringBuilder key = new StringBuilder(path);
+        if(arguments != null && !arguments.isEmpty()) {
+            for(Map.Entry<String, String> arg : new TreeMap<String, String>(arguments).entrySet()) {
+                String value = String.valueOf(arg.getValue());
+                key.append('\n').append(arg.getKey().length()).append(':').append(arg.getKey())
+                   .append('=').append(value.length()).append(':').append(value);
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return a key that's equal for two gets of prepared queries exactly when they'd send the same request. encoded names
+     * and values can't contain '=', '&' or a newline, so they're joined as they'd be in a query string
+     */
+    static String getCoalescingKey(StackMobPreparedQuery.Bound query) {
+        return "\n?" + query.toString();
+    }
+
+    private static StackMobRequest withRange(StackMobRequest request, String range) {
+        return range == null ? request : request.setHeader("Range", range);
     }
 
     ////////////////////
@@ -136,24 +658,24 @@ public class StackMob {
      * @param params parameters to pass to the login method
      * @param callback callback to be called when the server returns. may execute in a separate thread
      */
-    public void login(Map<String, String> params, StackMobCallback callback) {
-        new StackMobUserBasedRequest(session, "login", params, callback, redirectedCallback).setUrlFormat(urlFormat).sendRequest();
+    public StackMobFuture login(Map<String, String> params, StackMobCallback callback) {
+        return execute(new StackMobUserBasedRequest(session, "login", params, callback, redirectedCallback));
     }
 
     /**
      * call the logout method on StackMob
      * @param callback callback to be called when the server returns. may execute in a separate thread
      */
-    public void logout(StackMobCallback callback) {
-        new StackMobUserBasedRequest(this.session, "logout", callback, redirectedCallback).setUrlFormat(urlFormat).sendRequest();
+    public StackMobFuture logout(StackMobCallback callback) {
+        return execute(new StackMobUserBasedRequest(this.session, "logout", callback, redirectedCallback));
     }
 
     /**
      * call the startsession method on StackMob
      * @param callback callback to call when the method completes
      */
-    public void startSession(StackMobCallback callback) {
-        new StackMobRequest(this.session, "startsession", HttpVerb.POST, callback, redirectedCallback).setUrlFormat(urlFormat).sendRequest();
+    public StackMobFuture startSession(StackMobCallback callback) {
+        return execute(new StackMobRequest(this.session, "startsession", HttpVerb.POST, callback, redirectedCallback));
     }
 
     ////////////////////
@@ -166,11 +688,11 @@ public class StackMob {
      * @param secret the twitter session secret (this is a per user secret - different from the consumer secret)
      * @param callback callback to be called when the server returns. may execute in a separate thread
      */
-    public void twitterLogin(String token, String secret, StackMobCallback callback) {
+    public StackMobFuture twitterLogin(String token, String secret, StackMobCallback callback) {
         Map<String, String> params = new HashMap<String, String>();
         params.put("tw_tk", token);
         params.put("tw_ts", secret);
-        new StackMobUserBasedRequest(this.session, "twitterlogin", params, callback, redirectedCallback).setUrlFormat(urlFormat).sendRequest();
+        return execute(new StackMobUserBasedRequest(this.session, "twitterlogin", params, callback, redirectedCallback));
     }
 
     /**
@@ -178,10 +700,10 @@ public class StackMob {
      * @param message the message to send. must be <= 140 characters
      * @param callback callback to be called when the server returns. may execute in a separate thread
      */
-    public void twitterStatusUpdate(String message, StackMobCallback callback) {
+    public StackMobFuture twitterStatusUpdate(String message, StackMobCallback callback) {
         Map<String, String> params = new HashMap<String, String>();
         params.put("tw_st", message);
-        new StackMobUserBasedRequest(this.session, "twitterStatusUpdate", params, callback, redirectedCallback).setUrlFormat(urlFormat).sendRequest();
+        return execute(new StackMobUserBasedRequest(this.session, "twitterStatusUpdate", params, callback, redirectedCallback));
     }
 
     /**
@@ -191,12 +713,12 @@ public class StackMob {
      * @param username the username that the user should have
      * @param callback callback to be called when the server returns. may execute in a separate thread
      */
-    public void registerWithTwitterToken(String token, String secret, String username, StackMobCallback callback) {
+    public StackMobFuture registerWithTwitterToken(String token, String secret, String username, StackMobCallback callback) {
         Map<String, String> params = new HashMap<String, String>();
         params.put("tw_tk", token);
         params.put("tw_ts", secret);
         params.put("username", username);
-        new StackMobUserBasedRequest(this.session, "createUserWithTwitter", params, callback, redirectedCallback).setUrlFormat(urlFormat).sendRequest();
+        return execute(new StackMobUserBasedRequest(this.session, "createUserWithTwitter", params, callback, redirectedCallback));
     }
 
     /**
@@ -205,12 +727,12 @@ public class StackMob {
      * @param secret the twitter session secret (this is a per user secret - different from the consumer secret)
      * @param callback callback to be called when the server returns. may execute in a separate thread
      */
-    public void linkUserWithTwitterToken(String token, String secret, StackMobCallback callback) {
+    public StackMobFuture linkUserWithTwitterToken(String token, String secret, StackMobCallback callback) {
         Map<String, String> params = new HashMap<String, String>();
         params.put("tw_tk", token);
         params.put("tw_ts", secret);
 
-        new StackMobUserBasedRequest(this.session, "linkUserWithTwitter", params, callback, redirectedCallback).setUrlFormat(urlFormat).sendRequest();
+        return execute(new StackMobUserBasedRequest(this.session, "linkUserWithTwitter", params, callback, redirectedCallback));
     }
 
     /**
@@ -218,11 +740,11 @@ public class StackMob {
      * @param token the facebook user token
      * @param callback callback to be called when the server returns. may execute in a separate thread
      */
-    public void facebookLogin(String token, StackMobCallback callback) {
+    public StackMobFuture facebookLogin(String token, StackMobCallback callback) {
         Map<String, String> params = new HashMap<String, String>();
         params.put("fb_at", token);
 
-        new StackMobUserBasedRequest(this.session, "facebookLogin", params, callback, redirectedCallback).setUrlFormat(urlFormat).sendRequest();
+        return execute(new StackMobUserBasedRequest(this.session, "facebookLogin", params, callback, redirectedCallback));
     }
 
     /**
@@ -231,12 +753,12 @@ public class StackMob {
      * @param username the StackMob username that the new user should have
      * @param callback callback to be called when the server returns. may execute in a separate thread
      */
-    public void registerWithFacebookToken(String token, String username, StackMobCallback callback) {
+    public StackMobFuture registerWithFacebookToken(String token, String username, StackMobCallback callback) {
         Map<String, String> params = new HashMap<String, String>();
         params.put("fb_at", token);
         params.put("username", username);
 
-        new StackMobUserBasedRequest(this.session, "createUserWithFacebook", params, callback, redirectedCallback).setUrlFormat(urlFormat).sendRequest();
+        return execute(new StackMobUserBasedRequest(this.session, "createUserWithFacebook", params, callback, redirectedCallback));
     }
 
     /**
@@ -244,11 +766,11 @@ public class StackMob {
      * @param token the Facebook user token
      * @param callback callback to be called when the server returns. may execute in a separate thread
      */
-    public void linkUserWithFacebookToken(String token, StackMobCallback callback) {
+    public StackMobFuture linkUserWithFacebookToken(String token, StackMobCallback callback) {
         Map<String, String> params = new HashMap<String, String>();
         params.put("fb_at", token);
 
-        new StackMobUserBasedRequest(this.session, "linkUserWithFacebook", params, callback, redirectedCallback).setUrlFormat(urlFormat).sendRequest();
+        return execute(new StackMobUserBasedRequest(this.session, "linkUserWithFacebook", params, callback, redirectedCallback));
     }
 
     /**
@@ -256,19 +778,19 @@ public class StackMob {
      * @param msg the message to post
      * @param callback callback to be called when the server returns. may execute in a separate thread
      */
-    public void facebookPostMessage(String msg, StackMobCallback callback) {
+    public StackMobFuture facebookPostMessage(String msg, StackMobCallback callback) {
         Map<String, String> params = new HashMap<String, String>();
         params.put("message", msg);
 
-        new StackMobUserBasedRequest(this.session, "postFacebookMessage", params, callback, redirectedCallback).setUrlFormat(urlFormat).sendRequest();
+        return execute(new StackMobUserBasedRequest(this.session, "postFacebookMessage", params, callback, redirectedCallback));
     }
 
     /**
      * get facebook user info for the current user. this method will return nothing if there is no currently logged in FB user
      * @param callback callback to be called when the server returns. may execute in a separate thread
      */
-    public void getFacebookUserInfo(StackMobCallback callback) {
-        get("getFacebookUserInfo", callback);
+    public StackMobFuture getFacebookUserInfo(StackMobCallback callback) {
+        return get("getFacebookUserInfo", callback);
     }
 
     ////////////////////
@@ -281,14 +803,14 @@ public class StackMob {
      * @param tokens the tokens to which to send
      * @param callback callback to be called when the server returns. may execute in a separate thread
      */
-    public void pushToTokens(Map<String, String> payload, List<StackMobPushToken> tokens, StackMobCallback callback) {
+    public StackMobFuture pushToTokens(Map<String, String> payload, List<StackMobPushToken> tokens, StackMobCallback callback) {
         Map<String, Object> finalPayload = new HashMap<String, Object>();
         Map<String, Object> payloadMap = new HashMap<String, Object>();
         payloadMap.put("kvPairs", payload);
         finalPayload.put("payload", payloadMap);
         finalPayload.put("tokens", tokens);
 
-        post("push/push_tokens_universal", finalPayload, callback);
+        return post("push/push_tokens_universal", finalPayload, callback);
     }
 
     /**
@@ -297,11 +819,11 @@ public class StackMob {
      * @param userIds the IDs of the users to which to send
      * @param callback callback to be called when the server returns. may execute in a separate thread
      */
-    public void pushToUsers(Map<String, String> payload, List<String> userIds, StackMobCallback callback) {
+    public StackMobFuture pushToUsers(Map<String, String> payload, List<String> userIds, StackMobCallback callback) {
         Map<String, Object> finalPayload = new HashMap<String, Object>();
         finalPayload.put("kvPairs", payload);
         finalPayload.put("userIds", userIds);
-        post("push/push_users_universal", finalPayload, callback);
+        return post("push/push_users_universal", finalPayload, callback);
     }
 
     /**
@@ -310,9 +832,9 @@ public class StackMob {
      * @param registrationID the C2DM registration ID. see http://code.google.com/android/c2dm/#registering for detail on how to get this ID
      * @param callback callback to be called when the server returns. may execute in a separate thread
      */
-    public void registerForPushWithUser(String username, String registrationID, StackMobCallback callback) {
+    public StackMobFuture registerForPushWithUser(String username, String registrationID, StackMobCallback callback) {
         RegistrationIDAndUser tokenAndUser = new RegistrationIDAndUser(registrationID, username);
-        post("push/register_device_token_universal", tokenAndUser, callback);
+        return post("push/register_device_token_universal", tokenAndUser, callback);
     }
 
     /**
@@ -320,10 +842,10 @@ public class StackMob {
      * @param payload the payload to broadcast
      * @param callback callback to be called when the server returns. may execute in a separate thread
      */
-    public void broadcastPushNotification(Map<String, String> payload, StackMobCallback callback) {
+    public StackMobFuture broadcastPushNotification(Map<String, String> payload, StackMobCallback callback) {
         Map<String, Object> finalPayload = new HashMap<String, Object>();
         finalPayload.put("kvPairs", payload);
-        post("push/push_broadcast", finalPayload, callback);
+        return post("push/push_broadcast", finalPayload, callback);
     }
 
     /**
@@ -331,26 +853,26 @@ public class StackMob {
      * @param clear whether or not to clear the tokens after they've been returned
      * @param callback callback to be called when the server returns. may execute in a separate thread
      */
-    private void getExpiredPushTokens(Boolean clear, StackMobCallback callback) {
+    private StackMobFuture getExpiredPushTokens(Boolean clear, StackMobCallback callback) {
         Map<String, Object> finalPayload = new HashMap<String, Object>();
         finalPayload.put("clear", clear);
-        post("push/get_expired_tokens_universal", finalPayload, callback);
+        return post("push/get_expired_tokens_universal", finalPayload, callback);
     }
 
     /**
      * get all expired push tokens for this app, and clear them after they've been returned
      * @param callback callback to be called when the server returns. may execute in a separate thread
      */
-    public void getAndClearExpiredPushTokens(StackMobCallback callback) {
-        getExpiredPushTokens(true, callback);
+    public StackMobFuture getAndClearExpiredPushTokens(StackMobCallback callback) {
+        return getExpiredPushTokens(true, callback);
     }
 
     /**
      * get expired push tokens, but do not clear them after they've been returned
      * @param callback callback to be called when the server returns. may execute in a separate thread
      */
-    public void getExpiredPushTokens(StackMobCallback callback) {
-        getExpiredPushTokens(false, callback);
+    public StackMobFuture getExpiredPushTokens(StackMobCallback callback) {
+        return getExpiredPushTokens(false, callback);
     }
 
     /**
@@ -359,11 +881,11 @@ public class StackMob {
      * @param tokenType the type of the token
      * @param callback callback to be called when the server returns. may execute in a separate thread
      */
-    public void removePushToken(String tokenString, StackMobPushToken.TokenType tokenType, StackMobCallback callback) {
+    public StackMobFuture removePushToken(String tokenString, StackMobPushToken.TokenType tokenType, StackMobCallback callback) {
         Map<String, Object> finalPayload = new HashMap<String, Object>();
         finalPayload.put("token", tokenString);
         finalPayload.put("type", tokenType.toString());
-        post("push/remove_push_token_universal", finalPayload, callback);
+        return post("push/remove_push_token_universal", finalPayload, callback);
     }
 
     ////////////////////
@@ -375,8 +897,11 @@ public class StackMob {
      * @param path the path to get
      * @param callback callback to be called when the server returns. may execute in a separate thread
      */
-    public void get(String path, StackMobCallback callback) {
-        new StackMobRequest(this.session, path, callback, redirectedCallback).setUrlFormat(urlFormat).sendRequest();
+    public StackMobFuture get(String path, StackMobCallback callback) {
+        if(coalesceGets) {
+            return coalesce(path, null, null, callback);
+        }
+        return execute(new StackMobRequest(this.session, path, callback, redirectedCallback));
     }
 
     /**
@@ -385,16 +910,159 @@ public class StackMob {
      * @param arguments arguments to be encoded into the query string of the get request
      * @param callback callback to be called when the server returns. may execute in a separate thread
      */
-    public void get(String path, Map<String, String> arguments, StackMobCallback callback) {
-        new StackMobRequest(this.session, path, arguments, callback, redirectedCallback).setUrlFormat(urlFormat).sendRequest();
+    public StackMobFuture get(String path, Map<String, String> arguments, StackMobCallback callback) {
+        return get(path, arguments, null, callback);
+    }
+
+    public StackMobFuture get(StackMobQuery query, StackMobCallback callback) {
+        return this.get("/"+query.getObjectName(), query.getArguments(), query.getRange(), callback);
+    }
+
+    private StackMobFuture get(String path, Map<String, String> arguments, String range, StackMobCallback callback) {
+        if(coalesceGets) {
+            return coalesce(path, arguments, range, callback);
+        }
+        return execute(withRange(new StackMobRequest(this.session, path, arguments, callback, redirectedCallback), range));
+    }
+
+    /**
+     * do a get request for the objects that match a prepared query. see {@link StackMobPreparedQuery}
+     * @param query the prepared query, with its values bound
+     * @param callback callback to be called when the server returns. may execute in a separate thread
+     */
+    public StackMobFuture get(StackMobPreparedQuery.Bound query, StackMobCallback callback) {
+        if(coalesceGets) {
+            return coalesce(query.getPath(), getCoalescingKey(query), null, query.getEncodedParams(), query.getRange(), callback);
+        }
+        return execute(withRange(new StackMobRequest(this.session, query.getPath(), callback, redirectedCallback).setEncodedParams(query.getEncodedParams()), query.getRange()));
+    }
+
+    public StackMobFuture get(StackMobQueryWithField query, StackMobCallback callback) {
+        return this.get(query.getQuery(), callback);
+    }
+
+    /**
+     * do a get request on the StackMob platform, and hand the objects in the response to the callback one at a time as
+     * they're parsed, rather than reading the whole response into memory first. for example:
+     * <code>
+     *     stackmob.get(new StackMobQuery("game"), new StackMobStreamingCallback() {
+     *         public void object(JsonElement game) { index(game); }
+     *         public void done() { System.out.println("indexed every game"); }
+     *         public void failure(StackMobException e) { e.printStackTrace(); }
+     *     });
+     * </code>
+     * A few notes about streaming gets:
+     * <ul>
+     *     <li>the returned future completes with null once done() or failure() returns</li>
+     *     <li>an error status from the server is passed to failure(), with the error body as its message</li>
+     *     <li>streaming gets are never coalesced, and {@link com.stackmob.sdk.net.NioHttpTransport} and
+     *     {@link com.stackmob.sdk.net.CachingHttpTransport} read the whole body before the callback sees it.
+     *     use the default transport to keep memory use flat</li>
+     * </ul>
+     * @param path the path to get
+     * @param arguments arguments to be encoded into the query string of the get request, or null for none
+     * @param callback callback to be called with each object as it's parsed. may execute in a separate thread
+     */
+    public StackMobFuture get(String path, Map<String, String> arguments, StackMobStreamingCallback callback) {
+        return execute(new StackMobStreamingRequest(this.session, path, arguments, callback, redirectedCallback));
+    }
+
+    /**
+     * do a streaming get request for the objects that match a query. see {@link #get(String, Map, StackMobStreamingCallback)}
+     * @param query the query to run
+     * @param callback callback to be called with each object as it's parsed. may execute in a separate thread
+     */
+    public StackMobFuture get(StackMobQuery query, StackMobStreamingCallback callback) {
+        return get(query, query.getRange(), callback);
     }
 
-    public void get(StackMobQuery query, StackMobCallback callback) {
-        this.get("/"+query.getObjectName(), query.getArguments(), callback);
+    /**
+     * do a streaming get for one range of the objects that match a query, whatever range the query itself asks for
+     */
+    StackMobFuture get(StackMobQuery query, String range, StackMobStreamingCallback callback) {
+        return execute(withRange(new StackMobStreamingRequest(this.session, "/"+query.getObjectName(), query.getArguments(), callback, redirectedCallback), range));
     }
 
-    public void get(StackMobQueryWithField query, StackMobCallback callback) {
-        this.get(query.getQuery(), callback);
+    /**
+     * do a get request on the StackMob platform, and decode the array in the response into a list of objects. the objects
+     * are decoded with this object's codec as they're parsed from the response stream, so the response body is never
+     * held as a String. for example:
+     * <code>
+     *     stackmob.get(new StackMobQuery("game").fieldIsGreaterThan("score", "100"), Game.class, new StackMobObjectCallback&lt;List&lt;Game&gt;&gt;() {
+     *         public void success(List&lt;Game&gt; games) { show(games); }
+     *         public void failure(StackMobException e) { e.printStackTrace(); }
+     *     });
+     * </code>
+     * the returned future completes with null once the callback returns. an error status from the server is passed to
+     * failure(), with the error body as its message
+     * @param path the path to get
+     * @param arguments arguments to be encoded into the query string of the get request, or null for none
+     * @param type the class to decode each object into
+     * @param callback callback to be called with the decoded objects. may execute in a separate thread
+     */
+    public <T> StackMobFuture get(String path, Map<String, String> arguments, Class<T> type, StackMobObjectCallback<List<T>> callback) {
+        return get(path, arguments, TypedStreamingCallback.forList(getCodec(), type, callback));
+    }
+
+    /**
+     * get the objects that match a query, decoded into a list. see {@link #get(String, Map, Class, StackMobObjectCallback)}
+     * @param query the query to run
+     * @param type the class to decode each object into
+     * @param callback callback to be called with the decoded objects. may execute in a separate thread
+     */
+    public <T> StackMobFuture get(StackMobQuery query, Class<T> type, StackMobObjectCallback<List<T>> callback) {
+        return get(query, query.getRange(), TypedStreamingCallback.forList(getCodec(), type, callback));
+    }
+
+    /**
+     * get the objects that match a prepared query, decoded into a list. see {@link #get(String, Map, Class, StackMobObjectCallback)}
+     * @param query the prepared query, with its values bound
+     * @param type the class to decode each object into
+     * @param callback callback to be called with the decoded objects. may execute in a separate thread
+     */
+    public <T> StackMobFuture get(StackMobPreparedQuery.Bound query, Class<T> type, StackMobObjectCallback<List<T>> callback) {
+        StackMobRequest request = new StackMobStreamingRequest(this.session, query.getPath(), null, TypedStreamingCallback.forList(getCodec(), type, callback), redirectedCallback);
+        return execute(withRange(request.setEncodedParams(query.getEncodedParams()), query.getRange()));
+    }
+
+    /**
+     * walk through every object that matches a query, one page at a time. each page is a separate request for a range of
+     * the objects, and the next page is requested while the caller works on the current one. for example:
+     * <code>
+     *     StackMobPager&lt;Game&gt; pages = stackmob.getPages(new StackMobQuery("game"), Game.class, 500);
+     *     while(pages.hasNextPage()) {
+     *         for(Game game : pages.nextPage()) {
+     *             archive(game);
+     *         }
+     *     }
+     * </code>
+     * pages are only prefetched when requests run in the background, that is, when this object has an executor or a
+     * {@link NioHttpTransport}. otherwise each page is fetched on the calling thread when it's asked for
+     * @param query the query to run. any range it has is ignored
+     * @param type the class to decode each object into
+     * @param pageSize the number of objects to request at a time
+     * @return a pager that has already requested the first page if requests run in the background
+     */
+    public <T> StackMobPager<T> getPages(StackMobQuery query, Class<T> type, int pageSize) {
+        return new StackMobPager<T>(this, query, type, pageSize);
+    }
+
+    /**
+     * @return true if requests return before their response arrives, so that a request sent ahead of time overlaps with
+     * the caller's work
+     */
+    boolean sendsInBackground() {
+        return executor != null || transport instanceof NioHttpTransport;
+    }
+
+    /**
+     * get a single object, such as "game/1234", decoded straight from the response stream
+     * @param path the path of the object to get
+     * @param type the class to decode the object into
+     * @param callback callback to be called with the decoded object. may execute in a separate thread
+     */
+    public <T> StackMobFuture get(String path, Class<T> type, StackMobObjectCallback<T> callback) {
+        return get(path, null, TypedStreamingCallback.forObject(getCodec(), type, callback));
     }
 
     /**
@@ -403,8 +1071,19 @@ public class StackMob {
      * @param requestObject the object to serialize and send in the POST body. this object will be serialized with Gson
      * @param callback callback to be called when the server returns. may execute in a separate thread
      */
-    public void post(String path, Object requestObject, StackMobCallback callback) {
-        new StackMobRequest(this.session, path, HttpVerb.POST, requestObject, callback, redirectedCallback).setUrlFormat(urlFormat).sendRequest();
+    public StackMobFuture post(String path, Object requestObject, StackMobCallback callback) {
+        return execute(new StackMobRequest(this.session, path, HttpVerb.POST, requestObject, callback, redirectedCallback));
+    }
+
+    /**
+     * do a post request on the StackMob platform, and decode the created object straight from the response stream
+     * @param path the path to post to
+     * @param requestObject the object to serialize and send in the POST body. this object will be serialized with Gson
+     * @param type the class to decode the created object into
+     * @param callback callback to be called with the created object. may execute in a separate thread
+     */
+    public <T> StackMobFuture post(String path, Object requestObject, Class<T> type, StackMobObjectCallback<T> callback) {
+        return execute(new StackMobStreamingRequest(this.session, path, HttpVerb.POST, requestObject, TypedStreamingCallback.forObject(getCodec(), type, callback), redirectedCallback));
     }
 
     /**
@@ -414,8 +1093,8 @@ public class StackMob {
      * @param requestObject the object to serialize and send in the PUT body. this object will be serialized with Gson
      * @param callback callback to be called when the server returns. may execute in a separate thread
      */
-    public void put(String path, String id, Object requestObject, StackMobCallback callback) {
-        new StackMobRequest(this.session, path + "/" + id, HttpVerb.PUT, requestObject, callback, redirectedCallback).setUrlFormat(urlFormat).sendRequest();
+    public StackMobFuture put(String path, String id, Object requestObject, StackMobCallback callback) {
+        return execute(new StackMobRequest(this.session, path + "/" + id, HttpVerb.PUT, requestObject, callback, redirectedCallback));
     }
 
     /**
@@ -424,8 +1103,8 @@ public class StackMob {
      * @param id the id of the object to put
      * @param callback callback to be called when the server returns. may execute in a separate thread
      */
-    public void delete(String path, String id, StackMobCallback callback) {
-        new StackMobRequest(this.session, path + "/" + id, HttpVerb.DELETE, callback, redirectedCallback).setUrlFormat(urlFormat).sendRequest();
+    public StackMobFuture delete(String path, String id, StackMobCallback callback) {
+        return execute(new StackMobRequest(this.session, path + "/" + id, HttpVerb.DELETE, callback, redirectedCallback));
     }
 
     /**
@@ -435,4 +1114,15 @@ public class StackMob {
     public StackMobSession getSession() {
         return session;
     }
+
+    /**
+     * get the codec that this StackMob object uses to serialize request objects. register your own type adapters here, once, at startup:
+     * <code>
+     *     stackmob.getCodec().registerTypeAdapter(MyObject.class, new MyObjectSerializer());
+     * </code>
+     * @return the codec
+     */
+    public StackMobCodec getCodec() {
+        return session.getCodec();
+    }
 }
@@ -0,0 +1,398 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.HttpVerb;
+
+/**
+ * Coalesces many {@link StackMob#post(String, Object, StackMobCallback)} calls into bulk creates. Objects are buffered per
+ * path, and each buffer is sent as a single POST of a JSON array when it fills up, when its oldest object has waited for the
+ * linger time, or when {@link #flush()} is called. The server's array response is split up again, so every object's
+ * callback is called with its own created object. for example:
+ * <code>
+ *     StackMobBatchWriter writer = new StackMobBatchWriter(stackmob).setMaxBatchSize(100).setLinger(50, TimeUnit.MILLISECONDS);
+ *     for(Game game : games) {
+ *         writer.post("game", game, callback);
+ *     }
+ *     writer.close();
+ * </code>
+ *
+ * A few notes about this object:
+ * <ul>
+ *     <li>batches are sent through the StackMob object, so they use its executor, transport and in-flight limit</li>
+ *     <li>if a batch fails, every object in it fails with the same StackMobException</li>
+ *     <li>objects are serialized when they're posted, so later changes to them aren't sent</li>
+ *     <li>a post can be cancelled through its future until its batch is sent</li>
+ * </ul>
+ */
+public class StackMobBatchWriter {
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 50;
+    public static final long DEFAULT_LINGER_MS = 100L;
+    public static final long DEFAULT_MAX_BUFFERED_BYTES = 1024L * 1024L;
+
+    private final StackMob stackmob;
+    private final ScheduledExecutorService timer;
+    private final Object lock = new Object();
+    private final Map<String, Batch> batches = new HashMap<String, Batch>();
+    private long bufferedBytes = 0;
+    private boolean closed = false;
+
+    private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private volatile long lingerMs = DEFAULT_LINGER_MS;
+    private volatile long maxBufferedBytes = DEFAULT_MAX_BUFFERED_BYTES;
+
+    private final AtomicLong batchesSent = new AtomicLong(0);
+    private final AtomicLong objectsSent = new AtomicLong(0);
+
+    private static class Entry {
+        private final String json;
+        private final StackMobCallback callback;
+        private final StackMobFuture future;
+
+        Entry(String json, StackMobCallback callback, StackMobFuture future) {
+            this.json = json;
+            this.callback = callback;
+            this.future = future;
+        }
+    }
+
+    /**
+     * The objects buffered for one path
+     */
+    private static class Batch {
+        private final String path;
+        private final List<Entry> entries = new ArrayList<Entry>();
+        private long bytes = 0;
+        private ScheduledFuture<?> lingerFlush;
+
+        Batch(String path) {
+            this.path = path;
+        }
+    }
+
+    /**
+     * create a batch writer. it holds a timer thread until it's closed
+     * @param stackmob the StackMob object to send batches through
+     */
+    public StackMobBatchWriter(StackMob stackmob) {
+        this.stackmob = stackmob;
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "StackMob batch writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param maxBatchSize the most objects to send in one request
+     * @return this writer, so calls can be chained
+     */
+    public StackMobBatchWriter setMaxBatchSize(int maxBatchSize) {
+        if(maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1");
+        }
+        this.maxBatchSize = maxBatchSize;
+        return this;
+    }
+
+    /**
+     * @param linger how long an object may wait for its batch to fill up before the batch is sent anyway
+     * @param unit the unit of linger
+     * @return this writer, so calls can be chained
+     */
+    public StackMobBatchWriter setLinger(long linger, TimeUnit unit) {
+        this.lingerMs = unit.toMillis(linger);
+        return this;
+    }
+
+    /**
+     * @param maxBufferedBytes the most serialized JSON to buffer across all paths, counted in characters. a post that would
+     *                         go over the limit sends every buffered batch first
+     * @return this writer, so calls can be chained
+     */
+    public StackMobBatchWriter setMaxBufferedBytes(long maxBufferedBytes) {
+        if(maxBufferedBytes < 1) {
+            throw new IllegalArgumentException("maxBufferedBytes must be at least 1");
+        }
+        this.maxBufferedBytes = maxBufferedBytes;
+        return this;
+    }
+
+    /**
+     * buffer an object to be created
+     * @param path the path to post the object to
+     * @param requestObject the object to serialize and create. this object will be serialized with Gson
+     * @param callback callback to be called with the created object, or the failure of its batch. may execute in a separate thread
+     * @return a future for the created object
+     */
+    public StackMobFuture post(String path, Object requestObject, StackMobCallback callback) {
+        String json = stackmob.getCodec().toJson(requestObject);
+        StackMobFuture future = new StackMobFuture();
+        List<Batch> toSend = new ArrayList<Batch>();
+        boolean rejected;
+        synchronized(lock) {
+            rejected = closed;
+            if(!rejected) {
+                buffer(path, new Entry(json, callback, future), toSend);
+            }
+        }
+        if(rejected) {
+            StackMobException e = new StackMobException("batch writer has been closed");
+            try {
+                callback.failure(e);
+            }
+            finally {
+                future.fail(e);
+            }
+            return future;
+        }
+        for(Batch batch : toSend) {
+            send(batch);
+        }
+        return future;
+    }
+
+    //call with the lock held
+    private void buffer(String path, Entry entry, List<Batch> toSend) {
+        int length = entry.json.length();
+        if(bufferedBytes > 0 && bufferedBytes + length > maxBufferedBytes) {
+            for(Batch batch : new ArrayList<Batch>(batches.values())) {
+                toSend.add(remove(batch));
+            }
+        }
+        Batch batch = batches.get(path);
+        if(batch == null) {
+            batch = new Batch(path);
+            batches.put(path, batch);
+            scheduleLingerFlush(batch);
+        }
+        batch.entries.add(entry);
+        batch.bytes += length;
+        bufferedBytes += length;
+        if(batch.entries.size() >= maxBatchSize) {
+            toSend.add(remove(batch));
+        }
+    }
+
+    /**
+     * send every buffered batch now
+     */
+    public void flush() {
+        List<Batch> toSend;
+        synchronized(lock) {
+            toSend = new ArrayList<Batch>(batches.size());
+            for(Batch batch : new ArrayList<Batch>(batches.values())) {
+                toSend.add(remove(batch));
+            }
+        }
+        for(Batch batch : toSend) {
+            send(batch);
+        }
+    }
+
+    /**
+     * send every buffered batch and stop the timer. later posts fail
+     */
+    public void close() {
+        synchronized(lock) {
+            closed = true;
+        }
+        flush();
+        timer.shutdown();
+    }
+
+    /**
+     * @return the number of batch requests sent so far
+     */
+    public long getBatchesSent() {
+        return batchesSent.get();
+    }
+
+    /**
+     * @return the number of objects sent so far, in all batches
+     */
+    public long getObjectsSent() {
+        return objectsSent.get();
+    }
+
+    /**
+     * @return the average number of objects per batch sent, as a fraction of the maximum batch size. 1.0 means every batch was full
+     */
+    public double getBatchFillRatio() {
+        long batches = batchesSent.get();
+        return batches == 0 ? 0.0 : (double)objectsSent.get() / batches / maxBatchSize;
+    }
+
+    /**
+     * @return the number of characters of serialized JSON waiting to be sent
+     */
+    public long getBufferedBytes() {
+        synchronized(lock) {
+            return bufferedBytes;
+        }
+    }
+
+    //call with the lock held
+    private void scheduleLingerFlush(final Batch batch) {
+        if(lingerMs <= 0) {
+            return;
+        }
+        batch.lingerFlush = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Batch expired = null;
+                synchronized(lock) {
+                    //the batch may already have been sent because it filled up
+                    if(batches.get(batch.path) == batch) {
+                        expired = remove(batch);
+                    }
+                }
+                if(expired != null) {
+                    send(expired);
+                }
+            }
+        }, lingerMs, TimeUnit.MILLISECONDS);
+    }
+
+    //call with the lock held
+    private Batch remove(Batch batch) {
+        batches.remove(batch.path);
+        bufferedBytes -= batch.bytes;
+        if(batch.lingerFlush != null) {
+            batch.lingerFlush.cancel(false);
+        }
+        return batch;
+    }
+
+    private void send(Batch batch) {
+        //leave out anything that was cancelled while it waited
+        final List<Entry> entries = new ArrayList<Entry>(batch.entries.size());
+        StringBuilder payload = new StringBuilder((int)batch.bytes + batch.entries.size() + 2).append('[');
+        for(Entry entry : batch.entries) {
+            if(entry.future.start()) {
+                if(!entries.isEmpty()) {
+                    payload.append(',');
+                }
+                payload.append(entry.json);
+                entries.add(entry);
+            }
+        }
+        payload.append(']');
+        if(entries.isEmpty()) {
+            return;
+        }
+        batchesSent.incrementAndGet();
+        objectsSent.addAndGet(entries.size());
+
+        final String body = payload.toString();
+        StackMobCallback demultiplexer = new StackMobCallback() {
+            @Override
+            public void success(String responseBody) {
+                List<String> created;
+                try {
+                    created = split(responseBody, entries.size());
+                }
+                catch(StackMobException e) {
+                    failure(e);
+                    return;
+                }
+                RuntimeException thrown = null;
+                for(int i = 0; i < entries.size(); i++) {
+                    Entry entry = entries.get(i);
+                    try {
+                        entry.callback.success(created.get(i));
+                    }
+                    catch(RuntimeException e) {
+                        //don't let one callback keep the rest of the batch from completing
+                        thrown = thrown == null ? e : thrown;
+                    }
+                    finally {
+                        entry.future.complete(created.get(i));
+                    }
+                }
+                if(thrown != null) {
+                    throw thrown;
+                }
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                RuntimeException thrown = null;
+                for(Entry entry : entries) {
+                    try {
+                        entry.callback.failure(e);
+                    }
+                    catch(RuntimeException callbackException) {
+                        thrown = thrown == null ? callbackException : thrown;
+                    }
+                    finally {
+                        entry.future.fail(e);
+                    }
+                }
+                if(thrown != null) {
+                    throw thrown;
+                }
+            }
+        };
+        stackmob.execute(new StackMobRequest(stackmob.getSession(), batch.path, HttpVerb.POST, demultiplexer, stackmob.redirectedCallback) {
+            @Override
+            protected String getPayload() {
+                return body;
+            }
+        });
+    }
+
+    private static List<String> split(String responseBody, int expected) throws StackMobException {
+        JsonElement parsed;
+        try {
+            parsed = new JsonParser().parse(responseBody);
+        }
+        catch(JsonParseException e) {
+            throw new StackMobException("could not parse batch response: " + e.getMessage());
+        }
+        if(!parsed.isJsonArray() || parsed.getAsJsonArray().size() != expected) {
+            throw new StackMobException("expected an array of " + expected + " created objects in the batch response, but got " + responseBody);
+        }
+        JsonArray array = parsed.getAsJsonArray();
+        List<String> ret = new ArrayList<String>(expected);
+        for(JsonElement element : array) {
+            ret.add(element.toString());
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.stackmob.sdk.exception.StackMobException;
+
+/**
+ * A handle to a request made through {@link StackMob}. Every StackMob method still calls its StackMobCallback,
+ * and additionally returns one of these so that the caller can wait on the result.
+ *
+ * A few notes about this object:
+ * <ul>
+ *     <li>the future completes after the callback returns, so once get() returns, the callback has finished running</li>
+ *     <li>if the request failed, get() throws an ExecutionException whose cause is the StackMobException that was passed to the callback</li>
+ *     <li>cancel only succeeds if the request hasn't started yet. a request that is already on the wire will run to completion</li>
+ * </ul>
+ */
+public class StackMobFuture implements Future<String> {
+
+    private static final int PENDING = 0;
+    private static final int RUNNING = 1;
+    private static final int DONE = 2;
+    private static final int CANCELLED = 3;
+
+    private final AtomicInteger state = new AtomicInteger(PENDING);
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private volatile String result;
+    private volatile StackMobException exception;
+
+    /**
+     * mark this future as started
+     * @return false if the future was cancelled before it could start, in which case the request must not be sent
+     */
+    boolean start() {
+        return state.compareAndSet(PENDING, RUNNING);
+    }
+
+    void complete(String responseBody) {
+        result = responseBody;
+        finish();
+    }
+
+    void fail(StackMobException e) {
+        exception = e;
+        finish();
+    }
+
+    private void finish() {
+        while(true) {
+            int current = state.get();
+            if(current == DONE || current == CANCELLED) {
+                return;
+            }
+            if(state.compareAndSet(current, DONE)) {
+                latch.countDown();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if(state.compareAndSet(PENDING, CANCELLED)) {
+            latch.countDown();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return state.get() == CANCELLED;
+    }
+
+    @Override
+    public boolean isDone() {
+        return latch.getCount() == 0;
+    }
+
+    @Override
+    public String get() throws InterruptedException, ExecutionException {
+        latch.await();
+        return getResult();
+    }
+
+    @Override
+    public String get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if(!latch.await(timeout, unit)) {
+            throw new TimeoutException("the request did not complete within " + timeout + " " + unit.toString().toLowerCase());
+        }
+        return getResult();
+    }
+
+    private String getResult() throws ExecutionException {
+        if(isCancelled()) {
+            throw new CancellationException();
+        }
+        if(exception != null) {
+            throw new ExecutionException(exception);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+
+import com.stackmob.sdk.callback.StackMobObjectCallback;
+import com.stackmob.sdk.exception.StackMobException;
+
+/**
+ * Walks through the objects that match a query one page at a time, requesting each page with a Range header. When requests
+ * run in the background, the next page is requested as soon as the current one is handed out, so its round trip overlaps
+ * with the caller's work on the current one, and at most two pages are held in memory at once. Otherwise each page is
+ * requested when it's asked for. get one from {@link StackMob#getPages(StackMobQuery, Class, int)}
+ *
+ * A few notes about this object:
+ * <ul>
+ *     <li>this class is not thread safe. use each pager from one thread at a time</li>
+ *     <li>the last page is the first one that comes back with fewer than pageSize objects. when the result is a multiple of
+ *     pageSize, the last page is empty</li>
+ *     <li>don't change the query while paging through it. later pages would be requested with the changed query</li>
+ *     <li>call {@link #close()} if you stop before the last page, so that a prefetch which hasn't started yet isn't sent</li>
+ * </ul>
+ */
+public class StackMobPager<T> {
+
+    private final StackMob stackmob;
+    private final StackMobQuery query;
+    private final Class<T> type;
+    private final int pageSize;
+    private int nextStart = 0;
+    private int pagesReturned = 0;
+    private boolean morePages = true;
+    //the next page, once it's been requested
+    private Page<T> pending;
+
+    /**
+     * A requested page, and its objects once they arrive
+     */
+    private static class Page<T> implements StackMobObjectCallback<List<T>> {
+        private volatile List<T> objects;
+        private volatile StackMobException failure;
+        private StackMobFuture future;
+
+        @Override
+        public void success(List<T> result) {
+            objects = result;
+        }
+
+        @Override
+        public void failure(StackMobException e) {
+            failure = e;
+        }
+    }
+
+    StackMobPager(StackMob stackmob, StackMobQuery query, Class<T> type, int pageSize) {
+        if(pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be at least 1");
+        }
+        this.stackmob = stackmob;
+        this.query = query;
+        this.type = type;
+        this.pageSize = pageSize;
+        if(stackmob.sendsInBackground()) {
+            this.pending = request();
+        }
+    }
+
+    /**
+     * @return true if there's another page to get. the next page may turn out to be empty
+     */
+    public boolean hasNextPage() {
+        return morePages;
+    }
+
+    /**
+     * wait for the next page, and request the one after it if requests run in the background
+     * @return the objects on the next page
+     * @throws StackMobException if the page couldn't be fetched. paging stops there
+     * @throws InterruptedException if the thread was interrupted while it waited. the page is still pending, so calling
+     * this again picks up where it left off
+     */
+    public List<T> nextPage() throws StackMobException, InterruptedException {
+        if(!morePages) {
+            throw new NoSuchElementException("no more pages");
+        }
+        if(pending == null) {
+            pending = request();
+        }
+        Page<T> page = pending;
+        try {
+            page.future.get();
+        }
+        catch(ExecutionException e) {
+            //the callback has already recorded the failure
+        }
+        pending = null;
+        if(page.failure != null) {
+            morePages = false;
+            throw page.failure;
+        }
+        morePages = page.objects.size() >= pageSize;
+        if(morePages && stackmob.sendsInBackground()) {
+            pending = request();
+        }
+        pagesReturned++;
+        return page.objects;
+    }
+
+    /**
+     * @return the number of pages handed out so far
+     */
+    public int getPagesReturned() {
+        return pagesReturned;
+    }
+
+    /**
+     * stop paging. a prefetched page that hasn't been sent yet is cancelled
+     */
+    public void close() {
+        if(pending != null) {
+            pending.future.cancel(false);
+            pending = null;
+        }
+        morePages = false;
+    }
+
+    private Page<T> request() {
+        Page<T> page = new Page<T>();
+        String range = StackMobQuery.getRangeHeader(nextStart, nextStart + pageSize - 1);
+        nextStart += pageSize;
+        page.future = stackmob.get(query, range, TypedStreamingCallback.forList(stackmob.getCodec(), type, page));
+        return page;
+    }
+}
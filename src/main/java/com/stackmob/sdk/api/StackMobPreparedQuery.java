@@ -0,0 +1,246 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import com.stackmob.sdk.api.StackMobQuery.Operator;
+import com.stackmob.sdk.net.PercentEncoder;
+
+/**
+ * A query whose shape is fixed ahead of time, so that it can be run again and again with different values at little
+ * cost. the object name and the name of every parameter are encoded once, when the query is prepared, and each run
+ * only encodes its values. for example:
+ * <code>
+ *     //prepared once, and shared
+ *     static final StackMobPreparedQuery SCORES_BETWEEN = new StackMobPreparedQuery("game").fieldIsGreaterThanOrEqualTo("score").fieldIsLessThan("score");
+ *     //each run binds its own values, in the order the fields were added
+ *     stackmob.get(SCORES_BETWEEN.bind(100, 200), callback);
+ * </code>
+ * A few notes about prepared queries:
+ * <ul>
+ *     <li>prepared queries are immutable. each method that adds to one returns a new query, and leaves the one it was called
+ *     on as it was, so a prepared query can be shared by any number of threads</li>
+ *     <li>each value is turned into a String with String.valueOf, except that the values of an "in" are a Collection whose
+ *     elements are joined with commas</li>
+ *     <li>gets are coalesced with other gets of the same prepared query and values, but not with a StackMobQuery that asks
+ *     for the same thing</li>
+ * </ul>
+ */
+public class StackMobPreparedQuery {
+
+    private static final String[] NONE = new String[0];
+    //an encoded comma, which separates the values of an "in"
+    private static final String COMMA = "%2C";
+
+    private final String objectName;
+    private final String path;
+    //the encoded names of the parameters whose values are bound on each run, in the order they're bound
+    private final String[] names;
+    private final boolean[] isIn;
+    //encoded names and values, alternating, of the parameters whose values never change
+    private final String[] constants;
+
+    /**
+     * @param objectName the name of the schema to query
+     */
+    public StackMobPreparedQuery(String objectName) {
+        this(objectName, "/" + objectName, NONE, new boolean[0], NONE);
+    }
+
+    private StackMobPreparedQuery(String objectName, String path, String[] names, boolean[] isIn, String[] constants) {
+        this.objectName = objectName;
+        this.path = path;
+        this.names = names;
+        this.isIn = isIn;
+        this.constants = constants;
+    }
+
+    public String getObjectName() {
+        return objectName;
+    }
+
+    /**
+     * @return the number of values that {@link #bind} takes
+     */
+    public int getParameterCount() {
+        return names.length;
+    }
+
+    /**
+     * add a field whose value must be one of the values bound to it, which are passed to bind as a Collection
+     * @param field the field whose value to test
+     * @return the new query that resulted from adding this operation
+     */
+    public StackMobPreparedQuery fieldIsIn(String field) {
+        return withParameter(field, Operator.IN);
+    }
+
+    /**
+     * add a field whose value must be less than the value bound to it
+     * @param field the field whose value to test
+     * @return the new query that resulted from adding this operation
+     */
+    public StackMobPreparedQuery fieldIsLessThan(String field) {
+        return withParameter(field, Operator.LT);
+    }
+
+    /**
+     * same as {@link #fieldIsLessThan(String)}, except applies "<=" instead of "<"
+     * @param field the field whose value to test
+     * @return the new query that resulted from adding this operation
+     */
+    public StackMobPreparedQuery fieldIsLessThanOrEqualTo(String field) {
+        return withParameter(field, Operator.LTE);
+    }
+
+    /**
+     * same as {@link #fieldIsLessThan(String)}, except applies ">" instead of "<"
+     * @param field the field whose value to test
+     * @return the new query that resulted from adding this operation
+     */
+    public StackMobPreparedQuery fieldIsGreaterThan(String field) {
+        return withParameter(field, Operator.GT);
+    }
+
+    /**
+     * same as {@link #fieldIsLessThan(String)}, except applies ">=" instead of "<"
+     * @param field the field whose value to test
+     * @return the new query that resulted from adding this operation
+     */
+    public StackMobPreparedQuery fieldIsGreaterThanOrEqualTo(String field) {
+        return withParameter(field, Operator.GTE);
+    }
+
+    /**
+     * set the expand depth of every run of this query. see {@link StackMobQuery#expandDepthIs(Integer)}
+     * @param i the expand depth
+     * @return the new query that resulted from adding this operation
+     */
+    public StackMobPreparedQuery expandDepthIs(int i) {
+        String[] newConstants = Arrays.copyOf(constants, constants.length + 2);
+        newConstants[constants.length] = "_expand";
+        newConstants[constants.length + 1] = Integer.toString(i);
+        return new StackMobPreparedQuery(objectName, path, names, isIn, newConstants);
+    }
+
+    private StackMobPreparedQuery withParameter(String field, Operator operator) {
+        String[] newNames = Arrays.copyOf(names, names.length + 1);
+        newNames[names.length] = PercentEncoder.encode(field + operator.getOperatorForURL());
+        boolean[] newIsIn = Arrays.copyOf(isIn, isIn.length + 1);
+        newIsIn[isIn.length] = operator == Operator.IN;
+        return new StackMobPreparedQuery(objectName, path, newNames, newIsIn, constants);
+    }
+
+    /**
+     * bind values to this query's fields, to run it with {@link StackMob#get(Bound, com.stackmob.sdk.callback.StackMobCallback)}
+     * @param values a value for each field, in the order the fields were added. the value of an "in" is a Collection
+     * @return the query with its values, ready to run once
+     * @throws IllegalArgumentException if there isn't exactly one value for each field, or a value is null
+     */
+    public Bound bind(Object... values) {
+        if(values.length != names.length) {
+            throw new IllegalArgumentException("this query takes " + names.length + " values, not " + values.length);
+        }
+        String[] encoded = new String[2 * names.length + constants.length];
+        for(int i = 0; i < names.length; i++) {
+            encoded[2 * i] = names[i];
+            encoded[2 * i + 1] = encodeValue(i, values[i]);
+        }
+        System.arraycopy(constants, 0, encoded, 2 * names.length, constants.length);
+        return new Bound(path, encoded);
+    }
+
+    private String encodeValue(int i, Object value) {
+        if(value == null) {
+            throw new IllegalArgumentException("the value of " + names[i] + " is null");
+        }
+        if(!isIn[i]) {
+            return PercentEncoder.encode(String.valueOf(value));
+        }
+        if(!(value instanceof Collection)) {
+            throw new IllegalArgumentException("the value of " + names[i] + " must be a Collection");
+        }
+        StringBuilder joined = new StringBuilder();
+        for(Object element : (Collection<?>)value) {
+            if(joined.length() > 0) {
+                joined.append(COMMA);
+            }
+            PercentEncoder.encode(String.valueOf(element), joined);
+        }
+        return joined.toString();
+    }
+
+    /**
+     * A prepared query with values bound to it, ready to run. unlike a prepared query, it's meant to be run once, by one thread
+     */
+    public static class Bound {
+        private final String path;
+        private final String[] encodedParams;
+        private String range = null;
+
+        private Bound(String path, String[] encodedParams) {
+            this.path = path;
+            this.encodedParams = encodedParams;
+        }
+
+        /**
+         * only return some of the matching objects. see {@link StackMobQuery#isInRange(int, int)}
+         * @param start the index of the first object to return
+         * @param end the index of the last object to return
+         * @return this query, so calls can be chained
+         */
+        public Bound isInRange(int start, int end) {
+            if(start < 0 || end < start) {
+                throw new IllegalArgumentException("invalid range " + start + "-" + end);
+            }
+            range = StackMobQuery.getRangeHeader(start, end);
+            return this;
+        }
+
+        String getPath() {
+            return path;
+        }
+
+        /**
+         * @return the names and values of the parameters, encoded, alternating. must not be changed
+         */
+        String[] getEncodedParams() {
+            return encodedParams;
+        }
+
+        /**
+         * @return the value of the Range header, or null if every matching object should be returned
+         */
+        public String getRange() {
+            return range;
+        }
+
+        /**
+         * @return the path and query string this query is sent with, such as /game?score%5Bgt%5D=100
+         */
+        @Override
+        public String toString() {
+            StringBuilder query = new StringBuilder(path);
+            for(int i = 0; i < encodedParams.length; i += 2) {
+                query.append(i == 0 ? '?' : '&').append(encodedParams[i]).append('=').append(encodedParams[i + 1]);
+            }
+            return query.toString();
+        }
+    }
+}
@@ -48,6 +48,7 @@ public class StackMobQuery {
 
     private String objectName;
     private Map<String, String> args = new HashMap<String, String>();
+    private String range = null;
 
     public static enum Operator {
         LT("lt"),
@@ -79,6 +80,32 @@ public class StackMobQuery {
         return args;
     }
 
+    /**
+     * only return some of the matching objects. the range is sent in a Range header, and is counted from 0, inclusive of
+     * both ends. to walk through every page of a large result, use {@link StackMob#getPages(StackMobQuery, Class, int)} instead
+     * @param start the index of the first object to return
+     * @param end the index of the last object to return
+     * @return the new query that resulted from adding this operation
+     */
+    public StackMobQuery isInRange(int start, int end) {
+        if(start < 0 || end < start) {
+            throw new IllegalArgumentException("invalid range " + start + "-" + end);
+        }
+        range = getRangeHeader(start, end);
+        return this;
+    }
+
+    /**
+     * @return the value of the Range header for this query, or null if it should return every matching object
+     */
+    public String getRange() {
+        return range;
+    }
+
+    static String getRangeHeader(int start, int end) {
+        return "objects=" + start + "-" + end;
+    }
+
     public StackMobQueryWithField field(String field) {
         return new StackMobQueryWithField(field, this);
     }
@@ -16,40 +16,47 @@
 
 package com.stackmob.sdk.api;
 
-import java.io.UnsupportedEncodingException;
-import java.lang.reflect.Modifier;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.net.URLEncoder;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import com.google.gson.GsonBuilder;
 import com.stackmob.sdk.callback.StackMobRedirectedCallback;
-import com.stackmob.sdk.push.StackMobPushToken;
-import com.stackmob.sdk.push.StackMobPushTokenDeserializer;
-import com.stackmob.sdk.push.StackMobPushTokenSerializer;
+import com.stackmob.sdk.callback.StackMobRequestListener;
+import com.stackmob.sdk.callback.StackMobRequestListener.Phase;
 import com.stackmob.sdk.util.Pair;
 
 import com.google.gson.Gson;
 import com.stackmob.sdk.callback.StackMobCallback;
 import com.stackmob.sdk.exception.StackMobException;
 import com.stackmob.sdk.net.HttpVerb;
-import org.scribe.model.Response;
-import org.scribe.oauth.OAuthService;
+import com.stackmob.sdk.net.PercentEncoder;
+import com.stackmob.sdk.net.PooledHttpTransport;
+import com.stackmob.sdk.net.StackMobCircuitBreaker;
+import com.stackmob.sdk.net.StackMobCompression;
+import com.stackmob.sdk.net.StackMobMetrics;
+import com.stackmob.sdk.net.StackMobRateLimiter;
+import com.stackmob.sdk.net.StackMobRetryPolicy;
+import com.stackmob.sdk.net.StackMobWorkers;
+import com.stackmob.sdk.net.StackMobHttpCallback;
+import com.stackmob.sdk.net.StackMobHttpResponse;
+import com.stackmob.sdk.net.StackMobHttpTimingCallback;
+import com.stackmob.sdk.net.StackMobHttpTransport;
 import org.scribe.model.OAuthRequest;
-import org.scribe.model.Token;
 import org.scribe.model.Verb;
-import org.scribe.builder.ServiceBuilder;
 
-import com.stackmob.sdk.net.StackMobApi;
 import com.stackmob.sdk.net.HttpRedirectHelper;
 
 public class StackMobRequest {
 
     public static final String DEFAULT_URL_FORMAT = "api.mob1.stackmob.com";
+    /**
+     * the most redirects followed for one request, which stops a redirect loop from going on forever
+     */
+    public static final int MAX_REDIRECTS = 5;
     protected static final String SECURE_SCHEME = "https";
     protected static final String REGULAR_SCHEME = "http";
 
@@ -63,11 +70,38 @@ public class StackMobRequest {
     protected Boolean isSecure = false;
     protected HttpVerb httpMethod = HttpVerb.GET;
     protected Map<String, String> params;
+    //parameters that were encoded before the request was made, which are used instead of params
+    protected String[] encodedParams = null;
     protected Object requestObject;
+    protected List<Pair<String, String>> extraHeaders = new ArrayList<Pair<String, String>>();
 
     protected Gson gson;
 
-    private OAuthService oAuthService;
+    //requests that aren't sent through a StackMob share one connection pool
+    private static final StackMobHttpTransport DEFAULT_TRANSPORT = new PooledHttpTransport();
+    protected StackMobHttpTransport transport = DEFAULT_TRANSPORT;
+    private static final StackMobCompression DEFAULT_COMPRESSION = new StackMobCompression();
+    protected StackMobCompression compression = DEFAULT_COMPRESSION;
+    private static final StackMobRetryPolicy DEFAULT_RETRY_POLICY = new StackMobRetryPolicy();
+    protected StackMobRetryPolicy retryPolicy = DEFAULT_RETRY_POLICY;
+    protected boolean idempotent = false;
+    private static final StackMobCircuitBreaker DEFAULT_CIRCUIT_BREAKER = new StackMobCircuitBreaker();
+    protected StackMobCircuitBreaker circuitBreaker = DEFAULT_CIRCUIT_BREAKER;
+    //null to send retries and redirects without asking for a token
+    protected StackMobRateLimiter rateLimiter = null;
+    protected StackMobRateLimiter.Category rateCategory = StackMobRateLimiter.Category.DATA;
+    //where retries and redirects reported off the sending thread are sent from, or null for the shared workers
+    protected Executor executor = null;
+    //set once the callback has been called, so that a failure thrown from it isn't reported to it again
+    private volatile boolean completed = false;
+    private static final StackMobMetrics DEFAULT_METRICS = new StackMobMetrics();
+    protected StackMobMetrics metrics = DEFAULT_METRICS;
+    private StackMobMetrics.Endpoint endpoint;
+    //the size of the body as sent, which is the same for every attempt and redirect
+    private long bodyBytes = 0;
+    protected StackMobRequestListener listener = null;
+    //when the current response arrived, if there's a listener and a response
+    private long respondedAt = 0;
 
     //default to doing nothing
     protected StackMobCallback callback = new StackMobCallback() {
@@ -85,13 +119,8 @@ public class StackMobRequest {
         this.methodName = method;
         this.redirectedCallback = cb;
 
-        GsonBuilder gsonBuilder = new GsonBuilder()
-                                  .registerTypeAdapter(StackMobPushToken.class, new StackMobPushTokenDeserializer())
-                                  .registerTypeAdapter(StackMobPushToken.class, new StackMobPushTokenSerializer())
-                                  .excludeFieldsWithModifiers(Modifier.PRIVATE, Modifier.PROTECTED, Modifier.TRANSIENT, Modifier.STATIC);
-        gson = gsonBuilder.create();
-
-        oAuthService = new ServiceBuilder().provider(StackMobApi.class).apiKey(sessionKey).apiSecret(sessionSecret).build();
+        //borrow the session's prebuilt Gson rather than building one per request
+        gson = session.getCodec().getGson();
     }
 
     public StackMobRequest(StackMobSession session, String method, StackMobCallback callback, StackMobRedirectedCallback redirCB) {
@@ -122,101 +151,284 @@ public class StackMobRequest {
         return this;
     }
 
-    public void sendRequest() {
-        try {
-            String response = null;
+    /**
+     * send an additional header with this request, such as the Range header of a paged query
+     * @param name the name of the header
+     * @param value the value of the header
+     * @return this request, so calls can be chained
+     */
+    public StackMobRequest setHeader(String name, String value) {
+        extraHeaders.add(new Pair<String, String>(name, value));
+        return this;
+    }
+
+    /**
+     * use a different transport to send this request
+     * @param transport the transport to send this request with
+     * @return this request, so calls can be chained
+     */
+    public StackMobRequest setTransport(StackMobHttpTransport transport) {
+        this.transport = transport;
+        return this;
+    }
+
+    /**
+     * compress this request and its response, and count the bytes sent and received, with the given settings
+     * @param compression the compression settings and counters to use
+     * @return this request, so calls can be chained
+     */
+    public StackMobRequest setCompression(StackMobCompression compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * retry this request, if it fails, according to the given policy
+     * @param retryPolicy the policy to follow
+     * @return this request, so calls can be chained
+     */
+    public StackMobRequest setRetryPolicy(StackMobRetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    /**
+     * mark this request as safe to send more than once. gets, puts and deletes are always safe to repeat. a post should
+     * only be marked if sending it twice has the same effect as sending it once
+     * @param idempotent true if this request may be retried even if it's a post
+     * @return this request, so calls can be chained
+     */
+    public StackMobRequest setIdempotent(boolean idempotent) {
+        this.idempotent = idempotent;
+        return this;
+    }
+
+    /**
+     * send parameters that have already been encoded, as a {@link StackMobPreparedQuery} binds them, in place of any others
+     * @param encodedParams the names and values of the parameters, encoded, alternating. they're used as they are
+     * @return this request, so calls can be chained
+     */
+    StackMobRequest setEncodedParams(String[] encodedParams) {
+        this.encodedParams = encodedParams;
+        return this;
+    }
+
+    /**
+     * fail this request at once, without sending it, while the circuit breaker holds its host's circuit open
+     * @param circuitBreaker the circuit breaker to consult and report to
+     * @return this request, so calls can be chained
+     */
+    public StackMobRequest setCircuitBreaker(StackMobCircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+        return this;
+    }
+
+    /**
+     * take a token from the given limiter for each retry and each redirect followed. the first attempt isn't charged,
+     * since whoever sends the request takes a token for it, as {@link StackMob} does. a retry or redirect waits for its
+     * token whatever the limiter's mode, and fails if there's none within the limiter's max wait, or at once in
+     * FAIL_FAST mode
+     * @param rateLimiter the limiter, or null to send retries and redirects without a token
+     * @param category the bucket the request's tokens come from, along with the one for every request
+     * @return this request, so calls can be chained
+     */
+    public StackMobRequest setRateLimiter(StackMobRateLimiter rateLimiter, StackMobRateLimiter.Category category) {
+        this.rateLimiter = rateLimiter;
+        this.rateCategory = category;
+        return this;
+    }
+
+    /**
+     * send retries and follow redirects from the given executor when the failure or redirect is reported on a thread other
+     * than the one that sent the request, such as the event loop of {@link com.stackmob.sdk.net.NioHttpTransport}, which mustn't block
+     * @param executor the executor, or null to use threads shared by every request
+     * @return this request, so calls can be chained
+     */
+    public StackMobRequest setExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * record this request's latency, errors and bytes in the given metrics
+     * @param metrics the metrics to report to
+     * @return this request, so calls can be chained
+     */
+    public StackMobRequest setMetrics(StackMobMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
 
-            switch(httpMethod) {
-                case GET:
-                    response = sendGetRequest();
-                    break;
-                case POST:
-                    response = sendPostRequest();
-                    break;
-                case PUT:
-                    response = sendPutRequest();
-                    break;
-                case DELETE:
-                    response = sendDeleteRequest();
-                    break;
+    /**
+     * tell the given listener about each phase of this request and how long it took
+     * @param listener the listener to call, or null for none
+     * @return this request, so calls can be chained
+     */
+    public StackMobRequest setRequestListener(StackMobRequestListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    public void sendRequest() {
+        final StackMobMetrics.Endpoint endpoint = metrics.getEndpoint(httpMethod, getEndpointPath());
+        final StackMobCallback userCallback = callback;
+        final long start = System.nanoTime();
+        this.endpoint = endpoint;
+        endpoint.requestStarted();
+        callback = new StackMobCallback() {
+            @Override
+            public void success(String responseBody) {
+                completed = true;
+                long dispatched = System.nanoTime();
+                endpoint.requestFinished(dispatched - start, true);
+                bodyCompleted(dispatched);
+                try {
+                    userCallback.success(responseBody);
+                }
+                finally {
+                    phaseEnded(Phase.CALLBACK_DISPATCHED, dispatched);
+                }
             }
 
-            callback.success(response);
+            @Override
+            public void failure(StackMobException e) {
+                completed = true;
+                long dispatched = System.nanoTime();
+                endpoint.requestFinished(dispatched - start, false);
+                bodyCompleted(dispatched);
+                try {
+                    userCallback.failure(e);
+                }
+                finally {
+                    phaseEnded(Phase.CALLBACK_DISPATCHED, dispatched);
+                }
+            }
+        };
+        retryPolicy.requestStarted();
+        sendAttempt(1);
+    }
 
+    /**
+     * build, sign and send the request
+     * @param attempt the number of times the request has been sent, including this time
+     */
+    private void sendAttempt(int attempt) {
+        OAuthRequest req;
+        try {
+            req = buildRequest();
         }
         catch (StackMobException e) {
             callback.failure(e);
+            return;
         }
+        sendRequest(req, attempt, 0);
     }
 
-    private String sendGetRequest() throws StackMobException {
-        try {
-            String query = null;
-            if (null != params) {
-                query = formatQueryString(getParamsForRequest());
-            }
-
-            URI uri = createURI(getScheme(), getHost(), getPath(), query);
-            OAuthRequest req = getOAuthRequest(HttpVerb.GET, uri.toString());
-            return sendRequest(req);
-        }
-        catch (URISyntaxException e) {
-            throw new StackMobException(e.getMessage());
+    private OAuthRequest buildRequest() throws StackMobException {
+        long start = phaseStarted();
+        OAuthRequest req = null;
+        switch(httpMethod) {
+            case GET:
+                req = getGetRequest();
+                break;
+            case POST:
+                req = getPostRequest();
+                break;
+            case PUT:
+                req = getPutRequest();
+                break;
+            case DELETE:
+                req = getDeleteRequest();
+                break;
         }
+        phaseEnded(Phase.BUILD, start);
+        return req;
     }
 
-    private String sendPostRequest() throws StackMobException {
-        try {
-            URI uri = createURI(getScheme(), getHost(), getPath(), "");
-            String payload = getPayload();
-            OAuthRequest req = getOAuthRequest(HttpVerb.POST, uri.toString(), payload);
-            return sendRequest(req);
-        }
-        catch (URISyntaxException e) {
-            throw new StackMobException(e.getMessage());
-        }
+    /**
+     * @return the time, if there's a listener to tell when the phase ends
+     */
+    private long phaseStarted() {
+        return listener == null ? 0 : System.nanoTime();
     }
 
-    private String sendPutRequest() throws StackMobException {
-        try {
-            URI uri = createURI(getScheme(), getHost(), getPath(), "");
-            String payload = getPayload();
-            OAuthRequest req = getOAuthRequest(HttpVerb.PUT, uri.toString(), payload);
-            return sendRequest(req);
+    private void phaseEnded(Phase phase, long startNanos) {
+        if(listener != null) {
+            listener.phase(this, phase, startNanos, System.nanoTime());
         }
-        catch (URISyntaxException e) {
-            throw new StackMobException(e.getMessage());
+    }
+
+    private void bodyCompleted(long dispatchedNanos) {
+        if(listener != null && respondedAt != 0) {
+            listener.phase(this, Phase.BODY_COMPLETE, respondedAt, dispatchedNanos);
         }
     }
 
-    private String sendDeleteRequest() throws StackMobException {
-        try {
-            String query = null;
-            if (null != params) {
-                query = formatQueryString(getParamsForRequest());
-            }
+    private OAuthRequest getGetRequest() {
+        String[] encodedParams = encodeParams();
+        return getOAuthRequest(HttpVerb.GET, getUrl(encodedParams), encodedParams);
+    }
 
-            URI uri = createURI(getScheme(), getHost(), getPath(), query);
-            OAuthRequest req = getOAuthRequest(HttpVerb.DELETE, uri.toString());
-            return sendRequest(req);
+    private OAuthRequest getPostRequest() throws StackMobException {
+        String url = getUrl(null);
+        long start = phaseStarted();
+        String payload = getPayload();
+        phaseEnded(Phase.SERIALIZE, start);
+        return getOAuthRequest(HttpVerb.POST, url, payload);
+    }
+
+    private OAuthRequest getPutRequest() throws StackMobException {
+        String url = getUrl(null);
+        long start = phaseStarted();
+        String payload = getPayload();
+        phaseEnded(Phase.SERIALIZE, start);
+        return getOAuthRequest(HttpVerb.PUT, url, payload);
+    }
+
+    private OAuthRequest getDeleteRequest() {
+        String[] encodedParams = encodeParams();
+        return getOAuthRequest(HttpVerb.DELETE, getUrl(encodedParams), encodedParams);
+    }
+
+    /**
+     * build the URL in one pass, from parameters that are already encoded
+     * @param encodedParams the query parameters, as {@link #encodeParams} returns them, or null for no query
+     */
+    private String getUrl(String[] encodedParams) {
+        String path = getPath();
+        StringBuilder url = new StringBuilder(getHost().length() + path.length() + 16 + (encodedParams == null ? 0 : 16 * encodedParams.length));
+        url.append(getScheme()).append("://").append(getHost());
+        //a method name may carry a query of its own, such as listapi?x=1, which the parameters are added to
+        int query = path.indexOf('?');
+        if(query == -1) {
+            PercentEncoder.encodePath(path, url);
         }
-        catch (URISyntaxException e) {
-            throw new StackMobException(e.getMessage());
+        else {
+            PercentEncoder.encodePath(path.substring(0, query), url);
+            PercentEncoder.encodeQuery(path.substring(query + 1), url.append('?'));
         }
+        if(encodedParams != null && encodedParams.length > 0) {
+            appendParams(encodedParams, url.append(query == -1 ? '?' : '&'));
+        }
+        return url.toString();
     }
 
-    private URI createURI(String scheme, String host, String path, String query) throws URISyntaxException {
-        StringBuilder uriBuilder = new StringBuilder().append(scheme).append("://").append(host);
-        if(!path.startsWith("/")) {
-            uriBuilder.append("/");
+    /**
+     * @return the path that this request's metrics are recorded under. object ids follow the schema name, so by default
+     * the path is cut off after the schema, which counts requests for every object of a schema together. push calls
+     * keep their whole path, since each is a different operation
+     */
+    protected String getEndpointPath() {
+        String path = getPath();
+        int query = path.indexOf('?');
+        if(query != -1) {
+            path = path.substring(0, query);
         }
-        uriBuilder.append(path);
-
-        if(query != null && query.length() > 0) {
-            uriBuilder.append("?").append(query);
+        int slash = path.indexOf('/', 1);
+        if(slash == -1 || path.startsWith("/push/")) {
+            return path;
         }
-
-        return new URI(uriBuilder.toString());
+        return path.substring(0, slash);
     }
 
     protected String getPath() {
@@ -241,42 +453,52 @@ public class StackMobRequest {
         return urlFormat;
     }
 
-    private String percentEncode(String s) throws UnsupportedEncodingException {
-        return URLEncoder.encode(s, "UTF-8").replace("+", "%20");
+    /**
+     * @return the names and values of the parameters, each encoded once, alternating, or null if there are none. names
+     * and values that need no encoding, as most don't, are used as they are
+     */
+    private String[] encodeParams() {
+        if(encodedParams != null) {
+            return encodedParams.length == 0 ? null : encodedParams;
+        }
+        if(params == null || params.isEmpty()) {
+            return null;
+        }
+        String[] encoded = new String[params.size() * 2];
+        int i = 0;
+        for(Map.Entry<String, String> param : params.entrySet()) {
+            encoded[i++] = PercentEncoder.encode(param.getKey());
+            encoded[i++] = PercentEncoder.encode(param.getValue());
+        }
+        return encoded;
     }
 
-    private String formatQueryString(Map<String, String> params) {
-        StringBuilder formatBuilder = new StringBuilder();
-        boolean first = true;
-        for(String key : params.keySet()) {
-            if(!first) {
-                formatBuilder.append("&");
-            }
-            first = false;
-            String value = params.get(key);
-            try {
-                formatBuilder.append(percentEncode(key)).append("=").append(percentEncode(value));
-            }
-            catch(UnsupportedEncodingException e) {
-                //do nothing
+    private static StringBuilder appendParams(String[] encodedParams, StringBuilder out) {
+        for(int i = 0; i < encodedParams.length; i += 2) {
+            if(i > 0) {
+                out.append('&');
             }
+            out.append(encodedParams[i]).append('=').append(encodedParams[i + 1]);
         }
-        return formatBuilder.toString();
+        return out;
     }
 
-
-    private Map<String, String> getParamsForRequest() {
-        Map<String, String> ret = new HashMap<String, String>();
-        if (null != params) {
-            ret = params;
-        }
-        return ret;
+    /**
+     * @return the verb and path of this request, such as "GET /game/1234"
+     */
+    @Override
+    public String toString() {
+        return httpMethod + " " + getPath();
     }
 
-    private String getPayload() {
+
+    protected String getPayload() {
         String payload = "";
         if(null != params) {
-            payload = formatQueryString(getParamsForRequest());
+            String[] encodedParams = encodeParams();
+            if(encodedParams != null) {
+                payload = appendParams(encodedParams, new StringBuilder()).toString();
+            }
         }
         else if(null != requestObject) {
             payload = gson.toJson(requestObject);
@@ -284,7 +506,35 @@ public class StackMobRequest {
         return payload;
     }
 
+    /**
+     * build and sign a request for a url that this request built
+     * @param encodedParams the query parameters of the url, as {@link #encodeParams} returns them, which are signed
+     *                      without being parsed from the url again
+     */
+    private OAuthRequest getOAuthRequest(HttpVerb method, String url, String[] encodedParams) {
+        if(getPath().indexOf('?') != -1) {
+            //the query in the method name has to be signed too, so parse the whole query from the url
+            return getOAuthRequest(method, url);
+        }
+        OAuthRequest oReq = newOAuthRequest(method, url);
+        long start = phaseStarted();
+        session.getSigner().sign(oReq, encodedParams);
+        phaseEnded(Phase.SIGN, start);
+        return oReq;
+    }
+
+    /**
+     * build and sign a request for a url from elsewhere, such as a redirect, whose query is parsed to sign it
+     */
     private OAuthRequest getOAuthRequest(HttpVerb method, String url) {
+        OAuthRequest oReq = newOAuthRequest(method, url);
+        long start = phaseStarted();
+        session.getSigner().sign(oReq);
+        phaseEnded(Phase.SIGN, start);
+        return oReq;
+    }
+
+    private OAuthRequest newOAuthRequest(HttpVerb method, String url) {
         OAuthRequest oReq = new OAuthRequest(Verb.valueOf(method.toString()), url);
         int apiVersion = session.getApiVersionNumber();
         final String contentType = "application/vnd.stackmob+json;";
@@ -298,40 +548,313 @@ public class StackMobRequest {
         headers.add(new Pair<String, String>("Content-Type", contentType));
         headers.add(new Pair<String, String>("Accept", accept));
         headers.add(new Pair<String, String>("User-Agent", userAgent));
+        headers.addAll(extraHeaders);
         for(Pair<String, String> header: headers) {
             oReq.addHeader(header.getFirst(), header.getSecond());
         }
-
-        oAuthService.signRequest(new Token("", ""), oReq);
+        compression.addAcceptEncoding(oReq);
         return oReq;
     }
 
-    private OAuthRequest getOAuthRequest(HttpVerb method, String url, String payload) {
-        OAuthRequest req = getOAuthRequest(method, url);
-        req.addPayload(payload);
+    private OAuthRequest getOAuthRequest(HttpVerb method, String url, String payload) throws StackMobException {
+        OAuthRequest req = getOAuthRequest(method, url, (String[])null);
+        try {
+            bodyBytes = compression.setPayload(req, payload);
+        }
+        catch(IOException e) {
+            throw new StackMobException(e.getMessage());
+        }
         return req;
     }
 
-    private String sendRequest(OAuthRequest req) {
-        Response ret = req.send();
-        if(HttpRedirectHelper.isRedirected(ret.getCode())) {
+    /**
+     * hand a response that isn't a redirect to the callback. the default reads the whole body into a String. subclasses
+     * may read the body as a stream instead, but must call exactly one of the callback's methods
+     * @param response the response, which is closed after this method returns
+     */
+    protected void handleResponse(StackMobHttpResponse response) {
+        String body;
+        try {
+            body = response.getBody();
+        }
+        catch(IOException e) {
+            callback.failure(new StackMobException(e.getMessage()));
+            return;
+        }
+        callback.success(body);
+    }
+
+    private void sendRequest(OAuthRequest first, int firstAttempt, int firstRedirects) {
+        //follow redirects and retries in a loop, rather than recursing from inside the transport's callback while it still
+        //holds the connection
+        OAuthRequest req = first;
+        int attempt = firstAttempt;
+        int redirects = firstRedirects;
+        while(req != null) {
+            Exchange exchange = new Exchange(req, attempt, redirects);
+            exchange.send();
+            if(exchange.redirect != null) {
+                if(exchange.redirectDelay > 0) {
+                    try {
+                        Thread.sleep(exchange.redirectDelay);
+                    }
+                    catch(InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        callback.failure(new StackMobException("interrupted while waiting to follow a redirect"));
+                        return;
+                    }
+                }
+                req = exchange.redirect;
+                redirects++;
+            }
+            else if(exchange.retryDelay >= 0) {
+                try {
+                    Thread.sleep(exchange.retryDelay);
+                    req = buildRequest();
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    callback.failure(new StackMobException("interrupted while waiting to retry"));
+                    return;
+                }
+                catch(StackMobException e) {
+                    callback.failure(e);
+                    return;
+                }
+                attempt++;
+                redirects = 0;
+            }
+            else {
+                req = null;
+            }
+        }
+    }
+
+    /**
+     * send a retry or a redirect from a worker thread, reporting anything the send throws to the callback, since no one else
+     * would see it
+     * @param send the send
+     * @param delayMs how long to wait first
+     */
+    private void sendLater(final Runnable send, long delayMs) {
+        StackMobWorkers.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    send.run();
+                }
+                catch(RuntimeException e) {
+                    if(completed) {
+                        //thrown by the callback itself
+                        throw e;
+                    }
+                    callback.failure(new StackMobException(e.getMessage()));
+                }
+            }
+        }, delayMs, TimeUnit.MILLISECONDS, executor);
+    }
+
+    /**
+     * One round trip. if the transport calls back from inside send, a redirect or retry is left in redirect or retryDelay
+     * for sendRequest to follow once send returns. if it calls back later, from another thread, it's followed from there
+     */
+    private class Exchange implements StackMobHttpTimingCallback {
+        private final OAuthRequest req;
+        private final int attempt;
+        private final int redirects;
+        private final String host;
+        private final Thread sender = Thread.currentThread();
+        private volatile boolean sending = false;
+        //whether the outcome has been given to the circuit breaker, which must happen exactly once for each tryAcquire
+        private final AtomicBoolean recorded = new AtomicBoolean(false);
+        private long start;
+        OAuthRequest redirect = null;
+        long redirectDelay = 0;
+        long retryDelay = -1;
+
+        Exchange(OAuthRequest req, int attempt, int redirects) {
+            this.req = req;
+            this.attempt = attempt;
+            this.redirects = redirects;
+            this.host = StackMobCircuitBreaker.getHost(req.getUrl());
+        }
+
+        void send() {
+            respondedAt = 0;
+            if(!circuitBreaker.tryAcquire(host)) {
+                callback.failure(new StackMobException("not sent, because requests to " + host + " have been failing"));
+                return;
+            }
+            endpoint.bytesSent(bodyBytes);
+            start = System.nanoTime();
+            sending = true;
+            try {
+                transport.send(req, this);
+            }
+            catch(RuntimeException e) {
+                //the transport failed without calling back, so give back the call that tryAcquire let through
+                record(false);
+                throw e;
+            }
+            finally {
+                sending = false;
+            }
+        }
+
+        private void record(boolean succeeded) {
+            if(recorded.compareAndSet(false, true)) {
+                circuitBreaker.record(host, succeeded, System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * @return the milliseconds to wait for a token before sending again, or -1 if there's no token to be had
+         */
+        private long reserveToken() {
+            StackMobRateLimiter limiter = rateLimiter;
+            if(limiter == null) {
+                return 0;
+            }
+            long waitNanos = limiter.reserve(rateCategory);
+            if(waitNanos <= 0) {
+                return waitNanos;
+            }
+            //rounded up, so the retry isn't sent before its token is due
+            return TimeUnit.NANOSECONDS.toMillis(waitNanos + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+        }
+
+        private boolean isInsideSend() {
+            return sending && Thread.currentThread() == sender;
+        }
+
+        @Override
+        public void connected(long startNanos, long endNanos) {
+            if(listener != null) {
+                listener.phase(StackMobRequest.this, Phase.CONNECT, startNanos, endNanos);
+            }
+        }
+
+        @Override
+        public void firstByte(long sentNanos, long receivedNanos) {
+            if(listener != null) {
+                listener.phase(StackMobRequest.this, Phase.FIRST_BYTE, sentNanos, receivedNanos);
+            }
+        }
+
+        @Override
+        public void response(StackMobHttpResponse response) {
+            respondedAt = phaseStarted();
+            record(response.getCode() < 500);
+            endpoint.statusReceived(response.getCode());
+            if(retryPolicy.isRetryable(response.getCode()) && retry()) {
+                return;
+            }
+            StackMobHttpResponse ret = compression.decode(endpoint.countBytesReceived(response));
+            try {
+                if(HttpRedirectHelper.isRedirected(ret.getCode())) {
+                    handleRedirect(ret);
+                }
+                else {
+                    handleResponse(ret);
+                }
+            }
+            finally {
+                //releases the inflater of a gzipped body
+                ret.close();
+            }
+        }
+
+        private void handleRedirect(StackMobHttpResponse ret) {
+            String body;
+            try {
+                body = ret.getBody();
+            }
+            catch(IOException e) {
+                callback.failure(new StackMobException(e.getMessage()));
+                return;
+            }
+            if(redirects >= MAX_REDIRECTS) {
+                callback.failure(new StackMobException("gave up after " + MAX_REDIRECTS + " redirects, the last from " + req.getUrl()));
+                return;
+            }
+            OAuthRequest newReq;
             try {
                 String newLocation = HttpRedirectHelper.getNewLocation(ret.getHeaders());
                 HttpVerb verb = HttpVerb.valueOf(req.getVerb().toString());
-                OAuthRequest newReq = getOAuthRequest(verb, newLocation);
+                newReq = getOAuthRequest(verb, newLocation);
                 if(req.getBodyContents() != null && req.getBodyContents().length() > 0) {
-                    newReq = getOAuthRequest(verb, newLocation, req.getBodyContents());
+                    //the body may already be compressed, so send it exactly as it was sent the first time
+                    compression.copyPayload(req, newReq);
                 }
-                //does NOT protect against circular redirects
-                redirectedCallback.redirected(req.getUrl(), ret.getHeaders(), ret.getBody(), newReq.getUrl());
-                return sendRequest(newReq);
+                redirectedCallback.redirected(req.getUrl(), ret.getHeaders(), body, newReq.getUrl());
             }
             catch(Exception e) {
-                return ret.getBody();
+                callback.success(body);
+                return;
+            }
+            phaseEnded(Phase.REDIRECT, respondedAt);
+            endpoint.redirected();
+            //a redirect is another request as far as the quota is concerned
+            long wait = reserveToken();
+            if(wait < 0) {
+                callback.failure(new StackMobException("redirect to " + newReq.getUrl() + " not followed, because the rate limit for " + rateCategory + " requests was reached"));
+                return;
+            }
+            if(isInsideSend()) {
+                redirect = newReq;
+                redirectDelay = wait;
+            }
+            else {
+                //called back on a thread that mustn't block, such as an event loop, while the redirect may need a
+                //blocking connection, say to an https host, so follow it from a worker
+                final OAuthRequest next = newReq;
+                sendLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendRequest(next, attempt, redirects + 1);
+                    }
+                }, wait);
             }
         }
-        else {
-            return ret.getBody();
+
+        @Override
+        public void failure(IOException e) {
+            record(false);
+            endpoint.statusReceived(0);
+            if(retry()) {
+                return;
+            }
+            callback.failure(new StackMobException(e.getMessage()));
+        }
+
+        /**
+         * @return true if the request will be sent again, in which case the callback mustn't be called
+         */
+        private boolean retry() {
+            if(!retryPolicy.isRetryable(httpMethod, idempotent) || !retryPolicy.tryRetry(attempt)) {
+                return false;
+            }
+            long wait = reserveToken();
+            if(wait < 0) {
+                //no token, so the failure goes to the callback as if the retries had run out
+                return false;
+            }
+            //the token's wait overlaps the backoff, rather than adding to it
+            long delay = Math.max(retryPolicy.getDelayMillis(attempt), wait);
+            if(isInsideSend()) {
+                //the transport still holds the connection, so retry once send returns
+                retryDelay = delay;
+            }
+            else {
+                //called back later, maybe on a thread that mustn't block, so send it from a worker instead
+                sendLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendAttempt(attempt + 1);
+                    }
+                }, delay);
+            }
+            return true;
         }
     }
 
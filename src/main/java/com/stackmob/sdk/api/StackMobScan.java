@@ -0,0 +1,290 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.JsonElement;
+import com.stackmob.sdk.callback.StackMobStreamingCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.StackMobWorkers;
+
+/**
+ * Reads every object that matches a query by splitting the query into disjoint ranges of a numeric field, and fetching the
+ * ranges concurrently. The objects from every range are merged into a single stream. for example:
+ * <code>
+ *     stackmob.setExecutor(Executors.newFixedThreadPool(8));
+ *     new StackMobScan(stackmob, new StackMobQuery("game"))
+ *         .partitionBy("createddate", 0, System.currentTimeMillis() + 1)
+ *         .setPartitions(32)
+ *         .setParallelism(8)
+ *         .run(gameCallback)
+ *         .get();
+ * </code>
+ *
+ * A few notes about this object:
+ * <ul>
+ *     <li>the field is split into equal widths, so objects that are bunched up in one part of the field's range make for
+ *     uneven partitions. use more partitions than the parallelism to even out the load</li>
+ *     <li>partitions only run concurrently when requests run in the background, that is, when the StackMob object has an
+ *     executor or a non-blocking transport. then each partition is started from a {@link StackMobWorkers} thread, rather
+ *     than from the callback of the one before, which may be on an event loop, or on an executor thread that requests
+ *     holding in flight permits are queued behind, so it mustn't wait for the in flight or rate limits</li>
+ *     <li>objects arrive in no particular order, but the callback is never called from two threads at once</li>
+ *     <li>the partition bounds replace any gte or lt condition the query already has on the field</li>
+ *     <li>if a partition fails, no more partitions are started, and objects from the ones still in flight are dropped</li>
+ * </ul>
+ */
+public class StackMobScan {
+
+    public static final String DEFAULT_FIELD = "createddate";
+    public static final int DEFAULT_PARTITIONS = 16;
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    private final StackMob stackmob;
+    private final StackMobQuery query;
+    private String field = DEFAULT_FIELD;
+    private long min = 0;
+    private Long max = null;
+    private int partitions = DEFAULT_PARTITIONS;
+    private int parallelism = DEFAULT_PARALLELISM;
+
+    private final AtomicLong objectsScanned = new AtomicLong(0);
+    private final AtomicLong partitionsCompleted = new AtomicLong(0);
+
+    /**
+     * @param stackmob the StackMob object to send requests through
+     * @param query the query to scan. it isn't changed
+     */
+    public StackMobScan(StackMob stackmob, StackMobQuery query) {
+        this.stackmob = stackmob;
+        this.query = query;
+    }
+
+    /**
+     * split the query on a numeric field. the default is createddate, from 0 up to the time the scan starts
+     * @param field the field to split on
+     * @param min the lowest value to scan, inclusive
+     * @param max the highest value to scan, exclusive
+     * @return this scan, so calls can be chained
+     */
+    public StackMobScan partitionBy(String field, long min, long max) {
+        if(max <= min) {
+            throw new IllegalArgumentException("max must be greater than min");
+        }
+        this.field = field;
+        this.min = min;
+        this.max = max;
+        return this;
+    }
+
+    /**
+     * @param partitions the number of ranges to split the query into
+     * @return this scan, so calls can be chained
+     */
+    public StackMobScan setPartitions(int partitions) {
+        if(partitions < 1) {
+            throw new IllegalArgumentException("partitions must be at least 1");
+        }
+        this.partitions = partitions;
+        return this;
+    }
+
+    /**
+     * @param parallelism the most partitions to fetch at once
+     * @return this scan, so calls can be chained
+     */
+    public StackMobScan setParallelism(int parallelism) {
+        if(parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * @return the number of objects handed to callbacks so far, over every run of this scan
+     */
+    public long getObjectsScanned() {
+        return objectsScanned.get();
+    }
+
+    /**
+     * @return the number of partitions that have been read completely so far, over every run of this scan
+     */
+    public long getPartitionsCompleted() {
+        return partitionsCompleted.get();
+    }
+
+    /**
+     * start the scan
+     * @param callback callback to be called with each object, then with done() once every partition has been read, or with
+     *                 failure() once if any partition fails. may execute in a separate thread
+     * @return a future that completes with null after done() or failure() returns
+     */
+    public StackMobFuture run(StackMobStreamingCallback callback) {
+        long upper = max == null ? System.currentTimeMillis() + 1 : max;
+        Run run = new Run(split(query, field, min, upper, partitions), callback);
+        run.start();
+        return run.future;
+    }
+
+    /**
+     * @return one query per partition, each with the query's conditions plus its own range of the field
+     */
+    static List<StackMobQuery> split(StackMobQuery query, String field, long min, long max, int partitions) {
+        List<StackMobQuery> ret = new ArrayList<StackMobQuery>(partitions);
+        long width = (max - min) / partitions;
+        long remainder = (max - min) % partitions;
+        long lower = min;
+        for(int i = 0; i < partitions; i++) {
+            //spread the remainder over the first partitions, so that they cover [min, max) exactly
+            long upper = lower + width + (i < remainder ? 1 : 0);
+            StackMobQuery partition = new StackMobQuery(query.getObjectName());
+            partition.getArguments().putAll(query.getArguments());
+            partition.fieldIsGreaterThanOrEqualTo(field, String.valueOf(lower)).fieldIsLessThan(field, String.valueOf(upper));
+            ret.add(partition);
+            lower = upper;
+        }
+        return ret;
+    }
+
+    /**
+     * A single run of the scan. its scheduling state is guarded by lock. calls to the user's callback are serialized by
+     * deliveryLock instead, so that a slow callback doesn't hold up partitions finishing and starting on other threads
+     */
+    private class Run {
+        private final Object lock = new Object();
+        private final Object deliveryLock = new Object();
+        private final List<StackMobQuery> remaining;
+        private final StackMobStreamingCallback callback;
+        private final StackMobFuture future = new StackMobFuture();
+        private int inFlight = 0;
+        //partitions that may be started, and whether a thread is already starting them
+        private int startsWanted = 0;
+        private boolean starting = false;
+        private volatile boolean finished = false;
+
+        Run(List<StackMobQuery> partitions, StackMobStreamingCallback callback) {
+            this.remaining = partitions;
+            this.callback = callback;
+        }
+
+        void start() {
+            future.start();
+            next(parallelism);
+        }
+
+        /**
+         * start up to count more partitions. without an executor each get runs its callbacks, and so calls this again,
+         * before it returns. rather than recursing, such calls just leave their partitions for the loop below to start,
+         * so the stack stays the same depth however many partitions there are
+         */
+        private void next(int count) {
+            synchronized(lock) {
+                startsWanted += count;
+                if(starting) {
+                    return;
+                }
+                starting = true;
+            }
+            while(true) {
+                StackMobQuery partition;
+                synchronized(lock) {
+                    if(startsWanted == 0 || finished || remaining.isEmpty()) {
+                        startsWanted = 0;
+                        starting = false;
+                        return;
+                    }
+                    startsWanted--;
+                    partition = remaining.remove(0);
+                    inFlight++;
+                }
+                stackmob.get(partition, new PartitionCallback());
+            }
+        }
+
+        private class PartitionCallback implements StackMobStreamingCallback {
+            @Override
+            public void object(JsonElement object) {
+                //merge the partitions into one stream, so the callback never has to be thread safe
+                synchronized(deliveryLock) {
+                    if(!finished) {
+                        objectsScanned.incrementAndGet();
+                        callback.object(object);
+                    }
+                }
+            }
+
+            @Override
+            public void done() {
+                partitionsCompleted.incrementAndGet();
+                boolean last;
+                synchronized(lock) {
+                    inFlight--;
+                    last = !finished && inFlight == 0 && remaining.isEmpty();
+                    if(last) {
+                        finished = true;
+                    }
+                }
+                if(last) {
+                    try {
+                        synchronized(deliveryLock) {
+                            callback.done();
+                        }
+                    }
+                    finally {
+                        future.complete(null);
+                    }
+                }
+                else if(stackmob.sendsInBackground()) {
+                    StackMobWorkers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            next(1);
+                        }
+                    }, null);
+                }
+                else {
+                    next(1);
+                }
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                boolean first;
+                synchronized(lock) {
+                    inFlight--;
+                    first = !finished;
+                    finished = true;
+                }
+                if(first) {
+                    try {
+                        synchronized(deliveryLock) {
+                            callback.failure(e);
+                        }
+                    }
+                    finally {
+                        future.fail(e);
+                    }
+                }
+            }
+        }
+    }
+}
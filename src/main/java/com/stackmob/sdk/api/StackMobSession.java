@@ -16,12 +16,17 @@
 
 package com.stackmob.sdk.api;
 
+import com.stackmob.sdk.net.StackMobSigner;
+import com.stackmob.sdk.util.StackMobCodec;
+
 public class StackMobSession {
     private String key;
     private String secret;
     private String userObjectName;
     private int apiVersionNumber;
     private String appName = null;
+    private final StackMobCodec codec = new StackMobCodec();
+    private final StackMobSigner signer;
 
     public StackMobSession(String key, String secret, String userObjectName, String appName, int apiVersionNumber) {
         this(key, secret, userObjectName, apiVersionNumber);
@@ -33,6 +38,7 @@ public class StackMobSession {
         this.secret = secret;
         this.userObjectName = userObjectName;
         this.apiVersionNumber = apiVersionNumber;
+        this.signer = new StackMobSigner(key, secret);
     }
 
     public String getKey() {
@@ -54,4 +60,20 @@ public class StackMobSession {
     public String getAppName() {
         return appName;
     }
+
+    /**
+     * get the codec that all requests made with this session use to serialize and deserialize JSON
+     * @return the codec
+     */
+    public StackMobCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * get the signer that all requests made with this session use. it is created once, along with the session, and is safe to share between threads
+     * @return the signer
+     */
+    public StackMobSigner getSigner() {
+        return signer;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,197 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.util.Map;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.callback.StackMobStreamingCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.HttpVerb;
+import com.stackmob.sdk.net.StackMobHttpResponse;
+
+/**
+ * A request whose response is parsed straight from the response stream, handing each object in it to a
+ * {@link StackMobStreamingCallback} as soon as it's parsed
+ */
+class StackMobStreamingRequest extends StackMobRequest {
+
+    private final StackMobStreamingCallback streamingCallback;
+
+    StackMobStreamingRequest(StackMobSession session, String path, Map<String, String> args, StackMobStreamingCallback streamingCallback, StackMobRedirectedCallback redirCB) {
+        super(session, path, args, adapt(streamingCallback), redirCB);
+        this.streamingCallback = streamingCallback;
+    }
+
+    StackMobStreamingRequest(StackMobSession session, String path, HttpVerb verb, Object requestObject, StackMobStreamingCallback streamingCallback, StackMobRedirectedCallback redirCB) {
+        super(session, path, verb, requestObject, adapt(streamingCallback), redirCB);
+        this.streamingCallback = streamingCallback;
+    }
+
+    /**
+     * @return a callback that ends the stream. success is called with null once every object has been handed over
+     */
+    private static StackMobCallback adapt(final StackMobStreamingCallback streamingCallback) {
+        return new StackMobCallback() {
+            @Override
+            public void success(String responseBody) {
+                streamingCallback.done();
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                streamingCallback.failure(e);
+            }
+        };
+    }
+
+    @Override
+    protected void handleResponse(StackMobHttpResponse response) {
+        if(response.getCode() >= 400) {
+            //error bodies are small, and the caller needs all of one to make sense of it
+            try {
+                callback.failure(new StackMobException(response.getBody()));
+            }
+            catch(IOException e) {
+                callback.failure(new StackMobException(e.getMessage()));
+            }
+            return;
+        }
+        JsonReader reader;
+        boolean isArray;
+        try {
+            reader = new JsonReader(new InputStreamReader(response.getStream(), response.getCharset()));
+            isArray = reader.peek() == JsonToken.BEGIN_ARRAY;
+            if(isArray) {
+                reader.beginArray();
+            }
+        }
+        catch(IOException e) {
+            callback.failure(new StackMobException("could not read response: " + e.getMessage()));
+            return;
+        }
+        if(!isArray) {
+            JsonElement object;
+            try {
+                object = read(reader);
+            }
+            catch(IOException e) {
+                callback.failure(new StackMobException("could not parse response: " + e.getMessage()));
+                return;
+            }
+            streamingCallback.object(object);
+            complete();
+            return;
+        }
+        while(true) {
+            //only the parser's exceptions are failures of the request. the callback's own exceptions propagate
+            JsonElement object;
+            try {
+                if(!reader.hasNext()) {
+                    reader.endArray();
+                    break;
+                }
+                object = read(reader);
+            }
+            catch(IOException e) {
+                callback.failure(new StackMobException("could not parse response: " + e.getMessage()));
+                return;
+            }
+            streamingCallback.object(object);
+        }
+        complete();
+    }
+
+    private void complete() {
+        StackMobException failure = null;
+        if(streamingCallback instanceof TypedStreamingCallback) {
+            failure = ((TypedStreamingCallback<?>)streamingCallback).getFailure();
+        }
+        if(failure != null) {
+            callback.failure(failure);
+        }
+        else {
+            callback.success(null);
+        }
+    }
+
+    /**
+     * @return the smallest representation of a JSON number that doesn't lose precision. most numbers in StackMob objects
+     * are ids and timestamps, which fit in a long
+     */
+    private static Number parseNumber(String number) {
+        boolean integral = true;
+        for(int i = 0; i < number.length() && integral; i++) {
+            char c = number.charAt(i);
+            integral = c != '.' && c != 'e' && c != 'E';
+        }
+        if(integral && number.length() < 19) {
+            return Long.valueOf(number);
+        }
+        return new BigDecimal(number);
+    }
+
+    /**
+     * read the next value from the stream. unlike JsonParser, this fails on a truncated stream instead of
+     * reading the missing part as null
+     * @throws IOException if the stream couldn't be read or isn't valid JSON
+     */
+    static JsonElement read(JsonReader reader) throws IOException {
+        switch(reader.peek()) {
+            case BEGIN_ARRAY: {
+                JsonArray array = new JsonArray();
+                reader.beginArray();
+                while(reader.hasNext()) {
+                    array.add(read(reader));
+                }
+                reader.endArray();
+                return array;
+            }
+            case BEGIN_OBJECT: {
+                JsonObject object = new JsonObject();
+                reader.beginObject();
+                while(reader.hasNext()) {
+                    object.add(reader.nextName(), read(reader));
+                }
+                reader.endObject();
+                return object;
+            }
+            case STRING:
+                return new JsonPrimitive(reader.nextString());
+            case NUMBER:
+                return new JsonPrimitive(parseNumber(reader.nextString()));
+            case BOOLEAN:
+                return new JsonPrimitive(reader.nextBoolean());
+            case NULL:
+                reader.nextNull();
+                return new JsonNull();
+            default:
+                throw new IOException("unexpected " + reader.peek() + " in response");
+        }
+    }
+}
@@ -36,6 +36,12 @@ public class StackMobUserBasedRequest extends StackMobRequest {
         return "/" + session.getUserObjectName() + "/" + methodName;
     }
 
+    @Override
+    protected String getEndpointPath() {
+        //the method, such as login, is what tells these requests apart
+        return getPath();
+    }
+
     @Override
     public StackMobUserBasedRequest setUrlFormat(String urlFormat) {
         this.urlFormat = urlFormat;
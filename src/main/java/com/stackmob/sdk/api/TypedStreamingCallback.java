@@ -0,0 +1,148 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.stackmob.sdk.callback.StackMobObjectCallback;
+import com.stackmob.sdk.callback.StackMobStreamingCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.util.StackMobCodec;
+
+/**
+ * Decodes each object streamed out of a response as it arrives, and hands the decoded result to a {@link StackMobObjectCallback}
+ * once the response is complete
+ */
+abstract class TypedStreamingCallback<T> implements StackMobStreamingCallback {
+
+    private final StackMobCodec codec;
+    private final Class<T> type;
+    private StackMobException decodeFailure;
+
+    TypedStreamingCallback(StackMobCodec codec, Class<T> type) {
+        this.codec = codec;
+        this.type = type;
+    }
+
+    /**
+     * @return a callback that collects the objects in an array response into a List
+     */
+    static <T> TypedStreamingCallback<T> forList(StackMobCodec codec, Class<T> type, final StackMobObjectCallback<List<T>> callback) {
+        return new TypedStreamingCallback<T>(codec, type) {
+            private final List<T> objects = new ArrayList<T>();
+
+            @Override
+            protected void decoded(T object) {
+                objects.add(object);
+            }
+
+            @Override
+            protected void succeeded() {
+                callback.success(objects);
+            }
+
+            @Override
+            protected void failed(StackMobException e) {
+                callback.failure(e);
+            }
+        };
+    }
+
+    /**
+     * @return a callback that expects a response holding a single object
+     */
+    static <T> TypedStreamingCallback<T> forObject(StackMobCodec codec, final Class<T> type, final StackMobObjectCallback<T> callback) {
+        return new TypedStreamingCallback<T>(codec, type) {
+            private T object;
+            private int count = 0;
+
+            @Override
+            protected void decoded(T decoded) {
+                object = decoded;
+                count++;
+            }
+
+            @Override
+            protected StackMobException checkComplete() {
+                if(count != 1) {
+                    return new StackMobException("expected a single " + type.getSimpleName() + " in the response, but got " + count);
+                }
+                return null;
+            }
+
+            @Override
+            protected void succeeded() {
+                callback.success(object);
+            }
+
+            @Override
+            protected void failed(StackMobException e) {
+                callback.failure(e);
+            }
+        };
+    }
+
+    protected abstract void decoded(T object);
+    protected abstract void succeeded();
+    protected abstract void failed(StackMobException e);
+
+    /**
+     * @return the reason the whole response didn't decode, or null if it did
+     */
+    protected StackMobException checkComplete() {
+        return null;
+    }
+
+    /**
+     * called by {@link StackMobStreamingRequest} once the response has been read, so that a response that didn't decode
+     * fails the request and its future rather than completing them
+     * @return the reason the response didn't decode, or null if it did
+     */
+    StackMobException getFailure() {
+        return decodeFailure != null ? decodeFailure : checkComplete();
+    }
+
+    @Override
+    public void object(JsonElement object) {
+        if(decodeFailure != null) {
+            return;
+        }
+        T decoded;
+        try {
+            decoded = codec.fromJson(object, type);
+        }
+        catch(JsonParseException e) {
+            //keep reading, so the connection can be reused, but report the first object that didn't fit
+            decodeFailure = new StackMobException("could not decode " + type.getSimpleName() + ": " + e.getMessage());
+            return;
+        }
+        decoded(decoded);
+    }
+
+    @Override
+    public void done() {
+        succeeded();
+    }
+
+    @Override
+    public void failure(StackMobException e) {
+        failed(e);
+    }
+}
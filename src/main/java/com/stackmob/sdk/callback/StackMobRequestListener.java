@@ -0,0 +1,76 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.callback;
+
+import com.stackmob.sdk.api.StackMobRequest;
+
+/**
+ * Hears about each phase of a request as it happens, so the time a slow call took can be broken down by where it went.
+ * every phase is reported once it's over, with {@link System#nanoTime()} timestamps for its start and end. a request that
+ * is retried goes through the phases up to first byte again, and one that is redirected goes through sign, connect
+ * and first byte again.
+ * listeners are called on whichever thread is working on the request at the time, which may be a transport's event
+ * loop, so they should be quick and mustn't block. see {@link com.stackmob.sdk.api.StackMob#setRequestListener}
+ */
+public interface StackMobRequestListener {
+
+    enum Phase {
+        /**
+         * building the request: its url, headers and body. includes the serialize and sign phases
+         */
+        BUILD,
+        /**
+         * turning the request's object or parameters into its body. only posts and puts have this phase
+         */
+        SERIALIZE,
+        /**
+         * signing the request with OAuth
+         */
+        SIGN,
+        /**
+         * waiting for a connection, from when the request was handed to the transport until the connection was opened or
+         * taken from the pool. only reported by transports that can tell, such as the built in ones
+         */
+        CONNECT,
+        /**
+         * waiting for the server, from when the request had been written until the response started to arrive. only
+         * reported by transports that can tell
+         */
+        FIRST_BYTE,
+        /**
+         * reading the rest of the response, from when it arrived at the request until the callback was called
+         */
+        BODY_COMPLETE,
+        /**
+         * following a redirect, from when the redirect arrived until the request to the new location was built
+         */
+        REDIRECT,
+        /**
+         * running the request's callback. this is the last phase of every request, whether it succeeded or failed
+         */
+        CALLBACK_DISPATCHED
+    }
+
+    /**
+     * called at the end of each phase of a request
+     * @param request the request. its toString gives its verb and path
+     * @param phase the phase that just ended
+     * @param startNanos when the phase started
+     * @param endNanos when the phase ended
+     */
+    void phase(StackMobRequest request, Phase phase, long startNanos, long endNanos);
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.callback;
+
+import com.google.gson.JsonElement;
+import com.stackmob.sdk.exception.StackMobException;
+
+/**
+ * Receives the objects in a response one at a time, as they're parsed from the response stream, instead of the whole
+ * body at once. only the object being handed over is held in memory, so large query results can be processed in a small heap
+ */
+public interface StackMobStreamingCallback {
+
+    /**
+     * called for each object in the response, in order. if the response is a single object rather than an array, this is
+     * called once with that object
+     * @param object the parsed object
+     */
+    void object(JsonElement object);
+
+    /**
+     * called after the last object, once the whole response has been read
+     */
+    void done();
+
+    /**
+     * called if the request failed, the server returned an error, or the response couldn't be parsed. objects that were
+     * parsed before the failure have already been handed to {@link #object(JsonElement)}
+     * @param e the cause of the failure
+     */
+    void failure(StackMobException e);
+}
@@ -0,0 +1,450 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.scribe.model.OAuthRequest;
+import org.scribe.model.Verb;
+
+/**
+ * A {@link StackMobHttpTransport} that keeps a bounded LRU cache of GET responses in front of another transport. Responses
+ * are cached as their Cache-Control and Expires headers allow, and once they go stale they're revalidated with
+ * If-None-Match and If-Modified-Since, so unchanged data costs only a 304. for example:
+ * <code>
+ *     stackmob.setTransport(new CachingHttpTransport(stackmob.getTransport()).setMaxEntries(1000));
+ * </code>
+ *
+ * A few notes about this object:
+ * <ul>
+ *     <li>entries are keyed by scheme, host, path and query, with the query parameters in sorted order</li>
+ *     <li>a POST, PUT or DELETE invalidates every entry for the same host and object type, that is, the first path segment.
+ *     a put to "game/1234" drops both "game/1234" and every cached query on "game"</li>
+ *     <li>responses are cached whoever is logged in, so don't share one of these between users</li>
+ *     <li>only 200 responses are cached. responses with Cache-Control: no-store are never cached, and ones with
+ *     no-cache are revalidated every time</li>
+ *     <li>ranged gets, such as the pages of a {@link com.stackmob.sdk.api.StackMobPager}, bypass the cache</li>
+ * </ul>
+ */
+public class CachingHttpTransport implements StackMobHttpTransport {
+
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+
+    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    private final StackMobHttpTransport delegate;
+    private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+    private final Map<String, CachedResponse> entries = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest) {
+            return size() > maxEntries;
+        }
+    };
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong revalidations = new AtomicLong(0);
+
+    /**
+     * A cached response
+     */
+    private static class CachedResponse {
+        private final String scope;
+        private final Map<String, List<String>> headers;
+        private final byte[] body;
+        private final long expiresAt;
+
+        CachedResponse(String scope, Map<String, List<String>> headers, byte[] body, long expiresAt) {
+            this.scope = scope;
+            this.headers = headers;
+            this.body = body;
+            this.expiresAt = expiresAt;
+        }
+
+        StackMobHttpResponse toResponse() {
+            return new StackMobHttpResponse(200, headers, new ByteArrayInputStream(body));
+        }
+    }
+
+    /**
+     * A callback for the delegate that passes its timings through to the caller's callback, if it wants them
+     */
+    private static abstract class DelegateCallback implements StackMobHttpTimingCallback {
+        private final StackMobHttpCallback callback;
+
+        DelegateCallback(StackMobHttpCallback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void connected(long startNanos, long endNanos) {
+            if(callback instanceof StackMobHttpTimingCallback) {
+                ((StackMobHttpTimingCallback)callback).connected(startNanos, endNanos);
+            }
+        }
+
+        @Override
+        public void firstByte(long sentNanos, long receivedNanos) {
+            if(callback instanceof StackMobHttpTimingCallback) {
+                ((StackMobHttpTimingCallback)callback).firstByte(sentNanos, receivedNanos);
+            }
+        }
+    }
+
+    /**
+     * @param delegate the transport to send requests that can't be answered from the cache
+     */
+    public CachingHttpTransport(StackMobHttpTransport delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * @param maxEntries the most responses to keep. the least recently used ones are dropped first
+     * @return this transport, so calls can be chained
+     */
+    public CachingHttpTransport setMaxEntries(int maxEntries) {
+        if(maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1");
+        }
+        this.maxEntries = maxEntries;
+        return this;
+    }
+
+    /**
+     * @return the number of gets that were answered from the cache without going to the server
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of gets that got a full response from the server
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of gets that were revalidated with the server, which answered 304 Not Modified
+     */
+    public long getRevalidationCount() {
+        return revalidations.get();
+    }
+
+    /**
+     * @return the number of responses in the cache
+     */
+    public int getEntryCount() {
+        synchronized(entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * drop every cached response
+     */
+    public void clear() {
+        synchronized(entries) {
+            entries.clear();
+        }
+    }
+
+    @Override
+    public void send(OAuthRequest request, StackMobHttpCallback callback) {
+        URL url;
+        try {
+            url = new URL(request.getUrl());
+        }
+        catch(MalformedURLException e) {
+            callback.failure(e);
+            return;
+        }
+        if(request.getVerb() == Verb.GET && request.getHeaders().containsKey("Range")) {
+            //a page of a query isn't the whole response its URL names
+            delegate.send(request, callback);
+        }
+        else if(request.getVerb() == Verb.GET) {
+            sendGet(request, url, callback);
+        }
+        else {
+            sendUpdate(request, url, callback);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        clear();
+        delegate.shutdown();
+    }
+
+    private void sendGet(OAuthRequest request, URL url, final StackMobHttpCallback callback) {
+        final String key = getKey(url);
+        final String scope = getScope(url);
+        final CachedResponse cached;
+        synchronized(entries) {
+            cached = entries.get(key);
+        }
+        if(cached != null && System.currentTimeMillis() < cached.expiresAt) {
+            hits.incrementAndGet();
+            callback.response(cached.toResponse());
+            return;
+        }
+        if(cached != null) {
+            String etag = getHeader(cached.headers, "ETag");
+            String lastModified = getHeader(cached.headers, "Last-Modified");
+            if(etag != null) {
+                request.addHeader("If-None-Match", etag);
+            }
+            if(lastModified != null) {
+                request.addHeader("If-Modified-Since", lastModified);
+            }
+        }
+        delegate.send(request, new DelegateCallback(callback) {
+            @Override
+            public void response(StackMobHttpResponse response) {
+                //hang on to the entry we revalidated, even if it has been evicted since
+                if(response.getCode() == 304 && cached != null) {
+                    revalidations.incrementAndGet();
+                    Map<String, List<String>> headers = merge(cached.headers, response.getHeaderFields());
+                    CachedResponse refreshed = new CachedResponse(scope, headers, cached.body, getExpiry(headers));
+                    store(key, refreshed);
+                    callback.response(refreshed.toResponse());
+                    return;
+                }
+                misses.incrementAndGet();
+                if(response.getCode() != 200 || !isCacheable(response.getHeaderFields())) {
+                    remove(key);
+                    callback.response(response);
+                    return;
+                }
+                byte[] body;
+                try {
+                    body = readFully(response.getStream());
+                }
+                catch(IOException e) {
+                    callback.failure(e);
+                    return;
+                }
+                CachedResponse entry = new CachedResponse(scope, response.getHeaderFields(), body, getExpiry(response.getHeaderFields()));
+                store(key, entry);
+                callback.response(entry.toResponse());
+            }
+
+            @Override
+            public void failure(IOException e) {
+                callback.failure(e);
+            }
+        });
+    }
+
+    private void sendUpdate(OAuthRequest request, URL url, final StackMobHttpCallback callback) {
+        final String scope = getScope(url);
+        invalidate(scope);
+        delegate.send(request, new DelegateCallback(callback) {
+            @Override
+            public void response(StackMobHttpResponse response) {
+                //a get that was in flight alongside this request may have cached the old data
+                invalidate(scope);
+                callback.response(response);
+            }
+
+            @Override
+            public void failure(IOException e) {
+                invalidate(scope);
+                callback.failure(e);
+            }
+        });
+    }
+
+    private void store(String key, CachedResponse entry) {
+        synchronized(entries) {
+            entries.put(key, entry);
+        }
+    }
+
+    private void remove(String key) {
+        synchronized(entries) {
+            entries.remove(key);
+        }
+    }
+
+    private void invalidate(String scope) {
+        synchronized(entries) {
+            Iterator<CachedResponse> it = entries.values().iterator();
+            while(it.hasNext()) {
+                if(it.next().scope.equals(scope)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the cache key for a URL: its route and path, and its query parameters in sorted order
+     */
+    static String getKey(URL url) {
+        StringBuilder key = new StringBuilder(HttpMessages.getRoute(url)).append(url.getPath());
+        String query = url.getQuery();
+        if(query != null && query.length() > 0) {
+            String[] params = query.split("&");
+            Arrays.sort(params);
+            key.append('?');
+            for(int i = 0; i < params.length; i++) {
+                if(i > 0) {
+                    key.append('&');
+                }
+                key.append(params[i]);
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return the route and first path segment of a URL, which together name the objects that a request reads or changes
+     */
+    static String getScope(URL url) {
+        String path = url.getPath();
+        int start = path.startsWith("/") ? 1 : 0;
+        int end = path.indexOf('/', start);
+        return HttpMessages.getRoute(url) + "/" + (end == -1 ? path.substring(start) : path.substring(start, end));
+    }
+
+    private static boolean isCacheable(Map<String, List<String>> headers) {
+        String cacheControl = getHeader(headers, "Cache-Control");
+        if(cacheControl != null && hasDirective(cacheControl, "no-store")) {
+            return false;
+        }
+        //a response we can neither reuse as is nor revalidate isn't worth keeping
+        return getExpiry(headers) > System.currentTimeMillis() || getHeader(headers, "ETag") != null || getHeader(headers, "Last-Modified") != null;
+    }
+
+    /**
+     * @return the time in millis at which a response with these headers goes stale
+     */
+    static long getExpiry(Map<String, List<String>> headers) {
+        long now = System.currentTimeMillis();
+        String cacheControl = getHeader(headers, "Cache-Control");
+        if(cacheControl != null) {
+            if(hasDirective(cacheControl, "no-cache")) {
+                return now;
+            }
+            for(String directive : cacheControl.split(",")) {
+                String trimmed = directive.trim().toLowerCase(Locale.US);
+                if(trimmed.startsWith("max-age=")) {
+                    try {
+                        return now + Long.parseLong(trimmed.substring("max-age=".length()).replace("\"", "")) * 1000L;
+                    }
+                    catch(NumberFormatException e) {
+                        return now;
+                    }
+                }
+            }
+        }
+        String expires = getHeader(headers, "Expires");
+        if(expires != null) {
+            //measure the lifetime against the server's clock, in case ours is off
+            long expiresAt = parseDate(expires);
+            String date = getHeader(headers, "Date");
+            long servedAt = date == null ? now : parseDate(date);
+            if(expiresAt == -1 || servedAt == -1) {
+                return now;
+            }
+            return now + (expiresAt - servedAt);
+        }
+        return now;
+    }
+
+    private static boolean hasDirective(String cacheControl, String name) {
+        for(String directive : cacheControl.split(",")) {
+            if(directive.trim().equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long parseDate(String date) {
+        SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return format.parse(date).getTime();
+        }
+        catch(ParseException e) {
+            return -1;
+        }
+    }
+
+    private static String getHeader(Map<String, List<String>> headers, String name) {
+        for(Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if(name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+                return header.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the stored headers, updated with the ones a 304 sent along
+     */
+    private static Map<String, List<String>> merge(Map<String, List<String>> stored, Map<String, List<String>> updated) {
+        Map<String, List<String>> ret = new LinkedHashMap<String, List<String>>(stored);
+        for(Map.Entry<String, List<String>> header : updated.entrySet()) {
+            String name = header.getKey();
+            //the 304 doesn't describe the cached body
+            if(name == null || name.equalsIgnoreCase("Content-Length") || name.equalsIgnoreCase("Transfer-Encoding")) {
+                continue;
+            }
+            Iterator<String> it = ret.keySet().iterator();
+            while(it.hasNext()) {
+                String existing = it.next();
+                if(existing != null && existing.equalsIgnoreCase(name)) {
+                    it.remove();
+                }
+            }
+            ret.put(name, new ArrayList<String>(header.getValue()));
+        }
+        return ret;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int read;
+        while((read = in.read(buf)) != -1) {
+            out.write(buf, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
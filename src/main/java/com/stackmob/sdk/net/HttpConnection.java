@@ -0,0 +1,453 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * A single persistent HTTP/1.1 connection to one host, as used by {@link PooledHttpTransport}. the connection goes through
+ * whichever proxy the default {@link java.net.ProxySelector} picks, so the http.proxyHost, https.proxyHost and socksProxyHost
+ * system properties work as they do for HttpURLConnection. proxies that ask for credentials aren't supported
+ */
+class HttpConnection {
+
+    private static final int DNS_NAME = 2;
+    private static final int IP_ADDRESS = 7;
+
+    private final String route;
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final boolean absoluteUri;
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    private HttpConnection(String route, Socket socket, boolean absoluteUri) throws IOException {
+        this.route = route;
+        this.socket = socket;
+        this.in = new BufferedInputStream(socket.getInputStream());
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        this.absoluteUri = absoluteUri;
+    }
+
+    /**
+     * open a new connection to the host of the given URL
+     * @param url the URL whose scheme, host and port to connect to
+     * @param connectTimeout the connect timeout in milliseconds, 0 for none
+     * @param readTimeout the read timeout in milliseconds, 0 for none
+     * @return the open connection
+     * @throws IOException if the connection could not be made
+     */
+    static HttpConnection open(URL url, int connectTimeout, int readTimeout) throws IOException {
+        String host = url.getHost();
+        int port = HttpMessages.getPort(url);
+        boolean secure = HttpMessages.isSecure(url);
+        Proxy proxy = HttpMessages.selectProxy(url);
+        boolean viaHttpProxy = proxy.type() == Proxy.Type.HTTP;
+        Socket socket = proxy.type() == Proxy.Type.SOCKS ? new Socket(proxy) : new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(readTimeout);
+            if(viaHttpProxy) {
+                socket.connect(resolve((InetSocketAddress)proxy.address()), connectTimeout);
+                if(secure) {
+                    tunnel(socket, host, port);
+                }
+            }
+            else if(proxy.type() == Proxy.Type.SOCKS) {
+                //let the proxy look up the host
+                socket.connect(InetSocketAddress.createUnresolved(host, port), connectTimeout);
+            }
+            else {
+                socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            }
+            if(secure) {
+                SSLSocket sslSocket = (SSLSocket)((SSLSocketFactory)SSLSocketFactory.getDefault()).createSocket(socket, host, port, true);
+                sslSocket.startHandshake();
+                verifyHostname(sslSocket, host);
+                socket = sslSocket;
+            }
+            //a plain http proxy forwards requests rather than bytes, so it needs the whole url in the request line
+            return new HttpConnection(HttpMessages.getRoute(url), socket, viaHttpProxy && !secure);
+        }
+        catch(IOException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+    }
+
+    private static InetSocketAddress resolve(InetSocketAddress address) throws UnknownHostException {
+        if(!address.isUnresolved()) {
+            return address;
+        }
+        InetSocketAddress resolved = new InetSocketAddress(address.getHostName(), address.getPort());
+        if(resolved.isUnresolved()) {
+            throw new UnknownHostException(address.getHostName());
+        }
+        return resolved;
+    }
+
+    /**
+     * ask an http proxy to open a tunnel to the given host, for TLS to run over
+     */
+    private static void tunnel(Socket socket, String host, int port) throws IOException {
+        String authority = host + ":" + port;
+        OutputStream tunnelOut = socket.getOutputStream();
+        tunnelOut.write(("CONNECT " + authority + " HTTP/1.1\r\nHost: " + authority + "\r\n\r\n").getBytes("US-ASCII"));
+        tunnelOut.flush();
+        //read the head straight from the socket, so that nothing the TLS handshake needs is left in a buffer
+        HttpMessages.ResponseHead head = HttpMessages.readResponseHead(socket.getInputStream());
+        if(head.code < 200 || head.code > 299) {
+            throw new IOException("proxy refused to open a tunnel to " + authority + ": " + head.code);
+        }
+    }
+
+    String getRoute() {
+        return route;
+    }
+
+    InputStream getInputStream() {
+        return in;
+    }
+
+    OutputStream getOutputStream() {
+        return out;
+    }
+
+    /**
+     * @return true if requests on this connection must name the whole url in their request line, because they go to a proxy
+     */
+    boolean usesAbsoluteUri() {
+        return absoluteUri;
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    void touch() {
+        lastUsed = System.currentTimeMillis();
+    }
+
+    boolean isOpen() {
+        return !socket.isClosed() && !socket.isInputShutdown() && !socket.isOutputShutdown();
+    }
+
+    /**
+     * look for a close from the server while the connection sat idle, without waiting for more than a millisecond. an
+     * idle connection with data waiting is stale too, since the data can't be the answer to a request not yet sent
+     * @return true if the connection mustn't be used for another request
+     */
+    boolean isStale() {
+        try {
+            if(in.available() > 0) {
+                return true;
+            }
+            int timeout = socket.getSoTimeout();
+            socket.setSoTimeout(1);
+            try {
+                //either the end of the stream or a stray byte, and the connection is thrown away in both cases
+                in.read();
+                return true;
+            }
+            catch(SocketTimeoutException e) {
+                //nothing to read, which is what an open idle connection looks like
+                return false;
+            }
+            finally {
+                socket.setSoTimeout(timeout);
+            }
+        }
+        catch(IOException e) {
+            return true;
+        }
+    }
+
+    void close() {
+        closeQuietly(socket);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        }
+        catch(IOException e) {
+            //do nothing - we're discarding the socket
+        }
+    }
+
+    /**
+     * check that the certificate the server presented was issued for the host we meant to talk to. SSLSocket only checks
+     * that the certificate chain is trusted
+     */
+    private static void verifyHostname(SSLSocket socket, String host) throws SSLException {
+        Certificate[] certs = socket.getSession().getPeerCertificates();
+        if(certs.length == 0 || !(certs[0] instanceof X509Certificate)) {
+            throw new SSLPeerUnverifiedException("no X509 certificate presented by " + host);
+        }
+        X509Certificate cert = (X509Certificate)certs[0];
+        String normalizedHost = host.toLowerCase(Locale.US);
+        boolean isAddress = isAddressLiteral(normalizedHost);
+        boolean hasDnsNames = false;
+        try {
+            Collection<List<?>> altNames = cert.getSubjectAlternativeNames();
+            if(altNames != null) {
+                for(List<?> altName : altNames) {
+                    int type = (Integer)altName.get(0);
+                    if(type == DNS_NAME) {
+                        hasDnsNames = true;
+                        if(!isAddress && matches(normalizedHost, altName.get(1).toString())) {
+                            return;
+                        }
+                    }
+                    else if(type == IP_ADDRESS && isAddress && sameAddress(normalizedHost, altName.get(1).toString())) {
+                        return;
+                    }
+                }
+            }
+        }
+        catch(CertificateParsingException e) {
+            throw new SSLPeerUnverifiedException("could not parse certificate presented by " + host);
+        }
+        //an address is only matched by an address entry, never by the common name
+        if(!hasDnsNames && !isAddress) {
+            String cn = getCommonName(cert.getSubjectX500Principal());
+            if(cn != null && matches(normalizedHost, cn)) {
+                return;
+            }
+        }
+        throw new SSLPeerUnverifiedException("certificate presented by " + host + " does not match its hostname");
+    }
+
+    /**
+     * a wildcard only stands for the whole leftmost label, and needs at least two labels after it, so *.stackmob.com
+     * matches api.stackmob.com but *.com matches nothing
+     */
+    private static boolean matches(String host, String pattern) {
+        String normalizedPattern = pattern.toLowerCase(Locale.US);
+        if(normalizedPattern.startsWith("*.")) {
+            String suffix = normalizedPattern.substring(1);
+            if(suffix.indexOf('.', 1) == -1 || suffix.indexOf('*') != -1) {
+                return false;
+            }
+            int firstDot = host.indexOf('.');
+            return firstDot > 0 && host.substring(firstDot).equals(suffix);
+        }
+        return host.equals(normalizedPattern);
+    }
+
+    /**
+     * @return true if the host is an IPv4 or IPv6 address rather than a name
+     */
+    private static boolean isAddressLiteral(String host) {
+        return host.indexOf(':') != -1 || host.startsWith("[") || host.matches("[0-9]{1,3}(\\.[0-9]{1,3}){3}");
+    }
+
+    private static boolean sameAddress(String host, String address) {
+        try {
+            //neither is a name, so this never goes to DNS
+            return InetAddress.getByName(stripBrackets(host)).equals(InetAddress.getByName(stripBrackets(address)));
+        }
+        catch(UnknownHostException e) {
+            return false;
+        }
+    }
+
+    private static String stripBrackets(String address) {
+        return address.startsWith("[") && address.endsWith("]") ? address.substring(1, address.length() - 1) : address;
+    }
+
+    private static String getCommonName(X500Principal principal) {
+        for(String part : principal.getName(X500Principal.RFC2253).split(",")) {
+            String trimmed = part.trim();
+            if(trimmed.toUpperCase(Locale.US).startsWith("CN=")) {
+                return trimmed.substring(3);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A response body, framed according to the response headers. reading past the end of the body returns -1 rather than
+     * reading into the next response on the connection
+     */
+    static abstract class BodyInputStream extends InputStream {
+        protected final InputStream in;
+
+        BodyInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * @return true if the whole body has been read, and the connection is positioned at the start of the next response
+         */
+        abstract boolean isComplete();
+
+        /**
+         * @return true if the connection can carry another request once the body is complete
+         */
+        boolean isReusable() {
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int read = read(one, 0, 1);
+            return read == -1 ? -1 : one[0] & 0xff;
+        }
+    }
+
+    static class EmptyInputStream extends BodyInputStream {
+        EmptyInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        boolean isComplete() {
+            return true;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            return -1;
+        }
+    }
+
+    static class ContentLengthInputStream extends BodyInputStream {
+        private long remaining;
+
+        ContentLengthInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        boolean isComplete() {
+            return remaining == 0;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(remaining == 0) {
+                return -1;
+            }
+            int read = in.read(b, off, (int)Math.min(len, remaining));
+            if(read == -1) {
+                throw new EOFException("connection closed with " + remaining + " bytes of the response body unread");
+            }
+            remaining -= read;
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int)Math.min(in.available(), remaining);
+        }
+    }
+
+    static class ChunkedInputStream extends BodyInputStream {
+        private long chunkRemaining = 0;
+        private boolean done = false;
+
+        ChunkedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        boolean isComplete() {
+            return done;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(done) {
+                return -1;
+            }
+            if(chunkRemaining == 0) {
+                chunkRemaining = HttpMessages.parseChunkSize(HttpMessages.readLine(in));
+                if(chunkRemaining == 0) {
+                    //skip any trailers
+                    while(HttpMessages.readLine(in).length() > 0) {}
+                    done = true;
+                    return -1;
+                }
+            }
+            int read = in.read(b, off, (int)Math.min(len, chunkRemaining));
+            if(read == -1) {
+                throw new EOFException("connection closed in the middle of a chunk");
+            }
+            chunkRemaining -= read;
+            if(chunkRemaining == 0) {
+                HttpMessages.readLine(in);
+            }
+            return read;
+        }
+    }
+
+    static class UntilCloseInputStream extends BodyInputStream {
+        private boolean done = false;
+
+        UntilCloseInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        boolean isComplete() {
+            return done;
+        }
+
+        @Override
+        boolean isReusable() {
+            return false;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(done) {
+                return -1;
+            }
+            int read = in.read(b, off, len);
+            if(read == -1) {
+                done = true;
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,375 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.CookieHandler;
+import java.net.ProtocolException;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.scribe.model.OAuthRequest;
+import org.scribe.model.Verb;
+
+/**
+ * Formatting and parsing of HTTP/1.1 messages, shared by the transports in this package
+ */
+final class HttpMessages {
+
+    static final String LATIN1 = "ISO-8859-1";
+    static final long CHUNKED = -1;
+    static final long UNTIL_CLOSE = -2;
+    private static final String CRLF = "\r\n";
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final String DEFAULT_CONTENT_TYPE = "application/x-www-form-urlencoded";
+
+    private HttpMessages() {}
+
+    /**
+     * The status line and headers of a response
+     */
+    static class ResponseHead {
+        final int code;
+        final boolean http10;
+        final Map<String, List<String>> headers;
+
+        ResponseHead(int code, boolean http10, Map<String, List<String>> headers) {
+            this.code = code;
+            this.http10 = http10;
+            this.headers = headers;
+        }
+
+        String getHeader(String name) {
+            for(Map.Entry<String, List<String>> header : headers.entrySet()) {
+                if(name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+                    return header.getValue().get(0);
+                }
+            }
+            return null;
+        }
+
+        boolean isKeepAlive() {
+            String connection = getHeader("Connection");
+            if(connection != null && connection.equalsIgnoreCase("close")) {
+                return false;
+            }
+            return !http10 || (connection != null && connection.equalsIgnoreCase("keep-alive"));
+        }
+    }
+
+    static boolean isSecure(URL url) {
+        return "https".equalsIgnoreCase(url.getProtocol());
+    }
+
+    static int getPort(URL url) {
+        return url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+    }
+
+    /**
+     * @return the proxy that the default ProxySelector picks for the URL, or Proxy.NO_PROXY to connect directly
+     */
+    static Proxy selectProxy(URL url) {
+        ProxySelector selector = ProxySelector.getDefault();
+        if(selector == null) {
+            return Proxy.NO_PROXY;
+        }
+        try {
+            List<Proxy> proxies = selector.select(url.toURI());
+            if(proxies != null && !proxies.isEmpty()) {
+                return proxies.get(0);
+            }
+        }
+        catch(URISyntaxException e) {
+            //fall through and connect directly
+        }
+        return Proxy.NO_PROXY;
+    }
+
+    /**
+     * @return a key that identifies the connections that can carry a request to the given URL
+     */
+    static String getRoute(URL url) {
+        return url.getProtocol().toLowerCase(Locale.US) + "://" + url.getHost().toLowerCase(Locale.US) + ":" + getPort(url);
+    }
+
+    static boolean hasBody(Verb verb) {
+        return verb == Verb.POST || verb == Verb.PUT;
+    }
+
+    /**
+     * @return true if the server ends up in the same state whether it gets a request with this verb once or twice
+     */
+    static boolean isIdempotent(Verb verb) {
+        return verb == Verb.GET || verb == Verb.PUT || verb == Verb.DELETE;
+    }
+
+    /**
+     * @return the encoded body of the request, or null if its verb doesn't carry a body
+     */
+    static byte[] getBody(OAuthRequest request) throws UnsupportedEncodingException {
+        if(!hasBody(request.getVerb())) {
+            return null;
+        }
+        return request.getBodyContents().getBytes(request.getCharset());
+    }
+
+    /**
+     * format the request line and headers of a request, including any cookies that the default CookieHandler has for it
+     * @param request the request
+     * @param url the parsed URL of the request
+     * @param contentLength the length of the body, -1 if the body is sent chunked, or null if there is no body
+     * @return the bytes to write before the body
+     */
+    static byte[] formatRequestHead(OAuthRequest request, URL url, Long contentLength) throws IOException {
+        return formatRequestHead(request, url, contentLength, false);
+    }
+
+    /**
+     * format the request line and headers of a request, including any cookies that the default CookieHandler has for it
+     * @param request the request
+     * @param url the parsed URL of the request
+     * @param contentLength the length of the body, -1 if the body is sent chunked, or null if there is no body
+     * @param absoluteUri true to put the whole url in the request line, as a plain http proxy needs
+     * @return the bytes to write before the body
+     */
+    static byte[] formatRequestHead(OAuthRequest request, URL url, Long contentLength, boolean absoluteUri) throws IOException {
+        StringBuilder head = new StringBuilder(256);
+        String file = url.getFile();
+        head.append(request.getVerb().name()).append(' ');
+        if(absoluteUri) {
+            head.append(url.getProtocol()).append("://").append(url.getHost());
+            if(url.getPort() != -1) {
+                head.append(':').append(url.getPort());
+            }
+        }
+        head.append(file.length() == 0 ? "/" : file).append(" HTTP/1.1").append(CRLF);
+        head.append("Host: ").append(url.getHost());
+        if(url.getPort() != -1) {
+            head.append(':').append(url.getPort());
+        }
+        head.append(CRLF);
+
+        boolean hasContentType = false;
+        for(Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append(CRLF);
+            hasContentType |= header.getKey().equalsIgnoreCase("Content-Type");
+        }
+
+        for(String cookie : getCookies(url, request.getHeaders())) {
+            head.append("Cookie: ").append(cookie).append(CRLF);
+        }
+
+        if(contentLength != null) {
+            if(!hasContentType) {
+                head.append("Content-Type: ").append(DEFAULT_CONTENT_TYPE).append(CRLF);
+            }
+            if(contentLength < 0) {
+                head.append("Transfer-Encoding: chunked").append(CRLF);
+            }
+            else {
+                head.append("Content-Length: ").append(contentLength).append(CRLF);
+            }
+        }
+        head.append(CRLF);
+        return head.toString().getBytes(LATIN1);
+    }
+
+    /**
+     * read a status line and headers
+     * @param in the stream to read from
+     * @return the parsed head
+     * @throws IOException if the stream ends or the head is malformed
+     */
+    static ResponseHead readResponseHead(InputStream in) throws IOException {
+        String statusLine = readLine(in);
+        //skip any interim 100 Continue responses
+        while(statusLine.startsWith("HTTP/1.1 100") || statusLine.startsWith("HTTP/1.0 100")) {
+            while(readLine(in).length() > 0) {}
+            statusLine = readLine(in);
+        }
+        String[] parts = statusLine.split(" ", 3);
+        if(parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+            throw new ProtocolException("malformed status line: " + statusLine);
+        }
+        int code;
+        try {
+            code = Integer.parseInt(parts[1]);
+        }
+        catch(NumberFormatException e) {
+            throw new ProtocolException("malformed status line: " + statusLine);
+        }
+
+        Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+        String line;
+        while((line = readLine(in)).length() > 0) {
+            int colon = line.indexOf(':');
+            if(colon <= 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            List<String> values = headers.get(name);
+            if(values == null) {
+                values = new ArrayList<String>(1);
+                headers.put(name, values);
+            }
+            values.add(value);
+        }
+        return new ResponseHead(code, parts[0].equals("HTTP/1.0"), headers);
+    }
+
+    /**
+     * work out how the body of a response is delimited
+     * @return the length of the body, {@link #CHUNKED} or {@link #UNTIL_CLOSE}
+     */
+    static long getBodyLength(ResponseHead head) throws ProtocolException {
+        if(head.code == 204 || head.code == 304 || head.code < 200) {
+            return 0;
+        }
+        String transferEncoding = head.getHeader("Transfer-Encoding");
+        if(transferEncoding != null && transferEncoding.toLowerCase(Locale.US).contains("chunked")) {
+            return CHUNKED;
+        }
+        String contentLength = head.getHeader("Content-Length");
+        if(contentLength != null) {
+            long length;
+            try {
+                length = Long.parseLong(contentLength);
+            }
+            catch(NumberFormatException e) {
+                throw new ProtocolException("malformed Content-Length: " + contentLength);
+            }
+            if(length < 0) {
+                throw new ProtocolException("malformed Content-Length: " + contentLength);
+            }
+            return length;
+        }
+        return UNTIL_CLOSE;
+    }
+
+    /**
+     * wrap the connection's stream so that reading stops at the end of the response body
+     */
+    static HttpConnection.BodyInputStream frameBody(ResponseHead head, InputStream in) throws ProtocolException {
+        long length = getBodyLength(head);
+        if(length == CHUNKED) {
+            return new HttpConnection.ChunkedInputStream(in);
+        }
+        if(length == UNTIL_CLOSE) {
+            return new HttpConnection.UntilCloseInputStream(in);
+        }
+        if(length == 0) {
+            return new HttpConnection.EmptyInputStream(in);
+        }
+        return new HttpConnection.ContentLengthInputStream(in, length);
+    }
+
+    /**
+     * read a CRLF (or bare LF) terminated line
+     */
+    static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder(64);
+        int c;
+        while((c = in.read()) != '\n') {
+            if(c == -1) {
+                throw new EOFException("connection closed while reading a response line");
+            }
+            if(line.length() >= MAX_LINE_LENGTH) {
+                throw new ProtocolException("response line too long");
+            }
+            line.append((char)c);
+        }
+        int len = line.length();
+        if(len > 0 && line.charAt(len - 1) == '\r') {
+            line.setLength(len - 1);
+        }
+        return line.toString();
+    }
+
+    static long parseChunkSize(String line) throws ProtocolException {
+        int semicolon = line.indexOf(';');
+        String size = (semicolon == -1 ? line : line.substring(0, semicolon)).trim();
+        try {
+            return Long.parseLong(size, 16);
+        }
+        catch(NumberFormatException e) {
+            throw new ProtocolException("malformed chunk size: " + line);
+        }
+    }
+
+    private static List<String> getCookies(URL url, Map<String, String> requestHeaders) throws IOException {
+        List<String> ret = new ArrayList<String>();
+        CookieHandler handler = CookieHandler.getDefault();
+        URI uri = toURI(url);
+        if(handler == null || uri == null) {
+            return ret;
+        }
+        Map<String, List<String>> headers = new HashMap<String, List<String>>();
+        for(Map.Entry<String, String> header : requestHeaders.entrySet()) {
+            List<String> values = new ArrayList<String>(1);
+            values.add(header.getValue());
+            headers.put(header.getKey(), values);
+        }
+        for(Map.Entry<String, List<String>> cookieHeader : handler.get(uri, headers).entrySet()) {
+            if(cookieHeader.getKey().equalsIgnoreCase("Cookie")) {
+                StringBuilder cookies = new StringBuilder();
+                for(String cookie : cookieHeader.getValue()) {
+                    if(cookies.length() > 0) {
+                        cookies.append("; ");
+                    }
+                    cookies.append(cookie);
+                }
+                if(cookies.length() > 0) {
+                    ret.add(cookies.toString());
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * hand any cookies that the response set to the default CookieHandler
+     */
+    static void saveCookies(URL url, Map<String, List<String>> responseHeaders) throws IOException {
+        CookieHandler handler = CookieHandler.getDefault();
+        URI uri = toURI(url);
+        if(handler != null && uri != null) {
+            handler.put(uri, responseHeaders);
+        }
+    }
+
+    private static URI toURI(URL url) {
+        try {
+            return url.toURI();
+        }
+        catch(URISyntaxException e) {
+            return null;
+        }
+    }
+}
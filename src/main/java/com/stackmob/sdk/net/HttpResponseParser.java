@@ -0,0 +1,238 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Parses a single HTTP/1.1 response incrementally, as its bytes arrive from a non-blocking channel. used by {@link NioHttpTransport}
+ */
+class HttpResponseParser {
+
+    private static final int MAX_HEAD_LENGTH = 64 * 1024;
+
+    private enum State { HEAD, LENGTH, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILER, UNTIL_CLOSE, DONE }
+
+    private byte[] buf = new byte[4096];
+    private int start = 0;
+    private int end = 0;
+
+    private State state = State.HEAD;
+    private HttpMessages.ResponseHead head;
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private long remaining;
+
+    /**
+     * add bytes read from the channel
+     * @param in a buffer ready to be read from
+     */
+    void feed(ByteBuffer in) {
+        int len = in.remaining();
+        if(buf.length - end < len) {
+            //move the unparsed bytes to the front, and grow if that's not enough
+            int unparsed = end - start;
+            byte[] target = buf.length - unparsed < len ? new byte[Math.max(buf.length * 2, unparsed + len)] : buf;
+            System.arraycopy(buf, start, target, 0, unparsed);
+            buf = target;
+            start = 0;
+            end = unparsed;
+        }
+        in.get(buf, end, len);
+        end += len;
+    }
+
+    /**
+     * parse as much of the bytes fed so far as possible
+     * @return true if the whole response has been parsed
+     * @throws IOException if the response is malformed
+     */
+    boolean parse() throws IOException {
+        while(true) {
+            switch(state) {
+                case HEAD: {
+                    int headEnd = indexOfBlankLine();
+                    if(headEnd == -1) {
+                        if(end - start > MAX_HEAD_LENGTH) {
+                            throw new ProtocolException("response head too long");
+                        }
+                        return false;
+                    }
+                    boolean interim = startsWith("HTTP/1.1 100") || startsWith("HTTP/1.0 100");
+                    if(!interim) {
+                        head = HttpMessages.readResponseHead(new ByteArrayInputStream(buf, start, headEnd - start));
+                    }
+                    start = headEnd;
+                    if(interim) {
+                        break;
+                    }
+                    long length = HttpMessages.getBodyLength(head);
+                    if(length == HttpMessages.CHUNKED) {
+                        state = State.CHUNK_SIZE;
+                    }
+                    else if(length == HttpMessages.UNTIL_CLOSE) {
+                        state = State.UNTIL_CLOSE;
+                    }
+                    else if(length == 0) {
+                        state = State.DONE;
+                    }
+                    else {
+                        remaining = length;
+                        state = State.LENGTH;
+                    }
+                    break;
+                }
+                case LENGTH:
+                    copyBody();
+                    if(remaining > 0) {
+                        return false;
+                    }
+                    state = State.DONE;
+                    break;
+                case CHUNK_SIZE: {
+                    String line = readLine();
+                    if(line == null) {
+                        return false;
+                    }
+                    remaining = HttpMessages.parseChunkSize(line);
+                    state = remaining == 0 ? State.TRAILER : State.CHUNK_DATA;
+                    break;
+                }
+                case CHUNK_DATA:
+                    copyBody();
+                    if(remaining > 0) {
+                        return false;
+                    }
+                    state = State.CHUNK_END;
+                    break;
+                case CHUNK_END:
+                    if(readLine() == null) {
+                        return false;
+                    }
+                    state = State.CHUNK_SIZE;
+                    break;
+                case TRAILER: {
+                    String line = readLine();
+                    if(line == null) {
+                        return false;
+                    }
+                    if(line.length() == 0) {
+                        state = State.DONE;
+                    }
+                    break;
+                }
+                case UNTIL_CLOSE:
+                    body.write(buf, start, end - start);
+                    start = end;
+                    return false;
+                case DONE:
+                    return true;
+            }
+        }
+    }
+
+    /**
+     * tell the parser that the server closed the connection
+     * @throws EOFException if the response wasn't complete
+     */
+    void endOfStream() throws EOFException {
+        if(state == State.UNTIL_CLOSE) {
+            state = State.DONE;
+        }
+        else if(state != State.DONE) {
+            throw new EOFException("connection closed before the response was complete");
+        }
+    }
+
+    /**
+     * @return true if no bytes of the response have arrived yet
+     */
+    boolean isEmpty() {
+        return state == State.HEAD && end == 0;
+    }
+
+    /**
+     * @return true if the connection can carry another request after this response
+     */
+    boolean isReusable() {
+        return state == State.DONE && start == end && head != null && head.isKeepAlive() && !isUntilClose();
+    }
+
+    private boolean isUntilClose() {
+        try {
+            return HttpMessages.getBodyLength(head) == HttpMessages.UNTIL_CLOSE;
+        }
+        catch(ProtocolException e) {
+            return true;
+        }
+    }
+
+    HttpMessages.ResponseHead getHead() {
+        return head;
+    }
+
+    byte[] getBody() {
+        return body.toByteArray();
+    }
+
+    private void copyBody() {
+        int n = (int)Math.min(end - start, remaining);
+        body.write(buf, start, n);
+        start += n;
+        remaining -= n;
+    }
+
+    /**
+     * @return the index just past the CRLFCRLF that ends the head, or -1 if it hasn't arrived
+     */
+    private int indexOfBlankLine() {
+        for(int i = start; i + 3 < end; i++) {
+            if(buf[i] == '\r' && buf[i + 1] == '\n' && buf[i + 2] == '\r' && buf[i + 3] == '\n') {
+                return i + 4;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * read a line if a whole one has arrived
+     * @return the line without its terminator, or null if there isn't a whole line yet
+     */
+    private String readLine() throws IOException {
+        for(int i = start; i < end; i++) {
+            if(buf[i] == '\n') {
+                int lineEnd = i > start && buf[i - 1] == '\r' ? i - 1 : i;
+                String line = new String(buf, start, lineEnd - start, HttpMessages.LATIN1);
+                start = i + 1;
+                return line;
+            }
+        }
+        if(end - start > MAX_HEAD_LENGTH) {
+            throw new ProtocolException("response line too long");
+        }
+        return null;
+    }
+
+    private boolean startsWith(String prefix) throws UnsupportedEncodingException {
+        return end - start >= prefix.length() && new String(buf, start, prefix.length(), HttpMessages.LATIN1).equals(prefix);
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.net;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies, in microseconds, with buckets that grow with the latency so that every bucket is within
+ * about 6% of the latencies in it. up to 16us each microsecond has a bucket, and after that each power of two is split
+ * into 16 buckets, up to about 70 minutes. recording is a single add to a bucket in the recording thread's stripe, so
+ * threads rarely contend
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    //2^32us is a little over 71 minutes
+    private static final int MAX_EXPONENT = 32;
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS * StripedCounter.STRIPES);
+
+    void record(long micros) {
+        counts.incrementAndGet(StripedCounter.index() * BUCKETS + bucket(micros));
+    }
+
+    /**
+     * @return the count in each bucket, summed over the stripes
+     */
+    long[] snapshot() {
+        long[] snapshot = new long[BUCKETS];
+        for(int stripe = 0; stripe < StripedCounter.STRIPES; stripe++) {
+            int offset = stripe * BUCKETS;
+            for(int i = 0; i < BUCKETS; i++) {
+                snapshot[i] += counts.get(offset + i);
+            }
+        }
+        return snapshot;
+    }
+
+    static int bucket(long micros) {
+        if(micros < SUB_BUCKETS) {
+            return (int)Math.max(0, micros);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if(exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int)(micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the largest latency, in microseconds, that falls in the given bucket
+     */
+    static long highestIn(int bucket) {
+        if(bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = bucket % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return ((long)(SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS)) + width - 1;
+    }
+}
@@ -0,0 +1,655 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.scribe.model.OAuthRequest;
+
+/**
+ * A {@link StackMobHttpTransport} that never blocks the calling thread. Requests are handed to a single event loop thread,
+ * which multiplexes every connection with a {@link Selector} and calls each callback when its response has arrived. This
+ * lets a handful of threads keep thousands of requests in flight. for example:
+ * <code>
+ *     stackmob.setTransport(new NioHttpTransport().setMaxConnectionsPerHost(1000));
+ *     for(String id : ids) {
+ *         stackmob.delete("game", id, callback);
+ *     }
+ * </code>
+ *
+ * A few notes about this object:
+ * <ul>
+ *     <li>callbacks run on the event loop thread. they should return quickly, and hand any slow work to another thread</li>
+ *     <li>each connection carries one request at a time. requests beyond the connection limit wait in a queue, without holding a thread</li>
+ *     <li>response bodies are read into memory before the callback is called</li>
+ *     <li>https requests, and requests that the default {@link java.net.ProxySelector} sends through a proxy, are sent
+ *     through a {@link PooledHttpTransport} on the calling thread, with the same timeouts</li>
+ *     <li>a request that fails on a reused connection before any response arrives is sent once more on a new connection,
+ *     unless it's a post that was completely written. the retry policy decides about that one</li>
+ *     <li>the event loop starts with the first request, so configure this object before then</li>
+ * </ul>
+ */
+public class NioHttpTransport implements StackMobHttpTransport {
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 128;
+
+    //how often the event loop checks for timed out connections
+    private static final long TICK_MS = 50L;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private volatile int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+    private volatile long idleTimeoutMs = PooledHttpTransport.DEFAULT_IDLE_TIMEOUT_MS;
+    private volatile long connectTimeoutMs = PooledHttpTransport.DEFAULT_CONNECT_TIMEOUT_MS;
+    private volatile long readTimeoutMs = PooledHttpTransport.DEFAULT_READ_TIMEOUT_MS;
+    private volatile boolean isShutdown = false;
+
+    private final PooledHttpTransport blockingTransport = new PooledHttpTransport();
+    private final ConcurrentLinkedQueue<Exchange> submitted = new ConcurrentLinkedQueue<Exchange>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+    private final Object startLock = new Object();
+    private volatile Selector selector = null;
+
+    private final AtomicLong connectionsOpened = new AtomicLong(0);
+    private final AtomicInteger openConnections = new AtomicInteger(0);
+    private final AtomicInteger idleConnections = new AtomicInteger(0);
+
+    //owned by the event loop thread
+    private final Map<String, Route> routes = new HashMap<String, Route>();
+    private final Set<Connection> connections = new HashSet<Connection>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    /**
+     * A request waiting for, or being carried by, a connection
+     */
+    private static class Exchange {
+        private final URL url;
+        private final String route;
+        private final InetSocketAddress address;
+        private final byte[] message;
+        //whether the request may be sent again after the server received all of it
+        private final boolean idempotent;
+        private final StackMobHttpCallback callback;
+        //null unless the callback wants to know how long the connection and the server took
+        private final StackMobHttpTimingCallback timing;
+        private final long submittedAt;
+        private long sentAt;
+        private boolean responding = false;
+        private boolean retried = false;
+
+        Exchange(URL url, InetSocketAddress address, byte[] message, boolean idempotent, StackMobHttpCallback callback) {
+            this.url = url;
+            this.route = HttpMessages.getRoute(url);
+            this.address = address;
+            this.message = message;
+            this.idempotent = idempotent;
+            this.callback = callback;
+            this.timing = callback instanceof StackMobHttpTimingCallback ? (StackMobHttpTimingCallback)callback : null;
+            this.submittedAt = timing == null ? 0 : System.nanoTime();
+        }
+    }
+
+    /**
+     * The connections to a single host, and the requests waiting for one of them
+     */
+    private static class Route {
+        private final ArrayDeque<Connection> idle = new ArrayDeque<Connection>();
+        private final ArrayDeque<Exchange> waiting = new ArrayDeque<Exchange>();
+        private int open = 0;
+    }
+
+    private static class Connection {
+        private final Route route;
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private boolean connected = false;
+        private boolean reused = false;
+        private boolean closed = false;
+        private Exchange exchange;
+        private ByteBuffer out;
+        private HttpResponseParser parser;
+        //when the current connect, write or read times out, or when the idle connection expires
+        private long deadline;
+
+        Connection(Route route, SocketChannel channel) {
+            this.route = route;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * @param maxConnectionsPerHost the maximum number of connections, busy or idle, to keep to each host
+     * @return this transport, so calls can be chained
+     */
+    public NioHttpTransport setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        if(maxConnectionsPerHost < 1) {
+            throw new IllegalArgumentException("maxConnectionsPerHost must be at least 1");
+        }
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        blockingTransport.setMaxConnectionsPerHost(maxConnectionsPerHost);
+        return this;
+    }
+
+    /**
+     * @param timeout how long a connection may sit idle before it's closed
+     * @param unit the unit of timeout
+     * @return this transport, so calls can be chained
+     */
+    public NioHttpTransport setIdleTimeout(long timeout, TimeUnit unit) {
+        this.idleTimeoutMs = unit.toMillis(timeout);
+        blockingTransport.setIdleTimeout(timeout, unit);
+        return this;
+    }
+
+    /**
+     * @param timeout how long to wait for a connection to be established. 0 waits forever
+     * @param unit the unit of timeout
+     * @return this transport, so calls can be chained
+     */
+    public NioHttpTransport setConnectTimeout(long timeout, TimeUnit unit) {
+        this.connectTimeoutMs = unit.toMillis(timeout);
+        blockingTransport.setConnectTimeout(timeout, unit);
+        return this;
+    }
+
+    /**
+     * @param timeout how long a request may go without the server accepting or sending any bytes. 0 waits forever
+     * @param unit the unit of timeout
+     * @return this transport, so calls can be chained
+     */
+    public NioHttpTransport setReadTimeout(long timeout, TimeUnit unit) {
+        this.readTimeoutMs = unit.toMillis(timeout);
+        blockingTransport.setReadTimeout(timeout, unit);
+        return this;
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    /**
+     * @return the number of plain http connections this transport has opened since it was created
+     */
+    public long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    /**
+     * @return the number of plain http connections that are currently open, busy or idle
+     */
+    public int getOpenConnectionCount() {
+        return openConnections.get();
+    }
+
+    /**
+     * @return the number of plain http connections that are open and waiting for a request
+     */
+    public int getIdleConnectionCount() {
+        return idleConnections.get();
+    }
+
+    @Override
+    public void send(OAuthRequest request, StackMobHttpCallback callback) {
+        if(isShutdown) {
+            callback.failure(new IOException("transport has been shut down"));
+            return;
+        }
+        Exchange exchange;
+        try {
+            URL url = new URL(request.getUrl());
+            if(HttpMessages.isSecure(url) || HttpMessages.selectProxy(url).type() != Proxy.Type.DIRECT) {
+                blockingTransport.send(request, callback);
+                return;
+            }
+            byte[] body = HttpMessages.getBody(request);
+            byte[] head = HttpMessages.formatRequestHead(request, url, body == null ? null : Long.valueOf(body.length));
+            byte[] message = head;
+            if(body != null) {
+                message = new byte[head.length + body.length];
+                System.arraycopy(head, 0, message, 0, head.length);
+                System.arraycopy(body, 0, message, head.length, body.length);
+            }
+            //resolve here rather than blocking the event loop on DNS
+            InetSocketAddress address = new InetSocketAddress(url.getHost(), HttpMessages.getPort(url));
+            if(address.isUnresolved()) {
+                throw new UnknownHostException(url.getHost());
+            }
+            exchange = new Exchange(url, address, message, HttpMessages.isIdempotent(request.getVerb()), callback);
+            start();
+        }
+        catch(IOException e) {
+            callback.failure(e);
+            return;
+        }
+        submitted.add(exchange);
+        if(isShutdown) {
+            //the event loop may have exited before it could see this request
+            failSubmitted();
+        }
+        else if(wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        isShutdown = true;
+        blockingTransport.shutdown();
+        Selector current = selector;
+        if(current != null) {
+            current.wakeup();
+        }
+    }
+
+    private void start() throws IOException {
+        if(selector != null) {
+            return;
+        }
+        synchronized(startLock) {
+            if(selector == null) {
+                Selector newSelector = Selector.open();
+                Thread loop = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        runEventLoop();
+                    }
+                }, "StackMob NIO event loop");
+                loop.setDaemon(true);
+                selector = newSelector;
+                loop.start();
+            }
+        }
+    }
+
+    private void runEventLoop() {
+        long lastTimeoutCheck = System.currentTimeMillis();
+        try {
+            while(!isShutdown) {
+                selector.select(TICK_MS);
+                wakeupPending.set(false);
+
+                Exchange exchange;
+                while((exchange = submitted.poll()) != null) {
+                    dispatch(exchange);
+                }
+
+                Set<SelectionKey> selected = selector.selectedKeys();
+                for(SelectionKey key : selected) {
+                    handle((Connection)key.attachment(), key);
+                }
+                selected.clear();
+
+                long now = System.currentTimeMillis();
+                if(now - lastTimeoutCheck >= TICK_MS) {
+                    checkTimeouts(now);
+                    lastTimeoutCheck = now;
+                }
+            }
+        }
+        catch(IOException e) {
+            //the selector itself failed. fall through and fail everything
+        }
+        finally {
+            isShutdown = true;
+            IOException shutDown = new IOException("transport has been shut down");
+            for(Connection conn : new ArrayList<Connection>(connections)) {
+                Exchange exchange = conn.exchange;
+                close(conn);
+                if(exchange != null) {
+                    failure(exchange, shutDown);
+                }
+            }
+            for(Route route : routes.values()) {
+                Exchange exchange;
+                while((exchange = route.waiting.poll()) != null) {
+                    failure(exchange, shutDown);
+                }
+            }
+            failSubmitted();
+            try {
+                selector.close();
+            }
+            catch(IOException e) {
+                //do nothing - we're done with it
+            }
+        }
+    }
+
+    private void failSubmitted() {
+        Exchange exchange;
+        while((exchange = submitted.poll()) != null) {
+            failure(exchange, new IOException("transport has been shut down"));
+        }
+    }
+
+    /**
+     * give a request to an idle connection, a new connection, or the route's queue
+     */
+    private void dispatch(Exchange exchange) {
+        Route route = routes.get(exchange.route);
+        if(route == null) {
+            route = new Route();
+            routes.put(exchange.route, route);
+        }
+        route.waiting.add(exchange);
+        serviceWaiting(route);
+    }
+
+    /**
+     * hand queued requests to any connections that are idle or can be opened, in order
+     */
+    private void serviceWaiting(Route route) {
+        while(!route.waiting.isEmpty()) {
+            Exchange next = route.waiting.peek();
+            //a request that failed on a reused connection is retried on a new one
+            Connection conn = next.retried ? null : pollIdle(route);
+            if(conn != null) {
+                route.waiting.poll();
+                begin(conn, next);
+                continue;
+            }
+            if(route.open >= maxConnectionsPerHost && next.retried) {
+                //make room by closing an idle connection, if there is one
+                Connection spare = pollIdle(route);
+                if(spare != null) {
+                    discard(spare);
+                }
+            }
+            if(route.open < maxConnectionsPerHost) {
+                route.waiting.poll();
+                connect(route, next);
+            }
+            else {
+                return;
+            }
+        }
+    }
+
+    private Connection pollIdle(Route route) {
+        Connection conn = route.idle.pollFirst();
+        if(conn != null) {
+            idleConnections.decrementAndGet();
+        }
+        return conn;
+    }
+
+    private void connect(Route route, Exchange exchange) {
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection conn = new Connection(route, channel);
+            conn.exchange = exchange;
+            conn.out = ByteBuffer.wrap(exchange.message);
+            conn.parser = new HttpResponseParser();
+            conn.connected = channel.connect(exchange.address);
+            conn.key = channel.register(selector, conn.connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, conn);
+            conn.deadline = deadline(conn.connected ? readTimeoutMs : connectTimeoutMs);
+            route.open++;
+            connections.add(conn);
+            openConnections.incrementAndGet();
+            connectionsOpened.incrementAndGet();
+            if(conn.connected) {
+                connected(exchange);
+            }
+        }
+        catch(IOException e) {
+            if(channel != null) {
+                try {
+                    channel.close();
+                }
+                catch(IOException ignored) {
+                    //do nothing - it never connected
+                }
+            }
+            failure(exchange, e);
+        }
+    }
+
+    private void begin(Connection conn, Exchange exchange) {
+        conn.exchange = exchange;
+        conn.out = ByteBuffer.wrap(exchange.message);
+        conn.parser = new HttpResponseParser();
+        conn.reused = true;
+        conn.deadline = deadline(readTimeoutMs);
+        conn.key.interestOps(SelectionKey.OP_WRITE);
+        connected(exchange);
+    }
+
+    private void handle(Connection conn, SelectionKey key) {
+        if(conn.closed) {
+            return;
+        }
+        try {
+            if(!key.isValid()) {
+                throw new IOException("connection closed");
+            }
+            if(key.isConnectable()) {
+                if(conn.channel.finishConnect()) {
+                    conn.connected = true;
+                    conn.deadline = deadline(readTimeoutMs);
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    connected(conn.exchange);
+                }
+            }
+            else if(key.isWritable()) {
+                conn.channel.write(conn.out);
+                conn.deadline = deadline(readTimeoutMs);
+                if(!conn.out.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    if(conn.exchange.timing != null) {
+                        conn.exchange.sentAt = System.nanoTime();
+                    }
+                }
+            }
+            else if(key.isReadable()) {
+                read(conn);
+            }
+        }
+        catch(IOException e) {
+            failed(conn, e);
+        }
+    }
+
+    private void read(Connection conn) throws IOException {
+        readBuffer.clear();
+        int read = conn.channel.read(readBuffer);
+        if(conn.exchange == null) {
+            //an idle connection should never be readable unless the server closed it
+            close(conn);
+            return;
+        }
+        if(read == -1) {
+            conn.parser.endOfStream();
+            completed(conn);
+            return;
+        }
+        if(read > 0 && !conn.exchange.responding) {
+            conn.exchange.responding = true;
+            firstByte(conn.exchange);
+        }
+        readBuffer.flip();
+        conn.parser.feed(readBuffer);
+        conn.deadline = deadline(readTimeoutMs);
+        if(conn.parser.parse()) {
+            completed(conn);
+        }
+    }
+
+    private void completed(Connection conn) {
+        Exchange exchange = conn.exchange;
+        HttpResponseParser parser = conn.parser;
+        conn.exchange = null;
+        conn.parser = null;
+        conn.out = null;
+        if(parser.isReusable() && !isShutdown) {
+            conn.deadline = deadline(idleTimeoutMs);
+            conn.key.interestOps(SelectionKey.OP_READ);
+            conn.route.idle.addFirst(conn);
+            idleConnections.incrementAndGet();
+            serviceWaiting(conn.route);
+        }
+        else {
+            close(conn);
+        }
+
+        HttpMessages.ResponseHead head = parser.getHead();
+        try {
+            HttpMessages.saveCookies(exchange.url, head.headers);
+        }
+        catch(IOException e) {
+            //the response still arrived. the cookie handler just couldn't store its cookies
+        }
+        StackMobHttpResponse response = new StackMobHttpResponse(head.code, head.headers, new ByteArrayInputStream(parser.getBody()));
+        try {
+            exchange.callback.response(response);
+        }
+        catch(RuntimeException e) {
+            uncaught(e);
+        }
+        finally {
+            response.close();
+        }
+    }
+
+    private void failed(Connection conn, IOException e) {
+        Exchange exchange = conn.exchange;
+        if(exchange != null && conn.reused && conn.parser.isEmpty() && !exchange.retried && !(e instanceof SocketTimeoutException)
+                && (exchange.idempotent || conn.out.hasRemaining())) {
+            //most likely the server closed the connection while it sat idle. put the request back at the head of the queue,
+            //and closing the connection will send it on a new one. a post that was written whole isn't, since the server may
+            //have acted on it. the retry policy decides about that one
+            exchange.retried = true;
+            conn.route.waiting.addFirst(exchange);
+            close(conn);
+        }
+        else {
+            close(conn);
+            if(exchange != null) {
+                failure(exchange, e);
+            }
+        }
+    }
+
+    /**
+     * close a connection and let a queued request have its place
+     */
+    private void close(Connection conn) {
+        discard(conn);
+        if(!isShutdown) {
+            serviceWaiting(conn.route);
+        }
+    }
+
+    private void discard(Connection conn) {
+        if(conn.closed) {
+            return;
+        }
+        conn.closed = true;
+        if(conn.route.idle.remove(conn)) {
+            idleConnections.decrementAndGet();
+        }
+        conn.route.open--;
+        connections.remove(conn);
+        openConnections.decrementAndGet();
+        conn.key.cancel();
+        try {
+            conn.channel.close();
+        }
+        catch(IOException e) {
+            //do nothing - we're discarding the connection
+        }
+    }
+
+    private void checkTimeouts(long now) {
+        for(Connection conn : new ArrayList<Connection>(connections)) {
+            if(!conn.closed && conn.deadline < now) {
+                if(conn.exchange == null) {
+                    close(conn);
+                }
+                else {
+                    failed(conn, new SocketTimeoutException(conn.connected ? "read timed out" : "connect timed out"));
+                }
+            }
+        }
+    }
+
+    private long deadline(long timeoutMs) {
+        return timeoutMs == 0 ? Long.MAX_VALUE : System.currentTimeMillis() + timeoutMs;
+    }
+
+    private void connected(Exchange exchange) {
+        if(exchange.timing != null) {
+            try {
+                exchange.timing.connected(exchange.submittedAt, System.nanoTime());
+            }
+            catch(RuntimeException thrown) {
+                uncaught(thrown);
+            }
+        }
+    }
+
+    private void firstByte(Exchange exchange) {
+        if(exchange.timing != null) {
+            try {
+                exchange.timing.firstByte(exchange.sentAt, System.nanoTime());
+            }
+            catch(RuntimeException thrown) {
+                uncaught(thrown);
+            }
+        }
+    }
+
+    private void failure(Exchange exchange, IOException e) {
+        try {
+            exchange.callback.failure(e);
+        }
+        catch(RuntimeException thrown) {
+            uncaught(thrown);
+        }
+    }
+
+    /**
+     * an exception thrown by a callback can't propagate to the caller that sent the request, so hand it to the event loop
+     * thread's uncaught exception handler and carry on
+     */
+    private void uncaught(RuntimeException e) {
+        Thread current = Thread.currentThread();
+        current.getUncaughtExceptionHandler().uncaughtException(current, e);
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.net;
+
+/**
+ * Percent encodes strings as RFC 3986 specifies, which is also the encoding OAuth signatures need (RFC 5849 3.6): every
+ * character but the unreserved ones (letters, digits and -._~) is written as the %XX escapes of its UTF-8 bytes, with
+ * upper case hex digits.
+ *
+ * Unlike URLEncoder, the encoder appends straight to a StringBuilder that the caller owns, without encoding to an
+ * intermediate byte array or String, and doesn't need its output fixed up afterward. strings that need no encoding, which
+ * most field names and values do, are appended or returned as they are. the output is the same whether it was
+ * encoded once or decoded and encoded again, so a query string built with it can be used as is in a signature base string
+ */
+public final class PercentEncoder {
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    //characters that may appear in a path as they are (RFC 3986 3.3), besides the unreserved ones. % is included so that
+    //a path that's already escaped isn't escaped again
+    private static final String PATH_CHARACTERS = "/:@!$&'()*+,;=%";
+    //characters that may appear in a query as they are (RFC 3986 3.4)
+    private static final String QUERY_CHARACTERS = PATH_CHARACTERS + "?";
+    //the replacement for a lone surrogate, which has no UTF-8 encoding. String.getBytes and URLEncoder use ? too
+    private static final char REPLACEMENT = '?';
+
+    private PercentEncoder() {}
+
+    /**
+     * @return true for the characters that are never encoded: letters, digits and -._~
+     */
+    public static boolean isUnreserved(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '.' || c == '_' || c == '~';
+    }
+
+    /**
+     * @return true if the string has only unreserved characters, so that encoding it would leave it as it is
+     */
+    public static boolean isUnreserved(CharSequence s) {
+        for(int i = 0; i < s.length(); i++) {
+            if(!isUnreserved(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param s the string to encode
+     * @return the encoded string, which is s itself if it has nothing to encode
+     */
+    public static String encode(String s) {
+        int safe = countUnreserved(s, 0, s.length());
+        if(safe == s.length()) {
+            return s;
+        }
+        //escapes take 3 characters each, and most strings have only a few
+        StringBuilder out = new StringBuilder(s.length() + 16);
+        out.append(s, 0, safe);
+        return encode(s, safe, s.length(), out, null).toString();
+    }
+
+    /**
+     * append the encoding of a string to a StringBuilder
+     * @param s the string to encode
+     * @param out where to append it
+     * @return out, so calls can be chained
+     */
+    public static StringBuilder encode(CharSequence s, StringBuilder out) {
+        return encode(s, 0, s.length(), out, null);
+    }
+
+    /**
+     * append the encoding of part of a string to a StringBuilder
+     * @param s the string to encode part of
+     * @param start the index of the first character to encode
+     * @param end the index after the last character to encode
+     * @param out where to append it
+     * @return out, so calls can be chained
+     */
+    public static StringBuilder encode(CharSequence s, int start, int end, StringBuilder out) {
+        return encode(s, start, end, out, null);
+    }
+
+    /**
+     * append a path to a StringBuilder, encoding only the characters that can't appear in a path. slashes, escapes that
+     * are already there and the other characters a path may hold are kept as they are
+     * @param path the path, such as /game/1234
+     * @param out where to append it
+     * @return out, so calls can be chained
+     */
+    public static StringBuilder encodePath(CharSequence path, StringBuilder out) {
+        return encode(path, 0, path.length(), out, PATH_CHARACTERS);
+    }
+
+    /**
+     * append a query that's already put together, such as a=1&b=2, to a StringBuilder, encoding only the characters that
+     * can't appear in a query. the separators and escapes that are already there are kept as they are
+     * @param query the query, without the leading ?
+     * @param out where to append it
+     * @return out, so calls can be chained
+     */
+    public static StringBuilder encodeQuery(CharSequence query, StringBuilder out) {
+        return encode(query, 0, query.length(), out, QUERY_CHARACTERS);
+    }
+
+    private static int countUnreserved(CharSequence s, int from, int end) {
+        int i = from;
+        while(i < end && isUnreserved(s.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static StringBuilder encode(CharSequence s, int start, int end, StringBuilder out, String alsoSafe) {
+        int length = end;
+        int i = start;
+        while(i < length) {
+            //copy runs of safe characters at once
+            int safeEnd = countUnreserved(s, i, length);
+            if(safeEnd > i) {
+                out.append(s, i, safeEnd);
+                i = safeEnd;
+                if(i == length) {
+                    break;
+                }
+            }
+            char c = s.charAt(i++);
+            if(alsoSafe != null && alsoSafe.indexOf(c) != -1) {
+                out.append(c);
+            }
+            else if(c < 0x80) {
+                appendByte(out, c);
+            }
+            else if(c < 0x800) {
+                appendByte(out, 0xc0 | (c >> 6));
+                appendByte(out, 0x80 | (c & 0x3f));
+            }
+            else if(Character.isHighSurrogate(c) && i < length && Character.isLowSurrogate(s.charAt(i))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(i++));
+                appendByte(out, 0xf0 | (codePoint >> 18));
+                appendByte(out, 0x80 | ((codePoint >> 12) & 0x3f));
+                appendByte(out, 0x80 | ((codePoint >> 6) & 0x3f));
+                appendByte(out, 0x80 | (codePoint & 0x3f));
+            }
+            else if(c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                appendByte(out, REPLACEMENT);
+            }
+            else {
+                appendByte(out, 0xe0 | (c >> 12));
+                appendByte(out, 0x80 | ((c >> 6) & 0x3f));
+                appendByte(out, 0x80 | (c & 0x3f));
+            }
+        }
+        return out;
+    }
+
+    private static void appendByte(StringBuilder out, int b) {
+        out.append('%').append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+    }
+}
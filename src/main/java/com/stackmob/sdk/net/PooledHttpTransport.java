@@ -0,0 +1,403 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.scribe.model.OAuthRequest;
+
+/**
+ * The default {@link StackMobHttpTransport}. Sends each request on the calling thread over a persistent HTTP/1.1
+ * connection, keeping a pool of connections per host (that is, per cluster that urlFormat points at).
+ *
+ * A few notes about this object:
+ * <ul>
+ *     <li>configure it before sending the first request. pool sizes apply to hosts as they are first contacted</li>
+ *     <li>when every connection to a host is busy, a request waits up to the connect timeout for one to free up</li>
+ *     <li>idle connections are evicted lazily, whenever a connection is checked in or out, or when you call {@link #evictIdleConnections()}</li>
+ *     <li>a request that fails on a reused connection before any response arrives is sent once more on a new connection,
+ *     since the server may have closed the idle connection. that only happens for gets, puts and deletes, or for a post
+ *     that failed before it was completely written. any other failure is left to the {@link StackMobRetryPolicy}, since
+ *     the server may already have acted on the request. to make that rarer, a pooled connection is checked for a close
+ *     from the server before a post is sent on it</li>
+ * </ul>
+ */
+public class PooledHttpTransport implements StackMobHttpTransport {
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 20;
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 30000L;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 10000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 30000;
+
+    //how much of an abandoned response body we'll read to save its connection
+    private static final int MAX_DRAIN_BYTES = 8192;
+
+    private volatile int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+    private volatile long idleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+    private volatile int connectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+    private volatile int readTimeoutMs = DEFAULT_READ_TIMEOUT_MS;
+    private volatile boolean isShutdown = false;
+
+    private final ConcurrentMap<String, HostPool> pools = new ConcurrentHashMap<String, HostPool>();
+    private final AtomicLong connectionsOpened = new AtomicLong(0);
+
+    /**
+     * The connections to a single host. idle connections are kept most recently used first
+     */
+    private static class HostPool {
+        private final Semaphore leases;
+        private final LinkedBlockingDeque<HttpConnection> idle = new LinkedBlockingDeque<HttpConnection>();
+
+        HostPool(int maxConnections) {
+            leases = new Semaphore(maxConnections, true);
+        }
+    }
+
+    /**
+     * @param maxConnectionsPerHost the maximum number of connections, busy or idle, to keep to each host
+     * @return this transport, so calls can be chained
+     */
+    public PooledHttpTransport setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        if(maxConnectionsPerHost < 1) {
+            throw new IllegalArgumentException("maxConnectionsPerHost must be at least 1");
+        }
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        return this;
+    }
+
+    /**
+     * @param timeout how long a connection may sit idle in the pool before it's closed
+     * @param unit the unit of timeout
+     * @return this transport, so calls can be chained
+     */
+    public PooledHttpTransport setIdleTimeout(long timeout, TimeUnit unit) {
+        this.idleTimeoutMs = unit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * @param timeout how long to wait for a connection to be established, or for a busy pool to free one up. 0 waits forever
+     * @param unit the unit of timeout
+     * @return this transport, so calls can be chained
+     */
+    public PooledHttpTransport setConnectTimeout(long timeout, TimeUnit unit) {
+        this.connectTimeoutMs = (int)unit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * @param timeout how long to wait for each read from the server. 0 waits forever
+     * @param unit the unit of timeout
+     * @return this transport, so calls can be chained
+     */
+    public PooledHttpTransport setReadTimeout(long timeout, TimeUnit unit) {
+        this.readTimeoutMs = (int)unit.toMillis(timeout);
+        return this;
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    /**
+     * @return the number of connections this transport has opened since it was created
+     */
+    public long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    /**
+     * @return the number of open connections that are waiting in the pool for a request
+     */
+    public int getIdleConnectionCount() {
+        int count = 0;
+        for(HostPool pool : pools.values()) {
+            count += pool.idle.size();
+        }
+        return count;
+    }
+
+    /**
+     * close every pooled connection that has been idle for longer than the idle timeout
+     */
+    public void evictIdleConnections() {
+        for(HostPool pool : pools.values()) {
+            evictIdleConnections(pool);
+        }
+    }
+
+    @Override
+    public void send(OAuthRequest request, StackMobHttpCallback callback) {
+        StackMobHttpResponse response;
+        try {
+            response = execute(request, callback instanceof StackMobHttpTimingCallback ? (StackMobHttpTimingCallback)callback : null);
+        }
+        catch(IOException e) {
+            callback.failure(e);
+            return;
+        }
+        try {
+            callback.response(response);
+        }
+        finally {
+            response.close();
+        }
+    }
+
+    /**
+     * send a request and wait for the response head. the caller must close the response
+     * @param request the signed request
+     * @return the response, whose body hasn't been read yet
+     * @throws IOException if the request couldn't be sent or no response arrived
+     */
+    public StackMobHttpResponse execute(OAuthRequest request) throws IOException {
+        return execute(request, null);
+    }
+
+    private StackMobHttpResponse execute(OAuthRequest request, StackMobHttpTimingCallback timing) throws IOException {
+        long start = timing == null ? 0 : System.nanoTime();
+        if(isShutdown) {
+            throw new IOException("transport has been shut down");
+        }
+        URL url = new URL(request.getUrl());
+        HostPool pool = getPool(HttpMessages.getRoute(url));
+        acquireLease(pool, url);
+        boolean leased = true;
+        try {
+            byte[] body = HttpMessages.getBody(request);
+            //a request that can't be sent again is worth a look for a close the server sent while the connection was idle
+            HttpConnection conn = checkout(pool, !HttpMessages.isIdempotent(request.getVerb()));
+            if(conn != null) {
+                boolean written = false;
+                try {
+                    long sent = write(conn, request, url, body, start, timing);
+                    written = true;
+                    StackMobHttpResponse response = read(pool, conn, url, sent, timing);
+                    leased = false;
+                    return response;
+                }
+                catch(SocketTimeoutException e) {
+                    conn.close();
+                    throw e;
+                }
+                catch(IOException e) {
+                    conn.close();
+                    if(written && !HttpMessages.isIdempotent(request.getVerb())) {
+                        //the server may have acted on the whole request before the connection broke
+                        throw e;
+                    }
+                    //most likely the server closed the connection while it sat idle. try again on a new one
+                }
+            }
+            conn = HttpConnection.open(url, connectTimeoutMs, readTimeoutMs);
+            connectionsOpened.incrementAndGet();
+            try {
+                long sent = write(conn, request, url, body, start, timing);
+                StackMobHttpResponse response = read(pool, conn, url, sent, timing);
+                leased = false;
+                return response;
+            }
+            catch(IOException e) {
+                conn.close();
+                throw e;
+            }
+        }
+        finally {
+            if(leased) {
+                pool.leases.release();
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        isShutdown = true;
+        for(HostPool pool : pools.values()) {
+            HttpConnection conn;
+            while((conn = pool.idle.pollFirst()) != null) {
+                conn.close();
+            }
+        }
+    }
+
+    private HostPool getPool(String route) {
+        HostPool pool = pools.get(route);
+        if(pool == null) {
+            HostPool newPool = new HostPool(maxConnectionsPerHost);
+            pool = pools.putIfAbsent(route, newPool);
+            if(pool == null) {
+                pool = newPool;
+            }
+        }
+        return pool;
+    }
+
+    private void acquireLease(HostPool pool, URL url) throws IOException {
+        try {
+            if(connectTimeoutMs == 0) {
+                pool.leases.acquire();
+            }
+            else if(!pool.leases.tryAcquire(connectTimeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new SocketTimeoutException("timed out waiting for a free connection to " + url.getHost());
+            }
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a free connection to " + url.getHost());
+        }
+    }
+
+    private HttpConnection checkout(HostPool pool, boolean checkStale) {
+        evictIdleConnections(pool);
+        HttpConnection conn;
+        while((conn = pool.idle.pollFirst()) != null) {
+            if(conn.isOpen() && !(checkStale && conn.isStale())) {
+                return conn;
+            }
+            conn.close();
+        }
+        return null;
+    }
+
+    private void checkin(HostPool pool, HttpConnection conn) {
+        conn.touch();
+        if(isShutdown) {
+            conn.close();
+        }
+        else {
+            pool.idle.offerFirst(conn);
+            evictIdleConnections(pool);
+        }
+    }
+
+    private void evictIdleConnections(HostPool pool) {
+        long oldestAllowed = System.currentTimeMillis() - idleTimeoutMs;
+        HttpConnection oldest;
+        while((oldest = pool.idle.peekLast()) != null && oldest.getLastUsed() < oldestAllowed) {
+            if(pool.idle.removeLastOccurrence(oldest)) {
+                oldest.close();
+            }
+        }
+    }
+
+    private long write(HttpConnection conn, OAuthRequest request, URL url, byte[] body, long start,
+                       StackMobHttpTimingCallback timing) throws IOException {
+        if(timing != null) {
+            timing.connected(start, System.nanoTime());
+        }
+        OutputStream out = conn.getOutputStream();
+        out.write(HttpMessages.formatRequestHead(request, url, body == null ? null : Long.valueOf(body.length), conn.usesAbsoluteUri()));
+        if(body != null) {
+            out.write(body);
+        }
+        out.flush();
+        return timing == null ? 0 : System.nanoTime();
+    }
+
+    private StackMobHttpResponse read(HostPool pool, HttpConnection conn, URL url, long sent,
+                                      StackMobHttpTimingCallback timing) throws IOException {
+        HttpMessages.ResponseHead head = HttpMessages.readResponseHead(conn.getInputStream());
+        if(timing != null) {
+            //the head is small, so reading it all takes about as long as waiting for its first byte
+            timing.firstByte(sent, System.nanoTime());
+        }
+        HttpMessages.saveCookies(url, head.headers);
+        HttpConnection.BodyInputStream framed = HttpMessages.frameBody(head, conn.getInputStream());
+        return new StackMobHttpResponse(head.code, head.headers, new PooledBodyInputStream(pool, conn, framed, head.isKeepAlive()));
+    }
+
+    /**
+     * A response body that hands its connection back to the pool when it's closed
+     */
+    private class PooledBodyInputStream extends InputStream {
+        private final HostPool pool;
+        private final HttpConnection conn;
+        private final HttpConnection.BodyInputStream body;
+        private final boolean keepAlive;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        PooledBodyInputStream(HostPool pool, HttpConnection conn, HttpConnection.BodyInputStream body, boolean keepAlive) {
+            this.pool = pool;
+            this.conn = conn;
+            this.body = body;
+            this.keepAlive = keepAlive;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return body.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return body.read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return body.available();
+        }
+
+        @Override
+        public void close() {
+            if(!closed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                if(keepAlive && body.isReusable() && drain()) {
+                    checkin(pool, conn);
+                }
+                else {
+                    conn.close();
+                }
+            }
+            finally {
+                pool.leases.release();
+            }
+        }
+
+        private boolean drain() {
+            try {
+                byte[] buf = new byte[1024];
+                int drained = 0;
+                while(!body.isComplete() && drained < MAX_DRAIN_BYTES) {
+                    int read = body.read(buf, 0, buf.length);
+                    if(read == -1) {
+                        break;
+                    }
+                    drained += read;
+                }
+                return body.isComplete();
+            }
+            catch(IOException e) {
+                return false;
+            }
+        }
+    }
+}
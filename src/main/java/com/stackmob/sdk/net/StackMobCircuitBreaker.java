@@ -0,0 +1,357 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.net;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stops sending requests to a host that is failing or responding slowly, so that callers fail fast instead of each
+ * waiting for its own timeout. Every host has a circuit of its own, which is in one of three states:
+ * <ul>
+ *     <li>CLOSED: requests are sent, and the outcomes of the last few are recorded. once enough have been recorded, the
+ *     circuit opens if too many of them failed, or took too long</li>
+ *     <li>OPEN: requests fail at once, without being sent. after a while the circuit becomes half open</li>
+ *     <li>HALF_OPEN: a few trial requests are sent, and any others fail at once. the circuit closes if the trials go well,
+ *     and opens again if they don't</li>
+ * </ul>
+ * A request has failed if it couldn't be sent, got no response, or got a 5xx response. The circuit breaker is off by
+ * default. for example:
+ * <code>
+ *     stackmob.getCircuitBreaker()
+ *         .setFailureRateThreshold(0.5)
+ *         .setSlowCallThreshold(0.8, 2, TimeUnit.SECONDS)
+ *         .setOpenDuration(30, TimeUnit.SECONDS)
+ *         .addListener(new StackMobCircuitBreaker.Listener() {
+ *             public void stateChanged(String host, StackMobCircuitBreaker.State from, StackMobCircuitBreaker.State to) {
+ *                 log.warn("circuit for " + host + " is now " + to);
+ *             }
+ *         })
+ *         .setEnabled(true);
+ * </code>
+ * This object is safe to share between threads
+ */
+public class StackMobCircuitBreaker {
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    /**
+     * Told about every change of state of every circuit
+     */
+    public interface Listener {
+        /**
+         * called on the thread that caused the change, after the change. must not block
+         * @param host the host whose circuit changed, as host:port
+         * @param from the old state
+         * @param to the new state
+         */
+        void stateChanged(String host, State from, State to);
+    }
+
+    public static final int DEFAULT_WINDOW_SIZE = 50;
+    public static final int DEFAULT_MINIMUM_CALLS = 20;
+    public static final double DEFAULT_FAILURE_RATE_THRESHOLD = 0.5;
+    public static final double DEFAULT_SLOW_CALL_RATE_THRESHOLD = 1.0;
+    public static final long DEFAULT_SLOW_CALL_DURATION_MS = 10000;
+    public static final long DEFAULT_OPEN_DURATION_MS = 30000;
+    public static final int DEFAULT_HALF_OPEN_CALLS = 5;
+
+    private static final byte FAILED = 1;
+    private static final byte SLOW = 2;
+
+    private volatile boolean enabled = false;
+    private volatile int windowSize = DEFAULT_WINDOW_SIZE;
+    private volatile int minimumCalls = DEFAULT_MINIMUM_CALLS;
+    private volatile double failureRateThreshold = DEFAULT_FAILURE_RATE_THRESHOLD;
+    private volatile double slowCallRateThreshold = DEFAULT_SLOW_CALL_RATE_THRESHOLD;
+    private volatile long slowCallDurationNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_SLOW_CALL_DURATION_MS);
+    private volatile long openDurationNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_OPEN_DURATION_MS);
+    private volatile int halfOpenCalls = DEFAULT_HALF_OPEN_CALLS;
+
+    private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<String, Circuit>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private final AtomicLong rejected = new AtomicLong(0);
+
+    /**
+     * The state of one host. all of its fields are guarded by the circuit itself
+     */
+    private class Circuit {
+        private State state = State.CLOSED;
+        //the outcomes of the last calls, as FAILED and SLOW bits, in a ring
+        private byte[] window = new byte[windowSize];
+        private int next = 0;
+        private int calls = 0;
+        private int failures = 0;
+        private int slowCalls = 0;
+        private long openedAt = 0;
+        private int trialsStarted = 0;
+
+        /**
+         * @return the old and new states, if this call changed the state, or null
+         */
+        synchronized State[] acquire(boolean[] permitted) {
+            State before = state;
+            if(state == State.OPEN && System.nanoTime() - openedAt >= openDurationNanos) {
+                moveTo(State.HALF_OPEN);
+            }
+            if(state == State.CLOSED) {
+                permitted[0] = true;
+            }
+            else if(state == State.HALF_OPEN && trialsStarted < halfOpenCalls) {
+                trialsStarted++;
+                permitted[0] = true;
+            }
+            return before == state ? null : new State[] {before, state};
+        }
+
+        /**
+         * @return the old and new states, if this call changed the state, or null
+         */
+        synchronized State[] record(byte outcome) {
+            State before = state;
+            if(state == State.OPEN) {
+                //a call that was sent before the circuit opened
+                return null;
+            }
+            if(calls == window.length) {
+                byte evicted = window[next];
+                calls--;
+                failures -= evicted & FAILED;
+                slowCalls -= (evicted & SLOW) >> 1;
+            }
+            window[next] = outcome;
+            next = (next + 1) % window.length;
+            calls++;
+            failures += outcome & FAILED;
+            slowCalls += (outcome & SLOW) >> 1;
+
+            if(state == State.CLOSED && calls >= minimumCalls && isOverThreshold()) {
+                moveTo(State.OPEN);
+            }
+            else if(state == State.HALF_OPEN && calls >= halfOpenCalls) {
+                moveTo(isOverThreshold() ? State.OPEN : State.CLOSED);
+            }
+            return before == state ? null : new State[] {before, state};
+        }
+
+        synchronized State getState() {
+            return state;
+        }
+
+        private boolean isOverThreshold() {
+            return failures >= failureRateThreshold * calls || slowCalls >= slowCallRateThreshold * calls;
+        }
+
+        private void moveTo(State newState) {
+            state = newState;
+            if(newState == State.OPEN) {
+                openedAt = System.nanoTime();
+            }
+            //every state starts counting from scratch, and picks up any change to the window size
+            window = new byte[newState == State.HALF_OPEN ? halfOpenCalls : windowSize];
+            next = 0;
+            calls = 0;
+            failures = 0;
+            slowCalls = 0;
+            trialsStarted = 0;
+        }
+    }
+
+    /**
+     * @param enabled true to fail requests to hosts whose circuit is open, false to send every request (the default)
+     * @return this object, so calls can be chained
+     */
+    public StackMobCircuitBreaker setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        return this;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param windowSize the number of recent calls to a closed circuit whose outcomes are kept
+     * @param minimumCalls the number of calls that must be recorded before a closed circuit may open
+     * @return this object, so calls can be chained
+     */
+    public StackMobCircuitBreaker setWindow(int windowSize, int minimumCalls) {
+        if(windowSize < 1 || minimumCalls < 1 || minimumCalls > windowSize) {
+            throw new IllegalArgumentException("minimumCalls must be between 1 and windowSize");
+        }
+        this.windowSize = windowSize;
+        this.minimumCalls = minimumCalls;
+        return this;
+    }
+
+    /**
+     * @param threshold the fraction of calls that must fail for the circuit to open
+     * @return this object, so calls can be chained
+     */
+    public StackMobCircuitBreaker setFailureRateThreshold(double threshold) {
+        if(threshold <= 0 || threshold > 1) {
+            throw new IllegalArgumentException("threshold must be greater than 0 and at most 1");
+        }
+        this.failureRateThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * @param threshold the fraction of calls that must be slow for the circuit to open
+     * @param duration how long a call must take, until its response arrives, to be slow
+     * @param unit the unit of duration
+     * @return this object, so calls can be chained
+     */
+    public StackMobCircuitBreaker setSlowCallThreshold(double threshold, long duration, TimeUnit unit) {
+        if(threshold <= 0 || threshold > 1) {
+            throw new IllegalArgumentException("threshold must be greater than 0 and at most 1");
+        }
+        this.slowCallRateThreshold = threshold;
+        this.slowCallDurationNanos = unit.toNanos(duration);
+        return this;
+    }
+
+    /**
+     * @param duration how long a circuit stays open before it lets trial requests through
+     * @param unit the unit of duration
+     * @return this object, so calls can be chained
+     */
+    public StackMobCircuitBreaker setOpenDuration(long duration, TimeUnit unit) {
+        this.openDurationNanos = unit.toNanos(duration);
+        return this;
+    }
+
+    /**
+     * @param calls the number of trial requests a half open circuit lets through
+     * @return this object, so calls can be chained
+     */
+    public StackMobCircuitBreaker setHalfOpenCalls(int calls) {
+        if(calls < 1) {
+            throw new IllegalArgumentException("calls must be at least 1");
+        }
+        this.halfOpenCalls = calls;
+        return this;
+    }
+
+    public StackMobCircuitBreaker addListener(Listener listener) {
+        listeners.add(listener);
+        return this;
+    }
+
+    public StackMobCircuitBreaker removeListener(Listener listener) {
+        listeners.remove(listener);
+        return this;
+    }
+
+    /**
+     * @param host the host, as host:port or as it appears in the StackMob object's URL format
+     * @return the state of the host's circuit. hosts that haven't been called are closed
+     */
+    public State getState(String host) {
+        Circuit circuit = circuits.get(host.toLowerCase(Locale.US));
+        return circuit == null ? State.CLOSED : circuit.getState();
+    }
+
+    /**
+     * @return the number of requests that failed without being sent because their host's circuit was open
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @param url the URL of a request
+     * @return the key of the circuit for the host the request is sent to
+     */
+    public static String getHost(String url) {
+        //found by hand rather than by parsing a URI, since it's done for every request
+        int scheme = url.indexOf("://");
+        if(scheme == -1) {
+            return "";
+        }
+        int start = scheme + 3;
+        int end = start;
+        while(end < url.length() && url.charAt(end) != '/' && url.charAt(end) != '?' && url.charAt(end) != '#') {
+            end++;
+        }
+        return url.substring(start, end).toLowerCase(Locale.US);
+    }
+
+    /**
+     * ask to send a request to a host. every call that returns true must be followed by a call to record
+     * @param host the key of the host's circuit
+     * @return true if the request may be sent, false if it must fail at once
+     */
+    public boolean tryAcquire(String host) {
+        if(!enabled) {
+            return true;
+        }
+        boolean[] permitted = new boolean[1];
+        State[] change = getCircuit(host).acquire(permitted);
+        if(change != null) {
+            fire(host, change[0], change[1]);
+        }
+        if(!permitted[0]) {
+            rejected.incrementAndGet();
+        }
+        return permitted[0];
+    }
+
+    /**
+     * record the outcome of a request that tryAcquire let through
+     * @param host the key of the host's circuit
+     * @param succeeded false if the request couldn't be sent, got no response or got a 5xx response
+     * @param elapsedNanos how long the response took to arrive
+     */
+    public void record(String host, boolean succeeded, long elapsedNanos) {
+        if(!enabled) {
+            return;
+        }
+        byte outcome = (byte)((succeeded ? 0 : FAILED) | (elapsedNanos >= slowCallDurationNanos ? SLOW : 0));
+        State[] change = getCircuit(host).record(outcome);
+        if(change != null) {
+            fire(host, change[0], change[1]);
+        }
+    }
+
+    private Circuit getCircuit(String host) {
+        Circuit circuit = circuits.get(host);
+        if(circuit == null) {
+            Circuit newCircuit = new Circuit();
+            circuit = circuits.putIfAbsent(host, newCircuit);
+            if(circuit == null) {
+                circuit = newCircuit;
+            }
+        }
+        return circuit;
+    }
+
+    private void fire(String host, State from, State to) {
+        for(Listener listener : listeners) {
+            listener.stateChanged(host, from, to);
+        }
+    }
+}
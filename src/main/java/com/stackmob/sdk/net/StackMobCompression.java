@@ -0,0 +1,267 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PushbackInputStream;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.scribe.model.OAuthRequest;
+
+/**
+ * Gzip compression of request and response bodies. Every request asks for a gzipped response, which is inflated as the
+ * body is read rather than all at once. Request bodies are only compressed when they're larger than a threshold, and the
+ * threshold is off by default, because not every server accepts gzipped bodies. for example:
+ * <code>
+ *     stackmob.getCompression().setRequestThreshold(4096);
+ *     ...
+ *     long saved = stackmob.getCompression().getBytesSent() - stackmob.getCompression().getWireBytesSent();
+ * </code>
+ *
+ * The byte counts cover request and response bodies only, not headers. Responses are counted as their bodies are read,
+ * so a body that a callback never reads isn't counted. The counts are striped, so that threads don't contend on them.
+ * This object is safe to share between threads
+ */
+public class StackMobCompression {
+
+    public static final int NEVER = -1;
+    public static final String GZIP = "gzip";
+    private static final String UTF8 = "UTF-8";
+    //the gzipped body is carried in the request's String payload, one char per byte, so the transports send it unchanged
+    private static final String LATIN1 = "ISO-8859-1";
+    private static final int BUFFER_SIZE = 8192;
+
+    private volatile int requestThreshold = NEVER;
+    private volatile boolean acceptGzip = true;
+
+    private final StripedCounter bytesSent = new StripedCounter();
+    private final StripedCounter wireBytesSent = new StripedCounter();
+    private final StripedCounter bytesReceived = new StripedCounter();
+    private final StripedCounter wireBytesReceived = new StripedCounter();
+
+    /**
+     * gzip request bodies that are larger than the threshold
+     * @param bytes the size, once encoded as UTF-8, above which bodies are compressed, or {@link #NEVER} (the default)
+     * @return this object, so calls can be chained
+     */
+    public StackMobCompression setRequestThreshold(int bytes) {
+        if(bytes < NEVER) {
+            throw new IllegalArgumentException("the threshold must be NEVER or at least 0");
+        }
+        this.requestThreshold = bytes;
+        return this;
+    }
+
+    public int getRequestThreshold() {
+        return requestThreshold;
+    }
+
+    /**
+     * @param acceptGzip true to ask for gzipped responses (the default), false to ask for them as they are
+     * @return this object, so calls can be chained
+     */
+    public StackMobCompression setAcceptGzip(boolean acceptGzip) {
+        this.acceptGzip = acceptGzip;
+        return this;
+    }
+
+    public boolean getAcceptGzip() {
+        return acceptGzip;
+    }
+
+    /**
+     * @return the size of every request body sent, before compression
+     */
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    /**
+     * @return the size of every request body sent, as sent
+     */
+    public long getWireBytesSent() {
+        return wireBytesSent.sum();
+    }
+
+    /**
+     * @return the size of every response body read, after it was inflated
+     */
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    /**
+     * @return the size of every response body read, as received
+     */
+    public long getWireBytesReceived() {
+        return wireBytesReceived.sum();
+    }
+
+    /**
+     * add the headers that ask for a compressed response. called before the request is signed
+     * @param request the request
+     */
+    public void addAcceptEncoding(OAuthRequest request) {
+        if(acceptGzip) {
+            request.addHeader("Accept-Encoding", GZIP);
+        }
+    }
+
+    /**
+     * set a request's body, compressing it if it's over the threshold
+     * @param request the request
+     * @param payload the body
+     * @return the size of the body as it will be sent
+     * @throws IOException if the body couldn't be compressed
+     */
+    public long setPayload(OAuthRequest request, String payload) throws IOException {
+        long length = utf8Length(payload);
+        int threshold = requestThreshold;
+        if(threshold == NEVER || length <= threshold) {
+            request.setCharset(UTF8);
+            request.addPayload(payload);
+            bytesSent.add(length);
+            wireBytesSent.add(length);
+            return length;
+        }
+        //encode straight into the deflater, without building the uncompressed bytes first
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream((int)Math.min(length / 4 + 64, Integer.MAX_VALUE));
+        Writer writer = new OutputStreamWriter(new GZIPOutputStream(compressed, BUFFER_SIZE), UTF8);
+        writer.write(payload);
+        writer.close();
+        request.setCharset(LATIN1);
+        request.addPayload(compressed.toString(LATIN1));
+        request.addHeader("Content-Encoding", GZIP);
+        bytesSent.add(length);
+        wireBytesSent.add(compressed.size());
+        return compressed.size();
+    }
+
+    /**
+     * copy a request's body, as it will be sent, to another request. used to send the same body again after a redirect
+     * @param from the request that has the body
+     * @param to the request to copy it to
+     */
+    public void copyPayload(OAuthRequest from, OAuthRequest to) {
+        to.setCharset(from.getCharset());
+        to.addPayload(from.getBodyContents());
+        for(Map.Entry<String, String> header : from.getHeaders().entrySet()) {
+            if(header.getKey().equalsIgnoreCase("Content-Encoding")) {
+                to.addHeader(header.getKey(), header.getValue());
+            }
+        }
+    }
+
+    /**
+     * wrap a response so that its body is counted as it's read, and inflated if it was gzipped. the returned response
+     * doesn't have the Content-Encoding and Content-Length headers of a gzipped response, since they describe the body as
+     * it was received
+     * @param response the response
+     * @return the response to hand to callbacks
+     */
+    public StackMobHttpResponse decode(StackMobHttpResponse response) {
+        String encoding = response.getHeader("Content-Encoding");
+        boolean gzipped = encoding != null && (encoding.trim().equalsIgnoreCase(GZIP) || encoding.trim().equalsIgnoreCase("x-gzip"));
+        if(!gzipped) {
+            InputStream body = new CountingInputStream(new CountingInputStream(response.getStream(), wireBytesReceived), bytesReceived);
+            return new StackMobHttpResponse(response.getCode(), response.getHeaderFields(), body);
+        }
+        Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+        for(Map.Entry<String, List<String>> header : response.getHeaderFields().entrySet()) {
+            if(!header.getKey().equalsIgnoreCase("Content-Encoding") && !header.getKey().equalsIgnoreCase("Content-Length")) {
+                headers.put(header.getKey(), header.getValue());
+            }
+        }
+        InputStream body = new CountingInputStream(new GunzipInputStream(new CountingInputStream(response.getStream(), wireBytesReceived)), bytesReceived);
+        return new StackMobHttpResponse(response.getCode(), headers, body);
+    }
+
+    /**
+     * @return the number of bytes that s takes up once encoded as UTF-8
+     */
+    static long utf8Length(String s) {
+        long length = 0;
+        int len = s.length();
+        for(int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if(c < 0x80) {
+                length += 1;
+            }
+            else if(c < 0x800) {
+                length += 2;
+            }
+            else if(Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            }
+            else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Inflates a gzipped body. the gzip header isn't read until the first read, so that an empty body, such as the body of
+     * a 204, reads as empty rather than failing
+     */
+    private static class GunzipInputStream extends InputStream {
+        private final PushbackInputStream raw;
+        private InputStream inflated = null;
+
+        GunzipInputStream(InputStream raw) {
+            this.raw = new PushbackInputStream(raw, 1);
+        }
+
+        private InputStream inflated() throws IOException {
+            if(inflated == null) {
+                int first = raw.read();
+                if(first == -1) {
+                    inflated = raw;
+                }
+                else {
+                    raw.unread(first);
+                    inflated = new GZIPInputStream(raw, BUFFER_SIZE);
+                }
+            }
+            return inflated;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return inflated().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return inflated().read(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            raw.close();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.net;
+
+import java.util.Map;
+
+/**
+ * The metrics of one endpoint, as seen through JMX. see {@link StackMobMetrics}
+ */
+public interface StackMobEndpointMXBean {
+
+    /**
+     * @return the verb and path of the endpoint, such as "GET /game"
+     */
+    String getEndpoint();
+
+    /**
+     * @return the number of requests that have completed
+     */
+    long getRequestCount();
+
+    /**
+     * @return the number of requests whose callback was told they failed
+     */
+    long getFailureCount();
+
+    /**
+     * @return the number of requests that have been sent but haven't completed
+     */
+    long getInFlight();
+
+    /**
+     * @return the number of responses with each status of 400 or more. status 0 counts attempts that got no response
+     */
+    Map<Integer, Long> getErrorsByStatus();
+
+    /**
+     * @return the number of request body bytes sent, as sent, including retries and redirects
+     */
+    long getBytesSent();
+
+    /**
+     * @return the number of response body bytes read, as received
+     */
+    long getBytesReceived();
+
+    /**
+     * @return the number of redirects followed
+     */
+    long getRedirectCount();
+
+    double getMeanMillis();
+
+    double getP50Millis();
+
+    double getP90Millis();
+
+    double getP99Millis();
+
+    double getP999Millis();
+
+    double getMaxMillis();
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.net;
+
+import java.io.IOException;
+
+/**
+ * Receives the outcome of a request sent through a {@link StackMobHttpTransport}
+ */
+public interface StackMobHttpCallback {
+
+    /**
+     * called when the server responds, whatever the status code. the response body may only be read during this call
+     * @param response the response
+     */
+    void response(StackMobHttpResponse response);
+
+    /**
+     * called when the request could not be sent or no response was received
+     * @param e the cause of the failure
+     */
+    void failure(IOException e);
+}
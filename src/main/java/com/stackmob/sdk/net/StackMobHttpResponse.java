@@ -0,0 +1,141 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An HTTP response received by a {@link StackMobHttpTransport}. The body is exposed as a stream, which may only be read
+ * while the {@link StackMobHttpCallback} that received the response is running.
+ */
+public class StackMobHttpResponse {
+
+    private static final String DEFAULT_CHARSET = "UTF-8";
+
+    private final int code;
+    private final Map<String, List<String>> headers;
+    private final InputStream body;
+    private String bodyString = null;
+
+    /**
+     * @param code the status code
+     * @param headers the response headers, with their names as received
+     * @param body the response body. closing it must release whatever resources the transport holds for the response
+     */
+    public StackMobHttpResponse(int code, Map<String, List<String>> headers, InputStream body) {
+        this.code = code;
+        this.headers = Collections.unmodifiableMap(headers);
+        this.body = body;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * @return every header, with all of its values
+     */
+    public Map<String, List<String>> getHeaderFields() {
+        return headers;
+    }
+
+    /**
+     * @return the first value of every header
+     */
+    public Map<String, String> getHeaders() {
+        Map<String, String> ret = new LinkedHashMap<String, String>();
+        for(Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if(!header.getValue().isEmpty()) {
+                ret.put(header.getKey(), header.getValue().get(0));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * get a header, ignoring the case of its name
+     * @param name the name of the header
+     * @return the first value of the header, or null if the response doesn't have it
+     */
+    public String getHeader(String name) {
+        for(Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if(name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+                return header.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the body as a stream. the stream can only be read once
+     */
+    public InputStream getStream() {
+        return body;
+    }
+
+    /**
+     * read the whole body into a String. the first call consumes the stream, and later calls return the same String
+     * @return the body
+     * @throws IOException if the body could not be read
+     */
+    public String getBody() throws IOException {
+        if(bodyString == null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int read;
+            while((read = body.read(buf)) != -1) {
+                out.write(buf, 0, read);
+            }
+            bodyString = out.toString(getCharset());
+        }
+        return bodyString;
+    }
+
+    /**
+     * release the resources that the transport holds for this response
+     */
+    public void close() {
+        try {
+            body.close();
+        }
+        catch(IOException e) {
+            //do nothing - the connection is discarded
+        }
+    }
+
+    /**
+     * @return the charset named in the Content-Type header, or UTF-8 if it doesn't name one
+     */
+    public String getCharset() {
+        String contentType = getHeader("Content-Type");
+        if(contentType != null) {
+            for(String param : contentType.split(";")) {
+                String trimmed = param.trim();
+                if(trimmed.toLowerCase().startsWith("charset=")) {
+                    return trimmed.substring("charset=".length()).replace("\"", "");
+                }
+            }
+        }
+        return DEFAULT_CHARSET;
+    }
+}
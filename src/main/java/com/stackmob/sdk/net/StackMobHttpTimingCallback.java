@@ -0,0 +1,39 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.net;
+
+/**
+ * A {@link StackMobHttpCallback} that also wants to know where the time went before the response arrived. transports
+ * that can tell call these, with {@link System#nanoTime()} timestamps, before they call response or failure. a transport
+ * that sends again on a new connection may call them more than once for one request
+ */
+public interface StackMobHttpTimingCallback extends StackMobHttpCallback {
+
+    /**
+     * called once the transport has a connection to send the request on
+     * @param startNanos when the transport started looking for a connection
+     * @param endNanos when the connection was ready, whether it was opened or reused
+     */
+    void connected(long startNanos, long endNanos);
+
+    /**
+     * called once the server has started to respond
+     * @param sentNanos when the whole request had been written
+     * @param receivedNanos when the first part of the response arrived
+     */
+    void firstByte(long sentNanos, long receivedNanos);
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.net;
+
+import org.scribe.model.OAuthRequest;
+
+/**
+ * The interface through which StackMobRequest puts signed requests on the wire. {@link PooledHttpTransport} is the default
+ * implementation, and {@link NioHttpTransport} is a non-blocking alternative. Implement this interface to control how connections are made, for instance to route requests through
+ * a different HTTP client.
+ *
+ * Implementations must be thread safe, and must follow these rules:
+ * <ul>
+ *     <li>call exactly one of the callback's methods for every request, either on the calling thread or later, on a thread of their own</li>
+ *     <li>keep the response open while the callback's response method runs, and close it after that method returns</li>
+ *     <li>never treat an exception thrown by the callback as a failure of the request. let it propagate instead, or if the
+ *     callback ran on the transport's own thread, hand it to that thread's uncaught exception handler</li>
+ *     <li>send cookies to, and save cookies from, the default {@link java.net.CookieHandler} if there is one</li>
+ * </ul>
+ */
+public interface StackMobHttpTransport {
+
+    /**
+     * send a request
+     * @param request the signed request to send
+     * @param callback the callback to call with the response or the failure
+     */
+    void send(OAuthRequest request, StackMobHttpCallback callback);
+
+    /**
+     * close all connections and release any threads that this transport holds. the transport can't be used afterward
+     */
+    void shutdown();
+}
@@ -0,0 +1,440 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.net;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Request metrics for each endpoint, that is, each verb and path, such as "GET /game" or "POST /user/login". Paths are
+ * cut off after the schema, so requests for every object of a schema are counted together. For each endpoint there's
+ * a histogram of how long requests took, from being sent until their callback was called, including any retries and
+ * redirects, along with counts of requests, failures, error statuses, requests in flight, bytes and redirects.
+ *
+ * The metrics are read with {@link #getSnapshot()}, or through JMX once {@link #registerMBeans(String)} has been called.
+ * for example:
+ * <code>
+ *     stackmob.getMetrics().registerMBeans("myapp");
+ *     ...
+ *     StackMobMetrics.EndpointSnapshot games = stackmob.getMetrics().getSnapshot().get("GET /game");
+ *     log.info("p99 of game gets: " + games.getPercentileMillis(99) + "ms");
+ * </code>
+ *
+ * Every count is striped, so requests on different threads rarely touch the same cache line. This object is safe to
+ * share between threads
+ */
+public class StackMobMetrics {
+
+    public static final String JMX_DOMAIN = "com.stackmob.sdk";
+
+    //statuses above this are counted as this
+    private static final int MAX_STATUS = 599;
+
+    private final ConcurrentMap<String, AtomicReferenceArray<Endpoint>> endpoints = new ConcurrentHashMap<String, AtomicReferenceArray<Endpoint>>();
+    private volatile String jmxName = null;
+
+    /**
+     * The live metrics of one endpoint. StackMobRequest reports to it as requests go out and come back
+     */
+    public final class Endpoint implements StackMobEndpointMXBean {
+        private final String name;
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private final StripedCounter requests = new StripedCounter();
+        private final StripedCounter failures = new StripedCounter();
+        private final StripedCounter inFlight = new StripedCounter();
+        private final StripedCounter totalMicros = new StripedCounter();
+        private final StripedCounter bytesSent = new StripedCounter();
+        private final StripedCounter bytesReceived = new StripedCounter();
+        private final StripedCounter redirects = new StripedCounter();
+        private final AtomicLongArray statuses = new AtomicLongArray(MAX_STATUS + 1);
+        private final AtomicLong maxMicros = new AtomicLong(0);
+
+        Endpoint(String name) {
+            this.name = name;
+        }
+
+        public void requestStarted() {
+            inFlight.increment();
+        }
+
+        /**
+         * @param elapsedNanos the time from the request being sent until its callback was called
+         * @param succeeded false if the callback was told the request failed
+         */
+        public void requestFinished(long elapsedNanos, boolean succeeded) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(elapsedNanos);
+            inFlight.add(-1);
+            requests.increment();
+            if(!succeeded) {
+                failures.increment();
+            }
+            latencies.record(micros);
+            totalMicros.add(micros);
+            long max;
+            while(micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)) {}
+        }
+
+        /**
+         * @param code the status of a response, or 0 if an attempt got no response. only statuses of 400 or more, and
+         * 0, are counted
+         */
+        public void statusReceived(int code) {
+            if(code == 0 || code >= 400) {
+                statuses.incrementAndGet(Math.min(code, MAX_STATUS));
+            }
+        }
+
+        public void redirected() {
+            redirects.increment();
+        }
+
+        public void bytesSent(long bytes) {
+            bytesSent.add(bytes);
+        }
+
+        /**
+         * @param response a response as it was received
+         * @return the response, with its body counted as it's read
+         */
+        public StackMobHttpResponse countBytesReceived(StackMobHttpResponse response) {
+            return new StackMobHttpResponse(response.getCode(), response.getHeaderFields(), new CountingInputStream(response.getStream(), bytesReceived));
+        }
+
+        public EndpointSnapshot snapshot() {
+            Map<Integer, Long> errors = new TreeMap<Integer, Long>();
+            for(int code = 0; code <= MAX_STATUS; code++) {
+                long count = statuses.get(code);
+                if(count > 0) {
+                    errors.put(code, count);
+                }
+            }
+            return new EndpointSnapshot(name, requests.sum(), failures.sum(), inFlight.sum(), errors, bytesSent.sum(),
+                    bytesReceived.sum(), redirects.sum(), totalMicros.sum(), maxMicros.get(), latencies.snapshot());
+        }
+
+        @Override
+        public String getEndpoint() {
+            return name;
+        }
+
+        @Override
+        public long getRequestCount() {
+            return requests.sum();
+        }
+
+        @Override
+        public long getFailureCount() {
+            return failures.sum();
+        }
+
+        @Override
+        public long getInFlight() {
+            return inFlight.sum();
+        }
+
+        @Override
+        public Map<Integer, Long> getErrorsByStatus() {
+            return snapshot().getErrorsByStatus();
+        }
+
+        @Override
+        public long getBytesSent() {
+            return bytesSent.sum();
+        }
+
+        @Override
+        public long getBytesReceived() {
+            return bytesReceived.sum();
+        }
+
+        @Override
+        public long getRedirectCount() {
+            return redirects.sum();
+        }
+
+        @Override
+        public double getMeanMillis() {
+            return snapshot().getMeanMillis();
+        }
+
+        @Override
+        public double getP50Millis() {
+            return snapshot().getPercentileMillis(50);
+        }
+
+        @Override
+        public double getP90Millis() {
+            return snapshot().getPercentileMillis(90);
+        }
+
+        @Override
+        public double getP99Millis() {
+            return snapshot().getPercentileMillis(99);
+        }
+
+        @Override
+        public double getP999Millis() {
+            return snapshot().getPercentileMillis(99.9);
+        }
+
+        @Override
+        public double getMaxMillis() {
+            return maxMicros.get() / 1000.0;
+        }
+    }
+
+    /**
+     * The metrics of one endpoint at one moment. counts that were being updated while the snapshot was taken may be a
+     * request or two apart
+     */
+    public static final class EndpointSnapshot {
+        private final String endpoint;
+        private final long requestCount;
+        private final long failureCount;
+        private final long inFlight;
+        private final Map<Integer, Long> errorsByStatus;
+        private final long bytesSent;
+        private final long bytesReceived;
+        private final long redirectCount;
+        private final long totalMicros;
+        private final long maxMicros;
+        private final long[] buckets;
+        private final long recorded;
+
+        EndpointSnapshot(String endpoint, long requestCount, long failureCount, long inFlight, Map<Integer, Long> errorsByStatus,
+                         long bytesSent, long bytesReceived, long redirectCount, long totalMicros, long maxMicros, long[] buckets) {
+            this.endpoint = endpoint;
+            this.requestCount = requestCount;
+            this.failureCount = failureCount;
+            this.inFlight = inFlight;
+            this.errorsByStatus = Collections.unmodifiableMap(errorsByStatus);
+            this.bytesSent = bytesSent;
+            this.bytesReceived = bytesReceived;
+            this.redirectCount = redirectCount;
+            this.totalMicros = totalMicros;
+            this.maxMicros = maxMicros;
+            this.buckets = buckets;
+            long recorded = 0;
+            for(long count : buckets) {
+                recorded += count;
+            }
+            this.recorded = recorded;
+        }
+
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        public long getRequestCount() {
+            return requestCount;
+        }
+
+        public long getFailureCount() {
+            return failureCount;
+        }
+
+        public long getInFlight() {
+            return inFlight;
+        }
+
+        /**
+         * @return the number of responses with each status of 400 or more, in order of status. status 0 counts attempts
+         * that got no response
+         */
+        public Map<Integer, Long> getErrorsByStatus() {
+            return errorsByStatus;
+        }
+
+        public long getBytesSent() {
+            return bytesSent;
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived;
+        }
+
+        public long getRedirectCount() {
+            return redirectCount;
+        }
+
+        public double getMeanMillis() {
+            return requestCount == 0 ? 0 : totalMicros / 1000.0 / requestCount;
+        }
+
+        public double getMaxMillis() {
+            return maxMicros / 1000.0;
+        }
+
+        /**
+         * @param percentile the percentile, between 0 and 100, such as 99 or 99.9
+         * @return the latency that the given percentage of requests took no longer than, rounded up to the top of its
+         * histogram bucket, which is within about 6% of it. 0 if no requests have completed
+         */
+        public double getPercentileMillis(double percentile) {
+            if(percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("percentile must be between 0 and 100");
+            }
+            if(recorded == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long)Math.ceil(percentile / 100 * recorded));
+            long seen = 0;
+            for(int bucket = 0; bucket < buckets.length; bucket++) {
+                seen += buckets[bucket];
+                if(seen >= rank) {
+                    return Math.min(LatencyHistogram.highestIn(bucket), maxMicros) / 1000.0;
+                }
+            }
+            return getMaxMillis();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d requests, %d failed, %d in flight, p50 %.2fms, p99 %.2fms, max %.2fms, errors %s",
+                    endpoint, requestCount, failureCount, inFlight, getPercentileMillis(50), getPercentileMillis(99), getMaxMillis(), errorsByStatus);
+        }
+    }
+
+    /**
+     * @param verb the verb of the request
+     * @param path the endpoint's path, such as /game
+     * @return the endpoint's metrics, which are created the first time they're asked for
+     */
+    public Endpoint getEndpoint(HttpVerb verb, String path) {
+        AtomicReferenceArray<Endpoint> byVerb = endpoints.get(path);
+        if(byVerb == null) {
+            AtomicReferenceArray<Endpoint> newByVerb = new AtomicReferenceArray<Endpoint>(HttpVerb.values().length);
+            byVerb = endpoints.putIfAbsent(path, newByVerb);
+            if(byVerb == null) {
+                byVerb = newByVerb;
+            }
+        }
+        Endpoint endpoint = byVerb.get(verb.ordinal());
+        if(endpoint == null) {
+            Endpoint newEndpoint = new Endpoint(verb + " " + path);
+            if(byVerb.compareAndSet(verb.ordinal(), null, newEndpoint)) {
+                endpoint = newEndpoint;
+                if(jmxName != null) {
+                    try {
+                        register(endpoint);
+                    }
+                    catch(JMException e) {
+                        //the metrics are still there in snapshots
+                    }
+                }
+            }
+            else {
+                endpoint = byVerb.get(verb.ordinal());
+            }
+        }
+        return endpoint;
+    }
+
+    /**
+     * @return a snapshot of every endpoint that has been used, by name, such as "GET /game"
+     */
+    public SortedMap<String, EndpointSnapshot> getSnapshot() {
+        SortedMap<String, EndpointSnapshot> snapshot = new TreeMap<String, EndpointSnapshot>();
+        for(AtomicReferenceArray<Endpoint> byVerb : endpoints.values()) {
+            for(int i = 0; i < byVerb.length(); i++) {
+                Endpoint endpoint = byVerb.get(i);
+                if(endpoint != null) {
+                    snapshot.put(endpoint.getEndpoint(), endpoint.snapshot());
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * register an MXBean for every endpoint with the platform MBean server, now and as new endpoints are used. each is
+     * named com.stackmob.sdk:type=Endpoint,name="name",endpoint="GET /game"
+     * @param name a name that tells this object's beans apart from those of other StackMob objects in the process
+     * @throws JMException if a bean couldn't be registered
+     */
+    public synchronized void registerMBeans(String name) throws JMException {
+        unregisterMBeans();
+        jmxName = name;
+        for(AtomicReferenceArray<Endpoint> byVerb : endpoints.values()) {
+            for(int i = 0; i < byVerb.length(); i++) {
+                Endpoint endpoint = byVerb.get(i);
+                if(endpoint != null) {
+                    register(endpoint);
+                }
+            }
+        }
+    }
+
+    /**
+     * unregister every bean registered by {@link #registerMBeans(String)}, and stop registering new ones
+     */
+    public synchronized void unregisterMBeans() {
+        if(jmxName == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for(ObjectName name : server.queryNames(getObjectName(jmxName, "*"), null)) {
+                server.unregisterMBean(name);
+            }
+        }
+        catch(JMException e) {
+            //already gone
+        }
+        jmxName = null;
+    }
+
+    /**
+     * @param name the name passed to registerMBeans, or * for any
+     * @param endpoint the endpoint, such as "GET /game", or * for any
+     * @return the name of the endpoint's bean
+     * @throws JMException if the name isn't valid
+     */
+    public static ObjectName getObjectName(String name, String endpoint) throws JMException {
+        Hashtable<String, String> properties = new Hashtable<String, String>();
+        properties.put("type", "Endpoint");
+        properties.put("name", name.equals("*") ? name : ObjectName.quote(name));
+        properties.put("endpoint", endpoint.equals("*") ? endpoint : ObjectName.quote(endpoint));
+        return new ObjectName(JMX_DOMAIN, properties);
+    }
+
+    private synchronized void register(Endpoint endpoint) throws JMException {
+        String name = jmxName;
+        if(name == null) {
+            return;
+        }
+        ObjectName objectName = getObjectName(name, endpoint.getEndpoint());
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if(!server.isRegistered(objectName)) {
+            server.registerMBean(endpoint, objectName);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.net;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps requests under a rate, so that a burst doesn't run into the StackMob API's quota. There's a token bucket for
+ * every request, and one for each category of request. a request needs a token from both to be sent. When a bucket is
+ * empty, a request either blocks the calling thread until a token is free, fails at once, or is queued and sent later
+ * without blocking anyone, depending on the mode. Nothing is limited by default. for example:
+ * <code>
+ *     stackmob.getRateLimiter()
+ *         .setRate(50, 20)
+ *         .setRate(StackMobRateLimiter.Category.PUSH, 5, 5)
+ *         .setMode(StackMobRateLimiter.Mode.FAIL_FAST);
+ * </code>
+ *
+ * Each bucket is a single AtomicLong holding the time at which it will next be full (the "generic cell rate algorithm"),
+ * so taking a token is one atomic add, with no lock for threads to queue on and no compare and set to retry. in FAIL_FAST
+ * mode it's a compare and set instead, so that a request that's turned away never holds a token, even for a moment. This
+ * object is safe to share between threads
+ */
+public class StackMobRateLimiter {
+
+    public enum Category {
+        /**
+         * gets, posts, puts and deletes of objects
+         */
+        DATA,
+        /**
+         * push notifications and token registration
+         */
+        PUSH,
+        /**
+         * login, logout, sessions, and Facebook and Twitter calls
+         */
+        USER
+    }
+
+    public enum Mode {
+        /**
+         * wait on the calling thread until a token is free
+         */
+        BLOCK,
+        /**
+         * fail the request with a StackMobException
+         */
+        FAIL_FAST,
+        /**
+         * return at once, and send the request once a token is free. when its token is due, a queued request is handed
+         * to a {@link StackMobWorkers} thread, which waits for the in flight limit if there is one, and then sends the
+         * request on the StackMob object's executor, or itself if there's no executor
+         */
+        QUEUE
+    }
+
+    public static final long DEFAULT_MAX_WAIT_MS = 30000;
+    public static final long UNLIMITED = -1;
+
+    /**
+     * One token bucket. the bucket's state is the time, in System.nanoTime, at which it will be full again if no more
+     * tokens are taken. a token may be taken at any time no more than burst intervals before that
+     */
+    private static class Bucket {
+        final long intervalNanos;
+        final long toleranceNanos;
+        final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+
+        Bucket(double permitsPerSecond, int burst) {
+            this.intervalNanos = Math.max(1, (long)(TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+            this.toleranceNanos = intervalNanos * burst;
+        }
+
+        /**
+         * take a token, unless it would mean waiting longer than maxWaitNanos
+         * @param now the time, from System.nanoTime
+         * @return the time to wait before using the token, or -1 if none was taken
+         */
+        long reserve(long now, long maxWaitNanos) {
+            if(maxWaitNanos == 0) {
+                return tryReserve(now);
+            }
+            long current = fullAt.get();
+            if(current < now) {
+                //the bucket filled up while no one was looking. if another thread gets here first, its update will do
+                fullAt.compareAndSet(current, now);
+            }
+            //taking the token with an add, rather than a compare and set, means that no thread ever has to try again
+            long previous = fullAt.getAndAdd(intervalNanos);
+            long wait = previous + intervalNanos - now - toleranceNanos;
+            if(wait > maxWaitNanos) {
+                cancel();
+                return -1;
+            }
+            return Math.max(0, wait);
+        }
+
+        /**
+         * take a token only if one is free now. a token that's taken and then given back, as reserve does when the wait is
+         * too long, pushes the bucket's state forward in the meantime, and when no wait is allowed at all, concurrent
+         * callers doing that would turn away callers that were within the burst. so this only ever moves the state
+         * forward for a token it keeps
+         * @return 0, or -1 if there was no token
+         */
+        long tryReserve(long now) {
+            while(true) {
+                long current = fullAt.get();
+                long next = Math.max(current, now) + intervalNanos;
+                if(next - now > toleranceNanos) {
+                    return -1;
+                }
+                if(fullAt.compareAndSet(current, next)) {
+                    return 0;
+                }
+            }
+        }
+
+        /**
+         * give back a token taken by reserve
+         */
+        void cancel() {
+            fullAt.addAndGet(-intervalNanos);
+        }
+    }
+
+    private volatile Bucket global = null;
+    private final AtomicReferenceArray<Bucket> categories = new AtomicReferenceArray<Bucket>(Category.values().length);
+    private volatile Mode mode = Mode.BLOCK;
+    private volatile long maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_WAIT_MS);
+
+    private final AtomicLong throttled = new AtomicLong(0);
+    private final AtomicLong rejected = new AtomicLong(0);
+
+    /**
+     * limit every request
+     * @param permitsPerSecond the sustained rate, or {@link #UNLIMITED} (the default)
+     * @param burst the number of requests that may be sent at once after a quiet spell
+     * @return this limiter, so calls can be chained
+     */
+    public StackMobRateLimiter setRate(double permitsPerSecond, int burst) {
+        this.global = newBucket(permitsPerSecond, burst);
+        return this;
+    }
+
+    /**
+     * limit one category of request, on top of the limit on every request
+     * @param category the category
+     * @param permitsPerSecond the sustained rate, or {@link #UNLIMITED} (the default)
+     * @param burst the number of requests that may be sent at once after a quiet spell
+     * @return this limiter, so calls can be chained
+     */
+    public StackMobRateLimiter setRate(Category category, double permitsPerSecond, int burst) {
+        categories.set(category.ordinal(), newBucket(permitsPerSecond, burst));
+        return this;
+    }
+
+    /**
+     * @param mode what to do with a request when there's no token for it. the default is BLOCK
+     * @return this limiter, so calls can be chained
+     */
+    public StackMobRateLimiter setMode(Mode mode) {
+        if(mode == null) {
+            throw new IllegalArgumentException("mode must not be null");
+        }
+        this.mode = mode;
+        return this;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @param maxWait the longest a request may wait for a token in BLOCK or QUEUE mode. a request that would have to
+     * wait longer fails at once. the default is 30 seconds
+     * @param unit the unit of maxWait
+     * @return this limiter, so calls can be chained
+     */
+    public StackMobRateLimiter setMaxWait(long maxWait, TimeUnit unit) {
+        if(maxWait < 0) {
+            throw new IllegalArgumentException("maxWait must not be negative");
+        }
+        this.maxWaitNanos = unit.toNanos(maxWait);
+        return this;
+    }
+
+    /**
+     * @return the number of requests that had to wait for a token
+     */
+    public long getThrottledCount() {
+        return throttled.get();
+    }
+
+    /**
+     * @return the number of requests that failed because there was no token for them
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * take a token for a request, from both the bucket for every request and the bucket for its category
+     * @param category the request's category
+     * @return the number of nanoseconds to wait before sending the request, or -1 if it must fail, because the mode is
+     * FAIL_FAST and there's no token, or because it would have to wait too long
+     */
+    public long reserve(Category category) {
+        Bucket all = global;
+        Bucket one = categories.get(category.ordinal());
+        if(all == null && one == null) {
+            return 0;
+        }
+        long maxWait = mode == Mode.FAIL_FAST ? 0 : maxWaitNanos;
+        long now = System.nanoTime();
+        long wait = 0;
+        if(all != null) {
+            wait = all.reserve(now, maxWait);
+            if(wait < 0) {
+                rejected.incrementAndGet();
+                return -1;
+            }
+        }
+        if(one != null) {
+            long categoryWait = one.reserve(now, maxWait);
+            if(categoryWait < 0) {
+                if(all != null) {
+                    all.cancel();
+                }
+                rejected.incrementAndGet();
+                return -1;
+            }
+            wait = Math.max(wait, categoryWait);
+        }
+        if(wait > 0) {
+            throttled.incrementAndGet();
+        }
+        return wait;
+    }
+
+    /**
+     * run a queued request later, on a {@link StackMobWorkers} thread. the timer only hands the request over, so one that
+     * blocks, waiting for the in flight limit or sending on a blocking transport, doesn't hold up the requests queued
+     * behind it
+     * @param send the request to send
+     * @param delayNanos how long to wait first
+     */
+    public static void schedule(Runnable send, long delayNanos) {
+        StackMobWorkers.schedule(send, delayNanos, TimeUnit.NANOSECONDS, null);
+    }
+
+    private static Bucket newBucket(double permitsPerSecond, int burst) {
+        if(permitsPerSecond == UNLIMITED) {
+            return null;
+        }
+        if(permitsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("permitsPerSecond must be positive or UNLIMITED, and burst at least 1");
+        }
+        return new Bucket(permitsPerSecond, burst);
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.net;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether, and when, a failed request is sent again. A request is retried if it couldn't be sent or got no
+ * response, or if the server answered 502, 503 or 504. Gets, puts and deletes are retried. Posts aren't, unless they're
+ * marked as safe to repeat, because the server may have created the object before the failure. for example:
+ * <code>
+ *     stackmob.getRetryPolicy().setMaxAttempts(4).setBackoff(100, 5000, TimeUnit.MILLISECONDS);
+ * </code>
+ *
+ * A few notes about retries:
+ * <ul>
+ *     <li>the delay before each retry is chosen at random between 0 and an exponentially growing limit ("full jitter"), so
+ *     that clients that failed together don't retry together</li>
+ *     <li>retries are limited by a budget shared by every request that uses this policy. every request adds a fraction of
+ *     a retry to the budget, and every retry takes a whole one, so when a server is down the retries add at most that
+ *     fraction to the load instead of multiplying it by the number of attempts</li>
+ *     <li>a request that is retried is signed again, so that the server doesn't see a repeated nonce</li>
+ *     <li>a failure reported on a thread other than the one that sent the request, such as the event loop of
+ *     {@link NioHttpTransport}, is retried from the StackMob object's executor, or from a {@link StackMobWorkers} thread
+ *     if it has none</li>
+ * </ul>
+ * This object is safe to share between threads
+ */
+public class StackMobRetryPolicy {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 1;
+    public static final long DEFAULT_BASE_DELAY_MS = 100;
+    public static final long DEFAULT_MAX_DELAY_MS = 10000;
+    public static final double DEFAULT_BUDGET_RATIO = 0.1;
+    public static final int DEFAULT_BUDGET_RESERVE = 10;
+
+    //the budget is kept in thousandths of a retry, so that fractional deposits can be made atomically
+    private static final long ONE_RETRY = 1000;
+
+    private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private volatile long baseDelayMs = DEFAULT_BASE_DELAY_MS;
+    private volatile long maxDelayMs = DEFAULT_MAX_DELAY_MS;
+    private volatile boolean retryPosts = false;
+    private volatile long budgetDeposit = (long)(DEFAULT_BUDGET_RATIO * ONE_RETRY);
+    private volatile long budgetCapacity = DEFAULT_BUDGET_RESERVE * ONE_RETRY;
+    private final AtomicLong budget = new AtomicLong(budgetCapacity);
+    private final Random random = new Random();
+
+    private final AtomicLong retries = new AtomicLong(0);
+    private final AtomicLong budgetExhausted = new AtomicLong(0);
+
+    /**
+     * @param maxAttempts the most times to send a request, including the first. 1, the default, turns retries off
+     * @return this policy, so calls can be chained
+     */
+    public StackMobRetryPolicy setMaxAttempts(int maxAttempts) {
+        if(maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * the delay before the nth retry is a random time up to base * 2^(n - 1), and never more than max
+     * @param base the longest delay before the first retry
+     * @param max the longest delay before any retry
+     * @param unit the unit of base and max
+     * @return this policy, so calls can be chained
+     */
+    public StackMobRetryPolicy setBackoff(long base, long max, TimeUnit unit) {
+        if(base < 0 || max < base) {
+            throw new IllegalArgumentException("base must not be negative, and max must be at least base");
+        }
+        this.baseDelayMs = unit.toMillis(base);
+        this.maxDelayMs = unit.toMillis(max);
+        return this;
+    }
+
+    /**
+     * @param retryPosts true to retry every post, as though each had been marked safe to repeat
+     * @return this policy, so calls can be chained
+     */
+    public StackMobRetryPolicy setRetryPosts(boolean retryPosts) {
+        this.retryPosts = retryPosts;
+        return this;
+    }
+
+    /**
+     * limit the number of retries. the budget starts full, holding reserve retries, and never holds more
+     * @param ratio the fraction of a retry that each request adds to the budget
+     * @param reserve the most retries the budget holds, which allows bursts of retries when few requests have been made
+     * @return this policy, so calls can be chained
+     */
+    public StackMobRetryPolicy setRetryBudget(double ratio, int reserve) {
+        if(ratio < 0 || reserve < 0) {
+            throw new IllegalArgumentException("ratio and reserve must not be negative");
+        }
+        this.budgetDeposit = (long)(ratio * ONE_RETRY);
+        this.budgetCapacity = reserve * ONE_RETRY;
+        budget.set(budgetCapacity);
+        return this;
+    }
+
+    /**
+     * @return the number of retries sent
+     */
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    /**
+     * @return the number of retries that weren't sent because the budget was empty
+     */
+    public long getBudgetExhaustedCount() {
+        return budgetExhausted.get();
+    }
+
+    /**
+     * @return the number of retries left in the budget, rounded down
+     */
+    public long getBudgetRemaining() {
+        return budget.get() / ONE_RETRY;
+    }
+
+    /**
+     * record that a request is being sent for the first time, adding to the retry budget
+     */
+    public void requestStarted() {
+        long deposit = budgetDeposit;
+        long capacity = budgetCapacity;
+        if(deposit == 0) {
+            return;
+        }
+        long current;
+        do {
+            current = budget.get();
+            if(current >= capacity) {
+                return;
+            }
+        } while(!budget.compareAndSet(current, Math.min(capacity, current + deposit)));
+    }
+
+    /**
+     * @param verb the verb of the request
+     * @param markedSafe true if the request was marked as safe to repeat
+     * @return true if a request like this may be retried at all
+     */
+    public boolean isRetryable(HttpVerb verb, boolean markedSafe) {
+        return verb != HttpVerb.POST || markedSafe || retryPosts;
+    }
+
+    /**
+     * @param code the status code of a response
+     * @return true if the status means that the request may succeed if it's sent again
+     */
+    public boolean isRetryable(int code) {
+        return code == 502 || code == 503 || code == 504;
+    }
+
+    /**
+     * decide whether to retry a request that has failed, taking a retry from the budget if so
+     * @param attempts the number of times the request has been sent
+     * @return true if the request should be sent again
+     */
+    public boolean tryRetry(int attempts) {
+        if(attempts >= maxAttempts) {
+            return false;
+        }
+        long current;
+        do {
+            current = budget.get();
+            if(current < ONE_RETRY) {
+                budgetExhausted.incrementAndGet();
+                return false;
+            }
+        } while(!budget.compareAndSet(current, current - ONE_RETRY));
+        retries.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @param retry which retry this is, starting at 1
+     * @return a random delay between 0 and min(max, base * 2^(retry - 1)) milliseconds
+     */
+    public long getDelayMillis(int retry) {
+        long limit = maxDelayMs;
+        //stop doubling before the shift overflows
+        if(retry - 1 < 62 && baseDelayMs < (Long.MAX_VALUE >> (retry - 1))) {
+            limit = Math.min(limit, baseDelayMs << (retry - 1));
+        }
+        if(limit <= 0) {
+            return 0;
+        }
+        synchronized(random) {
+            return (long)(random.nextDouble() * (limit + 1));
+        }
+    }
+}
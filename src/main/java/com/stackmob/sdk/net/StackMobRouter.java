@@ -0,0 +1,386 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.net;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps track of which StackMob cluster to send each request to. When the platform redirects a request to another
+ * cluster, the new host is learned for the request's path, that is, for the first segment of the path, such as "game"
+ * in /game/1234. later requests for the same path go straight to that host. Requests for paths that haven't been
+ * redirected go to the current default host, which follows the most recent redirect.
+ *
+ * Learned routes expire after a day by default, after which the path goes back to the default host until it's
+ * redirected again. The routes can also be kept in a file, so that a restarted process sends its first requests
+ * straight to the right cluster instead of being redirected all over again. for example:
+ * <code>
+ *     stackmob.getRouter().setRouteExpiry(6, TimeUnit.HOURS).setStore(new File("/var/cache/myapp/stackmob-routes"));
+ * </code>
+ *
+ * The file is written on a background thread shared by every router, since redirects can be learned on threads that
+ * mustn't block, such as the event loop of {@link NioHttpTransport}. several routes learned at once are written
+ * together.
+ *
+ * Hosts are kept as host:port, or just host if the default port is used. Reads and updates are lock free, and this
+ * object is safe to share between threads
+ */
+public class StackMobRouter {
+
+    public static final long NEVER = -1;
+    public static final long DEFAULT_ROUTE_EXPIRY_MS = TimeUnit.DAYS.toMillis(1);
+
+    private static final String DEFAULT_KEY = "default";
+    private static final String ROUTE_KEY_PREFIX = "route.";
+
+    private static ExecutorService writer = null;
+
+    /**
+     * A host, and when it was learned from a redirect. the host given to the constructor was never learned, and has a
+     * learnedAt of 0
+     */
+    private static class Route {
+        final String host;
+        final long learnedAt;
+
+        Route(String host, long learnedAt) {
+            this.host = host;
+            this.learnedAt = learnedAt;
+        }
+    }
+
+    private final AtomicReference<Route> defaultHost;
+    private final ConcurrentMap<String, Route> routes = new ConcurrentHashMap<String, Route>();
+    private volatile long routeExpiryMs = DEFAULT_ROUTE_EXPIRY_MS;
+    private volatile File store = null;
+    //saves are rare, since they only follow redirects, so they're simply done one at a time
+    private final Object storeLock = new Object();
+    //set while a save is waiting for the writer, so that a burst of redirects is written once
+    private final AtomicBoolean savePending = new AtomicBoolean(false);
+
+    /**
+     * @param defaultHost the host to send requests to until a redirect says otherwise, such as api.mob1.stackmob.com
+     */
+    public StackMobRouter(String defaultHost) {
+        this.defaultHost = new AtomicReference<Route>(new Route(defaultHost, 0));
+    }
+
+    /**
+     * @param duration how long a learned route is followed, or {@link #NEVER} to follow routes until they change. the
+     * default is a day
+     * @param unit the unit of duration
+     * @return this router, so calls can be chained
+     */
+    public StackMobRouter setRouteExpiry(long duration, TimeUnit unit) {
+        if(duration < 0 && duration != NEVER) {
+            throw new IllegalArgumentException("duration must be NEVER or at least 0");
+        }
+        this.routeExpiryMs = duration == NEVER ? NEVER : unit.toMillis(duration);
+        return this;
+    }
+
+    /**
+     * keep the routes in a file. routes in the file that haven't expired are loaded now, and the file is rewritten in
+     * the background whenever a new route is learned. call this before sending any requests. a file that's missing or can't be read is
+     * ignored, as are failures to write it, since the routes will be learned again from redirects
+     * @param file the file, which is replaced rather than written in place, so that a crash can't leave it half written
+     * @return this router, so calls can be chained
+     */
+    public StackMobRouter setStore(File file) {
+        if(file != null && file.exists()) {
+            try {
+                load(file);
+            }
+            catch(IOException e) {
+                //start from scratch
+            }
+        }
+        this.store = file;
+        return this;
+    }
+
+    public File getStore() {
+        return store;
+    }
+
+    /**
+     * @return the host that requests for paths without a learned route go to
+     */
+    public String getDefaultHost() {
+        return defaultHost.get().host;
+    }
+
+    /**
+     * @param path the path of a request, such as /game/1234
+     * @return the host to send the request to
+     */
+    public String getHost(String path) {
+        String key = getPathKey(path);
+        Route route = routes.get(key);
+        if(route == null) {
+            return defaultHost.get().host;
+        }
+        if(isExpired(route, System.currentTimeMillis())) {
+            routes.remove(key, route);
+            return defaultHost.get().host;
+        }
+        return route.host;
+    }
+
+    /**
+     * @return the number of paths that have a learned route, including any that have expired but haven't been used since
+     */
+    public int getRouteCount() {
+        return routes.size();
+    }
+
+    /**
+     * forget every learned route. the default host is kept
+     */
+    public void clear() {
+        routes.clear();
+    }
+
+    /**
+     * learn from a redirect
+     * @param originalUrl the URL that was redirected
+     * @param newUrl the URL it was redirected to
+     * @return true if the default host changed. when several threads are redirected to the same new host at once, only
+     * one of them gets true
+     */
+    public boolean redirected(String originalUrl, String newUrl) {
+        String newHost = getAuthority(newUrl);
+        if(newHost == null) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        boolean changed = false;
+        String originalPath = getRawPath(originalUrl);
+        if(originalPath != null) {
+            Route old = routes.put(getPathKey(originalPath), new Route(newHost, now));
+            changed = old == null || !old.host.equalsIgnoreCase(newHost);
+        }
+        boolean defaultChanged = false;
+        Route current;
+        do {
+            current = defaultHost.get();
+            if(current.host.equalsIgnoreCase(newHost)) {
+                break;
+            }
+        } while(!(defaultChanged = defaultHost.compareAndSet(current, new Route(newHost, now))));
+        if((changed || defaultChanged) && store != null && savePending.compareAndSet(false, true)) {
+            getWriter().execute(new Runnable() {
+                @Override
+                public void run() {
+                    //cleared first, so that a route learned during the save is saved again
+                    savePending.set(false);
+                    File file = store;
+                    if(file != null) {
+                        try {
+                            save(file);
+                        }
+                        catch(IOException e) {
+                            //the route still holds in memory
+                        }
+                    }
+                }
+            });
+        }
+        return defaultChanged;
+    }
+
+    /**
+     * wait for the routes learned so far to be written to the store
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public void flush() throws InterruptedException {
+        try {
+            //the writer runs one save at a time, in order, so this runs after any save already waiting
+            getWriter().submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        }
+        catch(ExecutionException e) {
+            //the empty task can't fail
+        }
+    }
+
+    /**
+     * add the routes in a file that haven't expired, along with its default host if that was learned from a redirect
+     * @param file a file written by {@link #save(File)}
+     * @throws IOException if the file couldn't be read
+     */
+    public void load(File file) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        }
+        catch(IllegalArgumentException e) {
+            //a malformed escape
+            throw new IOException(file + " is corrupt: " + e.getMessage());
+        }
+        finally {
+            in.close();
+        }
+        long now = System.currentTimeMillis();
+        for(String key : properties.stringPropertyNames()) {
+            Route route = parseRoute(properties.getProperty(key));
+            if(route == null || isExpired(route, now)) {
+                continue;
+            }
+            if(key.equals(DEFAULT_KEY)) {
+                defaultHost.set(route);
+            }
+            else if(key.startsWith(ROUTE_KEY_PREFIX)) {
+                routes.put(key.substring(ROUTE_KEY_PREFIX.length()), route);
+            }
+        }
+    }
+
+    /**
+     * write the learned routes to a file. the routes are written to a temporary file in the same directory, which is
+     * then renamed over the file, so readers see either the old routes or the new ones
+     * @param file the file
+     * @throws IOException if the file couldn't be written
+     */
+    public void save(File file) throws IOException {
+        synchronized(storeLock) {
+            //taken under the lock, so that an older snapshot can't be written after a newer one
+            Properties properties = new Properties();
+            Route current = defaultHost.get();
+            if(current.learnedAt != 0) {
+                properties.setProperty(DEFAULT_KEY, formatRoute(current));
+            }
+            for(Map.Entry<String, Route> route : routes.entrySet()) {
+                properties.setProperty(ROUTE_KEY_PREFIX + route.getKey(), formatRoute(route.getValue()));
+            }
+            File dir = file.getAbsoluteFile().getParentFile();
+            File temp = File.createTempFile(file.getName(), ".tmp", dir);
+            try {
+                FileOutputStream out = new FileOutputStream(temp);
+                try {
+                    properties.store(out, "StackMob routes: host and the time it was learned, in ms since the epoch");
+                    out.getFD().sync();
+                }
+                finally {
+                    out.close();
+                }
+                //renameTo won't replace an existing file on some platforms, such as Windows
+                if(!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+                    throw new IOException("couldn't replace " + file);
+                }
+            }
+            finally {
+                if(temp.exists()) {
+                    temp.delete();
+                }
+            }
+        }
+    }
+
+    private static synchronized ExecutorService getWriter() {
+        if(writer == null) {
+            writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "StackMob route writer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return writer;
+    }
+
+    private boolean isExpired(Route route, long now) {
+        long expiry = routeExpiryMs;
+        return expiry != NEVER && now - route.learnedAt >= expiry;
+    }
+
+    private static String formatRoute(Route route) {
+        return route.host + " " + route.learnedAt;
+    }
+
+    private static Route parseRoute(String value) {
+        String[] parts = value.trim().split(" ");
+        if(parts.length != 2 || parts[0].length() == 0) {
+            return null;
+        }
+        try {
+            return new Route(parts[0], Long.parseLong(parts[1]));
+        }
+        catch(NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param path the path of a request
+     * @return the first segment of the path, without slashes
+     */
+    static String getPathKey(String path) {
+        int start = 0;
+        while(start < path.length() && path.charAt(start) == '/') {
+            start++;
+        }
+        int end = start;
+        while(end < path.length() && path.charAt(end) != '/' && path.charAt(end) != '?') {
+            end++;
+        }
+        return path.substring(start, end);
+    }
+
+    /**
+     * @return the host and port of a URL, keeping the port if it has one, or null if the URL can't be parsed
+     */
+    static String getAuthority(String url) {
+        try {
+            return new URI(url).getRawAuthority();
+        }
+        catch(URISyntaxException e) {
+            return null;
+        }
+    }
+
+    private static String getRawPath(String url) {
+        try {
+            return new URI(url).getRawPath();
+        }
+        catch(URISyntaxException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.net;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+import org.scribe.exceptions.OAuthSignatureException;
+import org.scribe.extractors.BaseStringExtractor;
+import org.scribe.extractors.BaseStringExtractorImpl;
+import org.scribe.extractors.HeaderExtractor;
+import org.scribe.extractors.HeaderExtractorImpl;
+import org.scribe.model.OAuthConstants;
+import org.scribe.model.OAuthRequest;
+import org.scribe.services.TimestampService;
+import org.scribe.utils.URLUtils;
+
+/**
+ * Signs requests with 2-legged OAuth 1.0a (HMAC-SHA1), producing the same Authorization header that scribe's
+ * OAuthService would for {@link StackMobApi} and an empty access token.
+ *
+ * Unlike an OAuthService built by ServiceBuilder, a signer is meant to be created once per session and shared:
+ * <ul>
+ *     <li>the HMAC key is derived from the api secret once, in the constructor</li>
+ *     <li>initialized Macs are kept in a pool that threads take one from and give it back to, so concurrent signing never
+ *     contends on a lock, and a thread that only signs once, like a virtual thread started for a single request, still
+ *     reuses a Mac rather than initializing one</li>
+ *     <li>nonces come from a per thread Random rather than one shared generator</li>
+ * </ul>
+ *
+ * StackMobRequest signs with {@link #sign(OAuthRequest, String[])}, which builds the base string from parameters that
+ * are already encoded, in a buffer that's pooled along with the Mac
+ */
+public class StackMobSigner {
+
+    private static final String HMAC_SHA1 = "HmacSHA1";
+    private static final String SIGNATURE_METHOD = "HMAC-SHA1";
+    private static final String OAUTH_VERSION = "1.0";
+    private static final String UTF8 = "UTF-8";
+    //more than enough for every thread that's signing at once. any beyond this are dropped when they're given back
+    private static final int MAX_POOLED = 64;
+
+    private final String apiKey;
+    private final String encodedApiKey;
+    private final SecretKeySpec key;
+    private final TimestampService timestampService;
+    private final BaseStringExtractor baseStringExtractor = new BaseStringExtractorImpl();
+    private final HeaderExtractor headerExtractor = new HeaderExtractorImpl();
+
+    private final ConcurrentLinkedQueue<Signing> pool = new ConcurrentLinkedQueue<Signing>();
+    private final AtomicInteger pooled = new AtomicInteger(0);
+
+    public StackMobSigner(String apiKey, String apiSecret) {
+        this(apiKey, apiSecret, new PerThreadTimestampService());
+    }
+
+    /**
+     * create a signer that takes timestamps and nonces from the given service. useful for producing repeatable signatures
+     * @param apiKey the api key for your app
+     * @param apiSecret the api secret for your app
+     * @param timestampService the source of oauth_timestamp and oauth_nonce values. must be thread safe
+     */
+    public StackMobSigner(String apiKey, String apiSecret, TimestampService timestampService) {
+        this.apiKey = apiKey;
+        this.encodedApiKey = PercentEncoder.encode(apiKey);
+        this.timestampService = timestampService;
+        //2-legged OAuth always signs with an empty token secret
+        String keyString = URLUtils.percentEncode(apiSecret) + '&';
+        try {
+            this.key = new SecretKeySpec(keyString.getBytes(UTF8), HMAC_SHA1);
+        }
+        catch(UnsupportedEncodingException e) {
+            throw new OAuthSignatureException(keyString, e);
+        }
+    }
+
+    /**
+     * add the OAuth parameters and the Authorization header to a request. safe to call from many threads at once
+     * @param request the request to sign. it must not have been signed before
+     */
+    public void sign(OAuthRequest request) {
+        request.addOAuthParameter(OAuthConstants.TOKEN, "");
+        request.addOAuthParameter(OAuthConstants.TIMESTAMP, timestampService.getTimestampInSeconds());
+        request.addOAuthParameter(OAuthConstants.NONCE, timestampService.getNonce());
+        request.addOAuthParameter(OAuthConstants.CONSUMER_KEY, apiKey);
+        request.addOAuthParameter(OAuthConstants.SIGN_METHOD, SIGNATURE_METHOD);
+        request.addOAuthParameter(OAuthConstants.VERSION, OAUTH_VERSION);
+        request.addOAuthParameter(OAuthConstants.SIGNATURE, getSignature(baseStringExtractor.extract(request)));
+        request.addHeader(OAuthConstants.HEADER, headerExtractor.extract(request));
+    }
+
+    /**
+     * add the OAuth parameters and the Authorization header to a request whose query string was built from parameters
+     * encoded with {@link PercentEncoder}. the base string is built from the encoded parameters as they are, rather than
+     * by parsing the request's URL and decoding and encoding its query again as {@link #sign(OAuthRequest)} does. the
+     * parameters are sorted by their encoded names and values, as RFC 5849 3.4.1.3.2 specifies. safe to call from many
+     * threads at once
+     * @param request the request to sign. it must not have been signed before
+     * @param encodedParams the encoded names and values of the request's query parameters, alternating, or null if it
+     *                      has none. the array isn't changed
+     */
+    public void sign(OAuthRequest request, String[] encodedParams) {
+        String timestamp = timestampService.getTimestampInSeconds();
+        String nonce = timestampService.getNonce();
+        request.addOAuthParameter(OAuthConstants.TOKEN, "");
+        request.addOAuthParameter(OAuthConstants.TIMESTAMP, timestamp);
+        request.addOAuthParameter(OAuthConstants.NONCE, nonce);
+        request.addOAuthParameter(OAuthConstants.CONSUMER_KEY, apiKey);
+        request.addOAuthParameter(OAuthConstants.SIGN_METHOD, SIGNATURE_METHOD);
+        request.addOAuthParameter(OAuthConstants.VERSION, OAUTH_VERSION);
+
+        int count = encodedParams == null ? 0 : encodedParams.length;
+        String[] params = new String[count + 12];
+        if(count > 0) {
+            System.arraycopy(encodedParams, 0, params, 0, count);
+        }
+        //the names of the OAuth parameters, and the method and version, need no encoding
+        params[count] = OAuthConstants.TOKEN;
+        params[count + 1] = "";
+        params[count + 2] = OAuthConstants.TIMESTAMP;
+        params[count + 3] = PercentEncoder.encode(timestamp);
+        params[count + 4] = OAuthConstants.NONCE;
+        params[count + 5] = PercentEncoder.encode(nonce);
+        params[count + 6] = OAuthConstants.CONSUMER_KEY;
+        params[count + 7] = encodedApiKey;
+        params[count + 8] = OAuthConstants.SIGN_METHOD;
+        params[count + 9] = SIGNATURE_METHOD;
+        params[count + 10] = OAuthConstants.VERSION;
+        params[count + 11] = OAUTH_VERSION;
+        sortPairs(params);
+
+        //the verb, the URL without its query, and the parameters joined with & and =, each encoded again (RFC 5849 3.4.1)
+        Signing signing = acquire();
+        String signature;
+        try {
+            StringBuilder base = signing.baseString;
+            base.setLength(0);
+            base.append(request.getVerb().name()).append('&');
+            String url = request.getUrl();
+            int query = url.indexOf('?');
+            PercentEncoder.encode(url, 0, query == -1 ? url.length() : query, base).append('&');
+            for(int i = 0; i < params.length; i += 2) {
+                if(i > 0) {
+                    base.append("%26");
+                }
+                PercentEncoder.encode(params[i], base).append("%3D");
+                PercentEncoder.encode(params[i + 1], base);
+            }
+            signature = getSignature(signing);
+        }
+        finally {
+            release(signing);
+        }
+        request.addOAuthParameter(OAuthConstants.SIGNATURE, signature);
+        request.addHeader(OAuthConstants.HEADER, headerExtractor.extract(request));
+    }
+
+    /**
+     * sort names and values, alternating in an array, by name and then by value. an insertion sort, since a request has
+     * tens of parameters at most
+     */
+    private static void sortPairs(String[] params) {
+        for(int i = 2; i < params.length; i += 2) {
+            String name = params[i];
+            String value = params[i + 1];
+            int j = i - 2;
+            while(j >= 0 && compare(params[j], params[j + 1], name, value) > 0) {
+                params[j + 2] = params[j];
+                params[j + 3] = params[j + 1];
+                j -= 2;
+            }
+            params[j + 2] = name;
+            params[j + 3] = value;
+        }
+    }
+
+    private static int compare(String name1, String value1, String name2, String value2) {
+        int byName = name1.compareTo(name2);
+        return byName != 0 ? byName : value1.compareTo(value2);
+    }
+
+    /**
+     * sign the base string in a pooled buffer. an encoded base string is all ASCII, so each character is one byte
+     */
+    private String getSignature(Signing signing) {
+        StringBuilder base = signing.baseString;
+        int length = base.length();
+        if(signing.bytes.length < length) {
+            signing.bytes = new byte[Math.max(length, signing.bytes.length * 2)];
+        }
+        byte[] bytes = signing.bytes;
+        for(int i = 0; i < length; i++) {
+            bytes[i] = (byte)base.charAt(i);
+        }
+        Mac mac = signing.mac;
+        mac.update(bytes, 0, length);
+        try {
+            return new String(Base64.encodeBase64(mac.doFinal()), UTF8);
+        }
+        catch(UnsupportedEncodingException e) {
+            throw new OAuthSignatureException(base.toString(), e);
+        }
+    }
+
+    /**
+     * compute the HMAC-SHA1 signature of an OAuth base string
+     * @param baseString the base string to sign
+     * @return the base64 encoded signature
+     */
+    public String getSignature(String baseString) {
+        Signing signing = acquire();
+        try {
+            byte[] signature = signing.mac.doFinal(baseString.getBytes(UTF8));
+            return new String(Base64.encodeBase64(signature), UTF8);
+        }
+        catch(UnsupportedEncodingException e) {
+            throw new OAuthSignatureException(baseString, e);
+        }
+        finally {
+            release(signing);
+        }
+    }
+
+    private Signing acquire() {
+        Signing signing = pool.poll();
+        if(signing != null) {
+            pooled.decrementAndGet();
+            return signing;
+        }
+        try {
+            Mac mac = Mac.getInstance(HMAC_SHA1);
+            mac.init(key);
+            return new Signing(mac);
+        }
+        catch(GeneralSecurityException e) {
+            throw new OAuthSignatureException(HMAC_SHA1, e);
+        }
+    }
+
+    private void release(Signing signing) {
+        if(pooled.incrementAndGet() <= MAX_POOLED) {
+            pool.offer(signing);
+        }
+        else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    /**
+     * a Mac initialized with the signing key, and the buffers to build and sign base strings in. kept between requests
+     * so that the buffers are only grown, never allocated again
+     */
+    private static class Signing {
+        final Mac mac;
+        final StringBuilder baseString = new StringBuilder(512);
+        byte[] bytes = new byte[512];
+
+        Signing(Mac mac) {
+            this.mac = mac;
+        }
+    }
+
+    private static class PerThreadTimestampService implements TimestampService {
+        private final ThreadLocal<Random> randoms = new ThreadLocal<Random>() {
+            @Override
+            protected Random initialValue() {
+                return new Random();
+            }
+        };
+
+        @Override
+        public String getTimestampInSeconds() {
+            return String.valueOf(System.currentTimeMillis() / 1000L);
+        }
+
+        @Override
+        public String getNonce() {
+            return String.valueOf(System.currentTimeMillis() / 1000L + randoms.get().nextInt());
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.net;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs work that mustn't be done on the thread that asked for it, such as a retry or a redirect reported on the event
+ * loop of {@link NioHttpTransport}, which may block on a connection, a rate limit or the in flight limit. the work runs
+ * on the StackMob object's executor if it has one, or else on a pool of daemon threads shared by every StackMob object.
+ * delayed work waits on a single timer thread, which only hands it over when it's due, so one slow task can't hold up
+ * the others
+ */
+public class StackMobWorkers {
+
+    private static ScheduledExecutorService timer = null;
+    private static ExecutorService workers = null;
+
+    private StackMobWorkers() {}
+
+    /**
+     * run a task on another thread
+     * @param task the task, which may block
+     * @param executor the executor to run it on, or null for the shared workers. if the executor rejects the task, it runs
+     * on the shared workers instead, so that it isn't lost
+     */
+    public static void execute(Runnable task, Executor executor) {
+        if(executor != null) {
+            try {
+                executor.execute(task);
+                return;
+            }
+            catch(RejectedExecutionException e) {
+                //fall through to the shared workers
+            }
+        }
+        getWorkers().execute(task);
+    }
+
+    /**
+     * run a task on another thread, once a delay has passed
+     * @param task the task, which may block
+     * @param delay how long to wait first
+     * @param unit the unit of delay
+     * @param executor the executor to run it on, or null for the shared workers
+     */
+    public static void schedule(final Runnable task, long delay, TimeUnit unit, final Executor executor) {
+        if(delay <= 0) {
+            execute(task, executor);
+            return;
+        }
+        getTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                execute(task, executor);
+            }
+        }, delay, unit);
+    }
+
+    private static synchronized ScheduledExecutorService getTimer() {
+        if(timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(newThreadFactory("StackMob timer"));
+        }
+        return timer;
+    }
+
+    private static synchronized ExecutorService getWorkers() {
+        if(workers == null) {
+            //idle workers are let go after a minute, so a burst of work doesn't leave threads behind
+            workers = Executors.newCachedThreadPool(newThreadFactory("StackMob worker"));
+        }
+        return workers;
+    }
+
+    private static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
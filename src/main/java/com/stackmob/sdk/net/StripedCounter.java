@@ -0,0 +1,68 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.net;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can add to at once without fighting over one cache line. each thread adds to one of
+ * several cells, chosen by its id, and reading the counter sums the cells. a sum taken while other threads are adding
+ * may miss some of their adds, but never counts one twice
+ */
+final class StripedCounter {
+
+    //the cells are this many longs apart, so that each sits on a cache line of its own
+    private static final int PADDING = 16;
+    static final int STRIPES = stripes();
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    void add(long delta) {
+        cells.addAndGet(index() * PADDING, delta);
+    }
+
+    void increment() {
+        add(1);
+    }
+
+    long sum() {
+        long sum = 0;
+        for(int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    /**
+     * @return the stripe of the current thread, between 0 and STRIPES - 1
+     */
+    static int index() {
+        long id = Thread.currentThread().getId();
+        return (int)(id ^ (id >>> 16)) & (STRIPES - 1);
+    }
+
+    /**
+     * @return a power of two no larger than 16 and no larger than twice the number of processors
+     */
+    private static int stripes() {
+        int stripes = 1;
+        while(stripes < 16 && stripes < Runtime.getRuntime().availableProcessors() * 2) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+}
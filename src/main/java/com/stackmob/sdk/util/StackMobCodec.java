@@ -0,0 +1,132 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.util;
+
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonSyntaxException;
+import com.stackmob.sdk.push.StackMobPushToken;
+import com.stackmob.sdk.push.StackMobPushTokenDeserializer;
+import com.stackmob.sdk.push.StackMobPushTokenSerializer;
+
+/**
+ * The JSON serialization engine shared by every request made through a single StackMob session.
+ * Building a Gson instance is expensive, so the codec builds one up front and hands the same instance to every request.
+ *
+ * A few notes about this object:
+ * <ul>
+ *     <li>this class is thread safe. Gson instances are immutable, and registrations swap in a freshly built instance</li>
+ *     <li>register your own type adapters once, at startup, before you start making requests. each registration rebuilds the underlying Gson instance</li>
+ *     <li>adapters are applied in registration order, after the built in {@link StackMobPushToken} adapters</li>
+ * </ul>
+ */
+public class StackMobCodec {
+
+    private static class Registration {
+        private final Type type;
+        private final Object adapter;
+        private final boolean hierarchy;
+
+        private Registration(Type type, Object adapter, boolean hierarchy) {
+            this.type = type;
+            this.adapter = adapter;
+            this.hierarchy = hierarchy;
+        }
+    }
+
+    private final List<Registration> registrations = new ArrayList<Registration>();
+    private final Object registrationLock = new Object();
+    private volatile Gson gson;
+
+    public StackMobCodec() {
+        gson = build(registrations);
+    }
+
+    /**
+     * register a custom serializer, deserializer or instance creator for a specific type
+     * @param type the type to which the adapter applies
+     * @param typeAdapter a JsonSerializer, JsonDeserializer or InstanceCreator, as accepted by {@link GsonBuilder#registerTypeAdapter(Type, Object)}
+     * @return this codec, so registrations can be chained
+     */
+    public StackMobCodec registerTypeAdapter(Type type, Object typeAdapter) {
+        return register(new Registration(type, typeAdapter, false));
+    }
+
+    /**
+     * register a custom serializer or deserializer for a class and all of its subclasses
+     * @param baseType the class whose hierarchy the adapter applies to
+     * @param typeAdapter a JsonSerializer or JsonDeserializer, as accepted by {@link GsonBuilder#registerTypeHierarchyAdapter(Class, Object)}
+     * @return this codec, so registrations can be chained
+     */
+    public StackMobCodec registerTypeHierarchyAdapter(Class<?> baseType, Object typeAdapter) {
+        return register(new Registration(baseType, typeAdapter, true));
+    }
+
+    /**
+     * get the Gson instance that this codec currently uses. the returned instance is safe to share between threads
+     * @return the Gson instance
+     */
+    public Gson getGson() {
+        return gson;
+    }
+
+    public String toJson(Object object) {
+        return gson.toJson(object);
+    }
+
+    public <T> T fromJson(String json, Class<T> classOfT) throws JsonSyntaxException {
+        return gson.fromJson(json, classOfT);
+    }
+
+    public <T> T fromJson(String json, Type typeOfT) throws JsonSyntaxException {
+        return gson.fromJson(json, typeOfT);
+    }
+
+    public <T> T fromJson(JsonElement json, Class<T> classOfT) throws JsonSyntaxException {
+        return gson.fromJson(json, classOfT);
+    }
+
+    private StackMobCodec register(Registration registration) {
+        synchronized(registrationLock) {
+            registrations.add(registration);
+            gson = build(registrations);
+        }
+        return this;
+    }
+
+    private static Gson build(List<Registration> registrations) {
+        GsonBuilder gsonBuilder = new GsonBuilder()
+                                  .registerTypeAdapter(StackMobPushToken.class, new StackMobPushTokenDeserializer())
+                                  .registerTypeAdapter(StackMobPushToken.class, new StackMobPushTokenSerializer())
+                                  .excludeFieldsWithModifiers(Modifier.PRIVATE, Modifier.PROTECTED, Modifier.TRANSIENT, Modifier.STATIC);
+        for(Registration registration : registrations) {
+            if(registration.hierarchy) {
+                gsonBuilder.registerTypeHierarchyAdapter((Class<?>)registration.type, registration.adapter);
+            }
+            else {
+                gsonBuilder.registerTypeAdapter(registration.type, registration.adapter);
+            }
+        }
+        return gsonBuilder.create();
+    }
+}
@@ -0,0 +1,220 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.CachingHttpTransport;
+import com.stackmob.sdk.stub.StubServer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CachingHttpTransportTests {
+
+    private static final StackMobRedirectedCallback noopRedirectedCallback = new StackMobRedirectedCallback() {
+        @Override
+        public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {}
+    };
+
+    private static final StackMobCallback noopCallback = new StackMobCallback() {
+        @Override
+        public void success(String responseBody) {}
+        @Override
+        public void failure(StackMobException e) {}
+    };
+
+    /**
+     * serves a versioned body with the given caching headers, and answers conditional gets for the current version with a 304
+     */
+    private static class VersionedHandler implements HttpHandler {
+        final AtomicInteger version = new AtomicInteger(1);
+        final AtomicInteger notModified = new AtomicInteger(0);
+        private final String cacheControl;
+
+        VersionedHandler(String cacheControl) {
+            this.cacheControl = cacheControl;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if(!exchange.getRequestMethod().equals("GET")) {
+                version.incrementAndGet();
+                StubServer.send(exchange, 200, "{}");
+                return;
+            }
+            String etag = "\"v" + version.get() + "\"";
+            exchange.getResponseHeaders().set("ETag", etag);
+            if(cacheControl != null) {
+                exchange.getResponseHeaders().set("Cache-Control", cacheControl);
+            }
+            if(etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                notModified.incrementAndGet();
+                StubServer.send(exchange, 304, "");
+            }
+            else {
+                StubServer.send(exchange, 200, "{\"version\":" + version.get() + "}");
+            }
+        }
+    }
+
+    private StubServer server;
+    private StackMob stackmob;
+    private CachingHttpTransport cache;
+
+    private void start(String path, HttpHandler handler) throws IOException {
+        server = new StubServer().handle(path, handler);
+        stackmob = new StackMob("key", "secret", "user", 0, server.getHost(), noopRedirectedCallback);
+        cache = new CachingHttpTransport(stackmob.getTransport());
+        stackmob.setTransport(cache);
+    }
+
+    @After
+    public void tearDown() {
+        stackmob.shutdown();
+        server.stop();
+    }
+
+    private String get(String path) throws Exception {
+        return stackmob.get(path, noopCallback).get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void freshResponsesAreServedFromTheCache() throws Exception {
+        start("/game", new VersionedHandler("max-age=60"));
+        for(int i = 0; i < 5; i++) {
+            assertEquals("{\"version\":1}", get("game"));
+        }
+        assertEquals(1, server.getRequestCount());
+        assertEquals(4L, cache.getHitCount());
+        assertEquals(1L, cache.getMissCount());
+        assertEquals(0L, cache.getRevalidationCount());
+    }
+
+    @Test
+    public void staleResponsesAreRevalidated() throws Exception {
+        VersionedHandler handler = new VersionedHandler("no-cache");
+        start("/game", handler);
+        for(int i = 0; i < 3; i++) {
+            assertEquals("{\"version\":1}", get("game"));
+        }
+        assertEquals(3, server.getRequestCount());
+        assertEquals(2, handler.notModified.get());
+        assertEquals(2L, cache.getRevalidationCount());
+        assertEquals(0L, cache.getHitCount());
+    }
+
+    @Test
+    public void lastModifiedIsRevalidated() throws Exception {
+        final AtomicInteger conditional = new AtomicInteger(0);
+        start("/game", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String lastModified = "Tue, 15 Nov 2011 08:12:31 GMT";
+                exchange.getResponseHeaders().set("Last-Modified", lastModified);
+                if(lastModified.equals(exchange.getRequestHeaders().getFirst("If-Modified-Since"))) {
+                    conditional.incrementAndGet();
+                    StubServer.send(exchange, 304, "");
+                }
+                else {
+                    StubServer.send(exchange, 200, "[]");
+                }
+            }
+        });
+        assertEquals("[]", get("game"));
+        assertEquals("[]", get("game"));
+        assertEquals(1, conditional.get());
+        assertEquals(1L, cache.getRevalidationCount());
+    }
+
+    @Test
+    public void queryParameterOrderDoesNotMatter() throws Exception {
+        start("/game", new VersionedHandler("max-age=60"));
+        Map<String, String> first = new LinkedHashMap<String, String>();
+        first.put("name", "chess");
+        first.put("players[lt]", "3");
+        Map<String, String> second = new LinkedHashMap<String, String>();
+        second.put("players[lt]", "3");
+        second.put("name", "chess");
+        stackmob.get("game", first, noopCallback).get(10, TimeUnit.SECONDS);
+        stackmob.get("game", second, noopCallback).get(10, TimeUnit.SECONDS);
+        assertEquals(1, server.getRequestCount());
+        assertEquals(1L, cache.getHitCount());
+    }
+
+    @Test
+    public void updatesInvalidateTheirObjectType() throws Exception {
+        start("/game", new VersionedHandler("max-age=60"));
+        assertEquals("{\"version\":1}", get("game"));
+        assertEquals("{\"version\":1}", get("game/1234"));
+        Map<String, String> update = new HashMap<String, String>();
+        update.put("name", "go");
+        stackmob.put("game", "1234", update, noopCallback).get(10, TimeUnit.SECONDS);
+        assertEquals(0, cache.getEntryCount());
+        assertEquals("{\"version\":2}", get("game"));
+        stackmob.delete("game", "1234", noopCallback).get(10, TimeUnit.SECONDS);
+        assertEquals("{\"version\":3}", get("game"));
+        assertEquals(0L, cache.getHitCount());
+    }
+
+    @Test
+    public void rangedGetsBypassTheCache() throws Exception {
+        start("/game", new VersionedHandler("max-age=60"));
+        for(int i = 0; i < 2; i++) {
+            stackmob.get(new StackMobQuery("game").isInRange(0, 9), noopCallback).get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(2, server.getRequestCount());
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    @Test
+    public void noStoreResponsesAreNotCached() throws Exception {
+        start("/game", new VersionedHandler("no-store"));
+        get("game");
+        get("game");
+        assertEquals(2, server.getRequestCount());
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    @Test
+    public void leastRecentlyUsedEntriesAreEvicted() throws Exception {
+        start("/game", new VersionedHandler("max-age=60"));
+        cache.setMaxEntries(2);
+        get("game/1");
+        get("game/2");
+        get("game/1");
+        get("game/3");
+        assertEquals(2, cache.getEntryCount());
+        get("game/1");
+        assertEquals(3, server.getRequestCount());
+        get("game/2");
+        assertEquals(4, server.getRequestCount());
+    }
+}
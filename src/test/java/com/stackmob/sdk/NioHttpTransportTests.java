@@ -0,0 +1,312 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobFuture;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.NioHttpTransport;
+import com.stackmob.sdk.net.StackMobHttpCallback;
+import com.stackmob.sdk.net.StackMobHttpResponse;
+import com.stackmob.sdk.stub.FaultInjectingHandler;
+import com.stackmob.sdk.stub.StubServer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scribe.model.OAuthRequest;
+import org.scribe.model.Verb;
+import static org.junit.Assert.*;
+
+public class NioHttpTransportTests {
+
+    private static final StackMobRedirectedCallback noopRedirectedCallback = new StackMobRedirectedCallback() {
+        @Override
+        public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {}
+    };
+
+    private static class RecordingCallback implements StackMobCallback {
+        final AtomicInteger successes = new AtomicInteger(0);
+        final AtomicInteger failures = new AtomicInteger(0);
+        final AtomicReference<String> lastBody = new AtomicReference<String>();
+        final AtomicReference<String> lastThread = new AtomicReference<String>();
+
+        @Override
+        public void success(String responseBody) {
+            successes.incrementAndGet();
+            lastBody.set(responseBody);
+            lastThread.set(Thread.currentThread().getName());
+        }
+
+        @Override
+        public void failure(StackMobException e) {
+            failures.incrementAndGet();
+            lastThread.set(Thread.currentThread().getName());
+        }
+    }
+
+    private StubServer server;
+    private NioHttpTransport transport;
+    private StackMob stackmob;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StubServer().respond("/game", 200, "{\"game_id\":\"1\"}");
+        transport = new NioHttpTransport();
+        stackmob = new StackMob("key", "secret", "user", 0, server.getHost(), noopRedirectedCallback).setTransport(transport);
+    }
+
+    @After
+    public void tearDown() {
+        stackmob.shutdown();
+        server.stop();
+    }
+
+    private static void awaitAll(List<StackMobFuture> futures) throws InterruptedException, java.util.concurrent.TimeoutException {
+        for(StackMobFuture future : futures) {
+            try {
+                future.get(30, TimeUnit.SECONDS);
+            }
+            catch(ExecutionException e) {
+                //counted by the callback
+            }
+        }
+    }
+
+    @Test
+    public void requestsCompleteOnTheEventLoop() throws Exception {
+        transport.setMaxConnectionsPerHost(8);
+        RecordingCallback callback = new RecordingCallback();
+        List<StackMobFuture> futures = new ArrayList<StackMobFuture>();
+        int requests = 2000;
+        for(int i = 0; i < requests; i++) {
+            futures.add(stackmob.get("game", callback));
+        }
+        awaitAll(futures);
+        assertEquals(0, callback.failures.get());
+        assertEquals(requests, callback.successes.get());
+        assertEquals("{\"game_id\":\"1\"}", callback.lastBody.get());
+        assertEquals("StackMob NIO event loop", callback.lastThread.get());
+        assertTrue(transport.getConnectionsOpened() <= 8);
+        assertEquals(requests, server.getRequestCount());
+    }
+
+    @Test
+    public void oneThreadKeepsThousandsOfRequestsInFlight() throws Exception {
+        //long enough that the first response can't arrive before the last request is submitted, even on a slow machine
+        long latencyMs = 3000;
+        int requests = 2000;
+        server.setLatency(latencyMs, TimeUnit.MILLISECONDS);
+        transport.setMaxConnectionsPerHost(requests);
+        RecordingCallback callback = new RecordingCallback();
+        List<StackMobFuture> futures = new ArrayList<StackMobFuture>();
+        long start = System.nanoTime();
+        for(int i = 0; i < requests; i++) {
+            futures.add(stackmob.get("game", callback));
+        }
+        //nothing has had time to come back, and the calling thread was never blocked
+        assertFalse(futures.get(0).isDone());
+        awaitAll(futures);
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(0, callback.failures.get());
+        assertEquals(requests, callback.successes.get());
+        //one request at a time would take latencyMs * requests
+        assertTrue("took " + elapsedMs + "ms", elapsedMs < latencyMs * 20);
+        assertTrue(server.getConnectionCount() > 100);
+    }
+
+    @Test
+    public void chunkedResponsesAreParsed() throws Exception {
+        server.handle("/chunked", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream out = exchange.getResponseBody();
+                for(int i = 0; i < 100; i++) {
+                    out.write(("{\"part\":" + i + "}").getBytes("UTF-8"));
+                    out.flush();
+                }
+                out.close();
+            }
+        });
+        StringBuilder expected = new StringBuilder();
+        for(int i = 0; i < 100; i++) {
+            expected.append("{\"part\":").append(i).append("}");
+        }
+        RecordingCallback callback = new RecordingCallback();
+        for(int i = 0; i < 10; i++) {
+            stackmob.get("chunked", callback).get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(10, callback.successes.get());
+        assertEquals(expected.toString(), callback.lastBody.get());
+        assertEquals(1L, transport.getConnectionsOpened());
+    }
+
+    @Test
+    public void postBodiesAreSent() throws Exception {
+        server.handle("/echo", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                StubServer.send(exchange, 201, StubServer.readBody(exchange));
+            }
+        });
+        RecordingCallback callback = new RecordingCallback();
+        stackmob.post("echo", new Count(42), callback).get(10, TimeUnit.SECONDS);
+        assertEquals("{\"count\":42}", callback.lastBody.get());
+    }
+
+    @Test
+    public void readTimeoutFails() throws Exception {
+        server.setLatency(1000, TimeUnit.MILLISECONDS);
+        transport.setReadTimeout(100, TimeUnit.MILLISECONDS);
+        RecordingCallback callback = new RecordingCallback();
+        try {
+            stackmob.get("game", callback).get(10, TimeUnit.SECONDS);
+            fail("expected the request to time out");
+        }
+        catch(ExecutionException e) {
+            assertTrue(e.getCause() instanceof StackMobException);
+        }
+        assertEquals(1, callback.failures.get());
+        assertEquals(0, transport.getOpenConnectionCount());
+    }
+
+    @Test
+    public void idleConnectionsAreClosed() throws Exception {
+        transport.setIdleTimeout(100, TimeUnit.MILLISECONDS);
+        RecordingCallback callback = new RecordingCallback();
+        stackmob.get("game", callback).get(10, TimeUnit.SECONDS);
+        assertEquals(1, transport.getIdleConnectionCount());
+        Thread.sleep(400);
+        assertEquals(0, transport.getIdleConnectionCount());
+        assertEquals(0, transport.getOpenConnectionCount());
+
+        stackmob.get("game", callback).get(10, TimeUnit.SECONDS);
+        assertEquals(2, callback.successes.get());
+        assertEquals(2L, transport.getConnectionsOpened());
+    }
+
+    @Test
+    public void shutdownFailsRequestsInFlight() throws Exception {
+        server.setLatency(1000, TimeUnit.MILLISECONDS);
+        RecordingCallback callback = new RecordingCallback();
+        List<StackMobFuture> futures = new ArrayList<StackMobFuture>();
+        for(int i = 0; i < 10; i++) {
+            futures.add(stackmob.get("game", callback));
+        }
+        stackmob.shutdown();
+        awaitAll(futures);
+        assertEquals(10, callback.failures.get());
+
+        stackmob.get("game", callback);
+        assertEquals(11, callback.failures.get());
+    }
+
+    /**
+     * records the outcome of a request sent straight through the transport
+     */
+    private static class TransportCallback implements StackMobHttpCallback {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger code = new AtomicInteger(0);
+        final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+
+        @Override
+        public void response(StackMobHttpResponse response) {
+            code.set(response.getCode());
+            done.countDown();
+        }
+
+        @Override
+        public void failure(IOException e) {
+            failure.set(e);
+            done.countDown();
+        }
+    }
+
+    private TransportCallback send(Verb verb) throws InterruptedException {
+        OAuthRequest request = new OAuthRequest(verb, "http://" + server.getHost() + "/drop");
+        if(verb == Verb.POST) {
+            request.addPayload("{\"count\":1}");
+        }
+        TransportCallback callback = new TransportCallback();
+        transport.send(request, callback);
+        assertTrue(callback.done.await(10, TimeUnit.SECONDS));
+        return callback;
+    }
+
+    /**
+     * serve /drop with 200s until told to drop connections
+     */
+    private FaultInjectingHandler dropHandler() {
+        FaultInjectingHandler handler = new FaultInjectingHandler(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                StubServer.readBody(exchange);
+                StubServer.send(exchange, 200, "{}");
+            }
+        });
+        server.handle("/drop", handler);
+        return handler;
+    }
+
+    @Test
+    public void getIsSentAgainWhenAReusedConnectionDrops() throws Exception {
+        FaultInjectingHandler handler = dropHandler();
+        assertEquals(200, send(Verb.GET).code.get());
+        handler.failNext(1, FaultInjectingHandler.DROP);
+        TransportCallback callback = send(Verb.GET);
+        assertNull(callback.failure.get());
+        assertEquals(200, callback.code.get());
+        assertEquals(3, server.getRequestCount());
+        assertEquals(2L, transport.getConnectionsOpened());
+    }
+
+    @Test
+    public void postIsNotSentAgainWhenAReusedConnectionDrops() throws Exception {
+        FaultInjectingHandler handler = dropHandler();
+        assertEquals(200, send(Verb.POST).code.get());
+        handler.failNext(1, FaultInjectingHandler.DROP);
+        TransportCallback callback = send(Verb.POST);
+        //left to the retry policy
+        assertNotNull(callback.failure.get());
+        assertEquals(2, server.getRequestCount());
+        assertEquals(1L, transport.getConnectionsOpened());
+    }
+
+    private static class Count {
+        public int count;
+
+        Count(int count) {
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk;
+
+import com.stackmob.sdk.net.PercentEncoder;
+import org.junit.Test;
+import org.scribe.utils.URLUtils;
+import static org.junit.Assert.*;
+
+public class PercentEncoderTests {
+
+    private static final String[] STRINGS = {
+        "", "game", "score[lt]", "one,two", "a b+c", "x*y~z", "100%", "a&b=c", "/path?q#frag", "ünïcødé", "日本語",
+        "emoji 😀", "-._~", "\u0000\u007f\u0080߿ࠀ￿"
+    };
+
+    @Test
+    public void matchesScribe() {
+        for(String s : STRINGS) {
+            assertEquals(s, URLUtils.percentEncode(s), PercentEncoder.encode(s));
+            assertEquals(s, "prefix" + URLUtils.percentEncode(s), PercentEncoder.encode(s, new StringBuilder("prefix")).toString());
+        }
+    }
+
+    @Test
+    public void safeStringsAreNotCopied() {
+        String safe = "score_id";
+        assertSame(safe, PercentEncoder.encode(safe));
+        assertTrue(PercentEncoder.isUnreserved(safe));
+        assertFalse(PercentEncoder.isUnreserved("score[lt]"));
+    }
+
+    @Test
+    public void ranges() {
+        assertEquals("b%20c", PercentEncoder.encode("ab cd", 1, 4, new StringBuilder()).toString());
+        assertEquals("", PercentEncoder.encode("abc", 2, 2, new StringBuilder()).toString());
+    }
+
+    @Test
+    public void loneSurrogates() {
+        //as String.getBytes does, since they have no UTF-8 encoding
+        assertEquals("a%3Fb", PercentEncoder.encode("a\uD83Db"));
+        assertEquals("a%3F", PercentEncoder.encode("a\uDE00"));
+        assertEquals("%3F", PercentEncoder.encode("\uD83D"));
+    }
+
+    @Test
+    public void paths() {
+        assertEquals("/game/1234", PercentEncoder.encodePath("/game/1234", new StringBuilder()).toString());
+        assertEquals("/game/my%20game%3F", PercentEncoder.encodePath("/game/my game?", new StringBuilder()).toString());
+        //escapes and the characters a path may hold are kept
+        assertEquals("/user/a%20b/x:y@z!$&'()*+,;=", PercentEncoder.encodePath("/user/a%20b/x:y@z!$&'()*+,;=", new StringBuilder()).toString());
+        assertEquals("/game/%C3%BC", PercentEncoder.encodePath("/game/ü", new StringBuilder()).toString());
+    }
+
+    @Test
+    public void queries() {
+        assertEquals("name=one&score%5Blt%5D=5", PercentEncoder.encodeQuery("name=one&score[lt]=5", new StringBuilder()).toString());
+        assertEquals("q=a%20b?c/d&x=%2F", PercentEncoder.encodeQuery("q=a b?c/d&x=%2F", new StringBuilder()).toString());
+        assertEquals("q=a%23b", PercentEncoder.encodeQuery("q=a#b", new StringBuilder()).toString());
+    }
+}
@@ -0,0 +1,288 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.Collections;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobFuture;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.PooledHttpTransport;
+import com.stackmob.sdk.net.StackMobHttpResponse;
+import com.stackmob.sdk.stub.FaultInjectingHandler;
+import com.stackmob.sdk.stub.StubServer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scribe.model.OAuthRequest;
+import org.scribe.model.Verb;
+import static org.junit.Assert.*;
+
+public class PooledHttpTransportTests {
+
+    private static final StackMobRedirectedCallback noopRedirectedCallback = new StackMobRedirectedCallback() {
+        @Override
+        public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {}
+    };
+
+    private static class RecordingCallback implements StackMobCallback {
+        final AtomicInteger successes = new AtomicInteger(0);
+        final AtomicReference<String> lastBody = new AtomicReference<String>();
+        final AtomicReference<StackMobException> lastFailure = new AtomicReference<StackMobException>();
+
+        @Override
+        public void success(String responseBody) {
+            successes.incrementAndGet();
+            lastBody.set(responseBody);
+        }
+
+        @Override
+        public void failure(StackMobException e) {
+            lastFailure.set(e);
+        }
+    }
+
+    private StubServer server;
+    private PooledHttpTransport transport;
+    private StackMob stackmob;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StubServer().respond("/game", 200, "{\"game_id\":\"1\"}");
+        transport = new PooledHttpTransport();
+        stackmob = new StackMob("key", "secret", "user", 0, server.getHost(), noopRedirectedCallback).setTransport(transport);
+    }
+
+    @After
+    public void tearDown() {
+        stackmob.shutdown();
+        server.stop();
+    }
+
+    @Test
+    public void sequentialRequestsReuseOneConnection() {
+        RecordingCallback callback = new RecordingCallback();
+        int requests = 2000;
+        for(int i = 0; i < requests; i++) {
+            stackmob.get("game", callback);
+        }
+        assertNull(callback.lastFailure.get());
+        assertEquals(requests, callback.successes.get());
+        assertEquals("{\"game_id\":\"1\"}", callback.lastBody.get());
+        assertEquals(requests, server.getRequestCount());
+        assertEquals(1, server.getConnectionCount());
+        assertEquals(1L, transport.getConnectionsOpened());
+        assertEquals(1, transport.getIdleConnectionCount());
+    }
+
+    @Test
+    public void concurrentRequestsStayWithinPoolSize() throws Exception {
+        int poolSize = 4;
+        transport.setMaxConnectionsPerHost(poolSize);
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            stackmob.setExecutor(executor);
+            RecordingCallback callback = new RecordingCallback();
+            List<StackMobFuture> futures = new ArrayList<StackMobFuture>();
+            int requests = 1000;
+            for(int i = 0; i < requests; i++) {
+                futures.add(stackmob.get("game", callback));
+            }
+            for(StackMobFuture future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+            assertNull(callback.lastFailure.get());
+            assertEquals(requests, callback.successes.get());
+            assertTrue(server.getConnectionCount() <= poolSize);
+            assertTrue(transport.getConnectionsOpened() <= poolSize);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void postBodiesAreSentOnReusedConnections() {
+        server.handle("/echo", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                StubServer.send(exchange, 201, StubServer.readBody(exchange));
+            }
+        });
+        RecordingCallback callback = new RecordingCallback();
+        for(int i = 0; i < 100; i++) {
+            stackmob.post("echo", new Count(i), callback);
+            assertEquals("{\"count\":" + i + "}", callback.lastBody.get());
+        }
+        assertNull(callback.lastFailure.get());
+        assertEquals(1L, transport.getConnectionsOpened());
+    }
+
+    @Test
+    public void readTimeoutFails() {
+        server.handle("/slow", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    Thread.sleep(1000);
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                StubServer.send(exchange, 200, "{}");
+            }
+        });
+        transport.setReadTimeout(100, TimeUnit.MILLISECONDS);
+        RecordingCallback callback = new RecordingCallback();
+        stackmob.get("slow", callback);
+        assertEquals(0, callback.successes.get());
+        assertNotNull(callback.lastFailure.get());
+
+        //the timed out connection is discarded rather than pooled
+        assertEquals(0, transport.getIdleConnectionCount());
+    }
+
+    @Test
+    public void idleConnectionsAreEvicted() throws InterruptedException {
+        transport.setIdleTimeout(50, TimeUnit.MILLISECONDS);
+        RecordingCallback callback = new RecordingCallback();
+        stackmob.get("game", callback);
+        assertEquals(1, transport.getIdleConnectionCount());
+
+        Thread.sleep(150);
+        transport.evictIdleConnections();
+        assertEquals(0, transport.getIdleConnectionCount());
+
+        stackmob.get("game", callback);
+        assertNull(callback.lastFailure.get());
+        assertEquals(2, callback.successes.get());
+        assertEquals(2L, transport.getConnectionsOpened());
+    }
+
+    @Test
+    public void shutdownFailsLaterRequests() {
+        RecordingCallback callback = new RecordingCallback();
+        stackmob.get("game", callback);
+        stackmob.shutdown();
+        assertEquals(0, transport.getIdleConnectionCount());
+        stackmob.get("game", callback);
+        assertEquals(1, callback.successes.get());
+        assertNotNull(callback.lastFailure.get());
+    }
+
+    /**
+     * serve /drop with 200s until told to drop connections
+     */
+    private FaultInjectingHandler dropHandler() {
+        FaultInjectingHandler handler = new FaultInjectingHandler(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                StubServer.readBody(exchange);
+                StubServer.send(exchange, 200, "{}");
+            }
+        });
+        server.handle("/drop", handler);
+        return handler;
+    }
+
+    private OAuthRequest request(Verb verb) {
+        OAuthRequest request = new OAuthRequest(verb, "http://" + server.getHost() + "/drop");
+        if(verb == Verb.POST) {
+            request.addPayload("{\"count\":1}");
+        }
+        return request;
+    }
+
+    @Test
+    public void getIsSentAgainWhenAReusedConnectionDrops() throws IOException {
+        FaultInjectingHandler handler = dropHandler();
+        transport.execute(request(Verb.GET)).close();
+        handler.failNext(1, FaultInjectingHandler.DROP);
+        StackMobHttpResponse response = transport.execute(request(Verb.GET));
+        response.close();
+        assertEquals(200, response.getCode());
+        assertEquals(3, server.getRequestCount());
+        assertEquals(2L, transport.getConnectionsOpened());
+    }
+
+    @Test
+    public void postIsNotSentAgainWhenAReusedConnectionDrops() throws IOException {
+        FaultInjectingHandler handler = dropHandler();
+        transport.execute(request(Verb.POST)).close();
+        handler.failNext(1, FaultInjectingHandler.DROP);
+        try {
+            transport.execute(request(Verb.POST)).close();
+            fail("a post that reached the server shouldn't be sent again");
+        }
+        catch(IOException e) {
+            //left to the retry policy
+        }
+        assertEquals(2, server.getRequestCount());
+        assertEquals(1L, transport.getConnectionsOpened());
+    }
+
+    @Test
+    public void requestsGoThroughTheDefaultProxySelector() throws IOException {
+        final Proxy proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress("127.0.0.1", Integer.parseInt(server.getHost().split(":")[1])));
+        ProxySelector previous = ProxySelector.getDefault();
+        ProxySelector.setDefault(new ProxySelector() {
+            @Override
+            public List<Proxy> select(URI uri) {
+                return Collections.singletonList(proxy);
+            }
+
+            @Override
+            public void connectFailed(URI uri, SocketAddress address, IOException e) {}
+        });
+        try {
+            //the stub server plays the proxy, so a host that doesn't exist still gets an answer
+            StackMobHttpResponse response = transport.execute(new OAuthRequest(Verb.GET, "http://api.stackmob.invalid/game"));
+            assertEquals("{\"game_id\":\"1\"}", response.getBody());
+            response.close();
+            assertEquals(1, server.getRequestCount());
+        }
+        finally {
+            ProxySelector.setDefault(previous);
+        }
+    }
+
+    private static class Count {
+        public int count;
+
+        Count(int count) {
+            this.count = count;
+        }
+    }
+}
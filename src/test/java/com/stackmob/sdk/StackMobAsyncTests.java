@@ -0,0 +1,232 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobFuture;
+import com.stackmob.sdk.api.StackMobRequest;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class StackMobAsyncTests {
+
+    private static final long REQUEST_TIME_MS = 100L;
+
+    private static final StackMobCallback noopCallback = new StackMobCallback() {
+        @Override
+        public void success(String responseBody) {}
+        @Override
+        public void failure(StackMobException e) {}
+    };
+
+    private static final StackMobRedirectedCallback noopRedirectedCallback = new StackMobRedirectedCallback() {
+        @Override
+        public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {}
+    };
+
+    /**
+     * a StackMob object whose requests sleep instead of going to the network
+     */
+    private static class SleepingStackMob extends StackMob {
+        private final AtomicInteger concurrent = new AtomicInteger(0);
+        private final AtomicInteger maxConcurrent = new AtomicInteger(0);
+
+        public SleepingStackMob() {
+            super("key", "secret", "user", 0);
+        }
+
+        public StackMobFuture sleep(final String response, final StackMobCallback callback) {
+            return execute(new StackMobRequest(getSession(), "sleep", callback, noopRedirectedCallback) {
+                @Override
+                public void sendRequest() {
+                    int now = concurrent.incrementAndGet();
+                    while(true) {
+                        int max = maxConcurrent.get();
+                        if(now <= max || maxConcurrent.compareAndSet(max, now)) {
+                            break;
+                        }
+                    }
+                    try {
+                        Thread.sleep(REQUEST_TIME_MS);
+                    }
+                    catch(InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    concurrent.decrementAndGet();
+                    if(response == null) {
+                        this.callback.failure(new StackMobException("failed"));
+                    }
+                    else {
+                        this.callback.success(response);
+                    }
+                }
+            });
+        }
+
+        public StackMobFuture explode() {
+            return execute(new StackMobRequest(getSession(), "explode", noopCallback, noopRedirectedCallback) {
+                @Override
+                public void sendRequest() {
+                    throw new IllegalStateException("connection reset");
+                }
+            });
+        }
+    }
+
+    private ExecutorService executor = Executors.newFixedThreadPool(16);
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void synchronousByDefault() throws Exception {
+        SleepingStackMob stackmob = new SleepingStackMob();
+        StackMobFuture future = stackmob.sleep("done", noopCallback);
+        assertTrue(future.isDone());
+        assertEquals("done", future.get());
+    }
+
+    @Test
+    public void requestsFanOutOnExecutor() throws Exception {
+        SleepingStackMob stackmob = new SleepingStackMob();
+        stackmob.setExecutor(executor);
+        final AtomicInteger callbacks = new AtomicInteger(0);
+        StackMobCallback counting = new StackMobCallback() {
+            @Override
+            public void success(String responseBody) {
+                callbacks.incrementAndGet();
+            }
+            @Override
+            public void failure(StackMobException e) {
+                fail(e.getMessage());
+            }
+        };
+
+        long start = System.currentTimeMillis();
+        List<StackMobFuture> futures = new ArrayList<StackMobFuture>();
+        for(int i = 0; i < 16; i++) {
+            futures.add(stackmob.sleep("response" + i, counting));
+        }
+        assertTrue(System.currentTimeMillis() - start < REQUEST_TIME_MS * 4);
+        for(int i = 0; i < futures.size(); i++) {
+            assertEquals("response" + i, futures.get(i).get(5, TimeUnit.SECONDS));
+        }
+        assertTrue(System.currentTimeMillis() - start < REQUEST_TIME_MS * 16);
+        assertEquals(16, callbacks.get());
+        assertEquals(0, stackmob.getInFlightRequestCount());
+    }
+
+    @Test
+    public void inFlightRequestsAreCapped() throws Exception {
+        SleepingStackMob stackmob = new SleepingStackMob();
+        stackmob.setExecutor(executor).setMaxInFlightRequests(3);
+        List<StackMobFuture> futures = new ArrayList<StackMobFuture>();
+        for(int i = 0; i < 12; i++) {
+            futures.add(stackmob.sleep("ok", noopCallback));
+            assertTrue(stackmob.getInFlightRequestCount() <= 3);
+        }
+        for(StackMobFuture future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        assertTrue(stackmob.maxConcurrent.get() <= 3);
+        assertTrue(stackmob.maxConcurrent.get() > 1);
+    }
+
+    @Test
+    public void callbacksMaySendRequestsUnderTheLimit() throws Exception {
+        final SleepingStackMob stackmob = new SleepingStackMob();
+        stackmob.setExecutor(executor).setMaxInFlightRequests(1);
+        final AtomicReference<String> followUp = new AtomicReference<String>();
+        StackMobFuture first = stackmob.sleep("first", new StackMobCallback() {
+            @Override
+            public void success(String responseBody) {
+                try {
+                    //the first request's permit is already back, so this doesn't wait on itself
+                    followUp.set(stackmob.sleep("second", noopCallback).get(5, TimeUnit.SECONDS));
+                }
+                catch(Exception e) {
+                    followUp.set(e.toString());
+                }
+            }
+            @Override
+            public void failure(StackMobException e) {}
+        });
+        assertEquals("first", first.get(10, TimeUnit.SECONDS));
+        assertEquals("second", followUp.get());
+        assertEquals(0, stackmob.getInFlightRequestCount());
+    }
+
+    @Test
+    public void failuresSurfaceThroughFuture() throws Exception {
+        SleepingStackMob stackmob = new SleepingStackMob();
+        stackmob.setExecutor(executor);
+        try {
+            stackmob.sleep(null, noopCallback).get(5, TimeUnit.SECONDS);
+            fail("expected an ExecutionException");
+        }
+        catch(ExecutionException e) {
+            assertTrue(e.getCause() instanceof StackMobException);
+        }
+    }
+
+    @Test
+    public void uncheckedExceptionsBecomeFailures() throws Exception {
+        SleepingStackMob stackmob = new SleepingStackMob();
+        stackmob.setExecutor(executor).setMaxInFlightRequests(1);
+        for(int i = 0; i < 3; i++) {
+            try {
+                stackmob.explode().get(5, TimeUnit.SECONDS);
+                fail("expected an ExecutionException");
+            }
+            catch(ExecutionException e) {
+                assertEquals("connection reset", e.getCause().getMessage());
+            }
+        }
+        assertEquals(0, stackmob.getInFlightRequestCount());
+    }
+
+    @Test
+    public void pendingRequestsCanBeCancelled() throws Exception {
+        SleepingStackMob stackmob = new SleepingStackMob();
+        executor.shutdownNow();
+        executor = Executors.newSingleThreadExecutor();
+        stackmob.setExecutor(executor);
+        StackMobFuture first = stackmob.sleep("first", noopCallback);
+        StackMobFuture second = stackmob.sleep("second", noopCallback);
+        assertTrue(second.cancel(false));
+        assertTrue(second.isCancelled());
+        assertEquals("first", first.get(5, TimeUnit.SECONDS));
+        Thread.sleep(REQUEST_TIME_MS);
+        assertEquals(0, stackmob.getInFlightRequestCount());
+    }
+}
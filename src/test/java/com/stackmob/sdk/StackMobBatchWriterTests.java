@@ -0,0 +1,210 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobBatchWriter;
+import com.stackmob.sdk.api.StackMobFuture;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.stub.StubServer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class StackMobBatchWriterTests {
+
+    private static final StackMobRedirectedCallback noopRedirectedCallback = new StackMobRedirectedCallback() {
+        @Override
+        public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {}
+    };
+
+    private static final StackMobCallback noopCallback = new StackMobCallback() {
+        @Override
+        public void success(String responseBody) {}
+        @Override
+        public void failure(StackMobException e) {}
+    };
+
+    /**
+     * creates every object in the posted array, giving each one an id, and records the size of each batch
+     */
+    private static class BulkCreateHandler implements HttpHandler {
+        final List<Integer> batchSizes = new ArrayList<Integer>();
+        private final AtomicInteger nextId = new AtomicInteger(0);
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            JsonArray objects = new JsonParser().parse(StubServer.readBody(exchange)).getAsJsonArray();
+            synchronized(batchSizes) {
+                batchSizes.add(objects.size());
+            }
+            for(JsonElement object : objects) {
+                object.getAsJsonObject().addProperty("game_id", String.valueOf(nextId.getAndIncrement()));
+            }
+            StubServer.send(exchange, 201, objects.toString());
+        }
+    }
+
+    private static class Game {
+        public String name;
+
+        Game(String name) {
+            this.name = name;
+        }
+    }
+
+    private StubServer server;
+    private BulkCreateHandler handler;
+    private StackMob stackmob;
+    private StackMobBatchWriter writer;
+
+    @Before
+    public void setUp() throws IOException {
+        handler = new BulkCreateHandler();
+        server = new StubServer().handle("/game", handler).respond("/broken", 500, "{\"error\":\"broken\"}");
+        stackmob = new StackMob("key", "secret", "user", 0, server.getHost(), noopRedirectedCallback);
+        writer = new StackMobBatchWriter(stackmob);
+    }
+
+    @After
+    public void tearDown() {
+        writer.close();
+        stackmob.shutdown();
+        server.stop();
+    }
+
+    @Test
+    public void fullBatchesAreSentAndDemultiplexed() throws Exception {
+        writer.setMaxBatchSize(10).setLinger(1, TimeUnit.HOURS);
+        List<StackMobFuture> futures = new ArrayList<StackMobFuture>();
+        for(int i = 0; i < 100; i++) {
+            futures.add(writer.post("game", new Game("game " + i), noopCallback));
+        }
+        for(int i = 0; i < 100; i++) {
+            JsonElement created = new JsonParser().parse(futures.get(i).get(10, TimeUnit.SECONDS));
+            assertEquals("game " + i, created.getAsJsonObject().get("name").getAsString());
+            assertEquals(String.valueOf(i), created.getAsJsonObject().get("game_id").getAsString());
+        }
+        assertEquals(10, server.getRequestCount());
+        assertEquals(10L, writer.getBatchesSent());
+        assertEquals(100L, writer.getObjectsSent());
+        assertEquals(1.0, writer.getBatchFillRatio(), 0.0001);
+    }
+
+    @Test
+    public void partialBatchesAreSentAfterLinger() throws Exception {
+        writer.setMaxBatchSize(10).setLinger(50, TimeUnit.MILLISECONDS);
+        List<StackMobFuture> futures = new ArrayList<StackMobFuture>();
+        for(int i = 0; i < 3; i++) {
+            futures.add(writer.post("game", new Game("game " + i), noopCallback));
+        }
+        for(StackMobFuture future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(1, server.getRequestCount());
+        assertEquals(0.3, writer.getBatchFillRatio(), 0.0001);
+    }
+
+    @Test
+    public void bufferedBytesLimitFlushesEarly() throws Exception {
+        String json = stackmob.getCodec().toJson(new Game("game 0"));
+        writer.setMaxBatchSize(100).setLinger(1, TimeUnit.HOURS).setMaxBufferedBytes(json.length() * 4);
+        for(int i = 0; i < 10; i++) {
+            writer.post("game", new Game("game " + i), noopCallback);
+        }
+        //every fifth post would have gone over the limit
+        assertEquals(2, server.getRequestCount());
+        assertEquals(json.length() * 2, writer.getBufferedBytes());
+        writer.flush();
+        assertEquals(3, server.getRequestCount());
+        assertEquals(0, writer.getBufferedBytes());
+        synchronized(handler.batchSizes) {
+            assertEquals(4, (int)handler.batchSizes.get(0));
+            assertEquals(2, (int)handler.batchSizes.get(2));
+        }
+    }
+
+    @Test
+    public void failedBatchFailsEveryObject() throws Exception {
+        writer.setMaxBatchSize(5).setLinger(1, TimeUnit.HOURS);
+        final AtomicInteger failures = new AtomicInteger(0);
+        StackMobCallback callback = new StackMobCallback() {
+            @Override
+            public void success(String responseBody) {}
+            @Override
+            public void failure(StackMobException e) {
+                failures.incrementAndGet();
+            }
+        };
+        List<StackMobFuture> futures = new ArrayList<StackMobFuture>();
+        for(int i = 0; i < 5; i++) {
+            futures.add(writer.post("broken", new Game("game " + i), callback));
+        }
+        for(StackMobFuture future : futures) {
+            try {
+                future.get(10, TimeUnit.SECONDS);
+                fail("expected the batch to fail");
+            }
+            catch(ExecutionException e) {
+                assertTrue(e.getCause() instanceof StackMobException);
+            }
+        }
+        assertEquals(5, failures.get());
+    }
+
+    @Test
+    public void cancelledPostsAreLeftOut() throws Exception {
+        writer.setMaxBatchSize(10).setLinger(1, TimeUnit.HOURS);
+        StackMobFuture cancelled = writer.post("game", new Game("cancelled"), noopCallback);
+        StackMobFuture kept = writer.post("game", new Game("kept"), noopCallback);
+        assertTrue(cancelled.cancel(false));
+        writer.flush();
+        kept.get(10, TimeUnit.SECONDS);
+        synchronized(handler.batchSizes) {
+            assertEquals(1, (int)handler.batchSizes.get(0));
+        }
+        assertEquals(1L, writer.getObjectsSent());
+    }
+
+    @Test
+    public void postsAfterCloseFail() throws Exception {
+        writer.close();
+        try {
+            writer.post("game", new Game("late"), noopCallback).get(10, TimeUnit.SECONDS);
+            fail("expected the post to fail");
+        }
+        catch(ExecutionException e) {
+            assertTrue(e.getCause() instanceof StackMobException);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.StackMobCircuitBreaker;
+import com.stackmob.sdk.net.StackMobCircuitBreaker.State;
+import com.stackmob.sdk.net.StackMobHttpCallback;
+import com.stackmob.sdk.net.StackMobHttpTransport;
+import com.stackmob.sdk.stub.FaultInjectingHandler;
+import com.stackmob.sdk.stub.StubServer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scribe.model.OAuthRequest;
+import static org.junit.Assert.*;
+
+public class StackMobCircuitBreakerTests {
+
+    private static final StackMobRedirectedCallback noopRedirectedCallback = new StackMobRedirectedCallback() {
+        @Override
+        public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {}
+    };
+
+    private static final StackMobCallback noopCallback = new StackMobCallback() {
+        @Override
+        public void success(String responseBody) {}
+        @Override
+        public void failure(StackMobException e) {}
+    };
+
+    private static final HttpHandler okHandler = new HttpHandler() {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            StubServer.send(exchange, 200, "{\"game_id\":\"1\"}");
+        }
+    };
+
+    /**
+     * records every state change as "host from->to"
+     */
+    private static class RecordingListener implements StackMobCircuitBreaker.Listener {
+        final List<String> changes = new ArrayList<String>();
+
+        @Override
+        public synchronized void stateChanged(String host, State from, State to) {
+            changes.add(host + " " + from + "->" + to);
+        }
+    }
+
+    private StubServer server;
+    private FaultInjectingHandler faults;
+    private StackMob stackmob;
+    private StackMobCircuitBreaker breaker;
+    private RecordingListener listener;
+
+    @Before
+    public void setUp() throws IOException {
+        faults = new FaultInjectingHandler(okHandler);
+        server = new StubServer().handle("/game", faults);
+        stackmob = new StackMob("key", "secret", "user", 0, server.getHost(), noopRedirectedCallback);
+        listener = new RecordingListener();
+        breaker = stackmob.getCircuitBreaker()
+            .setWindow(10, 4)
+            .setFailureRateThreshold(0.5)
+            .setOpenDuration(100, TimeUnit.MILLISECONDS)
+            .setHalfOpenCalls(2)
+            .addListener(listener)
+            .setEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        stackmob.shutdown();
+        server.stop();
+    }
+
+    private boolean succeeds() throws Exception {
+        try {
+            stackmob.get("game", noopCallback).get(10, TimeUnit.SECONDS);
+            return true;
+        }
+        catch(ExecutionException e) {
+            assertTrue(e.getCause() instanceof StackMobException);
+            return false;
+        }
+    }
+
+    @Test
+    public void failuresOpenTheCircuit() throws Exception {
+        faults.failNext(2, 503);
+        succeeds();
+        succeeds();
+        succeeds();
+        assertEquals(State.CLOSED, breaker.getState(server.getHost()));
+        //the fourth call reaches the minimum, and half of them failed
+        succeeds();
+        assertEquals(State.OPEN, breaker.getState(server.getHost()));
+
+        assertFalse(succeeds());
+        assertFalse(succeeds());
+        assertEquals(4, server.getRequestCount());
+        assertEquals(2L, breaker.getRejectedCount());
+        assertEquals(1, listener.changes.size());
+        assertEquals(server.getHost() + " CLOSED->OPEN", listener.changes.get(0));
+    }
+
+    @Test
+    public void successfulTrialsCloseTheCircuit() throws Exception {
+        faults.failNext(4, FaultInjectingHandler.DROP);
+        for(int i = 0; i < 4; i++) {
+            assertFalse(succeeds());
+        }
+        assertEquals(State.OPEN, breaker.getState(server.getHost()));
+        Thread.sleep(150);
+        assertTrue(succeeds());
+        assertEquals(State.HALF_OPEN, breaker.getState(server.getHost()));
+        assertTrue(succeeds());
+        assertEquals(State.CLOSED, breaker.getState(server.getHost()));
+        assertEquals(3, listener.changes.size());
+        assertEquals(server.getHost() + " OPEN->HALF_OPEN", listener.changes.get(1));
+        assertEquals(server.getHost() + " HALF_OPEN->CLOSED", listener.changes.get(2));
+    }
+
+    @Test
+    public void failedTrialsReopenTheCircuit() throws Exception {
+        faults.failNext(6, 500);
+        for(int i = 0; i < 4; i++) {
+            succeeds();
+        }
+        Thread.sleep(150);
+        succeeds();
+        succeeds();
+        assertEquals(State.OPEN, breaker.getState(server.getHost()));
+        assertFalse(succeeds());
+        assertEquals(6, server.getRequestCount());
+        assertEquals(server.getHost() + " HALF_OPEN->OPEN", listener.changes.get(2));
+    }
+
+    @Test
+    public void trialsThatThrowReopenTheCircuit() throws Exception {
+        faults.failNext(4, 500);
+        for(int i = 0; i < 4; i++) {
+            succeeds();
+        }
+        Thread.sleep(150);
+        StackMobHttpTransport working = stackmob.getTransport();
+        stackmob.setTransport(new StackMobHttpTransport() {
+            @Override
+            public void send(OAuthRequest request, StackMobHttpCallback callback) {
+                throw new IllegalStateException("broken transport");
+            }
+
+            @Override
+            public void shutdown() {}
+        });
+        assertFalse(succeeds());
+        assertFalse(succeeds());
+        //the trial calls weren't lost, so the circuit could decide
+        assertEquals(State.OPEN, breaker.getState(server.getHost()));
+
+        stackmob.setTransport(working);
+        Thread.sleep(150);
+        assertTrue(succeeds());
+        assertTrue(succeeds());
+        assertEquals(State.CLOSED, breaker.getState(server.getHost()));
+    }
+
+    @Test
+    public void slowCallsOpenTheCircuit() throws Exception {
+        breaker.setSlowCallThreshold(0.75, 20, TimeUnit.MILLISECONDS);
+        server.setLatency(40, TimeUnit.MILLISECONDS);
+        for(int i = 0; i < 4; i++) {
+            assertTrue(succeeds());
+        }
+        assertEquals(State.OPEN, breaker.getState(server.getHost()));
+        assertFalse(succeeds());
+    }
+
+    @Test
+    public void everyHostHasItsOwnCircuit() throws Exception {
+        faults.setFailureRate(1, 503);
+        for(int i = 0; i < 4; i++) {
+            succeeds();
+        }
+        assertEquals(State.OPEN, breaker.getState(server.getHost()));
+        assertFalse(breaker.tryAcquire(server.getHost()));
+        String otherHost = "api.mob2.stackmob.com";
+        assertEquals(State.CLOSED, breaker.getState(otherHost));
+        assertTrue(breaker.tryAcquire(otherHost));
+        breaker.record(otherHost, true, 0);
+        assertEquals(State.CLOSED, breaker.getState(otherHost));
+    }
+
+    @Test
+    public void theCircuitBreakerIsOffByDefault() throws Exception {
+        StackMob plain = new StackMob("key", "secret", "user", 0, server.getHost(), noopRedirectedCallback);
+        try {
+            faults.setFailureRate(1, FaultInjectingHandler.DROP);
+            for(int i = 0; i < 30; i++) {
+                try {
+                    plain.get("game", noopCallback).get(10, TimeUnit.SECONDS);
+                }
+                catch(ExecutionException e) {
+                    //expected
+                }
+            }
+            assertEquals(30, faults.getFaultCount());
+            assertEquals(State.CLOSED, plain.getCircuitBreaker().getState(server.getHost()));
+        }
+        finally {
+            plain.shutdown();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobFuture;
+import com.stackmob.sdk.api.StackMobPreparedQuery;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.stub.StubServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class StackMobCoalescingTests {
+
+    private static final StackMobRedirectedCallback noopRedirectedCallback = new StackMobRedirectedCallback() {
+        @Override
+        public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {}
+    };
+
+    private static class CountingCallback implements StackMobCallback {
+        final AtomicInteger successes = new AtomicInteger(0);
+        final AtomicInteger failures = new AtomicInteger(0);
+
+        @Override
+        public void success(String responseBody) {
+            successes.incrementAndGet();
+        }
+
+        @Override
+        public void failure(StackMobException e) {
+            failures.incrementAndGet();
+        }
+    }
+
+    private StubServer server;
+    private ExecutorService executor;
+    private StackMob stackmob;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StubServer().respond("/game", 200, "[{\"name\":\"chess\"}]").respond("/broken", 500, "{\"error\":\"broken\"}");
+        server.setLatency(300, TimeUnit.MILLISECONDS);
+        executor = Executors.newFixedThreadPool(4);
+        stackmob = new StackMob("key", "secret", "user", 0, server.getHost(), noopRedirectedCallback);
+        stackmob.setExecutor(executor).setCoalesceGets(true);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        stackmob.shutdown();
+        server.stop();
+    }
+
+    @Test
+    public void identicalConcurrentGetsShareOneRequest() throws Exception {
+        CountingCallback callback = new CountingCallback();
+        List<StackMobFuture> futures = new ArrayList<StackMobFuture>();
+        for(int i = 0; i < 50; i++) {
+            futures.add(stackmob.get(new StackMobQuery("game").fieldIsGreaterThan("score", "100"), callback));
+        }
+        for(StackMobFuture future : futures) {
+            assertEquals("[{\"name\":\"chess\"}]", future.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(50, callback.successes.get());
+        assertEquals(1, server.getRequestCount());
+        assertEquals(1L, stackmob.getSharedGetCount());
+        assertEquals(49L, stackmob.getCoalescedGetCount());
+    }
+
+    @Test
+    public void argumentOrderDoesNotMatter() throws Exception {
+        Map<String, String> first = new LinkedHashMap<String, String>();
+        first.put("name", "chess");
+        first.put("players[lt]", "3");
+        Map<String, String> second = new LinkedHashMap<String, String>();
+        second.put("players[lt]", "3");
+        second.put("name", "chess");
+        CountingCallback callback = new CountingCallback();
+        StackMobFuture a = stackmob.get("game", first, callback);
+        StackMobFuture b = stackmob.get("game", second, callback);
+        a.get(10, TimeUnit.SECONDS);
+        b.get(10, TimeUnit.SECONDS);
+        assertEquals(1, server.getRequestCount());
+        assertEquals(1L, stackmob.getCoalescedGetCount());
+    }
+
+    @Test
+    public void preparedQueriesAreCoalesced() throws Exception {
+        StackMobPreparedQuery scores = new StackMobPreparedQuery("game").fieldIsGreaterThan("score");
+        CountingCallback callback = new CountingCallback();
+        StackMobFuture a = stackmob.get(scores.bind(100), callback);
+        StackMobFuture b = stackmob.get(scores.bind("100"), callback);
+        StackMobFuture c = stackmob.get(scores.bind(200), callback);
+        //the same get as a, but not coalesced with it, since the key of a prepared query is its encoded query string
+        StackMobFuture d = stackmob.get(new StackMobQuery("game").fieldIsGreaterThan("score", "100"), callback);
+        a.get(10, TimeUnit.SECONDS);
+        b.get(10, TimeUnit.SECONDS);
+        c.get(10, TimeUnit.SECONDS);
+        d.get(10, TimeUnit.SECONDS);
+        assertEquals(3, server.getRequestCount());
+        assertEquals(1L, stackmob.getCoalescedGetCount());
+        assertEquals(4, callback.successes.get());
+    }
+
+    @Test
+    public void differentGetsAreSentSeparately() throws Exception {
+        CountingCallback callback = new CountingCallback();
+        StackMobFuture a = stackmob.get(new StackMobQuery("game").fieldIsGreaterThan("score", "100"), callback);
+        StackMobFuture b = stackmob.get(new StackMobQuery("game").fieldIsGreaterThan("score", "200"), callback);
+        StackMobFuture c = stackmob.get("game", callback);
+        a.get(10, TimeUnit.SECONDS);
+        b.get(10, TimeUnit.SECONDS);
+        c.get(10, TimeUnit.SECONDS);
+        assertEquals(3, server.getRequestCount());
+        assertEquals(0L, stackmob.getCoalescedGetCount());
+        assertEquals(3, callback.successes.get());
+    }
+
+    @Test
+    public void getsAfterCompletionAreSentAgain() throws Exception {
+        for(int i = 0; i < 3; i++) {
+            stackmob.get("game", new CountingCallback()).get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(3, server.getRequestCount());
+        assertEquals(3L, stackmob.getSharedGetCount());
+        assertEquals(0L, stackmob.getCoalescedGetCount());
+    }
+
+    @Test
+    public void failuresAreSharedByEveryCaller() throws Exception {
+        CountingCallback callback = new CountingCallback();
+        List<StackMobFuture> futures = new ArrayList<StackMobFuture>();
+        for(int i = 0; i < 10; i++) {
+            futures.add(stackmob.get("broken", callback));
+        }
+        for(StackMobFuture future : futures) {
+            try {
+                future.get(10, TimeUnit.SECONDS);
+            }
+            catch(ExecutionException e) {
+                assertTrue(e.getCause() instanceof StackMobException);
+            }
+        }
+        assertEquals(1, server.getRequestCount());
+        assertEquals(10, callback.successes.get() + callback.failures.get());
+    }
+
+    @Test
+    public void coalescingCanBeTurnedOff() throws Exception {
+        stackmob.setCoalesceGets(false);
+        CountingCallback callback = new CountingCallback();
+        List<StackMobFuture> futures = new ArrayList<StackMobFuture>();
+        for(int i = 0; i < 4; i++) {
+            futures.add(stackmob.get("game", callback));
+        }
+        for(StackMobFuture future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(4, server.getRequestCount());
+        assertEquals(0L, stackmob.getCoalescedGetCount());
+    }
+}
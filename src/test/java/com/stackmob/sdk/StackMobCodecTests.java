@@ -0,0 +1,84 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk;
+
+import java.lang.reflect.Type;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSerializationContext;
+import com.google.gson.JsonSerializer;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.push.StackMobPushToken;
+import com.stackmob.sdk.util.StackMobCodec;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class StackMobCodecTests {
+
+    private static class Point {
+        public int x;
+        public int y;
+        private int hidden = 7;
+
+        public Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    private static final JsonSerializer<Point> pointSerializer = new JsonSerializer<Point>() {
+        @Override
+        public JsonElement serialize(Point point, Type type, JsonSerializationContext context) {
+            return new JsonPrimitive(point.x + "," + point.y);
+        }
+    };
+
+    @Test
+    public void pushTokenRoundTrip() {
+        StackMobCodec codec = new StackMobCodec();
+        StackMobPushToken token = new StackMobPushToken("abcd", StackMobPushToken.TokenType.Android, 12345L);
+        String json = codec.toJson(token);
+        assertTrue(json.contains("\"registered_milliseconds\":12345"));
+        assertTrue(json.contains("\"type\":\"android\""));
+    }
+
+    @Test
+    public void privateFieldsAreExcluded() {
+        String json = new StackMobCodec().toJson(new Point(1, 2));
+        assertFalse(json.contains("hidden"));
+        assertTrue(json.contains("\"x\":1"));
+    }
+
+    @Test
+    public void gsonIsSharedUntilRegistration() {
+        StackMobCodec codec = new StackMobCodec();
+        assertSame(codec.getGson(), codec.getGson());
+        Object before = codec.getGson();
+        codec.registerTypeAdapter(Point.class, pointSerializer);
+        assertNotSame(before, codec.getGson());
+        assertEquals("\"3,4\"", codec.toJson(new Point(3, 4)));
+    }
+
+    @Test
+    public void codecIsOwnedBySession() {
+        StackMob stackmob = new StackMob("key", "secret", "user", 0);
+        assertSame(stackmob.getSession().getCodec(), stackmob.getCodec());
+        stackmob.getCodec().registerTypeAdapter(Point.class, pointSerializer);
+        assertEquals("\"5,6\"", stackmob.getSession().getCodec().toJson(new Point(5, 6)));
+    }
+}
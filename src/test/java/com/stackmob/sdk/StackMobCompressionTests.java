@@ -0,0 +1,232 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.gson.JsonElement;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.callback.StackMobStreamingCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.StackMobCompression;
+import com.stackmob.sdk.stub.StubServer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class StackMobCompressionTests {
+
+    private static final StackMobRedirectedCallback noopRedirectedCallback = new StackMobRedirectedCallback() {
+        @Override
+        public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {}
+    };
+
+    private static final StackMobCallback noopCallback = new StackMobCallback() {
+        @Override
+        public void success(String responseBody) {}
+        @Override
+        public void failure(StackMobException e) {}
+    };
+
+    /**
+     * echoes the request body back, or a list of games if there isn't one. inflates gzipped request bodies, and gzips the
+     * response when the request accepts it
+     */
+    private static class GzipEchoHandler implements HttpHandler {
+        final List<String> contentEncodings = new ArrayList<String>();
+        final List<String> acceptEncodings = new ArrayList<String>();
+        final List<Integer> bodySizes = new ArrayList<Integer>();
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            byte[] raw = readFully(exchange.getRequestBody());
+            String contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            synchronized(this) {
+                contentEncodings.add(contentEncoding);
+                acceptEncodings.add(acceptEncoding);
+                bodySizes.add(raw.length);
+            }
+            byte[] body = "gzip".equals(contentEncoding) ? readFully(new GZIPInputStream(new ByteArrayInputStream(raw))) : raw;
+            if(body.length == 0) {
+                body = gamesJson(500).getBytes("UTF-8");
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            if(acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream out = new GZIPOutputStream(exchange.getResponseBody());
+                out.write(body);
+                out.close();
+            }
+            else {
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int read;
+        while((read = in.read(buf)) != -1) {
+            out.write(buf, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static String gamesJson(int count) {
+        StringBuilder json = new StringBuilder("[");
+        for(int i = 0; i < count; i++) {
+            if(i > 0) {
+                json.append(',');
+            }
+            json.append("{\"game_id\":\"").append(i).append("\",\"name\":\"game ").append(i).append("\",\"players\":[\"joe\",\"bob\",\"alice\"]}");
+        }
+        return json.append(']').toString();
+    }
+
+    private static class Game {
+        public String name;
+        public String description;
+
+        Game(String name, String description) {
+            this.name = name;
+            this.description = description;
+        }
+    }
+
+    private StubServer server;
+    private GzipEchoHandler handler;
+    private StackMob stackmob;
+
+    @Before
+    public void setUp() throws IOException {
+        handler = new GzipEchoHandler();
+        server = new StubServer().handle("/game", handler);
+        stackmob = new StackMob("key", "secret", "user", 0, server.getHost(), noopRedirectedCallback);
+    }
+
+    @After
+    public void tearDown() {
+        stackmob.shutdown();
+        server.stop();
+    }
+
+    @Test
+    public void responsesAreGzippedAndInflated() throws Exception {
+        String body = stackmob.get("game", noopCallback).get(10, TimeUnit.SECONDS);
+        assertEquals(gamesJson(500), body);
+        assertEquals("gzip", handler.acceptEncodings.get(0));
+        StackMobCompression compression = stackmob.getCompression();
+        assertEquals(body.length(), compression.getBytesReceived());
+        assertTrue(compression.getWireBytesReceived() > 0);
+        assertTrue(compression.getWireBytesReceived() * 5 < compression.getBytesReceived());
+    }
+
+    @Test
+    public void gzippedResponsesAreStreamed() throws Exception {
+        final AtomicInteger objects = new AtomicInteger(0);
+        stackmob.get(new StackMobQuery("game"), new StackMobStreamingCallback() {
+            @Override
+            public void object(JsonElement object) {
+                objects.incrementAndGet();
+            }
+            @Override
+            public void done() {}
+            @Override
+            public void failure(StackMobException e) {}
+        }).get(10, TimeUnit.SECONDS);
+        assertEquals(500, objects.get());
+    }
+
+    @Test
+    public void responsesAreNotGzippedIfNotAccepted() throws Exception {
+        stackmob.getCompression().setAcceptGzip(false);
+        String body = stackmob.get("game", noopCallback).get(10, TimeUnit.SECONDS);
+        assertEquals(gamesJson(500), body);
+        assertNull(handler.acceptEncodings.get(0));
+        assertEquals(stackmob.getCompression().getBytesReceived(), stackmob.getCompression().getWireBytesReceived());
+    }
+
+    @Test
+    public void requestBodiesAreSentAsTheyAreByDefault() throws Exception {
+        Game game = new Game("chess", gamesJson(50));
+        String echoed = stackmob.post("game", game, noopCallback).get(10, TimeUnit.SECONDS);
+        assertEquals(stackmob.getCodec().toJson(game), echoed);
+        assertNull(handler.contentEncodings.get(0));
+        assertEquals(stackmob.getCompression().getBytesSent(), stackmob.getCompression().getWireBytesSent());
+    }
+
+    @Test
+    public void requestBodiesOverTheThresholdAreGzipped() throws Exception {
+        stackmob.getCompression().setRequestThreshold(1024);
+        Game small = new Game("chess", "a small game");
+        Game large = new Game("go", gamesJson(50) + " é中🎲");
+        assertEquals(stackmob.getCodec().toJson(small), stackmob.post("game", small, noopCallback).get(10, TimeUnit.SECONDS));
+        assertEquals(stackmob.getCodec().toJson(large), stackmob.post("game", large, noopCallback).get(10, TimeUnit.SECONDS));
+
+        assertNull(handler.contentEncodings.get(0));
+        assertEquals("gzip", handler.contentEncodings.get(1));
+        int largeSize = stackmob.getCodec().toJson(large).getBytes("UTF-8").length;
+        assertTrue(handler.bodySizes.get(1) * 5 < largeSize);
+
+        StackMobCompression compression = stackmob.getCompression();
+        int smallSize = stackmob.getCodec().toJson(small).getBytes("UTF-8").length;
+        assertEquals(smallSize + largeSize, compression.getBytesSent());
+        assertEquals(smallSize + handler.bodySizes.get(1), compression.getWireBytesSent());
+    }
+
+    @Test
+    public void gzippedRequestBodiesSurviveRedirects() throws Exception {
+        server.handle("/moved", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                readFully(exchange.getRequestBody());
+                exchange.getResponseHeaders().set("Location", "http://" + server.getHost() + "/game");
+                StubServer.send(exchange, 302, "");
+            }
+        });
+        stackmob.getCompression().setRequestThreshold(0);
+        Map<String, String> game = new HashMap<String, String>();
+        game.put("name", "chess");
+        String echoed = stackmob.post("moved", game, noopCallback).get(10, TimeUnit.SECONDS);
+        assertEquals(stackmob.getCodec().toJson(game), echoed);
+        assertEquals("gzip", handler.contentEncodings.get(0));
+    }
+}
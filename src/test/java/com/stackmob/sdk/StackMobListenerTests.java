@@ -0,0 +1,191 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobRequest;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.callback.StackMobRequestListener;
+import com.stackmob.sdk.callback.StackMobRequestListener.Phase;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.NioHttpTransport;
+import com.stackmob.sdk.stub.FaultInjectingHandler;
+import com.stackmob.sdk.stub.StubServer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static com.stackmob.sdk.callback.StackMobRequestListener.Phase.*;
+
+public class StackMobListenerTests {
+
+    private static final String GAME = "{\"game_id\":\"1\"}";
+
+    private static final StackMobRedirectedCallback noopRedirectedCallback = new StackMobRedirectedCallback() {
+        @Override
+        public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {}
+    };
+
+    private static final StackMobCallback noopCallback = new StackMobCallback() {
+        @Override
+        public void success(String responseBody) {}
+        @Override
+        public void failure(StackMobException e) {}
+    };
+
+    private static final HttpHandler okHandler = new HttpHandler() {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            StubServer.readBody(exchange);
+            StubServer.send(exchange, 200, GAME);
+        }
+    };
+
+    /**
+     * Records every phase, and lets a test wait for the end of a request
+     */
+    private static class RecordingListener implements StackMobRequestListener {
+        private final List<Phase> phases = new ArrayList<Phase>();
+        private final Map<Phase, Long> nanos = new HashMap<Phase, Long>();
+        private final List<String> requests = new ArrayList<String>();
+        private final CountDownLatch dispatched = new CountDownLatch(1);
+        private volatile boolean ordered = true;
+
+        @Override
+        public synchronized void phase(StackMobRequest request, Phase phase, long startNanos, long endNanos) {
+            if(endNanos < startNanos) {
+                ordered = false;
+            }
+            phases.add(phase);
+            nanos.put(phase, endNanos - startNanos);
+            requests.add(request.toString());
+            if(phase == CALLBACK_DISPATCHED) {
+                dispatched.countDown();
+            }
+        }
+
+        List<Phase> awaitPhases() throws InterruptedException {
+            //the future completes inside the callback, so the last phase may not have been reported yet
+            assertTrue(dispatched.await(10, TimeUnit.SECONDS));
+            assertTrue(ordered);
+            synchronized(this) {
+                return new ArrayList<Phase>(phases);
+            }
+        }
+    }
+
+    private StubServer server;
+    private FaultInjectingHandler faults;
+    private StackMob stackmob;
+    private RecordingListener listener;
+
+    @Before
+    public void setUp() throws IOException {
+        faults = new FaultInjectingHandler(okHandler);
+        server = new StubServer().handle("/game", faults);
+        stackmob = new StackMob("key", "secret", "user", 0, server.getHost(), noopRedirectedCallback);
+        listener = new RecordingListener();
+        stackmob.setRequestListener(listener);
+    }
+
+    @After
+    public void tearDown() {
+        stackmob.shutdown();
+        server.stop();
+    }
+
+    @Test
+    public void everyPhaseOfAGet() throws Exception {
+        server.setLatency(30, TimeUnit.MILLISECONDS);
+        stackmob.get("game", noopCallback).get(10, TimeUnit.SECONDS);
+        //signing happens while the request is built, so it ends first
+        assertEquals(Arrays.asList(SIGN, BUILD, CONNECT, FIRST_BYTE, BODY_COMPLETE, CALLBACK_DISPATCHED), listener.awaitPhases());
+        assertTrue(listener.nanos.get(FIRST_BYTE) >= TimeUnit.MILLISECONDS.toNanos(30));
+        assertEquals("GET /game", listener.requests.get(0));
+    }
+
+    @Test
+    public void postsAreSerialized() throws Exception {
+        Map<String, String> game = new HashMap<String, String>();
+        game.put("name", "chess");
+        stackmob.post("game", game, noopCallback).get(10, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList(SERIALIZE, SIGN, BUILD, CONNECT, FIRST_BYTE, BODY_COMPLETE, CALLBACK_DISPATCHED), listener.awaitPhases());
+    }
+
+    @Test
+    public void redirectsAreReported() throws Exception {
+        server.handle("/moved", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("Location", "http://" + server.getHost() + "/game");
+                StubServer.send(exchange, 302, "");
+            }
+        });
+        stackmob.get("moved", noopCallback).get(10, TimeUnit.SECONDS);
+        List<Phase> phases = listener.awaitPhases();
+        int redirect = phases.indexOf(REDIRECT);
+        assertEquals(Arrays.asList(SIGN, BUILD, CONNECT, FIRST_BYTE, SIGN, REDIRECT), phases.subList(0, redirect + 1));
+        //the connection the redirect came back on may be closed, in which case the transport connects twice
+        List<Phase> followed = phases.subList(redirect + 1, phases.size());
+        assertEquals(CONNECT, followed.get(0));
+        assertEquals(Arrays.asList(FIRST_BYTE, BODY_COMPLETE, CALLBACK_DISPATCHED), followed.subList(followed.size() - 3, followed.size()));
+    }
+
+    @Test
+    public void failuresWithoutAResponse() throws Exception {
+        faults.failNext(1, FaultInjectingHandler.DROP);
+        try {
+            stackmob.get("game", noopCallback).get(10, TimeUnit.SECONDS);
+            fail("the request should have failed");
+        }
+        catch(ExecutionException e) {
+            //expected
+        }
+        List<Phase> phases = listener.awaitPhases();
+        assertFalse(phases.contains(BODY_COMPLETE));
+        assertEquals(CALLBACK_DISPATCHED, phases.get(phases.size() - 1));
+    }
+
+    @Test
+    public void nioTransport() throws Exception {
+        stackmob.setTransport(new NioHttpTransport());
+        server.setLatency(30, TimeUnit.MILLISECONDS);
+        stackmob.get("game", noopCallback).get(10, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList(SIGN, BUILD, CONNECT, FIRST_BYTE, BODY_COMPLETE, CALLBACK_DISPATCHED), listener.awaitPhases());
+        assertTrue(listener.nanos.get(FIRST_BYTE) >= TimeUnit.MILLISECONDS.toNanos(30));
+    }
+
+    @Test
+    public void noListener() throws Exception {
+        stackmob.setRequestListener(null);
+        stackmob.get("game", noopCallback).get(10, TimeUnit.SECONDS);
+        assertTrue(listener.phases.isEmpty());
+    }
+}
@@ -0,0 +1,238 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.PooledHttpTransport;
+import com.stackmob.sdk.net.StackMobMetrics;
+import com.stackmob.sdk.net.StackMobMetrics.EndpointSnapshot;
+import com.stackmob.sdk.stub.FaultInjectingHandler;
+import com.stackmob.sdk.stub.StubServer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class StackMobMetricsTests {
+
+    private static final String GAME = "{\"game_id\":\"1\"}";
+
+    private static final StackMobRedirectedCallback noopRedirectedCallback = new StackMobRedirectedCallback() {
+        @Override
+        public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {}
+    };
+
+    private static final StackMobCallback noopCallback = new StackMobCallback() {
+        @Override
+        public void success(String responseBody) {}
+        @Override
+        public void failure(StackMobException e) {}
+    };
+
+    private static final HttpHandler okHandler = new HttpHandler() {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            StubServer.readBody(exchange);
+            StubServer.send(exchange, 200, GAME);
+        }
+    };
+
+    private StubServer server;
+    private FaultInjectingHandler faults;
+    private StackMob stackmob;
+    private StackMobMetrics metrics;
+
+    @Before
+    public void setUp() throws IOException {
+        faults = new FaultInjectingHandler(okHandler);
+        server = new StubServer().handle("/game", faults);
+        stackmob = new StackMob("key", "secret", "user", 0, server.getHost(), noopRedirectedCallback);
+        metrics = stackmob.getMetrics();
+    }
+
+    @After
+    public void tearDown() {
+        stackmob.shutdown();
+        server.stop();
+    }
+
+    private boolean succeeds(String path) throws Exception {
+        try {
+            stackmob.get(path, noopCallback).get(10, TimeUnit.SECONDS);
+            return true;
+        }
+        catch(ExecutionException e) {
+            return false;
+        }
+    }
+
+    @Test
+    public void latencyAndCounts() throws Exception {
+        server.setLatency(20, TimeUnit.MILLISECONDS);
+        for(int i = 0; i < 5; i++) {
+            assertTrue(succeeds("game"));
+            //object ids are counted with their schema
+            assertTrue(succeeds("game/" + i));
+        }
+        EndpointSnapshot games = metrics.getSnapshot().get("GET /game");
+        assertNotNull(games);
+        assertEquals(1, metrics.getSnapshot().size());
+        assertEquals(10, games.getRequestCount());
+        assertEquals(0, games.getFailureCount());
+        assertEquals(0, games.getInFlight());
+        assertTrue(games.getErrorsByStatus().isEmpty());
+        assertEquals(10 * GAME.length(), games.getBytesReceived());
+        assertEquals(0, games.getBytesSent());
+        assertTrue(games.getPercentileMillis(50) >= 20);
+        assertTrue(games.getPercentileMillis(50) <= games.getPercentileMillis(99));
+        assertTrue(games.getPercentileMillis(99) <= games.getMaxMillis());
+        assertTrue(games.getMeanMillis() >= 20);
+    }
+
+    @Test
+    public void errorsByStatus() throws Exception {
+        //dropped first, since the transport sends again when a connection it reused turns out to be closed
+        faults.failNext(1, FaultInjectingHandler.DROP);
+        assertFalse(succeeds("game"));
+        faults.failNext(2, 503);
+        succeeds("game");
+        succeeds("game");
+        assertTrue(succeeds("game"));
+        EndpointSnapshot games = metrics.getSnapshot().get("GET /game");
+        assertEquals(4, games.getRequestCount());
+        assertEquals(1, games.getFailureCount());
+        assertEquals(Long.valueOf(2), games.getErrorsByStatus().get(503));
+        assertEquals(Long.valueOf(1), games.getErrorsByStatus().get(0));
+        assertEquals(2, games.getErrorsByStatus().size());
+    }
+
+    @Test
+    public void bytesSentAndEndpointsByVerb() throws Exception {
+        Map<String, String> game = new HashMap<String, String>();
+        game.put("name", "chess");
+        stackmob.post("game", game, noopCallback).get(10, TimeUnit.SECONDS);
+        stackmob.put("game", "1234", game, noopCallback).get(10, TimeUnit.SECONDS);
+        assertTrue(succeeds("game"));
+        Map<String, EndpointSnapshot> snapshot = metrics.getSnapshot();
+        assertEquals(3, snapshot.size());
+        assertEquals(1, snapshot.get("POST /game").getRequestCount());
+        assertEquals(1, snapshot.get("PUT /game").getRequestCount());
+        assertEquals(stackmob.getCompression().getWireBytesSent(), snapshot.get("POST /game").getBytesSent() + snapshot.get("PUT /game").getBytesSent());
+        assertTrue(snapshot.get("POST /game").getBytesSent() > 0);
+    }
+
+    @Test
+    public void redirectsAreCounted() throws Exception {
+        server.handle("/moved", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("Location", "http://" + server.getHost() + "/game");
+                StubServer.send(exchange, 302, "");
+            }
+        });
+        assertTrue(succeeds("moved"));
+        EndpointSnapshot moved = metrics.getSnapshot().get("GET /moved");
+        assertEquals(1, moved.getRequestCount());
+        assertEquals(1, moved.getRedirectCount());
+        assertEquals(GAME.length(), moved.getBytesReceived());
+    }
+
+    @Test
+    public void userEndpointsKeepTheirMethod() throws Exception {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("username", "bob");
+        //sent over https to a server that only speaks http, so it fails once the handshake times out
+        stackmob.setTransport(new PooledHttpTransport().setReadTimeout(200, TimeUnit.MILLISECONDS));
+        try {
+            stackmob.login(params, noopCallback).get(10, TimeUnit.SECONDS);
+        }
+        catch(ExecutionException e) {
+            //expected
+        }
+        EndpointSnapshot login = metrics.getSnapshot().get("GET /user/login");
+        assertNotNull(metrics.getSnapshot().toString(), login);
+        assertEquals(1, login.getRequestCount());
+    }
+
+    @Test
+    public void concurrentRequestsAreAllCounted() throws Exception {
+        final int threads = 16;
+        final int requestsPerThread = 50;
+        List<Thread> workers = new ArrayList<Thread>();
+        for(int t = 0; t < threads; t++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int i = 0; i < requestsPerThread; i++) {
+                        stackmob.get("game", noopCallback);
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        for(Thread worker : workers) {
+            worker.join();
+        }
+        EndpointSnapshot games = metrics.getSnapshot().get("GET /game");
+        assertEquals(threads * requestsPerThread, games.getRequestCount());
+        assertEquals(0, games.getInFlight());
+        assertEquals(threads * requestsPerThread * GAME.length(), games.getBytesReceived());
+    }
+
+    @Test
+    public void jmx() throws Exception {
+        MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+        assertTrue(succeeds("game"));
+        metrics.registerMBeans("metrics-test");
+        faults.failNext(1, 500);
+        succeeds("game");
+        //endpoints used after registration are registered too
+        succeeds("other");
+
+        ObjectName games = StackMobMetrics.getObjectName("metrics-test", "GET /game");
+        assertTrue(mbeans.isRegistered(games));
+        assertTrue(mbeans.isRegistered(StackMobMetrics.getObjectName("metrics-test", "GET /other")));
+        assertEquals(2L, mbeans.getAttribute(games, "RequestCount"));
+        assertEquals(0L, mbeans.getAttribute(games, "InFlight"));
+        assertTrue((Double)mbeans.getAttribute(games, "P99Millis") > 0);
+        TabularData errors = (TabularData)mbeans.getAttribute(games, "ErrorsByStatus");
+        assertEquals(1, errors.size());
+
+        stackmob.shutdown();
+        assertFalse(mbeans.isRegistered(games));
+        assertEquals(0, mbeans.queryNames(StackMobMetrics.getObjectName("metrics-test", "*"), null).size());
+    }
+}
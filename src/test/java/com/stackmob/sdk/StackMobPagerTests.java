@@ -0,0 +1,242 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobPager;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.callback.StackMobObjectCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.stub.StubServer;
+import com.stackmob.sdk.testobjects.Game;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class StackMobPagerTests {
+
+    private static final StackMobRedirectedCallback noopRedirectedCallback = new StackMobRedirectedCallback() {
+        @Override
+        public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {}
+    };
+
+    /**
+     * serves the requested range of a fixed number of games, as StackMob does, and records the ranges asked for
+     */
+    private static class RangeHandler implements HttpHandler {
+        private static final Pattern RANGE = Pattern.compile("objects=(\\d+)-(\\d+)");
+        final List<String> ranges = new ArrayList<String>();
+        private final int total;
+
+        RangeHandler(int total) {
+            this.total = total;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            synchronized(ranges) {
+                ranges.add(range);
+            }
+            int start = 0;
+            int end = total - 1;
+            if(range != null) {
+                Matcher m = RANGE.matcher(range);
+                assertTrue(m.matches());
+                start = Integer.parseInt(m.group(1));
+                end = Math.min(Integer.parseInt(m.group(2)), total - 1);
+            }
+            JsonArray games = new JsonArray();
+            for(int i = start; i <= end; i++) {
+                JsonObject game = new JsonObject();
+                game.addProperty("game_id", String.valueOf(i));
+                games.add(game);
+            }
+            if(range != null) {
+                exchange.getResponseHeaders().set("Content-Range", "objects " + start + "-" + end + "/" + total);
+            }
+            StubServer.send(exchange, 200, games.toString());
+        }
+    }
+
+    private StubServer server;
+    private StackMob stackmob;
+    private ExecutorService executor;
+
+    private void start(HttpHandler handler) throws IOException {
+        server = new StubServer().handle("/game", handler).respond("/broken", 500, "{\"error\":\"broken\"}");
+        stackmob = new StackMob("key", "secret", "user", 0, server.getHost(), noopRedirectedCallback);
+        executor = Executors.newFixedThreadPool(2);
+        stackmob.setExecutor(executor);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        stackmob.shutdown();
+        server.stop();
+    }
+
+    private static List<String> ids(List<Game> games) {
+        List<String> ids = new ArrayList<String>();
+        for(Game game : games) {
+            ids.add(game.game_id);
+        }
+        return ids;
+    }
+
+    @Test
+    public void everyPageIsWalked() throws Exception {
+        RangeHandler handler = new RangeHandler(25);
+        start(handler);
+        StackMobPager<Game> pages = stackmob.getPages(new StackMobQuery("game"), Game.class, 10);
+        List<String> seen = new ArrayList<String>();
+        List<Integer> sizes = new ArrayList<Integer>();
+        while(pages.hasNextPage()) {
+            List<Game> page = pages.nextPage();
+            sizes.add(page.size());
+            seen.addAll(ids(page));
+        }
+        assertEquals(25, seen.size());
+        for(int i = 0; i < 25; i++) {
+            assertEquals(String.valueOf(i), seen.get(i));
+        }
+        assertEquals(3, pages.getPagesReturned());
+        assertEquals("[10, 10, 5]", sizes.toString());
+        assertEquals("[objects=0-9, objects=10-19, objects=20-29]", handler.ranges.toString());
+    }
+
+    @Test
+    public void exactMultiplesEndWithAnEmptyPage() throws Exception {
+        start(new RangeHandler(20));
+        StackMobPager<Game> pages = stackmob.getPages(new StackMobQuery("game"), Game.class, 10);
+        assertEquals(10, pages.nextPage().size());
+        assertEquals(10, pages.nextPage().size());
+        assertTrue(pages.hasNextPage());
+        assertEquals(0, pages.nextPage().size());
+        assertFalse(pages.hasNextPage());
+    }
+
+    @Test
+    public void theNextPageIsPrefetched() throws Exception {
+        RangeHandler handler = new RangeHandler(100);
+        start(handler);
+        server.setLatency(100, TimeUnit.MILLISECONDS);
+        StackMobPager<Game> pages = stackmob.getPages(new StackMobQuery("game"), Game.class, 10);
+        pages.nextPage();
+        //the second page was requested before the caller asked for it
+        long deadline = System.currentTimeMillis() + 5000;
+        while(server.getRequestCount() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, server.getRequestCount());
+
+        //so the time the caller spends on a page hides the latency of the next one
+        long start = System.nanoTime();
+        for(int i = 0; i < 5; i++) {
+            Thread.sleep(150);
+            pages.nextPage();
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("took " + elapsedMs + "ms", elapsedMs < 5 * (150 + 100));
+        pages.close();
+    }
+
+    @Test
+    public void withoutAnExecutorEachPageIsFetchedWhenAskedFor() throws Exception {
+        start(new RangeHandler(15));
+        stackmob.setExecutor(null);
+        StackMobPager<Game> pages = stackmob.getPages(new StackMobQuery("game"), Game.class, 10);
+        assertEquals(0, server.getRequestCount());
+        assertEquals(10, pages.nextPage().size());
+        assertEquals(1, server.getRequestCount());
+        assertTrue(pages.hasNextPage());
+        assertEquals(5, pages.nextPage().size());
+        assertEquals(2, server.getRequestCount());
+        assertFalse(pages.hasNextPage());
+    }
+
+    @Test
+    public void anInterruptedWaitKeepsThePage() throws Exception {
+        start(new RangeHandler(15));
+        server.setLatency(100, TimeUnit.MILLISECONDS);
+        StackMobPager<Game> pages = stackmob.getPages(new StackMobQuery("game"), Game.class, 10);
+        Thread.currentThread().interrupt();
+        try {
+            pages.nextPage();
+            fail("expected the wait to be interrupted");
+        }
+        catch(InterruptedException e) {
+            //the page is still on its way
+        }
+        assertTrue(pages.hasNextPage());
+        assertEquals(Arrays.asList("0", "1", "2", "3", "4", "5", "6", "7", "8", "9"), ids(pages.nextPage()));
+        assertEquals(5, pages.nextPage().size());
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void failuresStopPaging() throws Exception {
+        start(new RangeHandler(0));
+        StackMobPager<Game> pages = stackmob.getPages(new StackMobQuery("broken"), Game.class, 10);
+        try {
+            pages.nextPage();
+            fail("expected the page to fail");
+        }
+        catch(StackMobException e) {
+            assertEquals("{\"error\":\"broken\"}", e.getMessage());
+        }
+        assertFalse(pages.hasNextPage());
+    }
+
+    @Test
+    public void queriesCanAskForARange() throws Exception {
+        RangeHandler handler = new RangeHandler(100);
+        start(handler);
+        final List<Game> result = new ArrayList<Game>();
+        stackmob.get(new StackMobQuery("game").isInRange(5, 9), Game.class, new StackMobObjectCallback<List<Game>>() {
+            @Override
+            public void success(List<Game> games) {
+                result.addAll(games);
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                fail(e.getMessage());
+            }
+        }).get(10, TimeUnit.SECONDS);
+        assertEquals("[5, 6, 7, 8, 9]", ids(result).toString());
+        assertEquals("[objects=5-9]", handler.ranges.toString());
+    }
+}
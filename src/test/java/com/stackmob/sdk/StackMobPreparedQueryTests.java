@@ -0,0 +1,195 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobPreparedQuery;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobObjectCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.stub.StackMobStubServer;
+import com.stackmob.sdk.stub.StubServer;
+import com.stackmob.sdk.testobjects.Game;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class StackMobPreparedQueryTests {
+
+    private static final StackMobCallback noopCallback = new StackMobCallback() {
+        @Override
+        public void success(String responseBody) {}
+        @Override
+        public void failure(StackMobException e) {}
+    };
+
+    private static final StackMobRedirectedCallback noopRedirectedCallback = new StackMobRedirectedCallback() {
+        @Override
+        public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {}
+    };
+
+    private static final StackMobPreparedQuery SCORES_BETWEEN = new StackMobPreparedQuery("game").fieldIsGreaterThanOrEqualTo("score").fieldIsLessThan("score");
+
+    private final Gson gson = new Gson();
+    private StackMobStubServer server;
+    private StackMob stackmob;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StackMobStubServer("key", "secret", "user");
+        stackmob = server.newStackMob();
+    }
+
+    @After
+    public void tearDown() {
+        stackmob.shutdown();
+        server.stop();
+    }
+
+    private void create(String name, int score) throws Exception {
+        Map<String, Object> game = new HashMap<String, Object>();
+        game.put("name", name);
+        game.put("score", score);
+        stackmob.post("game", game, noopCallback).get(10, TimeUnit.SECONDS);
+    }
+
+    private String names(StackMobPreparedQuery.Bound query) throws Exception {
+        Type games = new TypeToken<List<Game>>() {}.getType();
+        List<Game> found = gson.fromJson(stackmob.get(query, noopCallback).get(10, TimeUnit.SECONDS), games);
+        StringBuilder names = new StringBuilder();
+        for(Game game : found) {
+            names.append(names.length() == 0 ? "" : ",").append(game.name);
+        }
+        return names.toString();
+    }
+
+    @Test
+    public void runsWithDifferentValues() throws Exception {
+        create("checkers", 1);
+        create("chess", 2);
+        create("go", 10);
+        assertEquals("checkers,chess", names(SCORES_BETWEEN.bind(0, 10)));
+        assertEquals("chess,go", names(SCORES_BETWEEN.bind(2, 11)));
+        assertEquals("", names(SCORES_BETWEEN.bind(3, 10)));
+        StackMobPreparedQuery named = new StackMobPreparedQuery("game").fieldIsIn("name");
+        //values that need encoding are encoded
+        assertEquals("checkers,go", names(named.bind(Arrays.asList("go", "checkers", "tic tac toe"))));
+        assertEquals("chess", names(SCORES_BETWEEN.bind(0, 11).isInRange(1, 1)));
+        assertEquals(0, server.getRejectedCount());
+    }
+
+    @Test
+    public void decodesIntoObjects() throws Exception {
+        create("chess", 2);
+        create("go", 10);
+        final List<Game> games = new ArrayList<Game>();
+        stackmob.get(SCORES_BETWEEN.bind(5, 20), Game.class, new StackMobObjectCallback<List<Game>>() {
+            @Override
+            public void success(List<Game> result) {
+                games.addAll(result);
+            }
+            @Override
+            public void failure(StackMobException e) {}
+        }).get(10, TimeUnit.SECONDS);
+        assertEquals(1, games.size());
+        assertEquals("go", games.get(0).name);
+    }
+
+    @Test
+    public void sendsTheSameQueryAsStackMobQuery() throws Exception {
+        final List<String> queries = Collections.synchronizedList(new ArrayList<String>());
+        StubServer stub = new StubServer().handle("/game", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                queries.add(exchange.getRequestURI().getRawQuery());
+                StubServer.send(exchange, 200, "[]");
+            }
+        });
+        StackMob plain = new StackMob("key", "secret", "user", 0, stub.getHost(), noopRedirectedCallback);
+        try {
+            List<String> names = Arrays.asList("go", "tic tac toe", "café");
+            plain.get(new StackMobQuery("game").fieldIsLessThan("name/score", "a&b=c").fieldIsIn("name", names).expandDepthIs(2), noopCallback).get(10, TimeUnit.SECONDS);
+            StackMobPreparedQuery prepared = new StackMobPreparedQuery("game").fieldIsLessThan("name/score").fieldIsIn("name").expandDepthIs(2);
+            plain.get(prepared.bind("a&b=c", names), noopCallback).get(10, TimeUnit.SECONDS);
+            assertEquals(2, queries.size());
+            //the order of the parameters may differ, but nothing else
+            List<String> expected = new ArrayList<String>(Arrays.asList(queries.get(0).split("&")));
+            List<String> actual = new ArrayList<String>(Arrays.asList(queries.get(1).split("&")));
+            Collections.sort(expected);
+            Collections.sort(actual);
+            assertEquals(expected, actual);
+            assertEquals("/game?" + queries.get(1), prepared.bind("a&b=c", names).toString());
+        }
+        finally {
+            plain.shutdown();
+            stub.stop();
+        }
+    }
+
+    @Test
+    public void preparedQueriesAreImmutable() throws Exception {
+        StackMobPreparedQuery base = new StackMobPreparedQuery("game").fieldIsGreaterThan("score");
+        StackMobPreparedQuery narrower = base.fieldIsLessThan("score");
+        assertEquals(1, base.getParameterCount());
+        assertEquals(2, narrower.getParameterCount());
+        assertEquals("/game?score%5Bgt%5D=1", base.bind(1).toString());
+        assertEquals("/game?score%5Bgt%5D=1&score%5Blt%5D=2", narrower.bind(1, 2).toString());
+        assertEquals("/game?_expand=1", new StackMobPreparedQuery("game").expandDepthIs(1).bind().toString());
+    }
+
+    @Test
+    public void badValuesAreRejected() throws Exception {
+        try {
+            SCORES_BETWEEN.bind(1);
+            fail("bound too few values");
+        }
+        catch(IllegalArgumentException e) {
+            //expected
+        }
+        try {
+            SCORES_BETWEEN.bind(1, null);
+            fail("bound a null value");
+        }
+        catch(IllegalArgumentException e) {
+            //expected
+        }
+        try {
+            new StackMobPreparedQuery("game").fieldIsIn("name").bind("chess");
+            fail("bound a String to an in");
+        }
+        catch(IllegalArgumentException e) {
+            //expected
+        }
+    }
+}
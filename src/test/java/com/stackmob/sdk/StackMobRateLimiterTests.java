@@ -0,0 +1,336 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobFuture;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.StackMobHttpCallback;
+import com.stackmob.sdk.net.StackMobHttpTransport;
+import com.stackmob.sdk.net.StackMobRateLimiter;
+import com.stackmob.sdk.net.StackMobRateLimiter.Category;
+import com.stackmob.sdk.net.StackMobRateLimiter.Mode;
+import com.stackmob.sdk.stub.FaultInjectingHandler;
+import com.stackmob.sdk.stub.StubServer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scribe.model.OAuthRequest;
+import static org.junit.Assert.*;
+
+public class StackMobRateLimiterTests {
+
+    private static final String GAME = "{\"game_id\":\"1\"}";
+
+    private static final StackMobRedirectedCallback noopRedirectedCallback = new StackMobRedirectedCallback() {
+        @Override
+        public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {}
+    };
+
+    private static final StackMobCallback noopCallback = new StackMobCallback() {
+        @Override
+        public void success(String responseBody) {}
+        @Override
+        public void failure(StackMobException e) {}
+    };
+
+    private static final String FAULT = "{\"error\":\"injected fault\"}";
+
+    private StubServer server;
+    private FaultInjectingHandler faults;
+    private StackMob stackmob;
+    private StackMobRateLimiter limiter;
+
+    @Before
+    public void setUp() throws IOException {
+        faults = new FaultInjectingHandler(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                StubServer.send(exchange, 200, GAME);
+            }
+        });
+        server = new StubServer().respond("/game", 200, GAME).respond("/push", 200, "{}").handle("/flaky", faults);
+        final String host = server.getHost();
+        server.handle("/moved", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("Location", "http://" + host + "/game");
+                StubServer.send(exchange, 302, "");
+            }
+        });
+        stackmob = new StackMob("key", "secret", "user", 0, server.getHost(), noopRedirectedCallback);
+        limiter = stackmob.getRateLimiter();
+    }
+
+    @After
+    public void tearDown() {
+        stackmob.shutdown();
+        server.stop();
+    }
+
+    private boolean succeeds(StackMobFuture future) throws Exception {
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            return true;
+        }
+        catch(ExecutionException e) {
+            assertTrue(e.getCause() instanceof StackMobException);
+            return false;
+        }
+    }
+
+    @Test
+    public void unlimitedByDefault() throws Exception {
+        for(int i = 0; i < 20; i++) {
+            assertEquals(0, limiter.reserve(Category.DATA));
+        }
+        for(int i = 0; i < 20; i++) {
+            assertTrue(succeeds(stackmob.get("game", noopCallback)));
+        }
+        assertEquals(0, limiter.getThrottledCount());
+    }
+
+    @Test
+    public void failFast() throws Exception {
+        limiter.setRate(1, 5).setMode(Mode.FAIL_FAST);
+        for(int i = 0; i < 5; i++) {
+            assertTrue(succeeds(stackmob.get("game", noopCallback)));
+        }
+        assertFalse(succeeds(stackmob.get("game", noopCallback)));
+        assertEquals(5, server.getRequestCount());
+        assertEquals(1, limiter.getRejectedCount());
+    }
+
+    @Test
+    public void block() throws Exception {
+        limiter.setRate(20, 1).setMode(Mode.BLOCK);
+        long start = System.nanoTime();
+        for(int i = 0; i < 6; i++) {
+            assertTrue(succeeds(stackmob.get("game", noopCallback)));
+        }
+        //the first is sent at once, and each of the others is sent 50ms after the one before, waiting for whatever is
+        //left of that once the previous response has arrived
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 240);
+        assertTrue(limiter.getThrottledCount() > 0);
+    }
+
+    @Test
+    public void blockGivesUpAfterMaxWait() throws Exception {
+        limiter.setRate(1, 1).setMaxWait(100, TimeUnit.MILLISECONDS);
+        assertTrue(succeeds(stackmob.get("game", noopCallback)));
+        long start = System.nanoTime();
+        assertFalse(succeeds(stackmob.get("game", noopCallback)));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 100);
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void queue() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            stackmob.setExecutor(executor);
+            limiter.setRate(20, 1).setMode(Mode.QUEUE);
+            long start = System.nanoTime();
+            List<StackMobFuture> futures = new ArrayList<StackMobFuture>();
+            for(int i = 0; i < 6; i++) {
+                futures.add(stackmob.get("game", noopCallback));
+            }
+            //queueing doesn't block the caller
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 100);
+            for(StackMobFuture future : futures) {
+                assertTrue(succeeds(future));
+            }
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 240);
+            assertEquals(6, server.getRequestCount());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void categoriesAreLimitedSeparately() throws Exception {
+        limiter.setRate(Category.PUSH, 1, 2).setMode(Mode.FAIL_FAST);
+        Map<String, String> payload = new HashMap<String, String>();
+        payload.put("alert", "hi");
+        assertTrue(succeeds(stackmob.broadcastPushNotification(payload, noopCallback)));
+        assertTrue(succeeds(stackmob.broadcastPushNotification(payload, noopCallback)));
+        assertFalse(succeeds(stackmob.broadcastPushNotification(payload, noopCallback)));
+        //data requests have a bucket of their own
+        for(int i = 0; i < 10; i++) {
+            assertTrue(succeeds(stackmob.get("game", noopCallback)));
+        }
+        assertEquals(12, server.getRequestCount());
+    }
+
+    @Test
+    public void concurrentReservationsKeepToTheRate() throws Exception {
+        final StackMobRateLimiter limiter = new StackMobRateLimiter().setRate(1000, 100).setMode(Mode.FAIL_FAST);
+        final int threads = 16;
+        final long durationMs = 300;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger granted = new AtomicInteger(0);
+        List<Thread> workers = new ArrayList<Thread>();
+        for(int t = 0; t < threads; t++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch(InterruptedException e) {
+                        return;
+                    }
+                    long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMs);
+                    while(System.nanoTime() < end) {
+                        if(limiter.reserve(Category.DATA) == 0) {
+                            granted.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for(Thread worker : workers) {
+            worker.join();
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+        //the burst, plus one a millisecond
+        assertTrue("granted " + granted.get() + " in " + elapsedMs + "ms", granted.get() <= 100 + elapsedMs + 1);
+        assertTrue(granted.get() >= 100 + durationMs / 2);
+    }
+
+    @Test
+    public void failFastGrantsTheWholeBurstToConcurrentCallers() throws Exception {
+        final int burst = 64;
+        //slow enough that no token comes back while the test runs
+        final StackMobRateLimiter limiter = new StackMobRateLimiter().setRate(0.01, burst).setMode(Mode.FAIL_FAST);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger granted = new AtomicInteger(0);
+        List<Thread> callers = new ArrayList<Thread>();
+        for(int t = 0; t < burst * 2; t++) {
+            Thread caller = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch(InterruptedException e) {
+                        return;
+                    }
+                    if(limiter.reserve(Category.DATA) == 0) {
+                        granted.incrementAndGet();
+                    }
+                }
+            });
+            caller.start();
+            callers.add(caller);
+        }
+        start.countDown();
+        for(Thread caller : callers) {
+            caller.join();
+        }
+        //callers that are turned away never hold a token, so they can't crowd out the ones within the burst
+        assertEquals(burst, granted.get());
+        assertEquals(burst, limiter.getRejectedCount());
+    }
+
+    @Test
+    public void queuedRequestsAreNotSentOnTheTimerThread() throws Exception {
+        final Set<String> senders = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final StackMobHttpTransport transport = stackmob.getTransport();
+        stackmob.setTransport(new StackMobHttpTransport() {
+            @Override
+            public void send(OAuthRequest request, StackMobHttpCallback callback) {
+                senders.add(Thread.currentThread().getName());
+                transport.send(request, callback);
+            }
+
+            @Override
+            public void shutdown() {
+                transport.shutdown();
+            }
+        });
+        limiter.setRate(20, 1).setMode(Mode.QUEUE);
+        List<StackMobFuture> futures = new ArrayList<StackMobFuture>();
+        for(int i = 0; i < 4; i++) {
+            futures.add(stackmob.get("game", noopCallback));
+        }
+        for(StackMobFuture future : futures) {
+            assertTrue(succeeds(future));
+        }
+        assertFalse(senders.contains("StackMob timer"));
+        assertTrue(senders.contains("StackMob worker"));
+    }
+
+    @Test
+    public void retriesTakeATokenEach() throws Exception {
+        stackmob.getRetryPolicy().setMaxAttempts(3).setBackoff(1, 5, TimeUnit.MILLISECONDS);
+        limiter.setRate(1, 1).setMode(Mode.FAIL_FAST);
+        faults.failNext(1, 503);
+        //the only token went to the first attempt, so the retry isn't sent and the error is handed over as it is
+        assertEquals(FAULT, stackmob.get("flaky", noopCallback).get(10, TimeUnit.SECONDS));
+        assertEquals(1, server.getRequestCount());
+        assertEquals(1, limiter.getRejectedCount());
+    }
+
+    @Test
+    public void retriesWaitForTheirToken() throws Exception {
+        stackmob.getRetryPolicy().setMaxAttempts(3).setBackoff(1, 5, TimeUnit.MILLISECONDS);
+        limiter.setRate(10, 1).setMode(Mode.BLOCK);
+        faults.failNext(1, 503);
+        long start = System.nanoTime();
+        //the retry's backoff is a millisecond, but its token isn't due for 100
+        assertEquals(GAME, stackmob.get("flaky", noopCallback).get(10, TimeUnit.SECONDS));
+        assertEquals(2, server.getRequestCount());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 90);
+    }
+
+    @Test
+    public void redirectsTakeATokenEach() throws Exception {
+        limiter.setRate(1, 1).setMode(Mode.FAIL_FAST);
+        assertFalse(succeeds(stackmob.get("moved", noopCallback)));
+        assertEquals(1, server.getRequestCount());
+        assertEquals(1, limiter.getRejectedCount());
+
+        limiter.setRate(1, 2);
+        assertTrue(succeeds(stackmob.get("moved", noopCallback)));
+        assertEquals(3, server.getRequestCount());
+    }
+}
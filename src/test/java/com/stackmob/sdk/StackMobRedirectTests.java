@@ -0,0 +1,327 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobRequest;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.NioHttpTransport;
+import com.stackmob.sdk.net.PooledHttpTransport;
+import com.stackmob.sdk.net.StackMobHttpCallback;
+import com.stackmob.sdk.net.StackMobHttpTransport;
+import com.stackmob.sdk.net.StackMobRouter;
+import com.stackmob.sdk.stub.StubServer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.scribe.model.OAuthRequest;
+import static org.junit.Assert.*;
+
+public class StackMobRedirectTests {
+
+    private static final String GAME = "{\"game_id\":\"1\"}";
+
+    private static final StackMobCallback noopCallback = new StackMobCallback() {
+        @Override
+        public void success(String responseBody) {}
+        @Override
+        public void failure(StackMobException e) {}
+    };
+
+    /**
+     * counts the redirects the user is told about
+     */
+    private static class CountingRedirectedCallback implements StackMobRedirectedCallback {
+        final AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {
+            count.incrementAndGet();
+        }
+    }
+
+    /**
+     * counts the requests StackMob hands to the transport. a request the transport sends again on a new connection
+     * after the server dropped a reused one is only counted once
+     */
+    private static class CountingTransport implements StackMobHttpTransport {
+        final StackMobHttpTransport transport;
+        final AtomicInteger count = new AtomicInteger(0);
+        final List<String> senders = new CopyOnWriteArrayList<String>();
+
+        CountingTransport(StackMobHttpTransport transport) {
+            this.transport = transport;
+        }
+
+        @Override
+        public void send(OAuthRequest request, StackMobHttpCallback callback) {
+            count.incrementAndGet();
+            senders.add(Thread.currentThread().getName());
+            transport.send(request, callback);
+        }
+
+        @Override
+        public void shutdown() {
+            transport.shutdown();
+        }
+    }
+
+    /**
+     * redirects every request to the same path and query on another host
+     */
+    private static HttpHandler redirectTo(final String host) {
+        return new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                StubServer.readBody(exchange);
+                exchange.getResponseHeaders().set("Location", "http://" + host + exchange.getRequestURI().toString());
+                StubServer.send(exchange, 302, "");
+            }
+        };
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StubServer oldCluster;
+    private StubServer newCluster;
+    private CountingRedirectedCallback redirected;
+    private StackMob stackmob;
+
+    @Before
+    public void setUp() throws IOException {
+        newCluster = new StubServer().respond("/game", 200, GAME).respond("/user", 200, "{}");
+        oldCluster = new StubServer().handle("/game", redirectTo(newCluster.getHost())).respond("/user", 200, "{}");
+        redirected = new CountingRedirectedCallback();
+        stackmob = new StackMob("key", "secret", "user", 0, oldCluster.getHost(), redirected);
+    }
+
+    @After
+    public void tearDown() {
+        stackmob.shutdown();
+        oldCluster.stop();
+        newCluster.stop();
+    }
+
+    @Test
+    public void redirectIsLearned() throws Exception {
+        assertEquals(GAME, stackmob.get("game", noopCallback).get(10, TimeUnit.SECONDS));
+        assertEquals(1, oldCluster.getRequestCount());
+        assertEquals(1, newCluster.getRequestCount());
+        assertEquals(1, redirected.count.get());
+        //the port is part of the learned host
+        assertEquals(newCluster.getHost(), stackmob.getRouter().getHost("/game/1234"));
+
+        for(int i = 0; i < 5; i++) {
+            assertEquals(GAME, stackmob.get("game", noopCallback).get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(1, oldCluster.getRequestCount());
+        assertEquals(6, newCluster.getRequestCount());
+        assertEquals(1, redirected.count.get());
+    }
+
+    @Test
+    public void nullRedirectedCallback() throws Exception {
+        stackmob.shutdown();
+        stackmob = new StackMob("key", "secret", "user", 0, oldCluster.getHost(), null);
+        assertEquals(GAME, stackmob.get("game", noopCallback).get(10, TimeUnit.SECONDS));
+        assertEquals(newCluster.getHost(), stackmob.getRouter().getDefaultHost());
+    }
+
+    @Test
+    public void redirectLoopFails() throws Exception {
+        oldCluster.handle("/loop", redirectTo(oldCluster.getHost()));
+        //with a single connection, following the redirect while the first response still held it would deadlock
+        CountingTransport transport = new CountingTransport(new PooledHttpTransport().setMaxConnectionsPerHost(1));
+        stackmob.setTransport(transport);
+        try {
+            stackmob.get("loop", noopCallback).get(10, TimeUnit.SECONDS);
+            fail("a redirect loop should fail");
+        }
+        catch(ExecutionException e) {
+            assertTrue(e.getCause() instanceof StackMobException);
+        }
+        //counted before the transport, since the stub server sometimes drops a kept alive connection that a redirect
+        //back to it is about to reuse, and the transport then sends that get again
+        assertEquals(StackMobRequest.MAX_REDIRECTS + 1, transport.count.get());
+        assertEquals(0, redirected.count.get());
+    }
+
+    @Test
+    public void redirectsReportedOnTheEventLoopAreFollowedFromAWorker() throws Exception {
+        CountingTransport transport = new CountingTransport(new NioHttpTransport());
+        stackmob.setTransport(transport);
+        assertEquals(GAME, stackmob.get("game", noopCallback).get(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(Thread.currentThread().getName(), "StackMob worker"), transport.senders);
+        assertEquals(1, redirected.count.get());
+    }
+
+    @Test
+    public void concurrentRedirects() throws Exception {
+        final int threads = 32;
+        final int requestsPerThread = 25;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger succeeded = new AtomicInteger(0);
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        List<Thread> workers = new ArrayList<Thread>();
+        for(int t = 0; t < threads; t++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for(int i = 0; i < requestsPerThread; i++) {
+                            if(GAME.equals(stackmob.get("game", noopCallback).get(10, TimeUnit.SECONDS))) {
+                                succeeded.incrementAndGet();
+                            }
+                        }
+                    }
+                    catch(Throwable e) {
+                        synchronized(errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for(Thread worker : workers) {
+            worker.join(60000);
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(threads * requestsPerThread, succeeded.get());
+        assertEquals(threads * requestsPerThread, newCluster.getRequestCount());
+        //only the requests sent before the first redirect was learned go to the old cluster
+        assertTrue(oldCluster.getRequestCount() <= threads);
+        assertEquals(1, redirected.count.get());
+    }
+
+    @Test
+    public void storedRoutesSurviveARestart() throws Exception {
+        File store = new File(folder.getRoot(), "routes");
+        stackmob.getRouter().setStore(store);
+        assertEquals(GAME, stackmob.get("game", noopCallback).get(10, TimeUnit.SECONDS));
+        stackmob.getRouter().flush();
+        assertTrue(store.exists());
+        assertEquals(1, oldCluster.getRequestCount());
+        stackmob.shutdown();
+
+        stackmob = new StackMob("key", "secret", "user", 0, oldCluster.getHost(), redirected);
+        stackmob.getRouter().setStore(store);
+        assertEquals(newCluster.getHost(), stackmob.getRouter().getHost("/game"));
+        assertEquals(GAME, stackmob.get("game", noopCallback).get(10, TimeUnit.SECONDS));
+        assertEquals(1, oldCluster.getRequestCount());
+        assertEquals(2, newCluster.getRequestCount());
+        //the temporary file the store was written through is gone
+        assertEquals(1, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void expiredRoutesAreForgotten() throws Exception {
+        File store = new File(folder.getRoot(), "routes");
+        stackmob.getRouter().setRouteExpiry(50, TimeUnit.MILLISECONDS).setStore(store);
+        assertEquals(GAME, stackmob.get("game", noopCallback).get(10, TimeUnit.SECONDS));
+        assertEquals(newCluster.getHost(), stackmob.getRouter().getHost("/game"));
+        stackmob.getRouter().flush();
+        Thread.sleep(100);
+        //the default host follows the redirect, but the learned route for the path has expired
+        assertEquals(1, stackmob.getRouter().getRouteCount());
+        stackmob.getRouter().getHost("/game");
+        assertEquals(0, stackmob.getRouter().getRouteCount());
+
+        StackMobRouter restarted = new StackMobRouter(oldCluster.getHost()).setRouteExpiry(50, TimeUnit.MILLISECONDS).setStore(store);
+        assertEquals(0, restarted.getRouteCount());
+        assertEquals(oldCluster.getHost(), restarted.getHost("/game"));
+
+        StackMobRouter lenient = new StackMobRouter(oldCluster.getHost()).setRouteExpiry(StackMobRouter.NEVER, TimeUnit.MILLISECONDS).setStore(store);
+        assertEquals(newCluster.getHost(), lenient.getHost("/game"));
+    }
+
+    @Test
+    public void unreadableStoreIsIgnored() throws Exception {
+        File store = new File(folder.getRoot(), "routes");
+        FileWriter writer = new FileWriter(store);
+        writer.write("route.game=\\u00zz\nroute.user=nonsense\ndefault=\n");
+        writer.close();
+        StackMobRouter router = new StackMobRouter(oldCluster.getHost()).setStore(store);
+        assertEquals(oldCluster.getHost(), router.getHost("/game"));
+        assertEquals(oldCluster.getHost(), router.getHost("/user"));
+
+        assertTrue(router.redirected("http://" + oldCluster.getHost() + "/game", "http://" + newCluster.getHost() + "/game"));
+        router.flush();
+        assertEquals(newCluster.getHost(), new StackMobRouter(oldCluster.getHost()).setStore(store).getHost("/game"));
+    }
+
+    @Test
+    public void theStoreEndsUpWithEveryRouteLearnedAtOnce() throws Exception {
+        File store = new File(folder.getRoot(), "routes");
+        final StackMobRouter router = new StackMobRouter(oldCluster.getHost()).setStore(store);
+        final int threads = 8;
+        final int paths = 50;
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> running = new ArrayList<Thread>();
+        for(int i = 0; i < threads; i++) {
+            final int thread = i;
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch(InterruptedException e) {
+                        return;
+                    }
+                    for(int path = 0; path < paths; path++) {
+                        String key = "/schema" + thread + "_" + path;
+                        router.redirected("http://" + oldCluster.getHost() + key, "http://" + newCluster.getHost() + key);
+                    }
+                }
+            });
+            t.start();
+            running.add(t);
+        }
+        start.countDown();
+        for(Thread t : running) {
+            t.join();
+        }
+        router.flush();
+        StackMobRouter restarted = new StackMobRouter(oldCluster.getHost()).setStore(store);
+        assertEquals(threads * paths, restarted.getRouteCount());
+        assertEquals(newCluster.getHost(), restarted.getDefaultHost());
+    }
+}
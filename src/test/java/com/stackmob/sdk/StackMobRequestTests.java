@@ -54,7 +54,7 @@ public class StackMobRequestTests extends StackMobTestCommon {
             }
         }, redirectedCallback);
 
-        request.sendRequest();
+        prepare(request).sendRequest();
     }
 
     @Test
@@ -70,7 +70,7 @@ public class StackMobRequestTests extends StackMobTestCommon {
             }
         }, redirectedCallback);
 
-        request.sendRequest();
+        prepare(request).sendRequest();
     }
 
     @Test
@@ -86,7 +86,7 @@ public class StackMobRequestTests extends StackMobTestCommon {
             }
         }, redirectedCallback);
 
-        request.sendRequest();
+        prepare(request).sendRequest();
     }
 
     @Test
@@ -102,7 +102,7 @@ public class StackMobRequestTests extends StackMobTestCommon {
             }
         }, redirectedCallback);
 
-        request.sendRequest();
+        prepare(request).sendRequest();
     }
 
     @Test
@@ -119,6 +119,6 @@ public class StackMobRequestTests extends StackMobTestCommon {
             }
         }, redirectedCallback);
 
-        request.sendRequest();
+        prepare(request).sendRequest();
     }
 }
\ No newline at end of file
@@ -0,0 +1,269 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.NioHttpTransport;
+import com.stackmob.sdk.net.StackMobHttpCallback;
+import com.stackmob.sdk.net.StackMobHttpTransport;
+import com.stackmob.sdk.net.StackMobRetryPolicy;
+import com.stackmob.sdk.stub.FaultInjectingHandler;
+import com.stackmob.sdk.stub.StubServer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scribe.model.OAuthRequest;
+import static org.junit.Assert.*;
+
+public class StackMobRetryTests {
+
+    private static final StackMobRedirectedCallback noopRedirectedCallback = new StackMobRedirectedCallback() {
+        @Override
+        public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {}
+    };
+
+    private static final StackMobCallback noopCallback = new StackMobCallback() {
+        @Override
+        public void success(String responseBody) {}
+        @Override
+        public void failure(StackMobException e) {}
+    };
+
+    //error responses are handed to the callback as they are, once the retries run out
+    private static final String FAULT = "{\"error\":\"injected fault\"}";
+
+    private static final HttpHandler okHandler = new HttpHandler() {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            StubServer.readBody(exchange);
+            StubServer.send(exchange, 200, "{\"game_id\":\"1\"}");
+        }
+    };
+
+    private StubServer server;
+    private FaultInjectingHandler faults;
+    private StackMob stackmob;
+
+    @Before
+    public void setUp() throws IOException {
+        faults = new FaultInjectingHandler(okHandler);
+        server = new StubServer().handle("/game", faults);
+        stackmob = new StackMob("key", "secret", "user", 0, server.getHost(), noopRedirectedCallback);
+        stackmob.getRetryPolicy().setMaxAttempts(3).setBackoff(1, 5, TimeUnit.MILLISECONDS);
+    }
+
+    @After
+    public void tearDown() {
+        stackmob.shutdown();
+        server.stop();
+    }
+
+    @Test
+    public void requestsAreSentOnceByDefault() throws Exception {
+        stackmob.getRetryPolicy().setMaxAttempts(1);
+        faults.failNext(1, 503);
+        assertEquals(FAULT, stackmob.get("game", noopCallback).get(10, TimeUnit.SECONDS));
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void failedGetsAreRetried() throws Exception {
+        faults.failNext(2, 503);
+        assertEquals("{\"game_id\":\"1\"}", stackmob.get("game", noopCallback).get(10, TimeUnit.SECONDS));
+        assertEquals(3, server.getRequestCount());
+        assertEquals(2L, stackmob.getRetryPolicy().getRetryCount());
+    }
+
+    @Test
+    public void droppedConnectionsAreRetried() throws Exception {
+        faults.failNext(2, FaultInjectingHandler.DROP);
+        Map<String, String> game = new HashMap<String, String>();
+        game.put("name", "chess");
+        assertEquals("{\"game_id\":\"1\"}", stackmob.put("game", "1", game, noopCallback).get(10, TimeUnit.SECONDS));
+        assertEquals(2, faults.getFaultCount());
+    }
+
+    @Test
+    public void retriesStopAfterMaxAttempts() throws Exception {
+        faults.failNext(10, 504);
+        assertEquals(FAULT, stackmob.delete("game", "1", noopCallback).get(10, TimeUnit.SECONDS));
+        assertEquals(3, server.getRequestCount());
+    }
+
+    @Test
+    public void otherErrorsAreNotRetried() throws Exception {
+        faults.failNext(1, 500);
+        assertEquals(FAULT, stackmob.get("game", noopCallback).get(10, TimeUnit.SECONDS));
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void postsAreOnlyRetriedWhenMarked() throws Exception {
+        Map<String, String> game = new HashMap<String, String>();
+        game.put("name", "chess");
+        faults.failNext(1, 503);
+        assertEquals(FAULT, stackmob.post("game", game, noopCallback).get(10, TimeUnit.SECONDS));
+        assertEquals(1, server.getRequestCount());
+
+        stackmob.getRetryPolicy().setRetryPosts(true);
+        faults.failNext(1, 503);
+        stackmob.post("game", game, noopCallback).get(10, TimeUnit.SECONDS);
+        assertEquals(3, server.getRequestCount());
+    }
+
+    @Test
+    public void theBudgetLimitsRetries() throws Exception {
+        stackmob.getRetryPolicy().setRetryBudget(0.5, 2);
+        faults.setFailureRate(1, 503);
+        for(int i = 0; i < 10; i++) {
+            assertEquals(FAULT, stackmob.get("game", noopCallback).get(10, TimeUnit.SECONDS));
+        }
+        //the first get spends the reserve of 2. each later get adds half a retry, so every second one is retried once
+        assertEquals(6L, stackmob.getRetryPolicy().getRetryCount());
+        assertEquals(16, server.getRequestCount());
+        assertTrue(stackmob.getRetryPolicy().getBudgetExhaustedCount() > 0);
+    }
+
+    @Test
+    public void connectionFailuresAreRetried() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        StackMob unreachable = new StackMob("key", "secret", "user", 0, "127.0.0.1:" + port, noopRedirectedCallback);
+        unreachable.getRetryPolicy().setMaxAttempts(4).setBackoff(1, 5, TimeUnit.MILLISECONDS);
+        try {
+            unreachable.get("game", noopCallback).get(10, TimeUnit.SECONDS);
+            fail("expected the get to fail");
+        }
+        catch(ExecutionException e) {
+            assertTrue(e.getCause() instanceof StackMobException);
+        }
+        finally {
+            unreachable.shutdown();
+        }
+        assertEquals(3L, unreachable.getRetryPolicy().getRetryCount());
+    }
+
+    @Test
+    public void retriesOfNonBlockingRequestsAreScheduled() throws Exception {
+        stackmob.setTransport(new NioHttpTransport());
+        faults.failNext(2, 503);
+        assertEquals("{\"game_id\":\"1\"}", stackmob.get("game", noopCallback).get(10, TimeUnit.SECONDS));
+        assertEquals(3, server.getRequestCount());
+    }
+
+    /**
+     * sends the first attempt through a non-blocking transport, so that its failure is reported from the event loop, and
+     * hands every later attempt to the given transport, recording the thread it's sent from
+     */
+    private static class SecondAttemptTransport implements StackMobHttpTransport {
+        final NioHttpTransport nio = new NioHttpTransport();
+        final StackMobHttpTransport later;
+        final AtomicInteger sends = new AtomicInteger(0);
+        final AtomicReference<String> retriedFrom = new AtomicReference<String>();
+
+        SecondAttemptTransport(StackMobHttpTransport later) {
+            this.later = later;
+        }
+
+        @Override
+        public void send(OAuthRequest request, StackMobHttpCallback callback) {
+            if(sends.incrementAndGet() == 1) {
+                nio.send(request, callback);
+            }
+            else {
+                retriedFrom.set(Thread.currentThread().getName());
+                later.send(request, callback);
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            nio.shutdown();
+            later.shutdown();
+        }
+    }
+
+    @Test
+    public void retriesReportedOnTheEventLoopAreSentFromAWorker() throws Exception {
+        SecondAttemptTransport transport = new SecondAttemptTransport(stackmob.getTransport());
+        stackmob.setTransport(transport);
+        faults.failNext(1, 503);
+        assertEquals("{\"game_id\":\"1\"}", stackmob.get("game", noopCallback).get(10, TimeUnit.SECONDS));
+        assertEquals("StackMob worker", transport.retriedFrom.get());
+    }
+
+    @Test
+    public void retriesThatThrowFailTheRequest() throws Exception {
+        stackmob.setMaxInFlightRequests(1);
+        SecondAttemptTransport transport = new SecondAttemptTransport(new StackMobHttpTransport() {
+            @Override
+            public void send(OAuthRequest request, StackMobHttpCallback callback) {
+                throw new IllegalStateException("transport broke");
+            }
+
+            @Override
+            public void shutdown() {}
+        });
+        stackmob.setTransport(transport);
+        faults.failNext(1, 503);
+        try {
+            stackmob.get("game", noopCallback).get(10, TimeUnit.SECONDS);
+            fail("expected the get to fail");
+        }
+        catch(ExecutionException e) {
+            assertEquals("transport broke", e.getCause().getMessage());
+        }
+        transport.shutdown();
+        //the permit came back, so the next request isn't stuck behind it
+        stackmob.setTransport(new NioHttpTransport());
+        assertEquals("{\"game_id\":\"1\"}", stackmob.get("game", noopCallback).get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void delaysAreJitteredUpToAnExponentialLimit() {
+        StackMobRetryPolicy policy = new StackMobRetryPolicy().setBackoff(100, 1000, TimeUnit.MILLISECONDS);
+        long[] limits = new long[] {100, 200, 400, 800, 1000, 1000};
+        for(int retry = 1; retry <= limits.length; retry++) {
+            long max = 0;
+            long min = Long.MAX_VALUE;
+            for(int i = 0; i < 1000; i++) {
+                long delay = policy.getDelayMillis(retry);
+                assertTrue(delay >= 0 && delay <= limits[retry - 1]);
+                max = Math.max(max, delay);
+                min = Math.min(min, delay);
+            }
+            assertTrue(max > limits[retry - 1] / 2);
+            assertTrue(min < limits[retry - 1] / 2);
+        }
+        assertTrue(policy.getDelayMillis(200) <= 1000);
+    }
+}
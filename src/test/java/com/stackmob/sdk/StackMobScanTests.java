@@ -0,0 +1,236 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.gson.JsonElement;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.api.StackMobScan;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.callback.StackMobStreamingCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.NioHttpTransport;
+import com.stackmob.sdk.stub.PartitionedSchemaHandler;
+import com.stackmob.sdk.stub.StubServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class StackMobScanTests {
+
+    private static final StackMobRedirectedCallback noopRedirectedCallback = new StackMobRedirectedCallback() {
+        @Override
+        public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {}
+    };
+
+    /**
+     * collects the ids it's handed, and notices if it's ever called from two threads at once
+     */
+    private static class CollectingCallback implements StackMobStreamingCallback {
+        final Set<String> ids = new HashSet<String>();
+        final AtomicInteger duplicates = new AtomicInteger(0);
+        final AtomicBoolean overlapped = new AtomicBoolean(false);
+        final AtomicInteger done = new AtomicInteger(0);
+        final AtomicInteger failures = new AtomicInteger(0);
+        private final AtomicInteger active = new AtomicInteger(0);
+
+        @Override
+        public void object(JsonElement object) {
+            if(active.incrementAndGet() > 1) {
+                overlapped.set(true);
+            }
+            if(!ids.add(object.getAsJsonObject().get("game_id").getAsString())) {
+                duplicates.incrementAndGet();
+            }
+            active.decrementAndGet();
+        }
+
+        @Override
+        public void done() {
+            done.incrementAndGet();
+        }
+
+        @Override
+        public void failure(StackMobException e) {
+            failures.incrementAndGet();
+        }
+    }
+
+    private StubServer server;
+    private PartitionedSchemaHandler handler;
+    private StackMob stackmob;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws IOException {
+        handler = new PartitionedSchemaHandler(1003).setLatency(20, 0);
+        server = new StubServer()
+            .handle("/game", handler)
+            .respond("/broken", 500, "{\"error\":\"broken\"}");
+        stackmob = new StackMob("key", "secret", "user", 0, server.getHost(), noopRedirectedCallback);
+        executor = Executors.newFixedThreadPool(8);
+        stackmob.setExecutor(executor);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        stackmob.shutdown();
+        server.stop();
+    }
+
+    @Test
+    public void everyObjectIsScannedOnce() throws Exception {
+        CollectingCallback callback = new CollectingCallback();
+        StackMobScan scan = new StackMobScan(stackmob, new StackMobQuery("game"))
+            .partitionBy("createddate", 0, 1003)
+            .setPartitions(7)
+            .setParallelism(3);
+        assertNull(scan.run(callback).get(10, TimeUnit.SECONDS));
+        assertEquals(1003, callback.ids.size());
+        assertEquals(0, callback.duplicates.get());
+        assertFalse(callback.overlapped.get());
+        assertEquals(1, callback.done.get());
+        assertEquals(0, callback.failures.get());
+        assertEquals(7, server.getRequestCount());
+        assertEquals(7L, scan.getPartitionsCompleted());
+        assertEquals(1003L, scan.getObjectsScanned());
+    }
+
+    @Test
+    public void parallelismIsRespected() throws Exception {
+        new StackMobScan(stackmob, new StackMobQuery("game"))
+            .partitionBy("createddate", 0, 1003)
+            .setPartitions(20)
+            .setParallelism(4)
+            .run(new CollectingCallback())
+            .get(10, TimeUnit.SECONDS);
+        assertEquals(20, server.getRequestCount());
+        assertTrue(handler.getMaxConcurrentRequests() <= 4);
+        assertTrue(handler.getMaxConcurrentRequests() > 1);
+    }
+
+    @Test
+    public void withoutAnExecutorTheStackDoesNotGrowWithPartitions() throws Exception {
+        stackmob.setExecutor(null);
+        handler.setLatency(0, 0);
+        final AtomicInteger minDepth = new AtomicInteger(Integer.MAX_VALUE);
+        final AtomicInteger maxDepth = new AtomicInteger(0);
+        CollectingCallback callback = new CollectingCallback() {
+            @Override
+            public void object(JsonElement object) {
+                int depth = Thread.currentThread().getStackTrace().length;
+                minDepth.set(Math.min(minDepth.get(), depth));
+                maxDepth.set(Math.max(maxDepth.get(), depth));
+                super.object(object);
+            }
+        };
+        new StackMobScan(stackmob, new StackMobQuery("game"))
+            .partitionBy("createddate", 0, 1003)
+            .setPartitions(200)
+            .setParallelism(4)
+            .run(callback)
+            .get(30, TimeUnit.SECONDS);
+        assertEquals(1003, callback.ids.size());
+        assertEquals(1, callback.done.get());
+        //each partition used to start the next one from inside its own callback, a few dozen frames deeper each time
+        assertTrue("stack grew from " + minDepth.get() + " to " + maxDepth.get(), maxDepth.get() - minDepth.get() < 20);
+    }
+
+    @Test
+    public void theInFlightLimitHoldsWithFewerThreadsThanPermits() throws Exception {
+        executor.shutdownNow();
+        //a partition that started the next from its callback would wait on the executor's only thread for a permit held by
+        //requests queued behind it
+        executor = Executors.newSingleThreadExecutor();
+        stackmob.setExecutor(executor).setMaxInFlightRequests(2);
+        CollectingCallback callback = new CollectingCallback();
+        new StackMobScan(stackmob, new StackMobQuery("game"))
+            .partitionBy("createddate", 0, 1003)
+            .setPartitions(20)
+            .setParallelism(4)
+            .run(callback)
+            .get(30, TimeUnit.SECONDS);
+        assertEquals(1003, callback.ids.size());
+        assertEquals(1, callback.done.get());
+        assertEquals(20, server.getRequestCount());
+    }
+
+    @Test
+    public void aNonBlockingTransportScansUnderAnInFlightLimitOfOne() throws Exception {
+        stackmob.setExecutor(null);
+        stackmob.setTransport(new NioHttpTransport());
+        stackmob.setMaxInFlightRequests(1);
+        //a partition that started the next from its callback would wait on the event loop for the permit of the request
+        //only the event loop can finish
+        CollectingCallback callback = new CollectingCallback();
+        new StackMobScan(stackmob, new StackMobQuery("game"))
+            .partitionBy("createddate", 0, 1003)
+            .setPartitions(20)
+            .setParallelism(1)
+            .run(callback)
+            .get(30, TimeUnit.SECONDS);
+        assertEquals(1003, callback.ids.size());
+        assertEquals(1, callback.done.get());
+        assertEquals(20, server.getRequestCount());
+        assertEquals(1, handler.getMaxConcurrentRequests());
+    }
+
+    @Test
+    public void thereAreMorePartitionsThanValues() throws Exception {
+        CollectingCallback callback = new CollectingCallback();
+        new StackMobScan(stackmob, new StackMobQuery("game"))
+            .partitionBy("createddate", 1000, 1003)
+            .setPartitions(8)
+            .run(callback)
+            .get(10, TimeUnit.SECONDS);
+        assertEquals(3, callback.ids.size());
+        assertEquals(1, callback.done.get());
+    }
+
+    @Test
+    public void theFirstFailureEndsTheScan() throws Exception {
+        CollectingCallback callback = new CollectingCallback();
+        try {
+            new StackMobScan(stackmob, new StackMobQuery("broken"))
+                .partitionBy("createddate", 0, 100)
+                .setPartitions(10)
+                .setParallelism(2)
+                .run(callback)
+                .get(10, TimeUnit.SECONDS);
+            fail("expected the scan to fail");
+        }
+        catch(ExecutionException e) {
+            assertTrue(e.getCause() instanceof StackMobException);
+        }
+        assertEquals(1, callback.failures.get());
+        assertEquals(0, callback.done.get());
+        assertTrue(server.getRequestCount() <= 2);
+    }
+}
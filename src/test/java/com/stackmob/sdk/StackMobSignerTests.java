@@ -0,0 +1,155 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.stackmob.sdk.api.StackMobSession;
+import com.stackmob.sdk.net.PercentEncoder;
+import com.stackmob.sdk.net.StackMobApi;
+import com.stackmob.sdk.net.StackMobSigner;
+import org.junit.Test;
+import org.scribe.extractors.BaseStringExtractorImpl;
+import org.scribe.model.OAuthConfig;
+import org.scribe.model.OAuthConstants;
+import org.scribe.model.OAuthRequest;
+import org.scribe.model.Token;
+import org.scribe.model.Verb;
+import org.scribe.oauth.OAuth10aServiceImpl;
+import org.scribe.services.HMACSha1SignatureService;
+import org.scribe.services.TimestampService;
+import static org.junit.Assert.*;
+
+public class StackMobSignerTests {
+
+    private static final String KEY = "test-key";
+    private static final String SECRET = "test+secret&";
+    private static final String URL = "http://api.mob1.stackmob.com/game?name%5Bin%5D=one%2Ctwo&score%5Bgt%5D=10";
+
+    private static final TimestampService fixedTimestamps = new TimestampService() {
+        @Override
+        public String getTimestampInSeconds() {
+            return "1318622958";
+        }
+        @Override
+        public String getNonce() {
+            return "1318623410";
+        }
+    };
+
+    private static OAuthRequest newRequest(Verb verb) {
+        OAuthRequest req = new OAuthRequest(verb, URL);
+        req.addHeader("Accept", "application/vnd.stackmob+json; version=0");
+        return req;
+    }
+
+    @Test
+    public void signatureMatchesScribe() {
+        for(Verb verb : Verb.values()) {
+            OAuthRequest expected = newRequest(verb);
+            StackMobApi api = new StackMobApi() {
+                @Override
+                public TimestampService getTimestampService() {
+                    return fixedTimestamps;
+                }
+            };
+            new OAuth10aServiceImpl(api, new OAuthConfig(KEY, SECRET)).signRequest(new Token("", ""), expected);
+
+            OAuthRequest actual = newRequest(verb);
+            new StackMobSigner(KEY, SECRET, fixedTimestamps).sign(actual);
+
+            assertEquals(expected.getHeaders().get(OAuthConstants.HEADER), actual.getHeaders().get(OAuthConstants.HEADER));
+        }
+    }
+
+    @Test
+    public void encodedParamsSignLikeScribe() {
+        StringBuilder query = new StringBuilder();
+        String[] encoded = new String[50];
+        for(int i = 0; i < 25; i++) {
+            //names that sort the same whether they're compared encoded or decoded, as scribe compares them
+            encoded[2 * i] = PercentEncoder.encode("field" + (char)('a' + i) + (i % 3 == 0 ? "[lt]" : ""));
+            encoded[2 * i + 1] = PercentEncoder.encode(i % 2 == 0 ? "value " + i + " ü*~+&=" : "v" + i);
+            query.append(i == 0 ? "" : "&").append(encoded[2 * i]).append('=').append(encoded[2 * i + 1]);
+        }
+        String url = "https://api.mob1.stackmob.com:8443/game%20s?" + query;
+        for(Verb verb : Verb.values()) {
+            OAuthRequest expected = new OAuthRequest(verb, url);
+            new StackMobSigner(KEY, SECRET, fixedTimestamps).sign(expected);
+            OAuthRequest actual = new OAuthRequest(verb, url);
+            new StackMobSigner(KEY, SECRET, fixedTimestamps).sign(actual, encoded);
+            assertEquals(expected.getHeaders().get(OAuthConstants.HEADER), actual.getHeaders().get(OAuthConstants.HEADER));
+            assertEquals(expected.getOauthParameters(), actual.getOauthParameters());
+        }
+        //the encoded parameters are left as they were
+        assertEquals("fielda%5Blt%5D", encoded[0]);
+    }
+
+    @Test
+    public void encodedParamsAreSortedByEncodedName() {
+        //{ sorts after a, but its escape sorts before it. RFC 5849 compares the encoded names
+        String[] encoded = {PercentEncoder.encode("x{"), "1", "xa", "2"};
+        OAuthRequest request = new OAuthRequest(Verb.GET, "http://api.mob1.stackmob.com/game?x%7B=1&xa=2");
+        new StackMobSigner(KEY, SECRET, fixedTimestamps).sign(request, encoded);
+        String expected = new StackMobSigner(KEY, SECRET).getSignature("GET&http%3A%2F%2Fapi.mob1.stackmob.com%2Fgame&" +
+                "oauth_consumer_key%3Dtest-key%26oauth_nonce%3D1318623410%26oauth_signature_method%3DHMAC-SHA1%26" +
+                "oauth_timestamp%3D1318622958%26oauth_token%3D%26oauth_version%3D1.0%26x%257B%3D1%26xa%3D2");
+        assertEquals(expected, request.getOauthParameters().get(OAuthConstants.SIGNATURE));
+    }
+
+    @Test
+    public void sessionOwnsOneSigner() {
+        StackMobSession session = new StackMobSession(KEY, SECRET, "user", 0);
+        assertNotNull(session.getSigner());
+        assertSame(session.getSigner(), session.getSigner());
+    }
+
+    @Test
+    public void concurrentSigningProducesValidSignatures() throws InterruptedException {
+        final StackMobSigner signer = new StackMobSigner(KEY, SECRET);
+        final HMACSha1SignatureService reference = new HMACSha1SignatureService();
+        final BaseStringExtractorImpl baseStrings = new BaseStringExtractorImpl();
+        final AtomicInteger mismatches = new AtomicInteger(0);
+        final int threadCount = 16;
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int t = 0; t < threadCount; t++) {
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    for(int i = 0; i < 500; i++) {
+                        OAuthRequest req = newRequest(Verb.GET);
+                        signer.sign(req);
+                        String signature = req.getOauthParameters().remove(OAuthConstants.SIGNATURE);
+                        String expected = reference.getSignature(baseStrings.extract(req), SECRET, "");
+                        if(!expected.equals(signature)) {
+                            mismatches.incrementAndGet();
+                        }
+                    }
+                    done.countDown();
+                }
+            }));
+        }
+        for(Thread thread : threads) {
+            thread.start();
+        }
+        done.await();
+        assertEquals(0, mismatches.get());
+    }
+}
@@ -0,0 +1,245 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.JsonElement;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.callback.StackMobStreamingCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.stub.StubServer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class StackMobStreamingTests {
+
+    private static final StackMobRedirectedCallback noopRedirectedCallback = new StackMobRedirectedCallback() {
+        @Override
+        public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {}
+    };
+
+    private static class RecordingCallback implements StackMobStreamingCallback {
+        final List<JsonElement> objects = new ArrayList<JsonElement>();
+        int done = 0;
+        StackMobException failure;
+
+        @Override
+        public void object(JsonElement object) {
+            objects.add(object);
+        }
+
+        @Override
+        public void done() {
+            done++;
+        }
+
+        @Override
+        public void failure(StackMobException e) {
+            failure = e;
+        }
+    }
+
+    /**
+     * streams a JSON array of generated games, without ever holding more than one chunk of it in memory
+     */
+    private static class GeneratedResultHandler implements HttpHandler {
+        private static final String PADDING = new String(new char[160]).replace('\0', 'x');
+        private final long count;
+
+        GeneratedResultHandler(long count) {
+            this.count = count;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream out = exchange.getResponseBody();
+            StringBuilder chunk = new StringBuilder(64 * 1024);
+            chunk.append('[');
+            for(long i = 0; i < count; i++) {
+                if(i > 0) {
+                    chunk.append(',');
+                }
+                chunk.append("{\"game_id\":\"").append(i).append("\",\"score\":").append(i % 1000).append(",\"padding\":\"").append(PADDING).append("\"}");
+                if(chunk.length() > 60 * 1024) {
+                    out.write(chunk.toString().getBytes("UTF-8"));
+                    chunk.setLength(0);
+                }
+            }
+            chunk.append(']');
+            out.write(chunk.toString().getBytes("UTF-8"));
+            out.close();
+        }
+    }
+
+    private StubServer server;
+    private StackMob stackmob;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StubServer()
+            .handle("/game", new GeneratedResultHandler(1000))
+            .respond("/user", 200, "{\"username\":\"bob\"}")
+            .respond("/broken", 500, "{\"error\":\"broken\"}")
+            .respond("/truncated", 200, "[{\"n\":1},{\"n\":2},{\"n\":");
+        stackmob = new StackMob("key", "secret", "user", 0, server.getHost(), noopRedirectedCallback);
+    }
+
+    @After
+    public void tearDown() {
+        stackmob.shutdown();
+        server.stop();
+    }
+
+    @Test
+    public void objectsAreStreamedInOrder() throws Exception {
+        RecordingCallback callback = new RecordingCallback();
+        assertNull(stackmob.get(new StackMobQuery("game"), callback).get(10, TimeUnit.SECONDS));
+        assertEquals(1000, callback.objects.size());
+        for(int i = 0; i < 1000; i++) {
+            assertEquals(String.valueOf(i), callback.objects.get(i).getAsJsonObject().get("game_id").getAsString());
+        }
+        assertEquals(1, callback.done);
+        assertNull(callback.failure);
+    }
+
+    @Test
+    public void singleObjectsAreHandedOverOnce() throws Exception {
+        RecordingCallback callback = new RecordingCallback();
+        stackmob.get("user", null, callback).get(10, TimeUnit.SECONDS);
+        assertEquals(1, callback.objects.size());
+        assertEquals("bob", callback.objects.get(0).getAsJsonObject().get("username").getAsString());
+        assertEquals(1, callback.done);
+    }
+
+    @Test
+    public void errorStatusesAreFailures() throws Exception {
+        RecordingCallback callback = new RecordingCallback();
+        try {
+            stackmob.get("broken", null, callback).get(10, TimeUnit.SECONDS);
+            fail("expected the get to fail");
+        }
+        catch(ExecutionException e) {
+            assertTrue(e.getCause() instanceof StackMobException);
+        }
+        assertEquals("{\"error\":\"broken\"}", callback.failure.getMessage());
+        assertEquals(0, callback.objects.size());
+        assertEquals(0, callback.done);
+    }
+
+    @Test
+    public void truncatedResponsesFailAfterTheObjectsBeforeThem() throws Exception {
+        RecordingCallback callback = new RecordingCallback();
+        try {
+            stackmob.get("truncated", null, callback).get(10, TimeUnit.SECONDS);
+            fail("expected the get to fail");
+        }
+        catch(ExecutionException e) {
+            assertTrue(e.getCause() instanceof StackMobException);
+        }
+        assertEquals(2, callback.objects.size());
+        assertNotNull(callback.failure);
+        assertEquals(0, callback.done);
+    }
+
+    /**
+     * streams about 300MB of results in a JVM with a 32MB heap, which couldn't hold even the raw response body
+     */
+    @Test
+    public void largeResultsStreamInASmallHeap() throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder builder = new ProcessBuilder(java, "-Xmx32m", "-cp", System.getProperty("java.class.path"), LargeResult.class.getName());
+        builder.redirectErrorStream(true);
+        Process process = builder.start();
+        BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+        StringBuilder lines = new StringBuilder();
+        String line;
+        while((line = output.readLine()) != null) {
+            lines.append(line).append('\n');
+        }
+        assertEquals(lines.toString(), 0, process.waitFor());
+        assertTrue(lines.toString(), lines.toString().contains("objects=" + LargeResult.COUNT));
+    }
+
+    /**
+     * runs in its own small-heap JVM for largeResultsStreamInASmallHeap
+     */
+    public static class LargeResult {
+        static final long COUNT = 1500000L;
+
+        public static void main(String[] args) {
+            //the stub server's threads would keep a failed run alive
+            int status = 1;
+            try {
+                status = run();
+            }
+            catch(Throwable t) {
+                t.printStackTrace();
+            }
+            finally {
+                System.exit(status);
+            }
+        }
+
+        private static int run() throws Exception {
+            StubServer server = new StubServer().handle("/game", new GeneratedResultHandler(COUNT));
+            StackMob stackmob = new StackMob("key", "secret", "user", 0, server.getHost(), noopRedirectedCallback);
+            final long[] seen = new long[1];
+            final long[] scoreTotal = new long[1];
+            final StackMobException[] failure = new StackMobException[1];
+            long start = System.nanoTime();
+            stackmob.get(new StackMobQuery("game"), new StackMobStreamingCallback() {
+                @Override
+                public void object(JsonElement object) {
+                    seen[0]++;
+                    scoreTotal[0] += object.getAsJsonObject().get("score").getAsLong();
+                }
+
+                @Override
+                public void done() {}
+
+                @Override
+                public void failure(StackMobException e) {
+                    failure[0] = e;
+                }
+            }).get();
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            Runtime runtime = Runtime.getRuntime();
+            System.out.println("objects=" + seen[0] + " elapsedMs=" + elapsedMs + " maxHeapMB=" + runtime.maxMemory() / (1024 * 1024));
+            stackmob.shutdown();
+            server.stop();
+            return failure[0] == null ? 0 : 1;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk;
+
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.reflect.TypeToken;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.benchmark.LoadGenerator;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.stub.StackMobStubServer;
+import com.stackmob.sdk.testobjects.Game;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class StackMobStubServerTests {
+
+    private static final StackMobCallback noopCallback = new StackMobCallback() {
+        @Override
+        public void success(String responseBody) {}
+        @Override
+        public void failure(StackMobException e) {}
+    };
+
+    private final Gson gson = new Gson();
+    private StackMobStubServer server;
+    private StackMob stackmob;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StackMobStubServer("key", "secret", "user");
+        stackmob = server.newStackMob();
+    }
+
+    @After
+    public void tearDown() {
+        stackmob.shutdown();
+        server.stop();
+    }
+
+    private String get(String path) throws Exception {
+        return stackmob.get(path, noopCallback).get(10, TimeUnit.SECONDS);
+    }
+
+    private Game create(String name, int score) throws Exception {
+        Map<String, Object> game = new HashMap<String, Object>();
+        game.put("name", name);
+        game.put("score", score);
+        return gson.fromJson(stackmob.post("game", game, noopCallback).get(10, TimeUnit.SECONDS), Game.class);
+    }
+
+    private List<Game> query(StackMobQuery query) throws Exception {
+        Type games = new TypeToken<List<Game>>() {}.getType();
+        return gson.fromJson(stackmob.get(query, noopCallback).get(10, TimeUnit.SECONDS), games);
+    }
+
+    private static String names(List<Game> games) {
+        StringBuilder names = new StringBuilder();
+        for(Game game : games) {
+            names.append(names.length() == 0 ? "" : ",").append(game.name);
+        }
+        return names.toString();
+    }
+
+    @Test
+    public void crudRoundTrip() throws Exception {
+        assertTrue(get("game").contains("error"));
+        Game game = create("chess", 1);
+        assertNotNull(game.game_id);
+        assertNotNull(game.createddate);
+        assertEquals("chess", gson.fromJson(get("game/" + game.game_id), Game.class).name);
+
+        Map<String, String> changes = new HashMap<String, String>();
+        changes.put("name", "go");
+        assertEquals("go", gson.fromJson(stackmob.put("game", game.game_id, changes, noopCallback).get(10, TimeUnit.SECONDS), Game.class).name);
+        assertEquals("go", server.getObjects("game").get(0).get("name").getAsString());
+
+        assertEquals(StackMobStubServer.DELETED, stackmob.delete("game", game.game_id, noopCallback).get(10, TimeUnit.SECONDS));
+        assertTrue(get("game/" + game.game_id).contains("error"));
+        assertEquals("[]", get("game"));
+        assertEquals(0, server.getRejectedCount());
+    }
+
+    @Test
+    public void queryOperators() throws Exception {
+        create("checkers", 1);
+        create("chess", 2);
+        create("go", 10);
+        assertEquals("checkers,chess", names(query(new StackMobQuery("game").fieldIsLessThan("score", "10"))));
+        assertEquals("chess,go", names(query(new StackMobQuery("game").fieldIsGreaterThanOrEqualTo("score", "2"))));
+        //strings are compared as strings
+        assertEquals("go", names(query(new StackMobQuery("game").fieldIsGreaterThan("name", "chess"))));
+        assertEquals("checkers,go", names(query(new StackMobQuery("game").fieldIsIn("name", Arrays.asList("go", "checkers")))));
+        assertEquals("chess", names(query(new StackMobQuery("game").field("score").isGreaterThan("1").isLessThan("10").getQuery())));
+    }
+
+    @Test
+    public void ranges() throws Exception {
+        for(int i = 0; i < 5; i++) {
+            create("game" + i, i);
+        }
+        assertEquals("game1,game2", names(query(new StackMobQuery("game").isInRange(1, 2))));
+        assertEquals("game4", names(query(new StackMobQuery("game").isInRange(4, 9))));
+    }
+
+    @Test
+    public void loginAndLogout() throws Exception {
+        Map<String, String> user = new HashMap<String, String>();
+        user.put("username", "bob");
+        user.put("password", "hunter2");
+        stackmob.post("user", user, noopCallback).get(10, TimeUnit.SECONDS);
+
+        Map<String, String> wrong = new HashMap<String, String>(user);
+        wrong.put("password", "hunter3");
+        assertTrue(stackmob.login(wrong, noopCallback).get(10, TimeUnit.SECONDS).contains("Invalid login"));
+        assertTrue(server.getLoggedInUsers().isEmpty());
+
+        String loggedIn = stackmob.login(user, noopCallback).get(10, TimeUnit.SECONDS);
+        assertTrue(loggedIn, loggedIn.contains("bob"));
+        assertFalse(loggedIn, loggedIn.contains("hunter2"));
+        assertEquals(Arrays.asList("bob"), server.getLoggedInUsers());
+        //logout only ends the session if the cookie that login set comes back
+        stackmob.logout(noopCallback).get(10, TimeUnit.SECONDS);
+        assertTrue(server.getLoggedInUsers().isEmpty());
+    }
+
+    @Test
+    public void badSignaturesAreRejected() throws Exception {
+        StackMob wrongSecret = new StackMob("key", "not the secret", "user", 0, server.getHost(), null);
+        String response = wrongSecret.get("game", noopCallback).get(10, TimeUnit.SECONDS);
+        assertTrue(response, response.contains("invalid signature"));
+        StackMob wrongKey = new StackMob("not the key", "secret", "user", 0, server.getHost(), null);
+        assertTrue(wrongKey.get("game", noopCallback).get(10, TimeUnit.SECONDS).contains("unknown api key"));
+        assertEquals(2, server.getRejectedCount());
+        //odd characters in the query are encoded the same way on both sides
+        create("a b+c*d~e/f&g=hé", 1);
+        assertEquals("a b+c*d~e/f&g=hé", names(query(new StackMobQuery("game").fieldIsIn("name", Arrays.asList("a b+c*d~e/f&g=hé")))));
+        assertEquals(2, server.getRejectedCount());
+    }
+
+    @Test
+    public void push() throws Exception {
+        stackmob.registerForPushWithUser("bob", "token1", noopCallback).get(10, TimeUnit.SECONDS);
+        assertEquals("bob", server.getPushTokenUser("token1"));
+        Map<String, String> payload = new HashMap<String, String>();
+        payload.put("alert", "your move");
+        stackmob.pushToUsers(payload, Arrays.asList("bob"), noopCallback).get(10, TimeUnit.SECONDS);
+        stackmob.broadcastPushNotification(payload, noopCallback).get(10, TimeUnit.SECONDS);
+        List<JsonObject> pushes = server.getPushes();
+        assertEquals(2, pushes.size());
+        assertEquals("push_users_universal", pushes.get(0).get("method").getAsString());
+        assertEquals("bob", pushes.get(0).getAsJsonArray("userIds").get(0).getAsString());
+        assertEquals("your move", pushes.get(1).getAsJsonObject("kvPairs").get("alert").getAsString());
+        assertEquals(0, server.getRejectedCount());
+    }
+
+    @Test
+    public void clusterRedirects() throws Exception {
+        StackMobStubServer cluster = new StackMobStubServer("key", "secret", "user");
+        try {
+            server.redirectTo(cluster.getHost());
+            create("chess", 1);
+            assertEquals(1, cluster.getObjects("game").size());
+            assertEquals(cluster.getHost(), stackmob.getRouter().getDefaultHost());
+            //later requests go straight to the new cluster
+            int redirected = server.getServer().getRequestCount();
+            create("go", 2);
+            assertEquals(redirected, server.getServer().getRequestCount());
+            assertEquals(2, cluster.getObjects("game").size());
+            assertTrue(server.getObjects("game").isEmpty());
+        }
+        finally {
+            cluster.stop();
+        }
+    }
+
+    @Test
+    public void loadGenerator() throws Exception {
+        create("chess", 1);
+        LoadGenerator.Report report = new LoadGenerator(new LoadGenerator.Operation() {
+            public void run(int worker) throws Exception {
+                if(get("game").contains("error")) {
+                    throw new Exception("request failed");
+                }
+            }
+        }).setConcurrency(4).setRequests(200).run();
+        assertEquals(200, report.getRequests());
+        assertEquals(0, report.getErrors());
+        assertEquals(4, report.getConcurrency());
+        assertTrue(report.getThroughput() > 0);
+        assertTrue(report.getPercentileMillis(50) > 0);
+        assertTrue(report.getPercentileMillis(50) <= report.getPercentileMillis(99));
+        assertTrue(report.getPercentileMillis(99) <= report.getMaxMillis());
+    }
+}
@@ -16,8 +16,12 @@
 
 package com.stackmob.sdk;
 
+import java.io.IOException;
+
 import com.google.gson.Gson;
 import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobRequest;
+import com.stackmob.sdk.stub.StackMobStubServer;
 import com.stackmob.sdk.testobjects.Error;
 import static org.junit.Assert.*;
 
@@ -30,10 +34,44 @@ public class StackMobTestCommon {
     protected static final Gson gson = new Gson();
     protected final StackMob stackmob;
 
+    private static StackMobStubServer stub;
+
+    /**
+     * tests run against StackMob if API_KEY and API_SECRET are filled in, and against a local {@link StackMobStubServer}
+     * if they aren't
+     */
     public StackMobTestCommon() {
-        assertFalse("YOUR_API_KEY_HERE".equals(API_KEY));
-        assertFalse("YOUR_API_SECRET_HERE".equals(API_SECRET));
-        stackmob = new StackMob(API_KEY, API_SECRET, USER_OBJECT_NAME, API_VERSION_NUM);
+        if("YOUR_API_KEY_HERE".equals(API_KEY) || "YOUR_API_SECRET_HERE".equals(API_SECRET)) {
+            stackmob = new StackMob(API_KEY, API_SECRET, USER_OBJECT_NAME, API_VERSION_NUM, getStub().getHost(), null);
+            stackmob.setTransport(getStub().newTransport());
+        }
+        else {
+            stackmob = new StackMob(API_KEY, API_SECRET, USER_OBJECT_NAME, API_VERSION_NUM);
+        }
+    }
+
+    /**
+     * @return the stub server shared by every test, started the first time it's needed
+     */
+    private static synchronized StackMobStubServer getStub() {
+        if(stub == null) {
+            try {
+                stub = new StackMobStubServer(API_KEY, API_SECRET, USER_OBJECT_NAME);
+            }
+            catch(IOException e) {
+                throw new IllegalStateException("couldn't start the stub server", e);
+            }
+        }
+        return stub;
+    }
+
+    /**
+     * send a request that was built directly, rather than through stackmob, to the same place stackmob sends its requests
+     * @param request the request
+     * @return the request, so calls can be chained
+     */
+    protected StackMobRequest prepare(StackMobRequest request) {
+        return request.setUrlFormat(stackmob.getRouter().getDefaultHost()).setTransport(stackmob.getTransport());
     }
 
     public static void assertNotError(String responseBody) {
@@ -187,6 +187,30 @@ public class StackMobTests extends StackMobTestCommon {
         });
     }
 
+    @Test public void getWithAQueryInTheMethodName() throws Exception {
+        StackMobObject.create(stackmob, new Game(Arrays.asList("one", "two"), "one"), Game.class);
+        StackMobObject.create(stackmob, new Game(Arrays.asList("one", "two"), "one more"), Game.class);
+
+        //the query after ? is sent and signed as a query, as it always was, rather than becoming part of the path
+        stackmob.get("game?name=one", new StackMobCallback() {
+            @Override
+            public void success(String responseBody) {
+                assertNotError(responseBody);
+                Type collectionType = new TypeToken<List<Game>>() {}.getType();
+                List<Game> games = gson.fromJson(responseBody, collectionType);
+                assertTrue(games.size() >= 1);
+                for(Game game : games) {
+                    assertEquals("one", game.name);
+                    game.delete(stackmob);
+                }
+            }
+            @Override
+            public void failure(StackMobException e) {
+                fail(e.getMessage());
+            }
+        });
+    }
+
     @Test
     public void getWithQuery() throws Exception {
         StackMobObject.create(stackmob, new Game(Arrays.asList("seven", "six"), "woot"), Game.class);
@@ -0,0 +1,159 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobFuture;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.callback.StackMobObjectCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.stub.StubServer;
+import com.stackmob.sdk.testobjects.Game;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class StackMobTypedCallbackTests {
+
+    private static final StackMobRedirectedCallback noopRedirectedCallback = new StackMobRedirectedCallback() {
+        @Override
+        public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {}
+    };
+
+    private static class RecordingCallback<T> implements StackMobObjectCallback<T> {
+        T result;
+        StackMobException failure;
+
+        @Override
+        public void success(T result) {
+            this.result = result;
+        }
+
+        @Override
+        public void failure(StackMobException e) {
+            this.failure = e;
+        }
+    }
+
+    private static final String GAMES = "[{\"game_id\":\"1\",\"name\":\"chess\",\"players\":[\"joe\",\"bob\"],\"createddate\":1000,\"lastmoddate\":2000}," +
+                                        "{\"game_id\":\"2\",\"name\":\"go\",\"players\":[],\"createddate\":3000,\"lastmoddate\":4000}]";
+
+    private StubServer server;
+    private StackMob stackmob;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StubServer()
+            .respond("/game/1", 200, "{\"game_id\":\"1\",\"name\":\"chess\"}")
+            .respond("/game", 200, GAMES)
+            .respond("/badgame", 200, "[{\"game_id\":\"1\",\"createddate\":\"yesterday\"}]")
+            .respond("/broken", 404, "{\"error\":\"not found\"}")
+            .handle("/created", new HttpHandler() {
+                @Override
+                public void handle(HttpExchange exchange) throws IOException {
+                    JsonObject created = new JsonParser().parse(StubServer.readBody(exchange)).getAsJsonObject();
+                    created.addProperty("game_id", "42");
+                    StubServer.send(exchange, 201, created.toString());
+                }
+            });
+        stackmob = new StackMob("key", "secret", "user", 0, server.getHost(), noopRedirectedCallback);
+    }
+
+    @After
+    public void tearDown() {
+        stackmob.shutdown();
+        server.stop();
+    }
+
+    private static void assertFails(StackMobFuture future) throws Exception {
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail("expected the request to fail");
+        }
+        catch(ExecutionException e) {
+            assertTrue(e.getCause() instanceof StackMobException);
+        }
+    }
+
+    @Test
+    public void queriesDecodeIntoLists() throws Exception {
+        RecordingCallback<List<Game>> callback = new RecordingCallback<List<Game>>();
+        stackmob.get(new StackMobQuery("game"), Game.class, callback).get(10, TimeUnit.SECONDS);
+        assertNull(callback.failure);
+        assertEquals(2, callback.result.size());
+        Game chess = callback.result.get(0);
+        assertEquals("1", chess.game_id);
+        assertEquals("chess", chess.name);
+        assertEquals(Arrays.asList("joe", "bob"), chess.players);
+        assertEquals(Long.valueOf(1000), chess.createddate);
+        assertEquals("go", callback.result.get(1).name);
+    }
+
+    @Test
+    public void singleObjectsDecode() throws Exception {
+        RecordingCallback<Game> callback = new RecordingCallback<Game>();
+        stackmob.get("game/1", Game.class, callback).get(10, TimeUnit.SECONDS);
+        assertNull(callback.failure);
+        assertEquals("chess", callback.result.name);
+    }
+
+    @Test
+    public void arraysAreNotSingleObjects() throws Exception {
+        RecordingCallback<Game> callback = new RecordingCallback<Game>();
+        assertFails(stackmob.get("game", Game.class, callback));
+        assertNull(callback.result);
+        assertNotNull(callback.failure);
+    }
+
+    @Test
+    public void postsDecodeTheCreatedObject() throws Exception {
+        RecordingCallback<Game> callback = new RecordingCallback<Game>();
+        stackmob.post("created", new Game(Arrays.asList("joe"), "checkers"), Game.class, callback).get(10, TimeUnit.SECONDS);
+        assertNull(callback.failure);
+        assertEquals("42", callback.result.game_id);
+        assertEquals("checkers", callback.result.name);
+    }
+
+    @Test
+    public void objectsThatDontFitFail() throws Exception {
+        RecordingCallback<List<Game>> callback = new RecordingCallback<List<Game>>();
+        assertFails(stackmob.get("badgame", null, Game.class, callback));
+        assertNull(callback.result);
+        assertNotNull(callback.failure);
+    }
+
+    @Test
+    public void errorStatusesFail() throws Exception {
+        RecordingCallback<List<Game>> callback = new RecordingCallback<List<Game>>();
+        assertFails(stackmob.get("broken", null, Game.class, callback));
+        assertNull(callback.result);
+        assertEquals("{\"error\":\"not found\"}", callback.failure.getMessage());
+    }
+}
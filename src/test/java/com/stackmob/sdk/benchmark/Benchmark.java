@@ -0,0 +1,103 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.benchmark;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A tiny harness for the benchmarks in this package. Benchmarks are not picked up by a plain
+ * "mvn test". run them explicitly, for example: mvn test -Dtest=CodecBenchmark
+ *
+ * only time is measured here. for the bytes allocated per operation, use the JMH benchmarks in the benchmarks module,
+ * which run with JMH's GC profiler
+ */
+public class Benchmark {
+
+    public static class Result {
+        public final String name;
+        public final long iterations;
+        public final double nanosPerOp;
+
+        public Result(String name, long iterations, double nanosPerOp) {
+            this.name = name;
+            this.iterations = iterations;
+            this.nanosPerOp = nanosPerOp;
+        }
+
+        public double opsPerSecond() {
+            return 1000000000D / nanosPerOp;
+        }
+
+        public String toString() {
+            return String.format("%-40s %12.0f ops/s %12.1f ns/op", name, opsPerSecond(), nanosPerOp);
+        }
+    }
+
+    public static Result run(String name, int warmupIterations, int iterations, Runnable op) {
+        for(int i = 0; i < warmupIterations; i++) {
+            op.run();
+        }
+        long start = System.nanoTime();
+        for(int i = 0; i < iterations; i++) {
+            op.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        Result result = new Result(name, iterations, (double)elapsed / iterations);
+        System.out.println(result);
+        return result;
+    }
+
+    /**
+     * run op from several threads at once, all starting together
+     * @return the combined throughput of all threads, in operations per second
+     */
+    public static double runConcurrent(String name, int threads, final int warmupIterations, final int iterationsPerThread, final Runnable op) throws InterruptedException {
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for(int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    for(int i = 0; i < warmupIterations; i++) {
+                        op.run();
+                    }
+                    ready.countDown();
+                    try {
+                        start.await();
+                        for(int i = 0; i < iterationsPerThread; i++) {
+                            op.run();
+                        }
+                    }
+                    catch(InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        ready.await();
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        double opsPerSecond = (double)threads * iterationsPerThread * 1000000000D / elapsed;
+        System.out.println(String.format("%-40s %3d threads %12.0f ops/s", name, threads, opsPerSecond));
+        return opsPerSecond;
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.benchmark;
+
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.GsonBuilder;
+import com.stackmob.sdk.push.StackMobPushToken;
+import com.stackmob.sdk.push.StackMobPushTokenDeserializer;
+import com.stackmob.sdk.push.StackMobPushTokenSerializer;
+import com.stackmob.sdk.util.StackMobCodec;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * compares the per request cost of serializing a pushToTokens payload by building a Gson instance per request (the old behavior of
+ * StackMobRequest) against borrowing the session's shared {@link StackMobCodec}. PushPayloadBenchmark in the benchmarks
+ * module compares the bytes they allocate
+ */
+public class CodecBenchmark {
+
+    private static final int WARMUP = 2000;
+    private static final int ITERATIONS = 20000;
+
+    private static Map<String, Object> pushPayload() {
+        Map<String, String> kvPairs = new HashMap<String, String>();
+        kvPairs.put("alert", "hello world");
+        kvPairs.put("badge", "1");
+        List<StackMobPushToken> tokens = new ArrayList<StackMobPushToken>();
+        for(int i = 0; i < 10; i++) {
+            tokens.add(new StackMobPushToken("token" + i, StackMobPushToken.TokenType.iOS, 1000L + i));
+        }
+        Map<String, Object> payloadMap = new HashMap<String, Object>();
+        payloadMap.put("kvPairs", kvPairs);
+        Map<String, Object> finalPayload = new HashMap<String, Object>();
+        finalPayload.put("payload", payloadMap);
+        finalPayload.put("tokens", tokens);
+        return finalPayload;
+    }
+
+    @Test
+    public void gsonPerRequestVsSharedCodec() {
+        final Map<String, Object> payload = pushPayload();
+        final StackMobCodec codec = new StackMobCodec();
+
+        Benchmark.Result before = Benchmark.run("GsonBuilder per request", WARMUP, ITERATIONS, new Runnable() {
+            public void run() {
+                new GsonBuilder()
+                    .registerTypeAdapter(StackMobPushToken.class, new StackMobPushTokenDeserializer())
+                    .registerTypeAdapter(StackMobPushToken.class, new StackMobPushTokenSerializer())
+                    .excludeFieldsWithModifiers(Modifier.PRIVATE, Modifier.PROTECTED, Modifier.TRANSIENT, Modifier.STATIC)
+                    .create()
+                    .toJson(payload);
+            }
+        });
+
+        Benchmark.Result after = Benchmark.run("shared StackMobCodec", WARMUP, ITERATIONS, new Runnable() {
+            public void run() {
+                codec.toJson(payload);
+            }
+        });
+
+        assertTrue(after.nanosPerOp < before.nanosPerOp);
+    }
+}
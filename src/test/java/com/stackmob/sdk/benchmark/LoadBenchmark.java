@@ -0,0 +1,99 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.stub.StackMobStubServer;
+import org.junit.Test;
+
+/**
+ * drives signed GETs and POSTs against a local {@link StackMobStubServer} from an increasing number of threads, and
+ * prints the throughput and latency percentiles at each level. the server verifies every signature and really stores and
+ * filters the objects, so this measures the whole round trip rather than a canned response. the concurrency levels, the
+ * time spent at each and the latency the server adds can be changed with the benchmark.concurrency (a comma separated
+ * list), benchmark.seconds and benchmark.latencyMs system properties
+ */
+public class LoadBenchmark {
+
+    private static final String CONCURRENCY = System.getProperty("benchmark.concurrency", "1,8,32");
+    private static final long SECONDS = Long.getLong("benchmark.seconds", 10L);
+    private static final long LATENCY_MS = Long.getLong("benchmark.latencyMs", 0L);
+
+    private static final StackMobCallback noopCallback = new StackMobCallback() {
+        @Override
+        public void success(String responseBody) {}
+        @Override
+        public void failure(StackMobException e) {}
+    };
+
+    @Test
+    public void getsAndPosts() throws Exception {
+        StackMobStubServer server = new StackMobStubServer("key", "secret", "user");
+        server.getServer().setLatency(LATENCY_MS, TimeUnit.MILLISECONDS);
+        final StackMob stackmob = server.newStackMob();
+        try {
+            for(int i = 0; i < 100; i++) {
+                post(stackmob, i);
+            }
+            final Map<String, String> query = new HashMap<String, String>();
+            query.put("score[lt]", "50");
+            LoadGenerator.Operation get = new LoadGenerator.Operation() {
+                public void run(int worker) throws Exception {
+                    check(stackmob.get("game", query, noopCallback).get());
+                }
+            };
+            LoadGenerator.Operation post = new LoadGenerator.Operation() {
+                public void run(int worker) throws Exception {
+                    //outside the range the GETs ask for, so their responses stay the same size
+                    post(stackmob, 100 + worker);
+                }
+            };
+            for(String level : CONCURRENCY.split(",")) {
+                int concurrency = Integer.parseInt(level.trim());
+                System.out.println("GET  " + generator(get, concurrency).run());
+                System.out.println("POST " + generator(post, concurrency).run());
+            }
+        }
+        finally {
+            stackmob.shutdown();
+            server.stop();
+        }
+    }
+
+    private static LoadGenerator generator(LoadGenerator.Operation operation, int concurrency) {
+        return new LoadGenerator(operation).setConcurrency(concurrency).setWarmup(1, TimeUnit.SECONDS).setDuration(SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static void post(StackMob stackmob, int score) throws Exception {
+        Map<String, Object> game = new HashMap<String, Object>();
+        game.put("name", "game" + score);
+        game.put("score", score);
+        check(stackmob.post("game", game, noopCallback).get());
+    }
+
+    private static void check(String response) throws Exception {
+        if(response.startsWith("{\"error\"")) {
+            throw new Exception(response);
+        }
+    }
+}
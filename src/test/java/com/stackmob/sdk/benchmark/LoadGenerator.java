@@ -0,0 +1,257 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs an operation from a number of threads at once, each calling it again as soon as the last call returns, and
+ * reports the throughput and the distribution of latencies. the run stops after a fixed number of calls or a fixed time,
+ * whichever comes first. for example:
+ * <pre>
+ * {@code
+ * LoadGenerator.Report report = new LoadGenerator(new LoadGenerator.Operation() {
+ *     public void run(int worker) throws Exception {
+ *         stackmob.get("game", callback).get();
+ *     }
+ * }).setConcurrency(32).setDuration(30, TimeUnit.SECONDS).run();
+ * }
+ * </pre>
+ */
+public class LoadGenerator {
+
+    /**
+     * one call, such as a request that blocks until its response arrives. a call that throws is counted as an error
+     */
+    public interface Operation {
+        /**
+         * @param worker the number of the thread making the call, from 0 to the concurrency - 1
+         */
+        void run(int worker) throws Exception;
+    }
+
+    public static class Report {
+        private final int concurrency;
+        private final long errors;
+        private final long elapsedNanos;
+        //sorted
+        private final long[] latencyNanos;
+
+        Report(int concurrency, long errors, long elapsedNanos, long[] latencyNanos) {
+            this.concurrency = concurrency;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+            this.latencyNanos = latencyNanos;
+        }
+
+        public int getConcurrency() {
+            return concurrency;
+        }
+
+        /**
+         * @return the number of calls made, including the ones that failed
+         */
+        public long getRequests() {
+            return latencyNanos.length;
+        }
+
+        /**
+         * @return the number of calls that threw
+         */
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getElapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        }
+
+        /**
+         * @return the number of calls made per second, over all the threads
+         */
+        public double getThroughput() {
+            return elapsedNanos == 0 ? 0 : latencyNanos.length * 1000000000D / elapsedNanos;
+        }
+
+        /**
+         * @param percentile the percentile, from 0 to 100
+         * @return the latency that the given percentage of calls took no longer than, or 0 if no calls were made
+         */
+        public double getPercentileMillis(double percentile) {
+            if(latencyNanos.length == 0) {
+                return 0;
+            }
+            int rank = (int)Math.ceil(percentile / 100 * latencyNanos.length);
+            return latencyNanos[Math.min(latencyNanos.length - 1, Math.max(0, rank - 1))] / 1000000D;
+        }
+
+        public double getMaxMillis() {
+            return latencyNanos.length == 0 ? 0 : latencyNanos[latencyNanos.length - 1] / 1000000D;
+        }
+
+        public String toString() {
+            return String.format("%4d threads %8d requests %6d errors %10.0f req/s   p50 %8.2f ms   p90 %8.2f ms   p99 %8.2f ms   p99.9 %8.2f ms   max %8.2f ms",
+                    concurrency, getRequests(), errors, getThroughput(), getPercentileMillis(50), getPercentileMillis(90),
+                    getPercentileMillis(99), getPercentileMillis(99.9), getMaxMillis());
+        }
+    }
+
+    private final Operation operation;
+    private int concurrency = 1;
+    private long requests = Long.MAX_VALUE;
+    private long durationNanos = TimeUnit.SECONDS.toNanos(10);
+    private long warmupNanos = 0;
+
+    public LoadGenerator(Operation operation) {
+        this.operation = operation;
+    }
+
+    /**
+     * @param concurrency the number of threads making calls at once. the default is 1
+     * @return this generator, so calls can be chained
+     */
+    public LoadGenerator setConcurrency(int concurrency) {
+        if(concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be at least 1");
+        }
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * @param requests the number of calls to make, over all the threads. there's no limit by default
+     * @return this generator, so calls can be chained
+     */
+    public LoadGenerator setRequests(long requests) {
+        this.requests = requests;
+        return this;
+    }
+
+    /**
+     * @param duration the longest to run for, not counting the warmup. the default is 10 seconds
+     * @param unit the unit of duration
+     * @return this generator, so calls can be chained
+     */
+    public LoadGenerator setDuration(long duration, TimeUnit unit) {
+        this.durationNanos = unit.toNanos(duration);
+        return this;
+    }
+
+    /**
+     * @param warmup how long to make calls for, without measuring them, before the run starts. there's no warmup by default
+     * @param unit the unit of warmup
+     * @return this generator, so calls can be chained
+     */
+    public LoadGenerator setWarmup(long warmup, TimeUnit unit) {
+        this.warmupNanos = unit.toNanos(warmup);
+        return this;
+    }
+
+    /**
+     * make the calls, blocking until the run is over
+     * @return what happened
+     * @throws InterruptedException if interrupted while waiting for the threads to finish
+     */
+    public Report run() throws InterruptedException {
+        if(warmupNanos > 0) {
+            runOnce(Long.MAX_VALUE, warmupNanos);
+        }
+        return runOnce(requests, durationNanos);
+    }
+
+    private Report runOnce(final long maxRequests, long durationNanos) throws InterruptedException {
+        final AtomicLong started = new AtomicLong(0);
+        final AtomicLong errors = new AtomicLong(0);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(concurrency);
+        final long[][] latencies = new long[concurrency][];
+        final int[] counts = new int[concurrency];
+        final long[] deadline = new long[1];
+        List<Thread> workers = new ArrayList<Thread>();
+        for(int t = 0; t < concurrency; t++) {
+            final int worker = t;
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    //each thread records into its own array, so recording doesn't contend
+                    long[] mine = new long[1024];
+                    int count = 0;
+                    try {
+                        start.await();
+                        while(System.nanoTime() - deadline[0] < 0 && started.incrementAndGet() <= maxRequests) {
+                            long begin = System.nanoTime();
+                            try {
+                                operation.run(worker);
+                            }
+                            catch(InterruptedException e) {
+                                throw e;
+                            }
+                            catch(Exception e) {
+                                errors.incrementAndGet();
+                            }
+                            if(count == mine.length) {
+                                mine = Arrays.copyOf(mine, count * 2);
+                            }
+                            mine[count++] = System.nanoTime() - begin;
+                        }
+                    }
+                    catch(InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    finally {
+                        latencies[worker] = mine;
+                        counts[worker] = count;
+                        done.countDown();
+                    }
+                }
+            }, "load-generator-" + t);
+            thread.setDaemon(true);
+            workers.add(thread);
+            thread.start();
+        }
+        long begin = System.nanoTime();
+        //written before the latch opens, so the workers see it
+        deadline[0] = begin + durationNanos;
+        start.countDown();
+        try {
+            done.await();
+        }
+        finally {
+            for(Thread thread : workers) {
+                thread.interrupt();
+            }
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        int total = 0;
+        for(int count : counts) {
+            total += count;
+        }
+        long[] all = new long[total];
+        int offset = 0;
+        for(int t = 0; t < concurrency; t++) {
+            System.arraycopy(latencies[t], 0, all, offset, counts[t]);
+            offset += counts[t];
+        }
+        Arrays.sort(all);
+        return new Report(concurrency, errors.get(), elapsed, all);
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import com.stackmob.sdk.net.StackMobRateLimiter;
+import org.junit.Test;
+
+/**
+ * compares taking a token from a token bucket guarded by a lock against {@link StackMobRateLimiter}, which takes it with
+ * a compare and set, at 1, 4 and 16 threads. both buckets are far larger than the number of tokens taken, so every
+ * call gets a token and the benchmark measures only the contention
+ */
+public class RateLimiterBenchmark {
+
+    private static final int[] THREAD_COUNTS = {1, 4, 16};
+    private static final int WARMUP = 20000;
+    private static final int ITERATIONS = 200000;
+    private static final double RATE = 1e9;
+
+    /**
+     * the usual token bucket: a count of tokens, refilled from the elapsed time on every call
+     */
+    private static class LockedBucket {
+        private final double permitsPerNano = RATE / TimeUnit.SECONDS.toNanos(1);
+        private final double capacity = RATE;
+        private double tokens = RATE;
+        private long refilledAt = System.nanoTime();
+
+        synchronized boolean tryAcquire() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * permitsPerNano);
+            refilledAt = now;
+            if(tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+    }
+
+    @Test
+    public void lockedBucketVsRateLimiter() throws InterruptedException {
+        final LockedBucket locked = new LockedBucket();
+        final StackMobRateLimiter limiter = new StackMobRateLimiter()
+            .setRate(RATE, Integer.MAX_VALUE)
+            .setMode(StackMobRateLimiter.Mode.FAIL_FAST);
+        final StackMobRateLimiter twoBuckets = new StackMobRateLimiter()
+            .setRate(RATE, Integer.MAX_VALUE)
+            .setRate(StackMobRateLimiter.Category.DATA, RATE, Integer.MAX_VALUE)
+            .setMode(StackMobRateLimiter.Mode.FAIL_FAST);
+        for(int threads : THREAD_COUNTS) {
+            Benchmark.runConcurrent("synchronized token bucket", threads, WARMUP, ITERATIONS, new Runnable() {
+                public void run() {
+                    locked.tryAcquire();
+                }
+            });
+            Benchmark.runConcurrent("StackMobRateLimiter", threads, WARMUP, ITERATIONS, new Runnable() {
+                public void run() {
+                    limiter.reserve(StackMobRateLimiter.Category.DATA);
+                }
+            });
+            Benchmark.runConcurrent("StackMobRateLimiter, global and category", threads, WARMUP, ITERATIONS, new Runnable() {
+                public void run() {
+                    twoBuckets.reserve(StackMobRateLimiter.Category.DATA);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.benchmark;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.gson.JsonElement;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.api.StackMobScan;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.callback.StackMobStreamingCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.stub.PartitionedSchemaHandler;
+import com.stackmob.sdk.stub.StubServer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * measures how many objects per second a scan reads from a 20,000 object schema on a stub server that takes 50ms per
+ * request plus 50 microseconds per object returned, reading it in one piece and split into partitions
+ */
+public class ScanBenchmark {
+
+    private static final int OBJECTS = 20000;
+    private static final int WARMUP = 2;
+    private static final int ITERATIONS = 5;
+
+    private static double scan(String name, final StackMob stackmob, final int partitions, final int parallelism) {
+        Benchmark.Result result = Benchmark.run(name, WARMUP, ITERATIONS, new Runnable() {
+            public void run() {
+                try {
+                    new StackMobScan(stackmob, new StackMobQuery("game"))
+                        .partitionBy("createddate", 0, OBJECTS)
+                        .setPartitions(partitions)
+                        .setParallelism(parallelism)
+                        .run(new StackMobStreamingCallback() {
+                            @Override
+                            public void object(JsonElement object) {}
+                            @Override
+                            public void done() {}
+                            @Override
+                            public void failure(StackMobException e) {
+                                fail(e.getMessage());
+                            }
+                        })
+                        .get();
+                }
+                catch(Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        double objectsPerSecond = OBJECTS * result.opsPerSecond();
+        System.out.println(String.format("%-40s %12.0f objects/s", name, objectsPerSecond));
+        return objectsPerSecond;
+    }
+
+    @Test
+    public void partitionedScanThroughput() throws Exception {
+        StubServer server = new StubServer().handle("/game", new PartitionedSchemaHandler(OBJECTS).setLatency(50, 50));
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        StackMob stackmob = new StackMob("key", "secret", "user", 0, server.getHost(), new StackMobRedirectedCallback() {
+            @Override
+            public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {}
+        });
+        stackmob.setExecutor(executor);
+        try {
+            double single = scan("1 partition", stackmob, 1, 1);
+            double four = scan("16 partitions, parallelism 4", stackmob, 16, 4);
+            double sixteen = scan("16 partitions, parallelism 16", stackmob, 16, 16);
+            assertTrue(four > single);
+            assertTrue(sixteen > four);
+        }
+        finally {
+            executor.shutdownNow();
+            stackmob.shutdown();
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.benchmark;
+
+import com.stackmob.sdk.net.StackMobApi;
+import com.stackmob.sdk.net.StackMobSigner;
+import org.junit.Test;
+import org.scribe.builder.ServiceBuilder;
+import org.scribe.model.OAuthRequest;
+import org.scribe.model.Token;
+import org.scribe.model.Verb;
+
+/**
+ * compares signing throughput of a ServiceBuilder built per request (the old behavior of StackMobRequest) against a
+ * single shared {@link StackMobSigner}, at 1, 4 and 16 threads
+ */
+public class SignerBenchmark {
+
+    private static final String KEY = "benchmark-key";
+    private static final String SECRET = "benchmark-secret";
+    private static final String URL = "http://api.mob1.stackmob.com/game?name%5Bin%5D=one%2Ctwo&score%5Bgt%5D=10";
+    private static final int[] THREAD_COUNTS = {1, 4, 16};
+    private static final int WARMUP = 2000;
+    private static final int ITERATIONS = 20000;
+
+    private static OAuthRequest newRequest() {
+        OAuthRequest req = new OAuthRequest(Verb.GET, URL);
+        req.addHeader("Accept", "application/vnd.stackmob+json; version=0");
+        return req;
+    }
+
+    @Test
+    public void serviceBuilderPerRequestVsSharedSigner() throws InterruptedException {
+        final StackMobSigner signer = new StackMobSigner(KEY, SECRET);
+        for(int threads : THREAD_COUNTS) {
+            Benchmark.runConcurrent("ServiceBuilder per request", threads, WARMUP, ITERATIONS, new Runnable() {
+                public void run() {
+                    new ServiceBuilder().provider(StackMobApi.class).apiKey(KEY).apiSecret(SECRET).build().signRequest(new Token("", ""), newRequest());
+                }
+            });
+            Benchmark.runConcurrent("shared StackMobSigner", threads, WARMUP, ITERATIONS, new Runnable() {
+                public void run() {
+                    signer.sign(newRequest());
+                }
+            });
+        }
+    }
+}
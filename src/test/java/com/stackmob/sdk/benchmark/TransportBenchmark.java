@@ -0,0 +1,99 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.benchmark;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.NioHttpTransport;
+import com.stackmob.sdk.net.PooledHttpTransport;
+import com.stackmob.sdk.net.StackMobHttpTransport;
+import com.stackmob.sdk.stub.StubServer;
+import org.junit.Test;
+
+/**
+ * sends 10,000 concurrent GETs to a local stub server that takes 100ms to answer each one, through the blocking
+ * {@link PooledHttpTransport} on a pool of threads and through the {@link NioHttpTransport} from a single thread. the
+ * number of requests, the latency and the size of the blocking thread pool can be changed with the
+ * benchmark.requests, benchmark.latencyMs and benchmark.threads system properties
+ */
+public class TransportBenchmark {
+
+    private static final int REQUESTS = Integer.getInteger("benchmark.requests", 10000);
+    private static final long LATENCY_MS = Long.getLong("benchmark.latencyMs", 100L);
+    private static final int BLOCKING_THREADS = Integer.getInteger("benchmark.threads", 256);
+
+    private static final StackMobRedirectedCallback noopRedirectedCallback = new StackMobRedirectedCallback() {
+        @Override
+        public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {}
+    };
+
+    @Test
+    public void blockingVsNonBlocking() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(BLOCKING_THREADS);
+        try {
+            run("blocking, " + BLOCKING_THREADS + " threads", new PooledHttpTransport().setMaxConnectionsPerHost(REQUESTS), executor);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        run("non-blocking, 1 thread", new NioHttpTransport().setMaxConnectionsPerHost(REQUESTS), null);
+    }
+
+    private void run(String name, StackMobHttpTransport transport, ExecutorService executor) throws Exception {
+        StubServer server = new StubServer().respond("/game", 200, "{\"game_id\":\"1\"}").setLatency(LATENCY_MS, TimeUnit.MILLISECONDS);
+        StackMob stackmob = new StackMob("key", "secret", "user", 0, server.getHost(), noopRedirectedCallback).setTransport(transport).setExecutor(executor);
+        final CountDownLatch done = new CountDownLatch(REQUESTS);
+        final AtomicInteger failures = new AtomicInteger(0);
+        StackMobCallback callback = new StackMobCallback() {
+            @Override
+            public void success(String responseBody) {
+                done.countDown();
+            }
+            @Override
+            public void failure(StackMobException e) {
+                failures.incrementAndGet();
+                done.countDown();
+            }
+        };
+
+        try {
+            long start = System.nanoTime();
+            for(int i = 0; i < REQUESTS; i++) {
+                stackmob.get("game", callback);
+            }
+            done.await(5, TimeUnit.MINUTES);
+            long elapsed = System.nanoTime() - start;
+
+            System.out.println(String.format("%-28s %6d requests %8d ms %10.0f req/s  %6d max concurrent at server  %d failures",
+                    name, REQUESTS, TimeUnit.NANOSECONDS.toMillis(elapsed), REQUESTS * 1000000000D / elapsed,
+                    server.getMaxConcurrentRequests(), failures.get()));
+        }
+        finally {
+            stackmob.shutdown();
+            server.stop();
+        }
+    }
+}
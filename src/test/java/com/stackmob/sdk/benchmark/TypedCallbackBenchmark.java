@@ -0,0 +1,118 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.benchmark;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobObjectCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.stub.StubServer;
+import com.stackmob.sdk.testobjects.Game;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * compares the per request cost of decoding a 1,000 object query result the way consumers do today, by re-parsing the
+ * response String with a Gson of their own, against decoding it straight from the response stream with a typed callback.
+ * DecodeBenchmark in the benchmarks module compares the bytes they allocate
+ */
+public class TypedCallbackBenchmark {
+
+    private static final int OBJECTS = 1000;
+    private static final int WARMUP = 50;
+    private static final int ITERATIONS = 200;
+
+    private static String gamesJson() {
+        Game[] games = new Game[OBJECTS];
+        for(int i = 0; i < OBJECTS; i++) {
+            games[i] = new Game(Arrays.asList("joe", "bob", "alice"), String.valueOf(i), 1320000000000L + i, 1320000000000L + i, "game " + i);
+        }
+        return new Gson().toJson(games);
+    }
+
+    @Test
+    public void stringCallbackVsTypedCallback() throws Exception {
+        StubServer server = new StubServer().respond("/game", 200, gamesJson());
+        final StackMob stackmob = new StackMob("key", "secret", "user", 0, server.getHost(), new StackMobRedirectedCallback() {
+            @Override
+            public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {}
+        });
+        final StackMobQuery query = new StackMobQuery("game");
+        try {
+            Benchmark.Result before = Benchmark.run("String + new Gson() per request", WARMUP, ITERATIONS, new Runnable() {
+                public void run() {
+                    stackmob.get(query, new StackMobCallback() {
+                        @Override
+                        public void success(String responseBody) {
+                            assertEquals(OBJECTS, new Gson().fromJson(responseBody, Game[].class).length);
+                        }
+
+                        @Override
+                        public void failure(StackMobException e) {
+                            fail(e.getMessage());
+                        }
+                    });
+                }
+            });
+
+            Benchmark.Result shared = Benchmark.run("String + shared codec", WARMUP, ITERATIONS, new Runnable() {
+                public void run() {
+                    stackmob.get(query, new StackMobCallback() {
+                        @Override
+                        public void success(String responseBody) {
+                            assertEquals(OBJECTS, stackmob.getCodec().fromJson(responseBody, Game[].class).length);
+                        }
+
+                        @Override
+                        public void failure(StackMobException e) {
+                            fail(e.getMessage());
+                        }
+                    });
+                }
+            });
+
+            Benchmark.Result after = Benchmark.run("typed callback from the stream", WARMUP, ITERATIONS, new Runnable() {
+                public void run() {
+                    stackmob.get(query, Game.class, new StackMobObjectCallback<List<Game>>() {
+                        @Override
+                        public void success(List<Game> games) {
+                            assertEquals(OBJECTS, games.size());
+                        }
+
+                        @Override
+                        public void failure(StackMobException e) {
+                            fail(e.getMessage());
+                        }
+                    });
+                }
+            });
+
+            assertTrue(after.nanosPerOp < before.nanosPerOp);
+        }
+        finally {
+            stackmob.shutdown();
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.stub;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Wraps another handler, failing some of the requests it would have served. a failure is either an error status or, if
+ * the status is {@link #DROP}, a connection closed without any response
+ */
+public class FaultInjectingHandler implements HttpHandler {
+
+    public static final int DROP = 0;
+
+    private final HttpHandler handler;
+    private final AtomicInteger faultsLeft = new AtomicInteger(0);
+    private volatile int faultCode = 503;
+    private volatile double failureRate = 0;
+    private final Random random = new Random(42);
+    private final AtomicInteger faultCount = new AtomicInteger(0);
+
+    public FaultInjectingHandler(HttpHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * fail the next count requests
+     * @param count the number of requests to fail
+     * @param code the status to fail them with, or DROP
+     * @return this handler, so calls can be chained
+     */
+    public FaultInjectingHandler failNext(int count, int code) {
+        this.faultCode = code;
+        faultsLeft.set(count);
+        return this;
+    }
+
+    /**
+     * fail each request with the given probability, after the ones set up with failNext
+     * @param rate the probability that a request fails
+     * @param code the status to fail them with, or DROP
+     * @return this handler, so calls can be chained
+     */
+    public FaultInjectingHandler setFailureRate(double rate, int code) {
+        this.faultCode = code;
+        this.failureRate = rate;
+        return this;
+    }
+
+    /**
+     * @return the number of requests that were failed
+     */
+    public int getFaultCount() {
+        return faultCount.get();
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        int left;
+        do {
+            left = faultsLeft.get();
+        } while(left > 0 && !faultsLeft.compareAndSet(left, left - 1));
+        boolean fail = left > 0;
+        if(!fail && failureRate > 0) {
+            synchronized(random) {
+                fail = random.nextDouble() < failureRate;
+            }
+        }
+        if(!fail) {
+            handler.handle(exchange);
+            return;
+        }
+        faultCount.incrementAndGet();
+        StubServer.readBody(exchange);
+        if(faultCode == DROP) {
+            exchange.close();
+        }
+        else {
+            StubServer.send(exchange, faultCode, "{\"error\":\"injected fault\"}");
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.stub;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Serves a schema of generated objects whose createddate values are 0, 1, 2 and so on, honouring createddate[gte] and
+ * createddate[lt] in the query string the way StackMob does. it can also charge a fixed time per request and a time per
+ * object returned, to stand in for the server's cost of reading a large result
+ */
+public class PartitionedSchemaHandler implements HttpHandler {
+
+    private final int count;
+    private volatile long baseLatencyMs = 0;
+    private volatile long microsPerObject = 0;
+    private final AtomicInteger active = new AtomicInteger(0);
+    private final AtomicInteger maxActive = new AtomicInteger(0);
+
+    /**
+     * @param count the number of objects in the schema
+     */
+    public PartitionedSchemaHandler(int count) {
+        this.count = count;
+    }
+
+    /**
+     * @param baseLatencyMs how long every request takes
+     * @param microsPerObject how much longer a request takes for every object it returns
+     * @return this handler, so calls can be chained
+     */
+    public PartitionedSchemaHandler setLatency(long baseLatencyMs, long microsPerObject) {
+        this.baseLatencyMs = baseLatencyMs;
+        this.microsPerObject = microsPerObject;
+        return this;
+    }
+
+    /**
+     * @return the most requests that were being handled at once. unlike {@link StubServer#getMaxConcurrentRequests()},
+     * a request stops counting before its response is sent, so the client can't have started its next request yet
+     */
+    public int getMaxConcurrentRequests() {
+        return maxActive.get();
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        int now = active.incrementAndGet();
+        int max;
+        while(now > (max = maxActive.get()) && !maxActive.compareAndSet(max, now)) {}
+        long lower;
+        long upper;
+        try {
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            lower = Math.max(0, params.containsKey("createddate[gte]") ? Long.parseLong(params.get("createddate[gte]")) : 0);
+            upper = Math.min(count, params.containsKey("createddate[lt]") ? Long.parseLong(params.get("createddate[lt]")) : count);
+            long returned = Math.max(0, upper - lower);
+            Thread.sleep(baseLatencyMs + returned * microsPerObject / 1000);
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        finally {
+            active.decrementAndGet();
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        StringBuilder body = new StringBuilder("[");
+        for(long i = lower; i < upper; i++) {
+            if(i > lower) {
+                body.append(',');
+            }
+            body.append("{\"game_id\":\"").append(i).append("\",\"name\":\"game ").append(i).append("\",\"createddate\":").append(i).append('}');
+            if(body.length() > 32 * 1024) {
+                out.write(body.toString().getBytes("UTF-8"));
+                body.setLength(0);
+            }
+        }
+        body.append(']');
+        out.write(body.toString().getBytes("UTF-8"));
+        out.close();
+    }
+
+    private static Map<String, String> parseQuery(String query) throws IOException {
+        Map<String, String> ret = new HashMap<String, String>();
+        if(query == null) {
+            return ret;
+        }
+        for(String param : query.split("&")) {
+            int eq = param.indexOf('=');
+            if(eq > 0) {
+                ret.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"), URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,725 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.stub;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.net.PooledHttpTransport;
+import com.stackmob.sdk.net.StackMobHttpTransport;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * An in-process stand in for the StackMob platform, serving the parts of the REST API that {@link StackMob} uses, so that
+ * tests and load tests can run without an account or a network:
+ * <ul>
+ *     <li>every request must carry a valid 2-legged OAuth signature for the api key and secret, or it's refused with a 401</li>
+ *     <li>schemas are created by posting to them. objects can be posted one at a time or as an array, then read, updated
+ *     and deleted by id. the id is the schema name followed by _id, or username for the user schema</li>
+ *     <li>gets filter on field=value and the [lt], [lte], [gt], [gte] and [in] operators, and honour the Range header</li>
+ *     <li>login checks the username and password of a user object and sets a session cookie, which logout clears</li>
+ *     <li>push tokens can be registered and removed, and every push sent is recorded for tests to inspect</li>
+ *     <li>{@link #redirectTo} answers every request with a 302 to another cluster, the way StackMob does when an app moves</li>
+ * </ul>
+ * login goes over https, which this server doesn't speak. send requests with a {@link TlsTerminatingTransport}, as
+ * {@link #newTransport()} does, and it vouches for the https requests it passes on as plain http.
+ * nonces aren't checked for reuse, since a load test sends enough requests that the SDK's nonces collide
+ */
+public class StackMobStubServer {
+
+    public static final String DELETED = "Successfully deleted document";
+    private static final long MAX_CLOCK_SKEW_SECONDS = TimeUnit.MINUTES.toSeconds(5);
+    private static final Pattern OAUTH_PARAM = Pattern.compile("(\\w+)=\"([^\"]*)\"");
+    private static final Pattern RANGE = Pattern.compile("objects=(\\d+)-(\\d+)");
+
+    private final StubServer server = new StubServer();
+    private final String apiKey;
+    private final String apiSecret;
+    private final String userObjectName;
+    private final SecretKeySpec signingKey;
+    private final ConcurrentMap<String, Map<String, JsonObject>> schemas = new ConcurrentHashMap<String, Map<String, JsonObject>>();
+    //session cookie value to username
+    private final ConcurrentMap<String, String> sessions = new ConcurrentHashMap<String, String>();
+    //push token to username
+    private final ConcurrentMap<String, String> pushTokens = new ConcurrentHashMap<String, String>();
+    private final List<JsonObject> pushes = Collections.synchronizedList(new ArrayList<JsonObject>());
+    private final AtomicInteger rejected = new AtomicInteger(0);
+    private volatile String redirectHost = null;
+
+    /**
+     * start a server that accepts requests signed with the given key and secret
+     * @param apiKey the api key that requests must be signed with
+     * @param apiSecret the api secret that requests must be signed with
+     * @param userObjectName the name of the user schema, as passed to StackMob
+     * @throws IOException if the server couldn't start
+     */
+    public StackMobStubServer(String apiKey, String apiSecret, String userObjectName) throws IOException {
+        this.apiKey = apiKey;
+        this.apiSecret = apiSecret;
+        this.userObjectName = userObjectName;
+        this.signingKey = new SecretKeySpec((percentEncode(apiSecret) + "&").getBytes("UTF-8"), "HmacSHA1");
+        server.handle("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+    }
+
+    /**
+     * @return the host and port to pass to StackMob as its url format
+     */
+    public String getHost() {
+        return server.getHost();
+    }
+
+    /**
+     * @return the underlying server, to add latency or count requests and connections
+     */
+    public StubServer getServer() {
+        return server;
+    }
+
+    /**
+     * @return a transport that can send this server https requests, such as login
+     */
+    public StackMobHttpTransport newTransport() {
+        return new TlsTerminatingTransport(new PooledHttpTransport());
+    }
+
+    /**
+     * @return a StackMob object that sends its requests to this server
+     */
+    public StackMob newStackMob() {
+        return new StackMob(apiKey, apiSecret, userObjectName, 0, getHost(), null).setTransport(newTransport());
+    }
+
+    /**
+     * answer every request with a redirect to the same path on another host, as StackMob does for an app that lives on
+     * another cluster
+     * @param host the host and port to redirect to, or null to stop redirecting
+     * @return this server, so calls can be chained
+     */
+    public StackMobStubServer redirectTo(String host) {
+        this.redirectHost = host;
+        return this;
+    }
+
+    /**
+     * @param schema the schema name
+     * @return a copy of every object in the schema, in the order they were created
+     */
+    public List<JsonObject> getObjects(String schema) {
+        Map<String, JsonObject> objects = schemas.get(schema);
+        if(objects == null) {
+            return new ArrayList<JsonObject>();
+        }
+        synchronized(objects) {
+            return new ArrayList<JsonObject>(objects.values());
+        }
+    }
+
+    /**
+     * @return the body of every push sent, whether to tokens, users or everyone, in the order they were sent
+     */
+    public List<JsonObject> getPushes() {
+        synchronized(pushes) {
+            return new ArrayList<JsonObject>(pushes);
+        }
+    }
+
+    /**
+     * @param token a push token
+     * @return the user the token is registered to, or null if it isn't registered
+     */
+    public String getPushTokenUser(String token) {
+        return pushTokens.get(token);
+    }
+
+    /**
+     * @return the usernames that are logged in, one per session
+     */
+    public List<String> getLoggedInUsers() {
+        return new ArrayList<String>(sessions.values());
+    }
+
+    /**
+     * @return the number of requests refused because they weren't signed properly
+     */
+    public int getRejectedCount() {
+        return rejected.get();
+    }
+
+    public void stop() {
+        server.stop();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String body = StubServer.readBody(exchange);
+        String path = exchange.getRequestURI().getRawPath();
+        List<String[]> query = parseQuery(exchange.getRequestURI().getRawQuery());
+
+        String signatureError = verifySignature(exchange, path, query);
+        if(signatureError != null) {
+            rejected.incrementAndGet();
+            sendError(exchange, 401, signatureError);
+            return;
+        }
+        String redirect = redirectHost;
+        if(redirect != null) {
+            String rawQuery = exchange.getRequestURI().getRawQuery();
+            exchange.getResponseHeaders().set("Location", getScheme(exchange) + "://" + redirect + path + (rawQuery == null ? "" : "?" + rawQuery));
+            StubServer.send(exchange, 302, "");
+            return;
+        }
+
+        List<String> segments = new ArrayList<String>();
+        for(String segment : path.split("/")) {
+            if(segment.length() > 0) {
+                segments.add(URLDecoder.decode(segment, "UTF-8"));
+            }
+        }
+        String method = exchange.getRequestMethod();
+        if(segments.isEmpty()) {
+            sendError(exchange, 404, "no method given");
+        }
+        else if(segments.get(0).equals("listapi")) {
+            listApi(exchange);
+        }
+        else if(segments.get(0).equals("startsession")) {
+            StubServer.send(exchange, 200, "{}");
+        }
+        else if(segments.get(0).equals("push") && segments.size() == 2) {
+            push(exchange, segments.get(1), body);
+        }
+        else if(segments.get(0).equals(userObjectName) && segments.size() == 2 && segments.get(1).equals("login")) {
+            login(exchange, query);
+        }
+        else if(segments.get(0).equals(userObjectName) && segments.size() == 2 && segments.get(1).equals("logout")) {
+            logout(exchange);
+        }
+        else if(segments.size() == 1 && method.equals("GET")) {
+            query(exchange, segments.get(0), query);
+        }
+        else if(segments.size() == 1 && method.equals("POST")) {
+            create(exchange, segments.get(0), body);
+        }
+        else if(segments.size() == 2 && method.equals("GET")) {
+            read(exchange, segments.get(0), segments.get(1));
+        }
+        else if(segments.size() == 2 && method.equals("PUT")) {
+            update(exchange, segments.get(0), segments.get(1), body);
+        }
+        else if(segments.size() == 2 && method.equals("DELETE")) {
+            delete(exchange, segments.get(0), segments.get(1));
+        }
+        else {
+            sendError(exchange, 404, method + " " + path + " isn't a StackMob method");
+        }
+    }
+
+    /**
+     * check the request's OAuth signature the way the platform does
+     * @return why the request was refused, or null if it's properly signed
+     */
+    private String verifySignature(HttpExchange exchange, String path, List<String[]> query) throws IOException {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if(authorization == null || !authorization.startsWith("OAuth ")) {
+            return "the request isn't signed";
+        }
+        Map<String, String> oauth = new HashMap<String, String>();
+        Matcher matcher = OAUTH_PARAM.matcher(authorization);
+        while(matcher.find()) {
+            oauth.put(matcher.group(1), URLDecoder.decode(matcher.group(2), "UTF-8"));
+        }
+        if(!apiKey.equals(oauth.get("oauth_consumer_key"))) {
+            return "unknown api key " + oauth.get("oauth_consumer_key");
+        }
+        if(!"HMAC-SHA1".equals(oauth.get("oauth_signature_method"))) {
+            return "unsupported signature method " + oauth.get("oauth_signature_method");
+        }
+        String signature = oauth.remove("oauth_signature");
+        String timestamp = oauth.get("oauth_timestamp");
+        if(signature == null || timestamp == null || oauth.get("oauth_nonce") == null) {
+            return "the OAuth parameters are incomplete";
+        }
+        try {
+            if(Math.abs(System.currentTimeMillis() / 1000 - Long.parseLong(timestamp)) > MAX_CLOCK_SKEW_SECONDS) {
+                return "the request's timestamp is too far from the server's clock";
+            }
+        }
+        catch(NumberFormatException e) {
+            return "bad timestamp " + timestamp;
+        }
+
+        //the base string: verb, url without the query, and every parameter but the signature, sorted (RFC 5849 3.4.1)
+        List<String[]> params = new ArrayList<String[]>();
+        for(String[] param : query) {
+            params.add(new String[] {percentEncode(param[0]), percentEncode(param[1])});
+        }
+        for(Map.Entry<String, String> param : oauth.entrySet()) {
+            if(!param.getKey().equals("realm")) {
+                params.add(new String[] {percentEncode(param.getKey()), percentEncode(param.getValue())});
+            }
+        }
+        Collections.sort(params, new Comparator<String[]>() {
+            @Override
+            public int compare(String[] a, String[] b) {
+                int byName = a[0].compareTo(b[0]);
+                return byName != 0 ? byName : a[1].compareTo(b[1]);
+            }
+        });
+        StringBuilder normalized = new StringBuilder();
+        for(String[] param : params) {
+            if(normalized.length() > 0) {
+                normalized.append('&');
+            }
+            normalized.append(param[0]).append('=').append(param[1]);
+        }
+        String url = getScheme(exchange) + "://" + exchange.getRequestHeaders().getFirst("Host") + path;
+        String baseString = exchange.getRequestMethod() + "&" + percentEncode(url) + "&" + percentEncode(normalized.toString());
+
+        byte[] expected;
+        try {
+            Mac mac = Mac.getInstance("HmacSHA1");
+            mac.init(signingKey);
+            expected = Base64.encodeBase64(mac.doFinal(baseString.getBytes("UTF-8")));
+        }
+        catch(GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        if(!MessageDigest.isEqual(expected, signature.getBytes("UTF-8"))) {
+            return "invalid signature";
+        }
+        return null;
+    }
+
+    /**
+     * @return https if the request came through a {@link TlsTerminatingTransport} that received it over https
+     */
+    private static String getScheme(HttpExchange exchange) {
+        String forwarded = exchange.getRequestHeaders().getFirst(TlsTerminatingTransport.FORWARDED_PROTO);
+        return forwarded == null ? "http" : forwarded;
+    }
+
+    private void listApi(HttpExchange exchange) throws IOException {
+        JsonObject api = new JsonObject();
+        for(Map.Entry<String, Map<String, JsonObject>> schema : schemas.entrySet()) {
+            JsonObject description = new JsonObject();
+            description.addProperty("id", getIdField(schema.getKey()));
+            synchronized(schema.getValue()) {
+                description.addProperty("count", schema.getValue().size());
+            }
+            api.add(schema.getKey(), description);
+        }
+        StubServer.send(exchange, 200, api.toString());
+    }
+
+    private void push(HttpExchange exchange, String method, String body) throws IOException {
+        JsonObject request;
+        try {
+            request = new JsonParser().parse(body).getAsJsonObject();
+        }
+        catch(RuntimeException e) {
+            sendError(exchange, 400, "the body isn't a JSON object");
+            return;
+        }
+        if(method.equals("register_device_token_universal")) {
+            JsonObject token = request.getAsJsonObject("token");
+            if(token == null || !token.has("token") || !request.has("userId")) {
+                sendError(exchange, 400, "a token and a userId are required");
+                return;
+            }
+            pushTokens.put(token.get("token").getAsString(), request.get("userId").getAsString());
+        }
+        else if(method.equals("remove_push_token_universal")) {
+            if(!request.has("token")) {
+                sendError(exchange, 400, "a token is required");
+                return;
+            }
+            pushTokens.remove(request.get("token").getAsString());
+        }
+        else if(method.equals("push_tokens_universal") || method.equals("push_users_universal") || method.equals("push_broadcast")) {
+            request.addProperty("method", method);
+            pushes.add(request);
+        }
+        else if(!method.equals("get_expired_tokens_universal")) {
+            sendError(exchange, 404, "push/" + method + " isn't a StackMob method");
+            return;
+        }
+        StubServer.send(exchange, 200, "{}");
+    }
+
+    private void login(HttpExchange exchange, List<String[]> query) throws IOException {
+        String username = null;
+        String password = null;
+        for(String[] param : query) {
+            if(param[0].equals("username")) {
+                username = param[1];
+            }
+            else if(param[0].equals("password")) {
+                password = param[1];
+            }
+        }
+        JsonObject user = username == null ? null : find(userObjectName, username);
+        if(user == null || password == null || !user.has("password") || !password.equals(user.get("password").getAsString())) {
+            sendError(exchange, 401, "Invalid login");
+            return;
+        }
+        String session = UUID.randomUUID().toString();
+        sessions.put(session, username);
+        exchange.getResponseHeaders().add("Set-Cookie", getSessionCookieName() + "=" + session + "; Path=/");
+        StubServer.send(exchange, 200, withoutPassword(userObjectName, user).toString());
+    }
+
+    private void logout(HttpExchange exchange) throws IOException {
+        String cookies = exchange.getRequestHeaders().getFirst("Cookie");
+        if(cookies != null) {
+            for(String cookie : cookies.split(";")) {
+                String[] pair = cookie.trim().split("=", 2);
+                if(pair.length == 2 && pair[0].equals(getSessionCookieName())) {
+                    sessions.remove(pair[1]);
+                }
+            }
+        }
+        exchange.getResponseHeaders().add("Set-Cookie", getSessionCookieName() + "=; Path=/; Max-Age=0");
+        StubServer.send(exchange, 200, "{}");
+    }
+
+    private String getSessionCookieName() {
+        return "session_" + apiKey;
+    }
+
+    private void query(HttpExchange exchange, String schema, List<String[]> query) throws IOException {
+        Map<String, JsonObject> objects = schemas.get(schema);
+        if(objects == null) {
+            sendError(exchange, 404, "schema " + schema + " does not exist");
+            return;
+        }
+        List<JsonObject> matches = new ArrayList<JsonObject>();
+        synchronized(objects) {
+            for(JsonObject object : objects.values()) {
+                if(matches(object, query)) {
+                    matches.add(withoutPassword(schema, object));
+                }
+            }
+        }
+        int start = 0;
+        int end = matches.size() - 1;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        Matcher rangeMatcher = range == null ? null : RANGE.matcher(range);
+        if(rangeMatcher != null && rangeMatcher.matches()) {
+            start = Integer.parseInt(rangeMatcher.group(1));
+            end = Math.min(end, Integer.parseInt(rangeMatcher.group(2)));
+            exchange.getResponseHeaders().set("Content-Range", "objects " + start + "-" + end + "/" + matches.size());
+        }
+        JsonArray page = new JsonArray();
+        for(int i = start; i <= end; i++) {
+            page.add(matches.get(i));
+        }
+        StubServer.send(exchange, 200, page.toString());
+    }
+
+    /**
+     * @return true if the object matches every condition in the query. parameters that start with an underscore, such as
+     * _expand, aren't conditions
+     */
+    private static boolean matches(JsonObject object, List<String[]> query) {
+        for(String[] param : query) {
+            String name = param[0];
+            if(name.startsWith("_")) {
+                continue;
+            }
+            String operator = "";
+            int bracket = name.indexOf('[');
+            if(bracket > 0 && name.endsWith("]")) {
+                operator = name.substring(bracket + 1, name.length() - 1);
+                name = name.substring(0, bracket);
+            }
+            JsonElement field = object.get(name);
+            if(field == null || !field.isJsonPrimitive()) {
+                return false;
+            }
+            if(operator.equals("in")) {
+                boolean found = false;
+                for(String value : param[1].split(",")) {
+                    found |= compare(field.getAsJsonPrimitive(), value) == 0;
+                }
+                if(!found) {
+                    return false;
+                }
+                continue;
+            }
+            int comparison = compare(field.getAsJsonPrimitive(), param[1]);
+            boolean matched;
+            if(operator.equals("")) {
+                matched = comparison == 0;
+            }
+            else if(operator.equals("lt")) {
+                matched = comparison < 0;
+            }
+            else if(operator.equals("lte")) {
+                matched = comparison <= 0;
+            }
+            else if(operator.equals("gt")) {
+                matched = comparison > 0;
+            }
+            else if(operator.equals("gte")) {
+                matched = comparison >= 0;
+            }
+            else {
+                matched = false;
+            }
+            if(!matched) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * compare a field with a value from the query string, as numbers if the field is a number
+     */
+    private static int compare(JsonPrimitive field, String value) {
+        if(field.isNumber()) {
+            try {
+                return Double.compare(field.getAsDouble(), Double.parseDouble(value));
+            }
+            catch(NumberFormatException e) {
+                //fall through and compare them as strings
+            }
+        }
+        return field.getAsString().compareTo(value);
+    }
+
+    private void create(HttpExchange exchange, String schema, String body) throws IOException {
+        JsonElement json;
+        try {
+            json = new JsonParser().parse(body);
+        }
+        catch(JsonParseException e) {
+            sendError(exchange, 400, "the body isn't JSON");
+            return;
+        }
+        schemas.putIfAbsent(schema, new LinkedHashMap<String, JsonObject>());
+        Map<String, JsonObject> objects = schemas.get(schema);
+        if(json.isJsonArray()) {
+            //a bulk create
+            JsonArray created = new JsonArray();
+            synchronized(objects) {
+                for(JsonElement element : json.getAsJsonArray()) {
+                    if(!element.isJsonObject()) {
+                        sendError(exchange, 400, "only objects can be created");
+                        return;
+                    }
+                    JsonObject object = insert(schema, objects, element.getAsJsonObject());
+                    if(object == null) {
+                        sendError(exchange, 409, "duplicate key " + element.getAsJsonObject().get(getIdField(schema)));
+                        return;
+                    }
+                    created.add(withoutPassword(schema, object));
+                }
+            }
+            StubServer.send(exchange, 201, created.toString());
+        }
+        else if(json.isJsonObject()) {
+            JsonObject object;
+            synchronized(objects) {
+                object = insert(schema, objects, json.getAsJsonObject());
+            }
+            if(object == null) {
+                sendError(exchange, 409, "duplicate key " + json.getAsJsonObject().get(getIdField(schema)));
+                return;
+            }
+            StubServer.send(exchange, 201, withoutPassword(schema, object).toString());
+        }
+        else {
+            sendError(exchange, 400, "only objects can be created");
+        }
+    }
+
+    /**
+     * add an object to a schema, giving it an id if it has none. the caller must hold the schema's lock
+     * @return the stored object, or null if an object with the same id already exists
+     */
+    private JsonObject insert(String schema, Map<String, JsonObject> objects, JsonObject object) {
+        String idField = getIdField(schema);
+        if(!object.has(idField) || object.get(idField).isJsonNull()) {
+            object.addProperty(idField, UUID.randomUUID().toString().replace("-", ""));
+        }
+        String id = object.get(idField).getAsString();
+        if(objects.containsKey(id)) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        object.addProperty("createddate", now);
+        object.addProperty("lastmoddate", now);
+        objects.put(id, object);
+        return object;
+    }
+
+    private void read(HttpExchange exchange, String schema, String id) throws IOException {
+        JsonObject object = find(schema, id);
+        if(object == null) {
+            sendError(exchange, 404, schema + " " + id + " does not exist");
+            return;
+        }
+        StubServer.send(exchange, 200, withoutPassword(schema, object).toString());
+    }
+
+    private void update(HttpExchange exchange, String schema, String id, String body) throws IOException {
+        JsonObject changes;
+        try {
+            changes = new JsonParser().parse(body).getAsJsonObject();
+        }
+        catch(RuntimeException e) {
+            sendError(exchange, 400, "the body isn't a JSON object");
+            return;
+        }
+        Map<String, JsonObject> objects = schemas.get(schema);
+        JsonObject updated = null;
+        if(objects != null) {
+            synchronized(objects) {
+                JsonObject object = objects.get(id);
+                if(object != null) {
+                    String idField = getIdField(schema);
+                    for(Map.Entry<String, JsonElement> change : changes.entrySet()) {
+                        //an object's id and dates are the server's to set
+                        if(!change.getKey().equals(idField) && !change.getKey().equals("createddate")) {
+                            object.add(change.getKey(), change.getValue());
+                        }
+                    }
+                    object.addProperty("lastmoddate", System.currentTimeMillis());
+                    updated = withoutPassword(schema, object);
+                }
+            }
+        }
+        if(updated == null) {
+            sendError(exchange, 404, schema + " " + id + " does not exist");
+            return;
+        }
+        StubServer.send(exchange, 200, updated.toString());
+    }
+
+    private void delete(HttpExchange exchange, String schema, String id) throws IOException {
+        Map<String, JsonObject> objects = schemas.get(schema);
+        JsonObject removed = null;
+        if(objects != null) {
+            synchronized(objects) {
+                removed = objects.remove(id);
+            }
+        }
+        if(removed == null) {
+            sendError(exchange, 404, schema + " " + id + " does not exist");
+            return;
+        }
+        StubServer.send(exchange, 200, DELETED);
+    }
+
+    private JsonObject find(String schema, String id) {
+        Map<String, JsonObject> objects = schemas.get(schema);
+        if(objects == null) {
+            return null;
+        }
+        synchronized(objects) {
+            return objects.get(id);
+        }
+    }
+
+    private String getIdField(String schema) {
+        return schema.equals(userObjectName) ? "username" : schema + "_id";
+    }
+
+    /**
+     * @return a copy of the object that's safe to send, which for a user means without the password
+     */
+    private JsonObject withoutPassword(String schema, JsonObject object) {
+        JsonObject copy = new JsonObject();
+        boolean isUser = schema.equals(userObjectName);
+        for(Map.Entry<String, JsonElement> field : object.entrySet()) {
+            if(!isUser || !field.getKey().equals("password")) {
+                copy.add(field.getKey(), field.getValue());
+            }
+        }
+        return copy;
+    }
+
+    private static void sendError(HttpExchange exchange, int code, String message) throws IOException {
+        JsonObject error = new JsonObject();
+        error.addProperty("error", message);
+        StubServer.send(exchange, code, error.toString());
+    }
+
+    private static List<String[]> parseQuery(String query) throws UnsupportedEncodingException {
+        List<String[]> params = new ArrayList<String[]>();
+        if(query == null || query.length() == 0) {
+            return params;
+        }
+        for(String param : query.split("&")) {
+            int eq = param.indexOf('=');
+            String name = eq == -1 ? param : param.substring(0, eq);
+            String value = eq == -1 ? "" : param.substring(eq + 1);
+            params.add(new String[] {URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8")});
+        }
+        return params;
+    }
+
+    /**
+     * percent encode a string as OAuth requires: everything but letters, digits and -._~ (RFC 3986 2.3)
+     */
+    static String percentEncode(String s) throws UnsupportedEncodingException {
+        StringBuilder encoded = new StringBuilder(s.length());
+        for(byte b : s.getBytes("UTF-8")) {
+            char c = (char)(b & 0xff);
+            if((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '.' || c == '_' || c == '~') {
+                encoded.append(c);
+            }
+            else {
+                encoded.append('%').append(Character.toUpperCase(Character.forDigit((b >> 4) & 0xf, 16))).append(Character.toUpperCase(Character.forDigit(b & 0xf, 16)));
+            }
+        }
+        return encoded.toString();
+    }
+}
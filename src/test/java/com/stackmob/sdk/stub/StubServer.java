@@ -0,0 +1,191 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.stub;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local HTTP server for tests to point a StackMob object at. it counts the requests it serves and the distinct client
+ * connections they arrived on
+ */
+public class StubServer {
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final ScheduledExecutorService delayer = Executors.newScheduledThreadPool(2);
+    private volatile long latencyMs = 0;
+    private final AtomicInteger requestCount = new AtomicInteger(0);
+    private final AtomicInteger pendingCount = new AtomicInteger(0);
+    private final AtomicInteger maxPendingCount = new AtomicInteger(0);
+    private final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+
+    static {
+        //the JDK server writes headers and body separately. without this, Nagle's algorithm holds the body back until
+        //the client's delayed ACK, adding 40ms to every response on a kept-alive connection
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    public StubServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 4096);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * serve every request whose path starts with the given prefix with the given handler
+     * @param pathPrefix the path prefix, for example "/game"
+     * @param handler the handler
+     * @return this server, so calls can be chained
+     */
+    public StubServer handle(String pathPrefix, final HttpHandler handler) {
+        server.createContext(pathPrefix, new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                requestCount.incrementAndGet();
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                int pending = pendingCount.incrementAndGet();
+                int max;
+                while(pending > (max = maxPendingCount.get()) && !maxPendingCount.compareAndSet(max, pending)) {}
+                long latency = latencyMs;
+                if(latency == 0) {
+                    respond(handler, exchange);
+                }
+                else {
+                    //respond later without holding a thread, so that thousands of requests can wait at once
+                    delayer.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                respond(handler, exchange);
+                            }
+                            catch(IOException e) {
+                                //the client went away
+                            }
+                        }
+                    }, latency, TimeUnit.MILLISECONDS);
+                }
+            }
+        });
+        return this;
+    }
+
+    /**
+     * delay every response by the given time. the delay doesn't hold a server thread
+     * @param latency the delay
+     * @param unit the unit of latency
+     * @return this server, so calls can be chained
+     */
+    public StubServer setLatency(long latency, TimeUnit unit) {
+        this.latencyMs = unit.toMillis(latency);
+        return this;
+    }
+
+    private void respond(HttpHandler handler, HttpExchange exchange) throws IOException {
+        try {
+            handler.handle(exchange);
+        }
+        finally {
+            pendingCount.decrementAndGet();
+            exchange.close();
+        }
+    }
+
+    /**
+     * serve every request whose path starts with the given prefix with a fixed response
+     * @param pathPrefix the path prefix, for example "/game"
+     * @param code the status code to respond with
+     * @param body the body to respond with
+     * @return this server, so calls can be chained
+     */
+    public StubServer respond(String pathPrefix, final int code, final String body) {
+        return handle(pathPrefix, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                readBody(exchange);
+                send(exchange, code, body);
+            }
+        });
+    }
+
+    /**
+     * @return the host and port to use as a StackMob urlFormat
+     */
+    public String getHost() {
+        return "127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return the most requests that the server has been working on at once
+     */
+    public int getMaxConcurrentRequests() {
+        return maxPendingCount.get();
+    }
+
+    /**
+     * @return the number of distinct client connections that requests have arrived on
+     */
+    public int getConnectionCount() {
+        return clientPorts.size();
+    }
+
+    public void stop() {
+        server.stop(0);
+        delayer.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    public static String readBody(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int read;
+        while((read = in.read(buf)) != -1) {
+            out.write(buf, 0, read);
+        }
+        return out.toString("UTF-8");
+    }
+
+    public static void send(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(code, bytes.length == 0 ? -1 : bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+}
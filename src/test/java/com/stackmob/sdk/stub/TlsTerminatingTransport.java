@@ -0,0 +1,67 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.stub;
+
+import java.util.Map;
+
+import com.stackmob.sdk.net.StackMobHttpCallback;
+import com.stackmob.sdk.net.StackMobHttpTransport;
+import org.scribe.model.OAuthRequest;
+import org.scribe.model.Verb;
+
+/**
+ * A transport that sends https requests as plain http, the way a load balancer that terminates TLS would. it adds an
+ * X-Forwarded-Proto header so that {@link StackMobStubServer} can check the signature against the https url the request
+ * was signed for. use it with servers that only speak http
+ */
+public class TlsTerminatingTransport implements StackMobHttpTransport {
+
+    public static final String FORWARDED_PROTO = "X-Forwarded-Proto";
+    private static final String HTTPS = "https://";
+
+    private final StackMobHttpTransport transport;
+
+    /**
+     * @param transport the transport to send the requests with
+     */
+    public TlsTerminatingTransport(StackMobHttpTransport transport) {
+        this.transport = transport;
+    }
+
+    @Override
+    public void send(OAuthRequest request, StackMobHttpCallback callback) {
+        if(!request.getUrl().startsWith(HTTPS)) {
+            transport.send(request, callback);
+            return;
+        }
+        OAuthRequest terminated = new OAuthRequest(request.getVerb(), "http://" + request.getUrl().substring(HTTPS.length()));
+        for(Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            terminated.addHeader(header.getKey(), header.getValue());
+        }
+        terminated.addHeader(FORWARDED_PROTO, "https");
+        if(request.getVerb() == Verb.POST || request.getVerb() == Verb.PUT) {
+            terminated.setCharset(request.getCharset());
+            terminated.addPayload(request.getBodyContents());
+        }
+        transport.send(terminated, callback);
+    }
+
+    @Override
+    public void shutdown() {
+        transport.shutdown();
+    }
+}
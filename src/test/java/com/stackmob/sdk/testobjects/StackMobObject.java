@@ -18,9 +18,9 @@ package com.stackmob.sdk.testobjects;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
-import com.stackmob.sdk.StackMobTestCommon;
 import com.stackmob.sdk.api.StackMob;
 import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobObjectCallback;
 import com.stackmob.sdk.exception.StackMobException;
 
 import java.util.concurrent.CountDownLatch;
@@ -90,11 +90,9 @@ public abstract class StackMobObject {
     public static <T extends StackMobObject> T create(final StackMob stackmob, final T object, final Class<T> objectClass) throws InterruptedException {
         final AtomicReference<T> ref = new AtomicReference<T>();
         final CountDownLatch latch = new CountDownLatch(1);
-        stackmob.post(object.getName(), object, new StackMobCallback() {
+        stackmob.post(object.getName(), object, objectClass, new StackMobObjectCallback<T>() {
             @Override
-            public void success(String responseBody) {
-                StackMobTestCommon.assertNotError(responseBody);
-                T obj = gson.fromJson(responseBody, objectClass);
+            public void success(T obj) {
                 assertNotNull(obj.getId());
                 ref.set(obj);
                 latch.countDown();
@@ -0,0 +1,70 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.virtualthreads;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.net.PooledHttpTransport;
+import com.stackmob.sdk.net.StackMobHttpTransport;
+
+/**
+ * Runs StackMob requests on virtual threads. each request gets a thread of its own, which blocks on the network without
+ * holding a platform thread, so thousands of blocking requests can be in flight at once. for example:
+ * <code>
+ *     StackMobVirtualThreads.enable(stackmob, 10000);
+ *     StackMobFuture game = stackmob.get("game", gameCallback);
+ * </code>
+ * requires JDK 21 or newer
+ */
+public final class StackMobVirtualThreads {
+
+    private StackMobVirtualThreads() {}
+
+    /**
+     * @return an executor that starts a new virtual thread for every request. the threads are named stackmob-0, stackmob-1 and so on
+     */
+    public static ExecutorService newExecutor() {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("stackmob-", 0).factory());
+    }
+
+    /**
+     * run the given StackMob object's requests on virtual threads, keeping its current transport
+     * @param stackmob the StackMob object
+     * @return the StackMob object, so calls can be chained
+     */
+    public static StackMob enable(StackMob stackmob) {
+        return stackmob.setExecutor(newExecutor());
+    }
+
+    /**
+     * run the given StackMob object's requests on virtual threads, over a connection pool large enough for them. the default
+     * pool allows {@link PooledHttpTransport#DEFAULT_MAX_CONNECTIONS_PER_HOST} connections per host, which would leave most
+     * virtual threads waiting for a connection. the transport the StackMob object had is shut down, so call this before
+     * sending any requests
+     * @param stackmob the StackMob object
+     * @param maxConnectionsPerHost the size of the new connection pool
+     * @return the StackMob object, so calls can be chained
+     */
+    public static StackMob enable(StackMob stackmob, int maxConnectionsPerHost) {
+        StackMobHttpTransport replaced = stackmob.getTransport();
+        enable(stackmob).setTransport(new PooledHttpTransport().setMaxConnectionsPerHost(maxConnectionsPerHost));
+        replaced.shutdown();
+        return stackmob;
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.virtualthreads.StackMobVirtualThreads;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.PooledHttpTransport;
+import com.stackmob.sdk.stub.StubServer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * makes 10,000 simultaneous blocking calls against a local stub that takes 200ms to answer each one, on virtual threads
+ * and on a pool of 256 platform threads
+ */
+public class VirtualThreadScalingTests {
+
+    private static final int REQUESTS = 10000;
+    private static final long LATENCY_MS = 200L;
+    private static final int PLATFORM_THREADS = 256;
+
+    private static final StackMobRedirectedCallback noopRedirectedCallback = new StackMobRedirectedCallback() {
+        @Override
+        public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {}
+    };
+
+    private static final StackMobCallback noopCallback = new StackMobCallback() {
+        @Override
+        public void success(String responseBody) {}
+        @Override
+        public void failure(StackMobException e) {}
+    };
+
+    private static class Result {
+        final long elapsedMs;
+        final int maxConcurrent;
+        final int failures;
+
+        Result(long elapsedMs, int maxConcurrent, int failures) {
+            this.elapsedMs = elapsedMs;
+            this.maxConcurrent = maxConcurrent;
+            this.failures = failures;
+        }
+    }
+
+    @Test
+    public void virtualThreadsScaleToTenThousandBlockingCalls() throws Exception {
+        ExecutorService platform = Executors.newFixedThreadPool(PLATFORM_THREADS);
+        Result platformResult;
+        try {
+            platformResult = run("platform threads (" + PLATFORM_THREADS + ")", platform);
+        }
+        finally {
+            platform.shutdownNow();
+        }
+
+        ExecutorService virtual = StackMobVirtualThreads.newExecutor();
+        Result virtualResult;
+        try {
+            virtualResult = run("virtual threads", virtual);
+        }
+        finally {
+            virtual.shutdownNow();
+        }
+
+        assertEquals(0, platformResult.failures);
+        assertEquals(0, virtualResult.failures);
+        //platform threads can't have many more calls outstanding than there are threads. virtual threads aren't limited that way
+        assertTrue(virtualResult.maxConcurrent > PLATFORM_THREADS * 2);
+        assertTrue(virtualResult.elapsedMs < platformResult.elapsedMs);
+    }
+
+    @Test
+    public void enableShutsDownTheReplacedTransport() throws Exception {
+        StubServer server = new StubServer().respond("/game", 200, "{\"game_id\":\"1\"}");
+        PooledHttpTransport replaced = new PooledHttpTransport();
+        StackMob stackmob = new StackMob("key", "secret", "user", 0, server.getHost(), noopRedirectedCallback).setTransport(replaced);
+        try {
+            stackmob.get("game", noopCallback);
+            assertEquals(1, replaced.getIdleConnectionCount());
+            StackMobVirtualThreads.enable(stackmob, 100);
+            assertNotSame(replaced, stackmob.getTransport());
+            assertEquals(0, replaced.getIdleConnectionCount());
+            assertEquals("{\"game_id\":\"1\"}", stackmob.get("game", noopCallback).get(10, TimeUnit.SECONDS));
+        }
+        finally {
+            stackmob.shutdown();
+            server.stop();
+        }
+    }
+
+    private Result run(String name, ExecutorService executor) throws Exception {
+        StubServer server = new StubServer().respond("/game", 200, "{\"game_id\":\"1\"}").setLatency(LATENCY_MS, TimeUnit.MILLISECONDS);
+        StackMob stackmob = new StackMob("key", "secret", "user", 0, server.getHost(), noopRedirectedCallback)
+                .setTransport(new PooledHttpTransport().setMaxConnectionsPerHost(REQUESTS))
+                .setExecutor(executor);
+        final CountDownLatch done = new CountDownLatch(REQUESTS);
+        final AtomicInteger failures = new AtomicInteger(0);
+        StackMobCallback callback = new StackMobCallback() {
+            @Override
+            public void success(String responseBody) {
+                done.countDown();
+            }
+            @Override
+            public void failure(StackMobException e) {
+                failures.incrementAndGet();
+                done.countDown();
+            }
+        };
+        try {
+            long start = System.nanoTime();
+            for(int i = 0; i < REQUESTS; i++) {
+                stackmob.get("game", callback);
+            }
+            assertTrue(done.await(5, TimeUnit.MINUTES));
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            Result result = new Result(elapsedMs, server.getMaxConcurrentRequests(), failures.get());
+            System.out.println(String.format("%-28s %6d calls %8d ms %10.0f calls/s  %6d max concurrent at server  %d failures",
+                    name, REQUESTS, elapsedMs, REQUESTS * 1000D / elapsedMs, result.maxConcurrent, result.failures));
+            return result;
+        }
+        finally {
+            stackmob.shutdown();
+            server.stop();
+        }
+    }
+}